@@ -0,0 +1,180 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+        
+    http://www.apache.org/licenses/LICENSE-2.0
+        
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.calcore;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Settings and counts for the access pre-filter applied to event queries.
+ *
+ * <p>When enabled the event query excludes rows which we know will fail the
+ * access check - those with no acl of their own, not owned by the current
+ * principal, in a collection whose inherited access denies the principal.
+ * Everything else is fetched and checked as before.
+ *
+ * <p>The excluded collections are passed as in lists of at most
+ * {@link #maxInListSize} paths - some databases reject more than 1000
+ * elements. If more than maxCollections are excluded the term is not added
+ * and we rely on the access check after the fetch.
+ *
+ * @author Mike Douglass
+ */
+public class AccessPrefilter {
+  private static final AccessPrefilter prefilter = new AccessPrefilter();
+
+  /** Maximum number of paths in a single in list */
+  public static final int maxInListSize = 500;
+
+  private volatile boolean enabled = true;
+
+  private volatile int maxCollections = 5000;
+
+  private final AtomicLong queries = new AtomicLong();
+  private final AtomicLong prefilteredQueries = new AtomicLong();
+  private final AtomicLong deniedCollections = new AtomicLong();
+  private final AtomicLong rowsFetched = new AtomicLong();
+  private final AtomicLong rowsReturned = new AtomicLong();
+  private final AtomicLong overLimit = new AtomicLong();
+
+  /**
+   * @return the node-wide instance
+   */
+  public static AccessPrefilter getPrefilter() {
+    return prefilter;
+  }
+
+  /**
+   * @param val true to enable the pre-filter
+   */
+  public void setEnabled(final boolean val) {
+    enabled = val;
+  }
+
+  /**
+   * @return true if enabled
+   */
+  public boolean getEnabled() {
+    return enabled;
+  }
+
+  /**
+   * @param val maximum number of collections excluded in the query
+   */
+  public void setMaxCollections(final int val) {
+    maxCollections = val;
+  }
+
+  /**
+   * @return maximum number of collections excluded in the query
+   */
+  public int getMaxCollections() {
+    return maxCollections;
+  }
+
+  /** Split the excluded collections into in lists of acceptable size.
+   *
+   * @param denied collection paths
+   * @return list of lists or null if there are too many to exclude
+   */
+  public List<List<String>> inLists(final Collection<String> denied) {
+    if (denied.size() > maxCollections) {
+      overLimit.incrementAndGet();
+      return null;
+    }
+
+    List<List<String>> res = new ArrayList<List<String>>();
+    List<String> l = null;
+
+    for (String path: denied) {
+      if ((l == null) || (l.size() == maxInListSize)) {
+        l = new ArrayList<String>(maxInListSize);
+        res.add(l);
+      }
+
+      l.add(path);
+    }
+
+    return res;
+  }
+
+  /** Record the result of a query
+   *
+   * @param denied number of collections excluded by the pre-filter
+   * @param fetched rows fetched
+   * @param returned rows which passed the access check
+   */
+  public void query(final int denied,
+                    final long fetched,
+                    final long returned) {
+    queries.incrementAndGet();
+
+    if (denied > 0) {
+      prefilteredQueries.incrementAndGet();
+      deniedCollections.addAndGet(denied);
+    }
+
+    rowsFetched.addAndGet(fetched);
+    rowsReturned.addAndGet(returned);
+  }
+
+  /**
+   * @return number of queries
+   */
+  public long getQueries() {
+    return queries.get();
+  }
+
+  /**
+   * @return number of queries which had a pre-filter term added
+   */
+  public long getPrefilteredQueries() {
+    return prefilteredQueries.get();
+  }
+
+  /**
+   * @return total number of collections excluded
+   */
+  public long getDeniedCollections() {
+    return deniedCollections.get();
+  }
+
+  /**
+   * @return total rows fetched
+   */
+  public long getRowsFetched() {
+    return rowsFetched.get();
+  }
+
+  /**
+   * @return total rows which passed the access check
+   */
+  public long getRowsReturned() {
+    return rowsReturned.get();
+  }
+
+  /**
+   * @return number of times the pre-filter was skipped because too many
+   *         collections would have been excluded
+   */
+  public long getOverLimit() {
+    return overLimit.get();
+  }
+}
@@ -18,7 +18,11 @@
 */
 package org.bedework.calcore;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.TreeSet;
 
 import org.apache.log4j.Logger;
@@ -34,6 +38,8 @@ import org.bedework.calfacade.exc.CalFacadeAccessException;
 import org.bedework.calfacade.exc.CalFacadeException;
 import org.bedework.calfacade.util.AccessUtilI;
 import org.bedework.calfacade.wrappers.CalendarWrapper;
+import org.bedework.tracing.Span;
+import org.bedework.tracing.Tracer;
 
 import edu.rpi.cmt.access.Access;
 import edu.rpi.cmt.access.AccessPrincipal;
@@ -82,30 +88,19 @@ private boolean debug;
 
   private transient Logger log;
 
-  /* Information created and saved about access on a given path.
-   * /
-  private class PathInfo implements Serializable {
-    String path;   // The key
-    Acl pathAcl;   // Merged acl for the path.
-    char[] encoded;
-  }
+  /* Compiled acls and evaluated access for this session. Depends on authUser
+   * and maxAllowedPrivs */
+  private SessionAccessTable sessionTable = new SessionAccessTable();
 
-  private static class PathInfoMap extends HashMap<String, PathInfo> {
-    synchronized PathInfo getInfo(String path) {
-      return (PathInfo)get(path);
-    }
+  /* Merged acls for collection paths - shared by all sessions. */
+  private static final AclPathCache pathCache = AclPathCache.getCache();
 
-    synchronized void putInfo(String path, PathInfo pi) {
-      put(path, pi);
-    }
+  /* Interned acls and evaluation results - shared by all sessions. */
+  private static final AclInternCache internCache = AclInternCache.getCache();
 
-    synchronized void flush() {
-      clear();
-    }
-  }
-
-  private PathInfoMap pathInfoMap = new PathInfoMap();
-  */
+  /* False for sessions on a replica. What they see may lag the primary so
+   * they use but do not add to the shared caches. */
+  private boolean populateSharedCaches = true;
 
   /**
    */
@@ -161,6 +156,17 @@ private boolean debug;
    */
   public void setMaximumAllowedPrivs(final PrivilegeSet val) {
     maxAllowedPrivs = val;
+    sessionTable.clear();
+  }
+
+  /** Set false for sessions which read from a replica. They may see data
+   * older than the primary so nothing they evaluate goes into the caches
+   * shared by all sessions.
+   *
+   * @param val
+   */
+  public void setPopulateSharedCaches(final boolean val) {
+    populateSharedCaches = val;
   }
 
   /** Set the current authenticated user.
@@ -169,6 +175,14 @@ private boolean debug;
    */
   public void setAuthUser(final BwUser val) {
     authUser = val;
+    sessionTable.setPrincipal(val);
+  }
+
+  /**
+   * @return the current authenticated user - may be null
+   */
+  public BwUser getAuthUser() {
+    return authUser;
   }
 
   /** Called at request start
@@ -181,7 +195,13 @@ private boolean debug;
    *
    */
   public void close() {
-    //pathInfoMap.flush();
+    if (debug) {
+      getLog().debug("Session access table: hits=" + sessionTable.getHits() +
+                     " misses=" + sessionTable.getMisses() +
+                     " deferred=" + sessionTable.getDeferred());
+    }
+
+    sessionTable.clear();
   }
 
   /** Called to get the parent object for a shared entity. This method should be
@@ -226,14 +246,17 @@ private boolean debug;
       if (replaceAll) {
         allAces = aces;
       } else {
-        allAces = acl.getAces();
+        /* The acl may be shared by cached results - don't change it */
+        allAces = new ArrayList<Ace>(acl.getAces());
         allAces.addAll(aces);
       }
 
 
       ent.setAccess(new Acl(allAces).encodeStr());
 
-//      pathInfoMap.flush();
+      if (ent instanceof BwCalendar) {
+        pathCache.invalidate();
+      }
     } catch (CalFacadeException cfe) {
       throw cfe;
     } catch (Throwable t) {
@@ -247,14 +270,18 @@ private boolean debug;
   public void defaultAccess(final BwShareableDbentity<?> ent,
                             final AceWho who) throws CalFacadeException {
     try {
-      Acl acl = checkAccess(ent, privWriteAcl, false).getAcl();
+      /* Work on a copy - the acl may be shared by cached results */
+      Acl acl = Acl.decode(checkAccess(ent, privWriteAcl,
+                                       false).getAcl().encodeAll());
 
       /* Now remove any access */
 
       if (acl.removeWho(who) != null) {
         ent.setAccess(acl.encodeStr());
 
-//        pathInfoMap.flush();
+        if (ent instanceof BwCalendar) {
+          pathCache.invalidate();
+        }
       }
     } catch (CalFacadeException cfe) {
       throw cfe;
@@ -288,6 +315,24 @@ private boolean debug;
   public CurrentAccess checkAccess(final BwShareableDbentity<?> ent,
                                    final int desiredAccess,
                         final boolean alwaysReturnResult) throws CalFacadeException {
+    if (!Tracer.active()) {
+      return checkEntityAccess(ent, desiredAccess, alwaysReturnResult);
+    }
+
+    /* Too many for a span each - count them against the current span */
+    long start = System.nanoTime();
+
+    try {
+      return checkEntityAccess(ent, desiredAccess, alwaysReturnResult);
+    } finally {
+      Tracer.count("accessChecks", System.nanoTime() - start);
+    }
+  }
+
+  private CurrentAccess checkEntityAccess(final BwShareableDbentity<?> ent,
+                                          final int desiredAccess,
+                                          final boolean alwaysReturnResult)
+          throws CalFacadeException {
     if (ent == null) {
       return null;
     }
@@ -390,29 +435,10 @@ private boolean debug;
           getLog().debug("aclChars = " + new String(aclChars));
         }
 
-        if (desiredAccess == privAny) {
-          ca = access.checkAny(cb, authUser, owner, aclChars, maxPrivs);
-        } else if (desiredAccess == privRead) {
-          ca = access.checkRead(cb, authUser, owner, aclChars, maxPrivs);
-        } else if (desiredAccess == privWrite) {
-          ca = access.checkReadWrite(cb, authUser, owner, aclChars, maxPrivs);
-        } else {
-          ca = access.evaluateAccess(cb, authUser, owner, desiredAccess, aclChars,
-                                     maxPrivs);
-        }
+        ca = evaluate(owner, aclChars, desiredAccess, maxPrivs);
       }
 
-      if ((authUser != null) && superUser) {
-        // Nobody can stop us - BWAAA HAA HAA
-
-        /* Override rather than just create a readable access as code further
-         * up expects a valid filled in object.
-         */
-        if (debug && !ca.getAccessAllowed()) {
-          getLog().debug("Override for superuser");
-        }
-        ca = Acl.forceAccessAllowed(ca);
-      }
+      ca = superUserOverride(ca);
 
       if (ent instanceof CalendarWrapper) {
         CalendarWrapper col = (CalendarWrapper)ent;
@@ -432,17 +458,298 @@ private boolean debug;
     }
   }
 
+  /** Check access for a list of entities, returning an array of results
+   * aligned with the list.
+   *
+   * <p>Entities are grouped by their containing collection. The merged access
+   * for each collection is fetched once and the evaluation is carried out once
+   * for each distinct owner and entity acl within the collection. Most events
+   * have no acl of their own so this usually means one evaluation per
+   * collection.
+   *
+   * @param ents          list of entities - may contain nulls
+   * @param desiredAccess access we want
+   * @param alwaysReturnResult false to throw an exception on no access
+   * @return array of CurrentAccess - null for null entities
+   * @throws CalFacadeException
+   */
+  public CurrentAccess[] checkAccess(final List<? extends BwShareableDbentity<?>> ents,
+                                     final int desiredAccess,
+                                     final boolean alwaysReturnResult)
+          throws CalFacadeException {
+    Span span = Tracer.start("checkAccess");
+
+    try {
+      return checkEntitiesAccess(ents, desiredAccess, alwaysReturnResult);
+    } finally {
+      span.setAttribute("entities", ents.size());
+      span.end();
+    }
+  }
+
+  private CurrentAccess[] checkEntitiesAccess(final List<? extends BwShareableDbentity<?>> ents,
+                                              final int desiredAccess,
+                                              final boolean alwaysReturnResult)
+          throws CalFacadeException {
+    CurrentAccess[] res = new CurrentAccess[ents.size()];
+
+    /* Keyed by colPath */
+    Map<String, ContainerAccess> containers = new HashMap<String, ContainerAccess>();
+
+    try {
+      int i = 0;
+
+      for (BwShareableDbentity<?> ent: ents) {
+        int pos = i;
+        i++;
+
+        if ((ent == null) ||
+            (ent instanceof BwCalendar) ||
+            !(ent instanceof BwShareableContainedDbentity)) {
+          res[pos] = checkAccess(ent, desiredAccess, alwaysReturnResult);
+          continue;
+        }
+
+        String colPath = ((BwShareableContainedDbentity<?>)ent).getColPath();
+
+        ContainerAccess cta = containers.get(colPath);
+
+        if (cta == null) {
+          BwCalendar container = getParent((BwShareableContainedDbentity<?>)ent);
+
+          if (container == null) {
+            // Let the single entity check deal with it
+            res[pos] = checkAccess(ent, desiredAccess, alwaysReturnResult);
+            continue;
+          }
+
+          CalendarWrapper wcol;
+          if (container instanceof CalendarWrapper) {
+            wcol = (CalendarWrapper)container;
+          } else {
+            wcol = new CalendarWrapper(container, this);
+          }
+
+          cta = new ContainerAccess(container.getPath(),
+                                    getCollectionAclChars(wcol));
+          containers.put(colPath, cta);
+        }
+
+        String entAccess = ent.getAccess();
+        String key = ent.getOwnerHref() + "\t" + entAccess;
+
+        CurrentAccess ca = cta.results.get(key);
+
+        if (ca == null) {
+          AccessPrincipal owner = cb.getPrincipal(ent.getOwnerHref());
+
+          ca = evaluate(owner,
+                        merged(cta.aclChars, cta.path, entAccess),
+                        desiredAccess, maxAllowedPrivs);
+
+          ca = superUserOverride(ca);
+
+          cta.results.put(key, ca);
+        }
+
+        if (!ca.getAccessAllowed() && !alwaysReturnResult) {
+          throw new CalFacadeAccessException();
+        }
+
+        res[pos] = ca;
+      }
+
+      if (debug) {
+        getLog().debug("Batch access check: " + ents.size() +
+                       " entities in " + containers.size() +
+                       " collections");
+      }
+
+      return res;
+    } catch (CalFacadeException cfe) {
+      throw cfe;
+    } catch (Throwable t) {
+      throw new CalFacadeException(t);
+    }
+  }
+
+  /** Given a set of collection paths, return those in which an entity with no
+   * acl of its own, and not owned by the current principal, will certainly be
+   * denied the desired access. Used to exclude such entities in the query.
+   *
+   * <p>Collections owned by the current principal are never returned as we
+   * have no way of evaluating the access for some other owner.
+   *
+   * @param colPaths      collection paths
+   * @param desiredAccess access we want
+   * @return paths - never null
+   * @throws CalFacadeException
+   */
+  public Collection<String> getDeniedCollections(final Collection<String> colPaths,
+                                                 final int desiredAccess)
+          throws CalFacadeException {
+    Collection<String> denied = new ArrayList<String>();
+
+    if (superUser) {
+      return denied;
+    }
+
+    String authHref = null;
+
+    if (authUser != null) {
+      authHref = authUser.getPrincipalRef();
+    }
+
+    try {
+      for (String path: colPaths) {
+        BwCalendar col = cg.getCollection(path);
+
+        if ((col == null) || (col.getOwnerHref() == null) ||
+            col.getOwnerHref().equals(authHref)) {
+          continue;
+        }
+
+        CalendarWrapper wcol;
+        if (col instanceof CalendarWrapper) {
+          wcol = (CalendarWrapper)col;
+        } else {
+          wcol = new CalendarWrapper(col, this);
+        }
+
+        /* The access an entity with no acl gets - as in getAclChars */
+        char[] aclChars = merged(getCollectionAclChars(wcol), path, null);
+
+        AccessPrincipal owner = cb.getPrincipal(col.getOwnerHref());
+
+        if (owner == null) {
+          continue;
+        }
+
+        CurrentAccess ca = evaluate(owner, aclChars, desiredAccess,
+                                    maxAllowedPrivs);
+
+        if (!ca.getAccessAllowed()) {
+          denied.add(path);
+        }
+      }
+
+      return denied;
+    } catch (CalFacadeException cfe) {
+      throw cfe;
+    } catch (Throwable t) {
+      throw new CalFacadeException(t);
+    }
+  }
+
   /* ====================================================================
    *                   Private methods
    * ==================================================================== */
 
+  /* Merged access and results for a containing collection in a batch check. */
+  private static class ContainerAccess {
+    String path;
+    char[] aclChars;
+
+    /* Keyed by owner href + entity acl */
+    Map<String, CurrentAccess> results = new HashMap<String, CurrentAccess>();
+
+    ContainerAccess(final String path,
+                    final char[] aclChars) {
+      this.path = path;
+      this.aclChars = aclChars;
+    }
+  }
+
+  private CurrentAccess evaluate(final AccessPrincipal owner,
+                                 final char[] aclChars,
+                                 final int desiredAccess,
+                                 final PrivilegeSet maxPrivs) throws Throwable {
+    /* Try the session table first - no allocation involved */
+    long sessKey = sessionTable.key(owner.getPrincipalRef(), aclChars,
+                                    desiredAccess, maxPrivs);
+
+    CurrentAccess sessCa = sessionTable.get(sessKey);
+
+    if (sessCa != null) {
+      return sessCa;
+    }
+
+    /* Then the compiled acl - null if it can't decide */
+    sessCa = sessionTable.evaluate(sessKey, owner.getPrincipalRef(), aclChars,
+                                   desiredAccess, maxPrivs);
+
+    if (sessCa != null) {
+      return sessCa;
+    }
+
+    /* Only share results which don't depend on session restrictions */
+    String key = null;
+    long startVersion = internCache.getMembershipVersion();
+
+    if (maxPrivs == null) {
+      String principalHref = null;
+
+      if (authUser != null) {
+        principalHref = authUser.getPrincipalRef();
+      }
+
+      key = internCache.resultKey(principalHref, owner.getPrincipalRef(),
+                                  desiredAccess, aclChars);
+
+      CurrentAccess ca = internCache.getResult(key);
+
+      if (ca != null) {
+        sessionTable.put(sessKey, ca);
+        return ca;
+      }
+    }
+
+    CurrentAccess ca;
+
+    if (desiredAccess == privAny) {
+      ca = access.checkAny(cb, authUser, owner, aclChars, maxPrivs);
+    } else if (desiredAccess == privRead) {
+      ca = access.checkRead(cb, authUser, owner, aclChars, maxPrivs);
+    } else if (desiredAccess == privWrite) {
+      ca = access.checkReadWrite(cb, authUser, owner, aclChars, maxPrivs);
+    } else {
+      ca = access.evaluateAccess(cb, authUser, owner, desiredAccess, aclChars,
+                                 maxPrivs);
+    }
+
+    if ((key != null) && populateSharedCaches) {
+      internCache.putResult(key, ca, startVersion);
+    }
+
+    sessionTable.put(sessKey, ca);
+
+    return ca;
+  }
+
+  private CurrentAccess superUserOverride(final CurrentAccess ca) {
+    if ((authUser == null) || !superUser) {
+      return ca;
+    }
+
+    // Nobody can stop us - BWAAA HAA HAA
+
+    /* Override rather than just create a readable access as code further
+     * up expects a valid filled in object.
+     */
+    if (debug && !ca.getAccessAllowed()) {
+      getLog().debug("Override for superuser");
+    }
+
+    return Acl.forceAccessAllowed(ca);
+  }
+
   /* If the entity is not a collection we merge the access in with the container
    * access then return the merged aces. We do this because we call getPathInfo
    * with a collection entity. That method will recurse up to the root.
    *
    * For a calendar we just use the access for the calendar.
    *
-   * The calendar/container access might be cached in the pathInfoTable.
+   * The calendar/container access might be cached in the pathCache.
    */
   private char[] getAclChars(final BwShareableDbentity<?> ent) throws CalFacadeException {
     if (ent instanceof BwShareableContainedDbentity) {
@@ -465,26 +772,7 @@ private boolean debug;
       
       
 
-      String aclStr;
-      char[] aclChars = null;
-
-      /* Get access for the parent first if we have one */
-      BwCalendar parent = getParent(wcol);
-
-      if (parent != null) {
-        aclStr = new String(merged(getAclChars(parent),
-                                   parent.getPath(),
-                                   wcol.getAccess()));
-      } else if (wcol.getAccess() != null) {
-        aclStr = new String(wcol.getAccess());
-      } else {
-        // At root
-        throw new CalFacadeException("Collections must have default access set at root");
-      }
-
-      if (aclStr != null) {
-        aclChars = aclStr.toCharArray();
-      }
+      char[] aclChars = getCollectionAclChars(wcol);
 
       if (ent instanceof BwCalendar) {
         return aclChars;
@@ -542,9 +830,56 @@ private boolean debug;
     }
   }
 
+  /* Return the merged access for a collection. Progresses up to the root of
+   * the system merging acls as it goes unless we have the result cached.
+   */
+  private char[] getCollectionAclChars(final CalendarWrapper wcol)
+          throws CalFacadeException {
+    String path = wcol.getPath();
+    String colAccess = wcol.getAccess();
+
+    char[] aclChars = pathCache.get(path, colAccess);
+
+    if (aclChars != null) {
+      return aclChars;
+    }
+
+    long version = pathCache.getVersion();
+    long start = System.nanoTime();
+
+    /* Get access for the parent first if we have one */
+    BwCalendar parent = getParent(wcol);
+
+    if (parent != null) {
+      aclChars = merged(getAclChars(parent),
+                        parent.getPath(),
+                        colAccess);
+    } else if (colAccess != null) {
+      aclChars = colAccess.toCharArray();
+    } else {
+      // At root
+      throw new CalFacadeException("Collections must have default access set at root");
+    }
+
+    if (populateSharedCaches) {
+      pathCache.put(path, colAccess, aclChars, version,
+                    System.nanoTime() - start);
+    }
+
+    return aclChars;
+  }
+
   private char[] merged(final char[] parentAccess,
                         final String path,
                         final String access) throws CalFacadeException {
+    String key = internCache.mergedKey(parentAccess, path, access);
+
+    char[] res = internCache.getMerged(key);
+
+    if (res != null) {
+      return res;
+    }
+
     try {
       Acl acl = null;
 
@@ -558,66 +893,16 @@ private boolean debug;
         acl = acl.merge(parentAccess, path);
       }
 
-      return acl.encodeAll();
-    } catch (Throwable t) {
-      throw new CalFacadeException(t);
-    }
-  }
-
-  /* Create a merged Acl for the given calendar. Progresses up to the root of
-   * the system merging acls as it goes.
-   * /
-  private PathInfo getPathInfo(BwCalendar cal) throws CalFacadeException {
-    PathInfo pi = new PathInfo();
-    Collection<Ace> aces = new ArrayList<Ace>();
-
-    pi.path = cal.getPath();
-
-    try {
-      while (cal != null) {
-        String aclString = cal.getAccess();
-
-        if ((aclString != null) && (aclString.length() == 0)) {
-          warn("Zero length acl for " + cal.getPath());
-          aclString = null;
-        }
-
-        /* Validity check. The system MUST be set up so that /public and /user
-         * have the appropriate default access stored as the acl string.
-         *
-         * Failure to do so results in incorrect evaluation of access. We'll
-         * check it here.
-         * /
-        if (aclString == null) {
-          if (cal.getColPath() == null) {
-            // At root
-            throw new CalFacadeException("Calendars must have default access set at root");
-          }
-        } else if (aces.isEmpty()) {
-          aces.addAll(Acl.decode(aclString).getAces());
-        } else {
-          // leaf acls go last
-          Collection<Ace> moreAces = new ArrayList<Ace>();
-          moreAces.addAll(Acl.decode(aclString.toCharArray(),
-                                     cal.getPath()).getAces());
-          moreAces.addAll(aces);
-
-          aces = moreAces;
-        }
-
-        cal = getParent(cal);
+      if (!populateSharedCaches) {
+        return acl.encodeAll();
       }
 
-      pi.pathAcl = new Acl(aces);
-      pi.encoded = pi.pathAcl.encodeAll();
-
-      return pi;
-    } catch (CalFacadeException cfe) {
-      throw cfe;
+      return internCache.putMerged(key, acl.encodeAll());
     } catch (Throwable t) {
       throw new CalFacadeException(t);
     }
-  } */
+  }
+
 
   private String getUserRootPath() throws CalFacadeException {
     if (urp == null) {
@@ -635,29 +920,6 @@ private boolean debug;
     return uhpp;
   }
 
-  /* Update the merged Acl for the given calendar.
-   * Doesn't work because any children in the table need the access changing.
-  private void updatePathInfo(BwCalendar cal, Acl acl) throws CalFacadeException {
-    try {
-      String path = cal.getPath();
-      PathInfo pi = pathInfoMap.getInfo(path);
-
-      if (pi == null) {
-        pi = new PathInfo();
-
-        pi.path = cal.getPath();
-      }
-
-      pi.pathAcl = acl;
-      pi.encoded = acl.encodeAll();
-
-      pathInfoMap.putInfo(path, pi);
-    } catch (Throwable t) {
-      throw new CalFacadeException(t);
-    }
-  }
-   */
-
   private Logger getLog() {
     if (log == null) {
       log = Logger.getLogger(getClass());
@@ -0,0 +1,374 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+        
+    http://www.apache.org/licenses/LICENSE-2.0
+        
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.calcore;
+
+import edu.rpi.cmt.access.Acl.CurrentAccess;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** A node-wide intern cache for encoded acls.
+ *
+ * <p>Almost every entity in the system carries one of a small number of
+ * distinct acls. Rather than decode, merge and re-encode the same acl over and
+ * over again we hold the encoded result of a merge keyed on its inputs, so
+ * identical acls share a single char array.
+ *
+ * <p>We also hold the result of evaluating an encoded acl for a given
+ * principal, owner and desired access. These depend on the principal's group
+ * membership, which we cannot see here. Each result is stamped with the
+ * membership version current when the evaluation started and is only shared
+ * while that version is current. The version is bumped when membership is
+ * changed and again once the change is committed, so a session which
+ * evaluated against the old membership between the two cannot publish its
+ * result. Changes made on other nodes are caught by a configurable maximum
+ * age.
+ *
+ * <p>Both maps are bounded. Once the limit is reached the map is cleared.
+ *
+ * @author Mike Douglass
+ */
+public class AclInternCache {
+  private static final AclInternCache cache = new AclInternCache();
+
+  private static class Result {
+    final long created;
+    final long version;
+    final CurrentAccess ca;
+
+    Result(final long version,
+           final CurrentAccess ca) {
+      created = System.currentTimeMillis();
+      this.version = version;
+      this.ca = ca;
+    }
+  }
+
+  /* Merged acls keyed by parent acl, path and entity acl. */
+  private final ConcurrentHashMap<String, char[]> merged =
+      new ConcurrentHashMap<String, char[]>();
+
+  /* Evaluated access keyed by principal, owner, access and acl */
+  private final Map<String, Result> results =
+      new ConcurrentHashMap<String, Result>();
+
+  private final AtomicLong membershipVersion = new AtomicLong();
+
+  /* Set when this thread changed membership in the current transaction */
+  private final ThreadLocal<Boolean> membershipChanged =
+      new ThreadLocal<Boolean>();
+
+  private volatile int maxEntries = 5000;
+
+  private volatile long resultMaxAge = 60 * 1000;
+
+  private volatile boolean enabled = true;
+
+  /* Statistics */
+  private final AtomicLong mergeHits = new AtomicLong();
+  private final AtomicLong mergeMisses = new AtomicLong();
+  private final AtomicLong resultHits = new AtomicLong();
+  private final AtomicLong resultMisses = new AtomicLong();
+  private final AtomicLong decodes = new AtomicLong();
+
+  /**
+   * @return the node-wide cache
+   */
+  public static AclInternCache getCache() {
+    return cache;
+  }
+
+  /** Make a key for a merged acl.
+   *
+   * @param parentAccess encoded parent acl
+   * @param path of parent
+   * @param access entity acl - may be null
+   * @return key
+   */
+  public String mergedKey(final char[] parentAccess,
+                          final String path,
+                          final String access) {
+    StringBuilder sb = new StringBuilder(path.length() +
+                                         parentAccess.length + 64);
+
+    sb.append(path);
+    sb.append('\t');
+    if (access != null) {
+      sb.append(access);
+    }
+    sb.append('\t');
+    sb.append(parentAccess);
+
+    return sb.toString();
+  }
+
+  /**
+   * @param key from mergedKey
+   * @return encoded merged acl or null
+   */
+  public char[] getMerged(final String key) {
+    if (!enabled) {
+      return null;
+    }
+
+    char[] res = merged.get(key);
+
+    if (res == null) {
+      mergeMisses.incrementAndGet();
+    } else {
+      mergeHits.incrementAndGet();
+    }
+
+    return res;
+  }
+
+  /**
+   * @param key from mergedKey
+   * @param val encoded merged acl - must not be modified after this call
+   * @return the interned value - may be a different array with the same content
+   */
+  public char[] putMerged(final String key,
+                          final char[] val) {
+    decodes.incrementAndGet();
+
+    if (!enabled) {
+      return val;
+    }
+
+    if (merged.size() >= maxEntries) {
+      merged.clear();
+    }
+
+    char[] res = merged.putIfAbsent(key, val);
+
+    if (res != null) {
+      // Someone beat us to it - use theirs
+      return res;
+    }
+
+    return val;
+  }
+
+  /** Make a key for an evaluation result.
+   *
+   * @param principalHref authenticated principal - null for unauthenticated
+   * @param ownerHref owner of the entity
+   * @param desiredAccess
+   * @param aclChars encoded acl
+   * @return key
+   */
+  public String resultKey(final String principalHref,
+                          final String ownerHref,
+                          final int desiredAccess,
+                          final char[] aclChars) {
+    StringBuilder sb = new StringBuilder(aclChars.length + 128);
+
+    if (principalHref != null) {
+      sb.append(principalHref);
+    }
+    sb.append('\t');
+    sb.append(ownerHref);
+    sb.append('\t');
+    sb.append(desiredAccess);
+    sb.append('\t');
+    sb.append(aclChars);
+
+    return sb.toString();
+  }
+
+  /**
+   * @param key from resultKey
+   * @return result or null
+   */
+  public CurrentAccess getResult(final String key) {
+    if (!enabled) {
+      return null;
+    }
+
+    Result r = results.get(key);
+
+    if ((r == null) ||
+        (r.version != membershipVersion.get()) ||
+        ((System.currentTimeMillis() - r.created) > resultMaxAge)) {
+      resultMisses.incrementAndGet();
+      return null;
+    }
+
+    resultHits.incrementAndGet();
+    return r.ca;
+  }
+
+  /**
+   * @return current membership version. Fetch this before evaluating.
+   */
+  public long getMembershipVersion() {
+    return membershipVersion.get();
+  }
+
+  /** Save a result. Nothing is saved if membership has changed since the
+   * evaluation was started.
+   *
+   * @param key from resultKey
+   * @param ca result of evaluation - must not be modified after this call
+   * @param startVersion membership version fetched before evaluating
+   */
+  public void putResult(final String key,
+                        final CurrentAccess ca,
+                        final long startVersion) {
+    if (!enabled || (startVersion != membershipVersion.get())) {
+      return;
+    }
+
+    if (results.size() >= maxEntries) {
+      results.clear();
+    }
+
+    results.put(key, new Result(startVersion, ca));
+  }
+
+  /** Called when group membership is changed in the current transaction.
+   * Results are discarded now and again when the transaction ends.
+   */
+  public void membershipChanged() {
+    membershipChanged.set(Boolean.TRUE);
+    flushResults();
+  }
+
+  /** Called at the end of every transaction, after the commit or rollback.
+   */
+  public void endTransaction() {
+    if (membershipChanged.get() == null) {
+      return;
+    }
+
+    membershipChanged.remove();
+    flushResults();
+  }
+
+  /** Discard all evaluation results.
+   */
+  public void flushResults() {
+    membershipVersion.incrementAndGet();
+    results.clear();
+  }
+
+  /** Discard everything
+   */
+  public void flush() {
+    merged.clear();
+    flushResults();
+  }
+
+  /**
+   * @param val false to disable the cache
+   */
+  public void setEnabled(final boolean val) {
+    enabled = val;
+
+    if (!val) {
+      flush();
+    }
+  }
+
+  /**
+   * @return true if enabled
+   */
+  public boolean getEnabled() {
+    return enabled;
+  }
+
+  /**
+   * @param val maximum number of entries in each map
+   */
+  public void setMaxEntries(final int val) {
+    maxEntries = val;
+  }
+
+  /**
+   * @return maximum number of entries in each map
+   */
+  public int getMaxEntries() {
+    return maxEntries;
+  }
+
+  /**
+   * @param val maximum age in millisecs of evaluation results
+   */
+  public void setResultMaxAge(final long val) {
+    resultMaxAge = val;
+  }
+
+  /**
+   * @return maximum age in millisecs of evaluation results
+   */
+  public long getResultMaxAge() {
+    return resultMaxAge;
+  }
+
+  /**
+   * @return number of merged acls held
+   */
+  public int getMergedSize() {
+    return merged.size();
+  }
+
+  /**
+   * @return number of evaluation results held
+   */
+  public int getResultsSize() {
+    return results.size();
+  }
+
+  /**
+   * @return merged acl hits
+   */
+  public long getMergeHits() {
+    return mergeHits.get();
+  }
+
+  /**
+   * @return merged acl misses
+   */
+  public long getMergeMisses() {
+    return mergeMisses.get();
+  }
+
+  /**
+   * @return evaluation result hits
+   */
+  public long getResultHits() {
+    return resultHits.get();
+  }
+
+  /**
+   * @return evaluation result misses
+   */
+  public long getResultMisses() {
+    return resultMisses.get();
+  }
+
+  /**
+   * @return number of times we decoded and merged an acl - each one allocates
+   *         a new Acl object tree.
+   */
+  public long getDecodes() {
+    return decodes.get();
+  }
+}
@@ -0,0 +1,352 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+        
+    http://www.apache.org/licenses/LICENSE-2.0
+        
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.calcore;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** A node-wide cache of the merged (inherited) acls for collections keyed
+ * by path.
+ *
+ * <p>Every entry is stamped with the version current when the merge was
+ * started. Any change which might affect inherited access - a change to a
+ * collection acl, a move, rename or delete - bumps the version which
+ * invalidates all entries. We don't try to work out which paths are affected
+ * as inheritance makes that difficult to get right.
+ *
+ * <p>Entries also hold the collection's own acl. A collection object which
+ * has been modified in the current session, but not yet saved, will not
+ * match and will be recalculated.
+ *
+ * <p>The version only catches changes made through this node. To bound the
+ * staleness of entries affected by changes made on other nodes every entry
+ * also has a maximum age.
+ *
+ * <p>Lookups take no lock - every access check on the node comes through
+ * here. Each entry records when it was last used and when the cache grows
+ * past maxEntries one thread discards the least recently used tenth. The
+ * order is only approximate as uses within the same millisecond are not
+ * distinguished.
+ *
+ * @author Mike Douglass
+ */
+public class AclPathCache {
+  private static final AclPathCache cache = new AclPathCache();
+
+  private static class Entry {
+    final long version;
+    final long created;
+    final String access;   // The collection's own acl
+    final char[] merged;   // Merged acl for the path.
+
+    /* Racy updates are fine - this only guides eviction */
+    volatile long lastUsed;
+
+    Entry(final long version,
+          final String access,
+          final char[] merged) {
+      this.version = version;
+      created = System.currentTimeMillis();
+      lastUsed = created;
+      this.access = access;
+      this.merged = merged;
+    }
+  }
+
+  private volatile int maxEntries = 10000;
+
+  private volatile long maxAge = 5 * 60 * 1000;
+
+  private final Map<String, Entry> entries =
+      new ConcurrentHashMap<String, Entry>();
+
+  /* Set while a thread is discarding entries */
+  private final AtomicBoolean evicting = new AtomicBoolean();
+
+  private final AtomicLong version = new AtomicLong();
+
+  private volatile boolean enabled = true;
+
+  /* Statistics */
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong rebuilds = new AtomicLong();
+  private final AtomicLong rebuildNanos = new AtomicLong();
+  private final AtomicLong invalidations = new AtomicLong();
+  private final AtomicLong expirations = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * @return the node-wide cache
+   */
+  public static AclPathCache getCache() {
+    return cache;
+  }
+
+  /**
+   * @return current version. Fetch this before building an entry.
+   */
+  public long getVersion() {
+    return version.get();
+  }
+
+  /**
+   * @param path of collection
+   * @param access the collection's own acl
+   * @return merged acl or null if not cached or invalid
+   */
+  public char[] get(final String path,
+                    final String access) {
+    if (!enabled) {
+      return null;
+    }
+
+    Entry e = entries.get(path);
+
+    if (e != null) {
+      long now = System.currentTimeMillis();
+
+      if ((now - e.created) > maxAge) {
+        if (entries.remove(path, e)) {
+          expirations.incrementAndGet();
+        }
+
+        e = null;
+      } else if (e.lastUsed != now) {
+        // Only write when it changes to keep hot entries' cache lines shared
+        e.lastUsed = now;
+      }
+    }
+
+    if ((e == null) ||
+        (e.version != version.get()) ||
+        !same(e.access, access)) {
+      misses.incrementAndGet();
+      return null;
+    }
+
+    hits.incrementAndGet();
+    return e.merged;
+  }
+
+  /** Save a merged acl. Nothing is saved if the version has changed since
+   * the merge was started.
+   *
+   * @param path of collection
+   * @param access the collection's own acl
+   * @param merged the merged acl - must not be modified after this call
+   * @param startVersion version fetched before building the merged acl
+   * @param nanos time taken to build the merged acl
+   */
+  public void put(final String path,
+                  final String access,
+                  final char[] merged,
+                  final long startVersion,
+                  final long nanos) {
+    rebuilds.incrementAndGet();
+    rebuildNanos.addAndGet(nanos);
+
+    if (!enabled || (startVersion != version.get())) {
+      return;
+    }
+
+    entries.put(path, new Entry(startVersion, access, merged));
+
+    if (entries.size() > maxEntries) {
+      evict();
+    }
+  }
+
+  /** Called whenever something changes which might affect inherited access.
+   */
+  public void invalidate() {
+    version.incrementAndGet();
+    invalidations.incrementAndGet();
+
+    entries.clear();
+  }
+
+  /**
+   * @param val false to disable the cache
+   */
+  public void setEnabled(final boolean val) {
+    enabled = val;
+
+    if (!val) {
+      invalidate();
+    }
+  }
+
+  /**
+   * @return true if enabled
+   */
+  public boolean getEnabled() {
+    return enabled;
+  }
+
+  /**
+   * @param val maximum number of paths cached
+   */
+  public void setMaxEntries(final int val) {
+    maxEntries = val;
+  }
+
+  /**
+   * @return maximum number of paths cached
+   */
+  public int getMaxEntries() {
+    return maxEntries;
+  }
+
+  /**
+   * @param val maximum age in millisecs of an entry
+   */
+  public void setMaxAge(final long val) {
+    maxAge = val;
+  }
+
+  /**
+   * @return maximum age in millisecs of an entry
+   */
+  public long getMaxAge() {
+    return maxAge;
+  }
+
+  /**
+   * @return number of paths cached
+   */
+  public int getSize() {
+    return entries.size();
+  }
+
+  /**
+   * @return number of hits
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * @return number of misses
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * @return number of times we merged the acls for a path
+   */
+  public long getRebuilds() {
+    return rebuilds.get();
+  }
+
+  /**
+   * @return total time in nanosecs spent merging acls
+   */
+  public long getRebuildNanos() {
+    return rebuildNanos.get();
+  }
+
+  /**
+   * @return number of times the cache was invalidated
+   */
+  public long getInvalidations() {
+    return invalidations.get();
+  }
+
+  /**
+   * @return number of entries discarded because they were too old
+   */
+  public long getExpirations() {
+    return expirations.get();
+  }
+
+  /**
+   * @return number of least recently used entries discarded
+   */
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  /* Discard the least recently used entries down to 90% of maxEntries. Only
+   * one thread does this - others carry on regardless. Having finished we
+   * check again for anything added while we worked.
+   */
+  private void evict() {
+    do {
+      if (!evicting.compareAndSet(false, true)) {
+        return;
+      }
+
+      try {
+        evictLru();
+      } finally {
+        evicting.set(false);
+      }
+    } while (entries.size() > maxEntries);
+  }
+
+  private void evictLru() {
+    int target = maxEntries - (maxEntries / 10);
+    int excess = entries.size() - target;
+
+    if (excess <= 0) {
+      return;
+    }
+
+    long[] used = new long[entries.size()];
+    int n = 0;
+
+    for (Entry e: entries.values()) {
+      if (n == used.length) {
+        break;
+      }
+
+      used[n] = e.lastUsed;
+      n++;
+    }
+
+    if (n == 0) {
+      return;
+    }
+
+    Arrays.sort(used, 0, n);
+
+    long cutoff = used[Math.min(excess, n) - 1];
+
+    for (Map.Entry<String, Entry> me: entries.entrySet()) {
+      Entry e = me.getValue();
+
+      if ((e.lastUsed <= cutoff) && entries.remove(me.getKey(), e)) {
+        evictions.incrementAndGet();
+      }
+    }
+  }
+
+  private static boolean same(final String a, final String b) {
+    if (a == null) {
+      return b == null;
+    }
+
+    return a.equals(b);
+  }
+}
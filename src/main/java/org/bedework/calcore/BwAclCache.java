@@ -0,0 +1,197 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+        
+    http://www.apache.org/licenses/LICENSE-2.0
+        
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.calcore;
+
+/** Exposes the node-wide access control caches.
+ *
+ * @author douglm
+ *
+ */
+public class BwAclCache implements BwAclCacheMBean {
+  public String getName() {
+    /* This apparently must be the same as the name attribute in the
+     * jboss service definition
+     */
+    return "org.bedework:service=BwAclCache";
+  }
+
+  public void setPathCacheEnabled(final boolean val) {
+    AclPathCache.getCache().setEnabled(val);
+  }
+
+  public boolean getPathCacheEnabled() {
+    return AclPathCache.getCache().getEnabled();
+  }
+
+  public void setPathCacheMaxEntries(final int val) {
+    AclPathCache.getCache().setMaxEntries(val);
+  }
+
+  public int getPathCacheMaxEntries() {
+    return AclPathCache.getCache().getMaxEntries();
+  }
+
+  public void setPathCacheMaxAge(final long val) {
+    AclPathCache.getCache().setMaxAge(val);
+  }
+
+  public long getPathCacheMaxAge() {
+    return AclPathCache.getCache().getMaxAge();
+  }
+
+  public int getPathCacheSize() {
+    return AclPathCache.getCache().getSize();
+  }
+
+  public long getPathCacheHits() {
+    return AclPathCache.getCache().getHits();
+  }
+
+  public long getPathCacheMisses() {
+    return AclPathCache.getCache().getMisses();
+  }
+
+  public double getPathCacheHitRatio() {
+    AclPathCache apc = AclPathCache.getCache();
+
+    return ratio(apc.getHits(), apc.getHits() + apc.getMisses());
+  }
+
+  public long getPathCacheRebuilds() {
+    return AclPathCache.getCache().getRebuilds();
+  }
+
+  public double getPathCacheAvgRebuildMillis() {
+    AclPathCache apc = AclPathCache.getCache();
+
+    long rebuilds = apc.getRebuilds();
+
+    if (rebuilds == 0) {
+      return 0;
+    }
+
+    return (double)apc.getRebuildNanos() / rebuilds / 1000000;
+  }
+
+  public long getPathCacheInvalidations() {
+    return AclPathCache.getCache().getInvalidations();
+  }
+
+  public long getPathCacheExpirations() {
+    return AclPathCache.getCache().getExpirations();
+  }
+
+  public long getPathCacheEvictions() {
+    return AclPathCache.getCache().getEvictions();
+  }
+
+  public void setInternCacheEnabled(final boolean val) {
+    AclInternCache.getCache().setEnabled(val);
+  }
+
+  public boolean getInternCacheEnabled() {
+    return AclInternCache.getCache().getEnabled();
+  }
+
+  public void setInternCacheMaxEntries(final int val) {
+    AclInternCache.getCache().setMaxEntries(val);
+  }
+
+  public int getInternCacheMaxEntries() {
+    return AclInternCache.getCache().getMaxEntries();
+  }
+
+  public void setInternResultMaxAge(final long val) {
+    AclInternCache.getCache().setResultMaxAge(val);
+  }
+
+  public long getInternResultMaxAge() {
+    return AclInternCache.getCache().getResultMaxAge();
+  }
+
+  public int getInternMergedSize() {
+    return AclInternCache.getCache().getMergedSize();
+  }
+
+  public int getInternResultsSize() {
+    return AclInternCache.getCache().getResultsSize();
+  }
+
+  public double getInternMergeHitRatio() {
+    AclInternCache aic = AclInternCache.getCache();
+
+    return ratio(aic.getMergeHits(), aic.getMergeHits() + aic.getMergeMisses());
+  }
+
+  public double getInternResultHitRatio() {
+    AclInternCache aic = AclInternCache.getCache();
+
+    return ratio(aic.getResultHits(),
+                 aic.getResultHits() + aic.getResultMisses());
+  }
+
+  public long getInternDecodes() {
+    return AclInternCache.getCache().getDecodes();
+  }
+
+  public void setQueryPrefilterEnabled(final boolean val) {
+    AccessPrefilter.getPrefilter().setEnabled(val);
+  }
+
+  public boolean getQueryPrefilterEnabled() {
+    return AccessPrefilter.getPrefilter().getEnabled();
+  }
+
+  public void setQueryPrefilterMaxCollections(final int val) {
+    AccessPrefilter.getPrefilter().setMaxCollections(val);
+  }
+
+  public int getQueryPrefilterMaxCollections() {
+    return AccessPrefilter.getPrefilter().getMaxCollections();
+  }
+
+  public long getQueryPrefilterOverLimit() {
+    return AccessPrefilter.getPrefilter().getOverLimit();
+  }
+
+  public long getQueryPrefilteredCount() {
+    return AccessPrefilter.getPrefilter().getPrefilteredQueries();
+  }
+
+  public long getQueryRowsFetched() {
+    return AccessPrefilter.getPrefilter().getRowsFetched();
+  }
+
+  public long getQueryRowsReturned() {
+    return AccessPrefilter.getPrefilter().getRowsReturned();
+  }
+
+  public void flush() {
+    AclPathCache.getCache().invalidate();
+    AclInternCache.getCache().flush();
+  }
+
+  private double ratio(final long val, final long total) {
+    if (total == 0) {
+      return 0;
+    }
+
+    return (double)val * 100 / total;
+  }
+}
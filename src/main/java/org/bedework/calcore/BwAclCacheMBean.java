@@ -0,0 +1,212 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+        
+    http://www.apache.org/licenses/LICENSE-2.0
+        
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.calcore;
+
+/** Management interface for the node-wide access control caches.
+ *
+ * @author douglm
+ *
+ */
+public interface BwAclCacheMBean {
+  /** Name apparently must be the same as the name attribute in the
+   * jboss service definition
+   *
+   * @return Name
+   */
+  public String getName();
+
+  /** Enable or disable the merged path acl cache
+   *
+   * @param val
+   */
+  public void setPathCacheEnabled(boolean val);
+
+  /**
+   * @return true if the path acl cache is enabled
+   */
+  public boolean getPathCacheEnabled();
+
+  /**
+   * @param val maximum number of collection paths cached
+   */
+  public void setPathCacheMaxEntries(int val);
+
+  /**
+   * @return maximum number of collection paths cached
+   */
+  public int getPathCacheMaxEntries();
+
+  /**
+   * @param val maximum age in millisecs of a cached path acl
+   */
+  public void setPathCacheMaxAge(long val);
+
+  /**
+   * @return maximum age in millisecs of a cached path acl
+   */
+  public long getPathCacheMaxAge();
+
+  /**
+   * @return number of collection paths cached
+   */
+  public int getPathCacheSize();
+
+  /**
+   * @return number of hits
+   */
+  public long getPathCacheHits();
+
+  /**
+   * @return number of misses
+   */
+  public long getPathCacheMisses();
+
+  /**
+   * @return hits as a percentage of all lookups
+   */
+  public double getPathCacheHitRatio();
+
+  /**
+   * @return number of times the acls for a path were merged
+   */
+  public long getPathCacheRebuilds();
+
+  /**
+   * @return average time in millisecs to merge the acls for a path
+   */
+  public double getPathCacheAvgRebuildMillis();
+
+  /**
+   * @return number of times the path cache was invalidated
+   */
+  public long getPathCacheInvalidations();
+
+  /**
+   * @return number of path entries discarded because they were too old
+   */
+  public long getPathCacheExpirations();
+
+  /**
+   * @return number of least recently used path entries discarded
+   */
+  public long getPathCacheEvictions();
+
+  /** Enable or disable the acl intern cache
+   *
+   * @param val
+   */
+  public void setInternCacheEnabled(boolean val);
+
+  /**
+   * @return true if the acl intern cache is enabled
+   */
+  public boolean getInternCacheEnabled();
+
+  /**
+   * @param val maximum number of merged acls or results interned
+   */
+  public void setInternCacheMaxEntries(int val);
+
+  /**
+   * @return maximum number of merged acls or results interned
+   */
+  public int getInternCacheMaxEntries();
+
+  /**
+   * @param val maximum age in millisecs of evaluation results
+   */
+  public void setInternResultMaxAge(long val);
+
+  /**
+   * @return maximum age in millisecs of evaluation results
+   */
+  public long getInternResultMaxAge();
+
+  /**
+   * @return number of merged acls interned
+   */
+  public int getInternMergedSize();
+
+  /**
+   * @return number of evaluation results held
+   */
+  public int getInternResultsSize();
+
+  /**
+   * @return merged acl hits as a percentage of all lookups
+   */
+  public double getInternMergeHitRatio();
+
+  /**
+   * @return evaluation result hits as a percentage of all lookups
+   */
+  public double getInternResultHitRatio();
+
+  /**
+   * @return number of acl decodes (Acl object trees allocated)
+   */
+  public long getInternDecodes();
+
+  /** Enable or disable the access pre-filter on event queries
+   *
+   * @param val
+   */
+  public void setQueryPrefilterEnabled(boolean val);
+
+  /**
+   * @return true if the access pre-filter is enabled
+   */
+  public boolean getQueryPrefilterEnabled();
+
+  /**
+   * @param val maximum number of collections excluded by the pre-filter.
+   *            Above this we rely on the access check after the fetch.
+   */
+  public void setQueryPrefilterMaxCollections(int val);
+
+  /**
+   * @return maximum number of collections excluded by the pre-filter
+   */
+  public int getQueryPrefilterMaxCollections();
+
+  /**
+   * @return number of times the pre-filter was skipped as over the maximum
+   */
+  public long getQueryPrefilterOverLimit();
+
+  /**
+   * @return number of event queries which had a pre-filter term added
+   */
+  public long getQueryPrefilteredCount();
+
+  /**
+   * @return total event rows fetched
+   */
+  public long getQueryRowsFetched();
+
+  /**
+   * @return total event rows which passed the access check
+   */
+  public long getQueryRowsReturned();
+
+  /** Discard all cached information
+   *
+   */
+  public void flush();
+}
@@ -0,0 +1,316 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+        
+    http://www.apache.org/licenses/LICENSE-2.0
+        
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.calcore;
+
+import edu.rpi.cmt.access.Ace;
+import edu.rpi.cmt.access.AceWho;
+import edu.rpi.cmt.access.Acl;
+import edu.rpi.cmt.access.Acl.CurrentAccess;
+import edu.rpi.cmt.access.PrivilegeDefs;
+import edu.rpi.cmt.access.PrivilegeSet;
+import edu.rpi.cmt.access.WhoDefs;
+
+import java.io.Serializable;
+import java.util.Collection;
+
+/** An acl compiled for evaluation within one session.
+ *
+ * <p>The aces are flattened into an ordered match table. Each row holds the
+ * who type, the session id of the named user or group and the privileges
+ * granted. Matching the session principal is then a comparison of ints. The
+ * privileges for the principal, filtered by the maximum privileges, are
+ * turned into a bitset of allowed privileges once, so evaluating a desired
+ * access is a mask test.
+ *
+ * <p>Only the simple cases are compiled: at most one ace applying to the
+ * principal at the point where the library would stop looking. Acls with
+ * negated or unusual who types, or where more than one ace would need to be
+ * merged, are left to the library. {@link #evaluate} returns null for those.
+ *
+ * @author Mike Douglass
+ */
+class CompiledAcl implements PrivilegeDefs, WhoDefs, Serializable {
+  /** Result of a match - the library has to decide */
+  private static final int matchDefer = -2;
+
+  /** Result of a match - no ace applies */
+  private static final int matchNone = -1;
+
+  private static final long readWriteMask = (1L << privRead) | (1L << privWrite);
+
+  private final Acl acl;
+
+  /* The match table - one row per ace in acl order */
+  private final int[] whoTypes;
+  private final int[] whoIds;
+  private final PrivilegeSet[] hows;
+
+  /* False if something in the acl is not handled here */
+  private final boolean compiled;
+
+  /* Granted privileges indexed by privilege set id - for the owner and for
+   * anybody else */
+  private Grant[] ownerGrants = new Grant[4];
+  private Grant[] otherGrants = new Grant[4];
+
+  /* Privileges allowed for the principal after filtering */
+  private static class Grant implements Serializable {
+    PrivilegeSet privileges;
+    long allowedMask;
+  }
+
+  /**
+   * @param aclChars
+   * @param ids      maps principals to ids for the session
+   * @throws Throwable
+   */
+  CompiledAcl(final char[] aclChars,
+              final SessionAccessTable ids) throws Throwable {
+    acl = Acl.decode(aclChars);
+
+    Collection<Ace> aces = acl.getAces();
+    int n = 0;
+    boolean ok = true;
+
+    if (aces != null) {
+      n = aces.size();
+    }
+
+    whoTypes = new int[n];
+    whoIds = new int[n];
+    hows = new PrivilegeSet[n];
+
+    int i = 0;
+
+    if (aces != null) {
+      for (Ace ace: aces) {
+        AceWho who = ace.getWho();
+        int whoType = who.getWhoType();
+
+        whoTypes[i] = whoType;
+        whoIds[i] = -1;
+        hows[i] = ace.getHow();
+
+        if (who.getNotWho()) {
+          ok = false;
+        } else if ((whoType == whoTypeUser) || (whoType == whoTypeGroup)) {
+          whoIds[i] = ids.whoId(whoType, who.getWho());
+        } else if ((whoType != whoTypeOwner) &&
+                   (whoType != whoTypeAuthenticated) &&
+                   (whoType != whoTypeUnauthenticated) &&
+                   (whoType != whoTypeOther) &&
+                   (whoType != whoTypeAll)) {
+          ok = false;
+        }
+
+        i++;
+      }
+    }
+
+    compiled = ok;
+  }
+
+  /**
+   * @return false if the library must evaluate this acl
+   */
+  boolean getCompiled() {
+    return compiled;
+  }
+
+  /** Evaluate access for the session principal.
+   *
+   * @param ids            the session principal
+   * @param isOwner        true if the principal owns the entity
+   * @param desiredAccess
+   * @param privId         id of maxPrivs - 0 for null
+   * @param maxPrivs       may be null
+   * @return CurrentAccess or null if the library must decide
+   * @throws Throwable
+   */
+  CurrentAccess evaluate(final SessionAccessTable ids,
+                         final boolean isOwner,
+                         final int desiredAccess,
+                         final int privId,
+                         final PrivilegeSet maxPrivs) throws Throwable {
+    if (!compiled) {
+      return null;
+    }
+
+    long mask;
+
+    if (desiredAccess == privAny) {
+      mask = 0;
+    } else if (desiredAccess == privWrite) {
+      /* As Access.checkReadWrite */
+      mask = readWriteMask;
+    } else if ((desiredAccess >= 0) && (desiredAccess <= privMaxType)) {
+      mask = 1L << desiredAccess;
+    } else {
+      return null;
+    }
+
+    Grant g = grant(ids, isOwner, privId, maxPrivs);
+
+    if (g == null) {
+      return null;
+    }
+
+    CurrentAccess ca = new CurrentAccess();
+
+    ca.acl = acl;
+    ca.privileges = g.privileges;
+
+    if (mask == 0) {
+      ca.accessAllowed = g.allowedMask != 0;
+    } else {
+      ca.accessAllowed = (g.allowedMask & mask) == mask;
+    }
+
+    return ca;
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  private Grant grant(final SessionAccessTable ids,
+                      final boolean isOwner,
+                      final int privId,
+                      final PrivilegeSet maxPrivs) throws Throwable {
+    Grant[] grants;
+
+    if (isOwner) {
+      if (privId >= ownerGrants.length) {
+        ownerGrants = grow(ownerGrants, privId);
+      }
+      grants = ownerGrants;
+    } else {
+      if (privId >= otherGrants.length) {
+        otherGrants = grow(otherGrants, privId);
+      }
+      grants = otherGrants;
+    }
+
+    Grant g = grants[privId];
+
+    if (g != null) {
+      return g;
+    }
+
+    int row = match(ids, isOwner);
+
+    if (row == matchDefer) {
+      return null;
+    }
+
+    g = new Grant();
+
+    if (row >= 0) {
+      g.privileges = hows[row];
+    } else if (isOwner) {
+      g.privileges = PrivilegeSet.makeDefaultOwnerPrivileges();
+    }
+
+    if (g.privileges != null) {
+      if (maxPrivs != null) {
+        g.privileges = PrivilegeSet.filterPrivileges(g.privileges, maxPrivs);
+      }
+
+      for (int i = 0; i <= privMaxType; i++) {
+        char p = g.privileges.getPrivilege(i);
+
+        if ((p == allowed) || (p == allowedInherited)) {
+          g.allowedMask |= 1L << i;
+        }
+      }
+    }
+
+    grants[privId] = g;
+
+    return g;
+  }
+
+  /* Find the row which gives the principal its access, in the order the
+   * library looks: owner, user, groups, authenticated, other then all.
+   * Unauthenticated principals only look at unauthenticated then all.
+   */
+  private int match(final SessionAccessTable ids,
+                    final boolean isOwner) {
+    int row;
+
+    if (ids.getUnauthenticated()) {
+      row = match(whoTypeUnauthenticated, ids);
+      if (row != matchNone) {
+        return row;
+      }
+
+      return match(whoTypeAll, ids);
+    }
+
+    if (isOwner) {
+      /* No owner ace means default owner access */
+      return match(whoTypeOwner, ids);
+    }
+
+    for (int whoType: new int[]{whoTypeUser, whoTypeGroup,
+                                whoTypeAuthenticated, whoTypeOther}) {
+      row = match(whoType, ids);
+      if (row != matchNone) {
+        return row;
+      }
+    }
+
+    return match(whoTypeAll, ids);
+  }
+
+  /* The single row of the given type matching the principal, matchNone or
+   * matchDefer if there is more than one to merge. */
+  private int match(final int whoType,
+                    final SessionAccessTable ids) {
+    int found = matchNone;
+
+    for (int i = 0; i < whoTypes.length; i++) {
+      if (whoTypes[i] != whoType) {
+        continue;
+      }
+
+      if ((whoType == whoTypeUser) || (whoType == whoTypeGroup)) {
+        if (!ids.isPrincipal(whoIds[i])) {
+          continue;
+        }
+      }
+
+      if (found != matchNone) {
+        return matchDefer;
+      }
+
+      found = i;
+    }
+
+    return found;
+  }
+
+  private static Grant[] grow(final Grant[] grants, final int index) {
+    Grant[] g = new Grant[Math.max(index + 1, grants.length * 2)];
+
+    System.arraycopy(grants, 0, g, 0, grants.length);
+
+    return g;
+  }
+}
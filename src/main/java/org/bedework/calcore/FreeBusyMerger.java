@@ -0,0 +1,350 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+        
+    http://www.apache.org/licenses/LICENSE-2.0
+        
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.calcore;
+
+import org.bedework.calfacade.BwEvent;
+import org.bedework.calfacade.BwFreeBusyComponent;
+import org.bedework.calfacade.exc.CalFacadeException;
+
+import net.fortuna.ical4j.model.DateTime;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/** Merge busy periods into free/busy components.
+ *
+ * <p>Periods are held in parallel arrays of start and end times (millisecs
+ * since the epoch) and free/busy types. They are sorted once on start, end
+ * and type and adjacent or overlapping periods of the same type are
+ * coalesced in a single pass. Only the merged periods are converted back
+ * into ical4j objects.
+ *
+ * <p>This gives the same result as sorting EventPeriod objects and merging
+ * them as getFreeBusy used to, but without allocating an object per period.
+ * In particular a new BwFreeBusyComponent is started for each run of periods
+ * of one type, so interleaved types give more than one component per type.
+ *
+ * <p>Not thread safe - create one per free/busy calculation.
+ *
+ * @author Mike Douglass
+ */
+public class FreeBusyMerger {
+  private static final int initialCapacity = 64;
+
+  /* Below this size we use an insertion sort */
+  private static final int insertionSortLimit = 16;
+
+  private static final TimeZone utc = TimeZone.getTimeZone("UTC");
+
+  private long[] starts = new long[initialCapacity];
+  private long[] ends = new long[initialCapacity];
+  private int[] types = new int[initialCapacity];
+  private int size;
+
+  private Calendar utcCal;
+  private Calendar localCal;
+
+  /** Add a period. The period is clipped to the limits by the caller.
+   *
+   * @param start - millisecs
+   * @param end - millisecs
+   * @param type - BwFreeBusyComponent type
+   */
+  public void add(final long start, final long end, final int type) {
+    if (size == starts.length) {
+      int newLen = size * 2;
+
+      long[] s = new long[newLen];
+      long[] e = new long[newLen];
+      int[] t = new int[newLen];
+
+      System.arraycopy(starts, 0, s, 0, size);
+      System.arraycopy(ends, 0, e, 0, size);
+      System.arraycopy(types, 0, t, 0, size);
+
+      starts = s;
+      ends = e;
+      types = t;
+    }
+
+    starts[size] = start;
+    ends[size] = end;
+    types[size] = type;
+    size++;
+  }
+
+  /**
+   * @return number of periods added so far
+   */
+  public int size() {
+    return size;
+  }
+
+  /** Sort and coalesce the periods, adding a BwFreeBusyComponent to the free
+   * busy object for each run of periods of one type. Periods of the same
+   * type which are adjacent or overlap are combined.
+   *
+   * @param fb - the free/busy event to add the components to
+   * @throws CalFacadeException
+   */
+  public void merge(final BwEvent fb) throws CalFacadeException {
+    if (size == 0) {
+      return;
+    }
+
+    try {
+      sort(0, size - 1);
+
+      BwFreeBusyComponent fbc = null;
+
+      long pstart = starts[0];
+      long pend = ends[0];
+      int ptype = types[0];
+
+      for (int i = 1; i < size; i++) {
+        if ((types[i] == ptype) && (starts[i] <= pend)) {
+          if (ends[i] > pend) {
+            // Extend the current period
+            pend = ends[i];
+          } // else it falls within the existing period
+
+          continue;
+        }
+
+        // Non adjacent periods or a change of type
+        fbc = addPeriod(fb, fbc, ptype, pstart, pend);
+
+        if (types[i] != ptype) {
+          fbc = null;
+        }
+
+        pstart = starts[i];
+        pend = ends[i];
+        ptype = types[i];
+      }
+
+      addPeriod(fb, fbc, ptype, pstart, pend);
+    } catch (Throwable t) {
+      throw new CalFacadeException(t);
+    }
+  }
+
+  private BwFreeBusyComponent addPeriod(final BwEvent fb,
+                                        final BwFreeBusyComponent fbc,
+                                        final int type,
+                                        final long start,
+                                        final long end) throws Throwable {
+    BwFreeBusyComponent c = fbc;
+
+    if (c == null) {
+      c = new BwFreeBusyComponent();
+      c.setType(type);
+      fb.addFreeBusyPeriod(c);
+    }
+
+    c.addPeriod(utcDateTime(start), utcDateTime(end));
+
+    return c;
+  }
+
+  /* Sort the arrays on start, end then type */
+  private void sort(int lo, int hi) {
+    while (hi - lo >= insertionSortLimit) {
+      int mid = (lo + hi) >>> 1;
+
+      /* Median of three as pivot */
+      if (less(mid, lo)) {
+        swap(mid, lo);
+      }
+      if (less(hi, lo)) {
+        swap(hi, lo);
+      }
+      if (less(hi, mid)) {
+        swap(hi, mid);
+      }
+
+      long pstart = starts[mid];
+      long pend = ends[mid];
+      int ptype = types[mid];
+      int i = lo;
+      int j = hi;
+
+      while (i <= j) {
+        while (compare(i, pstart, pend, ptype) < 0) {
+          i++;
+        }
+        while (compare(j, pstart, pend, ptype) > 0) {
+          j--;
+        }
+        if (i <= j) {
+          swap(i, j);
+          i++;
+          j--;
+        }
+      }
+
+      /* Recurse on the smaller side to bound the stack depth */
+      if (j - lo < hi - i) {
+        sort(lo, j);
+        lo = i;
+      } else {
+        sort(i, hi);
+        hi = j;
+      }
+    }
+
+    for (int i = lo + 1; i <= hi; i++) {
+      long s = starts[i];
+      long e = ends[i];
+      int t = types[i];
+      int j = i - 1;
+
+      while ((j >= lo) && (compare(j, s, e, t) > 0)) {
+        starts[j + 1] = starts[j];
+        ends[j + 1] = ends[j];
+        types[j + 1] = types[j];
+        j--;
+      }
+
+      starts[j + 1] = s;
+      ends[j + 1] = e;
+      types[j + 1] = t;
+    }
+  }
+
+  private boolean less(final int a, final int b) {
+    return compare(a, starts[b], ends[b], types[b]) < 0;
+  }
+
+  private int compare(final int a,
+                      final long start,
+                      final long end,
+                      final int type) {
+    if (starts[a] != start) {
+      return (starts[a] < start) ? -1 : 1;
+    }
+
+    if (ends[a] != end) {
+      return (ends[a] < end) ? -1 : 1;
+    }
+
+    if (types[a] != type) {
+      return (types[a] < type) ? -1 : 1;
+    }
+
+    return 0;
+  }
+
+  private void swap(final int a, final int b) {
+    long t = starts[a];
+    starts[a] = starts[b];
+    starts[b] = t;
+
+    t = ends[a];
+    ends[a] = ends[b];
+    ends[b] = t;
+
+    int ty = types[a];
+    types[a] = types[b];
+    types[b] = ty;
+  }
+
+  /** Convert an rfc date or date-time value as held in BwDateTime dtval into
+   * millisecs. Values ending in "Z" are UTC, others are taken to be in the
+   * default timezone - the same interpretation as the ical4j DateTime
+   * constructor.
+   *
+   * @param val - yyyyMMdd or yyyyMMddTHHmmss with optional trailing Z
+   * @return millisecs since the epoch
+   * @throws CalFacadeException on badly formatted value
+   */
+  public long toMillis(final String val) throws CalFacadeException {
+    int len = val.length();
+
+    if ((len != 8) && (len != 15) && (len != 16)) {
+      throw new CalFacadeException("org.bedework.bad.date", val);
+    }
+
+    Calendar cal;
+
+    if (len == 16) {
+      if (val.charAt(15) != 'Z') {
+        throw new CalFacadeException("org.bedework.bad.date", val);
+      }
+
+      if (utcCal == null) {
+        utcCal = Calendar.getInstance(utc);
+      }
+
+      cal = utcCal;
+    } else {
+      if (localCal == null) {
+        localCal = Calendar.getInstance();
+      }
+
+      cal = localCal;
+    }
+
+    cal.clear();
+
+    int hour = 0;
+    int minute = 0;
+    int second = 0;
+
+    if (len > 8) {
+      if (val.charAt(8) != 'T') {
+        throw new CalFacadeException("org.bedework.bad.date", val);
+      }
+
+      hour = digits(val, 9, 11);
+      minute = digits(val, 11, 13);
+      second = digits(val, 13, 15);
+    }
+
+    cal.set(digits(val, 0, 4), digits(val, 4, 6) - 1, digits(val, 6, 8),
+            hour, minute, second);
+
+    return cal.getTimeInMillis();
+  }
+
+  private static int digits(final String val,
+                            final int start,
+                            final int end) throws CalFacadeException {
+    int res = 0;
+
+    for (int i = start; i < end; i++) {
+      int d = val.charAt(i) - '0';
+
+      if ((d < 0) || (d > 9)) {
+        throw new CalFacadeException("org.bedework.bad.date", val);
+      }
+
+      res = res * 10 + d;
+    }
+
+    return res;
+  }
+
+  private static DateTime utcDateTime(final long millis) {
+    DateTime dt = new DateTime(millis);
+    dt.setUtc(true);
+
+    return dt;
+  }
+}
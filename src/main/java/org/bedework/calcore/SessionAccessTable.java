@@ -0,0 +1,295 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+        
+    http://www.apache.org/licenses/LICENSE-2.0
+        
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.calcore;
+
+import edu.rpi.cmt.access.AccessPrincipal;
+import edu.rpi.cmt.access.Acl.CurrentAccess;
+import edu.rpi.cmt.access.PrivilegeSet;
+import edu.rpi.cmt.access.WhoDefs;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/** A per-session table of compiled acls and evaluated access.
+ *
+ * <p>Within a session the authenticated principal is fixed so the result of
+ * an evaluation depends only on the encoded acl, the owner, the maximum
+ * privileges and the desired access. We map owners, acls and privilege sets
+ * to small integer ids and pack them, with the desired access, into a single
+ * long key.
+ *
+ * <p>The users and groups named in aces are also mapped to ids. The session
+ * principal and its groups are a set of those ids, so each acl is compiled
+ * once per session into a {@link CompiledAcl} which matches the principal
+ * without comparing strings.
+ *
+ * <p>The key is laid out as 24 bits of acl id, 20 bits of owner id, 8 bits
+ * of privilege set id and 12 bits of desired access. Id 0 is reserved for a
+ * null privilege set.
+ *
+ * <p>Acls are identified by the char array itself. Merged acls come from the
+ * path and intern caches so identical acls are usually the same array. An acl
+ * built on the fly just takes a new id - the table is bounded.
+ *
+ * <p>Not thread safe - one per session, cleared at each request.
+ *
+ * @author Mike Douglass
+ */
+class SessionAccessTable implements Serializable {
+  private static final int maxAcls = 1 << 24;
+
+  private static final int maxOwners = 1 << 20;
+
+  private static final int maxPrivSets = (1 << 8) - 1;
+
+  private static final int maxResults = 10000;
+
+  private final Map<String, Integer> ownerIds = new HashMap<String, Integer>();
+
+  private final Map<char[], Integer> aclIds = new IdentityHashMap<char[], Integer>();
+
+  private final Map<PrivilegeSet, Integer> privIds = new HashMap<PrivilegeSet, Integer>();
+
+  /* Indexed by acl id - null until compiled */
+  private final List<CompiledAcl> compiled = new ArrayList<CompiledAcl>();
+
+  /* Users and groups named in aces */
+  private final Map<String, Integer> whoIds = new HashMap<String, Integer>();
+
+  private AccessPrincipal principal;
+
+  private boolean unauthenticated;
+
+  /* Ids of the principal and its groups */
+  private final BitSet principalIds = new BitSet();
+
+  private final Map<Long, CurrentAccess> results = new HashMap<Long, CurrentAccess>();
+
+  private long hits;
+  private long misses;
+  private long deferred;
+
+  /** Set the principal all evaluations are for. Clears the table.
+   *
+   * @param val - may be null
+   */
+  void setPrincipal(final AccessPrincipal val) {
+    principal = val;
+    clear();
+  }
+
+  /** Get the key for an evaluation.
+   *
+   * @param ownerHref
+   * @param aclChars
+   * @param desiredAccess
+   * @param maxPrivs - may be null
+   * @return key
+   */
+  long key(final String ownerHref,
+           final char[] aclChars,
+           final int desiredAccess,
+           final PrivilegeSet maxPrivs) {
+    if ((results.size() >= maxResults) ||
+        (aclIds.size() >= maxAcls) ||
+        (ownerIds.size() >= maxOwners) ||
+        (privIds.size() >= maxPrivSets)) {
+      clear();
+    }
+
+    Integer ownerId = ownerIds.get(ownerHref);
+
+    if (ownerId == null) {
+      ownerId = ownerIds.size();
+      ownerIds.put(ownerHref, ownerId);
+    }
+
+    Integer aclId = aclIds.get(aclChars);
+
+    if (aclId == null) {
+      aclId = aclIds.size();
+      aclIds.put(aclChars, aclId);
+      compiled.add(null);
+    }
+
+    int privId = 0;
+
+    if (maxPrivs != null) {
+      Integer id = privIds.get(maxPrivs);
+
+      if (id == null) {
+        id = privIds.size() + 1;
+        privIds.put(maxPrivs, id);
+      }
+
+      privId = id;
+    }
+
+    return ((long)aclId << 40) |
+           ((long)ownerId << 20) |
+           ((long)privId << 12) |
+           (desiredAccess & 0xfff);
+  }
+
+  CurrentAccess get(final long key) {
+    CurrentAccess ca = results.get(key);
+
+    if (ca == null) {
+      misses++;
+    } else {
+      hits++;
+    }
+
+    return ca;
+  }
+
+  void put(final long key, final CurrentAccess ca) {
+    results.put(key, ca);
+  }
+
+  /** Evaluate with the compiled acl. The caller should have looked for a
+   * result with {@link #get(long)} first.
+   *
+   * @param key          from key()
+   * @param ownerHref
+   * @param aclChars     the acl the key was built from
+   * @param desiredAccess
+   * @param maxPrivs     the privileges the key was built from - may be null
+   * @return CurrentAccess or null if the library must decide
+   * @throws Throwable
+   */
+  CurrentAccess evaluate(final long key,
+                         final String ownerHref,
+                         final char[] aclChars,
+                         final int desiredAccess,
+                         final PrivilegeSet maxPrivs) throws Throwable {
+    if (principal == null) {
+      deferred++;
+      return null;
+    }
+
+    int aclId = (int)(key >>> 40);
+    int privId = (int)((key >>> 12) & 0xff);
+
+    CompiledAcl cacl = compiled.get(aclId);
+
+    if (cacl == null) {
+      cacl = new CompiledAcl(aclChars, this);
+      compiled.set(aclId, cacl);
+    }
+
+    boolean isOwner = !unauthenticated &&
+                      principal.getPrincipalRef().equals(ownerHref);
+
+    CurrentAccess ca = cacl.evaluate(this, isOwner, desiredAccess,
+                                     privId, maxPrivs);
+
+    if (ca == null) {
+      deferred++;
+    } else {
+      put(key, ca);
+    }
+
+    return ca;
+  }
+
+  /** Get the session id for a user or group named in an ace.
+   *
+   * @param whoType
+   * @param who
+   * @return id
+   */
+  int whoId(final int whoType, final String who) {
+    String k = whoType + "\t" + who;
+    Integer id = whoIds.get(k);
+
+    if (id == null) {
+      id = whoIds.size();
+      whoIds.put(k, id);
+    }
+
+    return id;
+  }
+
+  /**
+   * @param whoId
+   * @return true if the id is the principal or one of its groups
+   */
+  boolean isPrincipal(final int whoId) {
+    return principalIds.get(whoId);
+  }
+
+  /**
+   * @return true for an unauthenticated principal
+   */
+  boolean getUnauthenticated() {
+    return unauthenticated;
+  }
+
+  long getHits() {
+    return hits;
+  }
+
+  long getMisses() {
+    return misses;
+  }
+
+  /**
+   * @return evaluations the compiled acls left to the library
+   */
+  long getDeferred() {
+    return deferred;
+  }
+
+  void clear() {
+    ownerIds.clear();
+    aclIds.clear();
+    privIds.clear();
+    results.clear();
+    compiled.clear();
+    whoIds.clear();
+    principalIds.clear();
+
+    if (principal == null) {
+      return;
+    }
+
+    unauthenticated = principal.getUnauthenticated();
+
+    if (unauthenticated) {
+      return;
+    }
+
+    principalIds.set(whoId(WhoDefs.whoTypeUser, principal.getAccount()));
+
+    Collection<String> groups = principal.getGroupNames();
+
+    if (groups != null) {
+      for (String group: groups) {
+        principalIds.set(whoId(WhoDefs.whoTypeGroup, group));
+      }
+    }
+  }
+}
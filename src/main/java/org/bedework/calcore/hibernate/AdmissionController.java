@@ -0,0 +1,370 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+        
+    http://www.apache.org/licenses/LICENSE-2.0
+        
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.calcore.hibernate;
+
+import org.bedework.calcorei.HibSession;
+import org.bedework.calcorei.QueryLimitException;
+import org.bedework.calfacade.exc.CalFacadeException;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Admission control for heavy queries.
+ *
+ * <p>Each class of query, e.g. events retrieval or sync reports, has a limit
+ * on the number running at once on this node. Further requests wait, in
+ * order, for up to maxWait millis. If more than maxQueue are already waiting
+ * or the wait expires the request is refused with a QueryLimitException.
+ *
+ * <p>While admitted the session applies the class timeout to each query and
+ * refuses results with more than the class max rows. A nested heavy call on
+ * the same thread runs under the admission already held.
+ *
+ * @author douglm
+ */
+public class AdmissionController {
+  /** Retrieval of events over collections and date ranges */
+  public static final String eventsClass = "events";
+
+  /** Sync reports */
+  public static final String syncClass = "sync";
+
+  private static final AdmissionController controller =
+      new AdmissionController();
+
+  private volatile boolean enabled = true;
+
+  private volatile long maxWait = 10 * 1000;
+
+  private volatile int maxQueue = 50;
+
+  private final Map<String, QueryClass> classes =
+    new ConcurrentHashMap<String, QueryClass>();
+
+  /* Class admitted on this thread */
+  private static final ThreadLocal<QueryClass> admitted =
+      new ThreadLocal<QueryClass>();
+
+  private final AtomicLong timeouts = new AtomicLong();
+  private final AtomicLong tooManyResults = new AtomicLong();
+
+  /* Allows the limit to be lowered while permits are held */
+  private static class Permits extends Semaphore {
+    Permits(final int permits) {
+      super(permits, true);
+    }
+
+    void reduce(final int val) {
+      reducePermits(val);
+    }
+  }
+
+  /** Settings and counts for a class of query.
+   */
+  public static class QueryClass {
+    private final String name;
+
+    private final Permits permits;
+
+    private volatile int limit;
+
+    private volatile int timeout;
+
+    private volatile int maxRows;
+
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    private final AtomicLong admittedCt = new AtomicLong();
+    private final AtomicLong rejectedCt = new AtomicLong();
+
+    QueryClass(final String name,
+               final int limit,
+               final int timeout,
+               final int maxRows) {
+      this.name = name;
+      this.limit = limit;
+      this.timeout = timeout;
+      this.maxRows = maxRows;
+      permits = new Permits(limit);
+    }
+
+    /**
+     * @return name of the class
+     */
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * @param val max number running at once - at least 1
+     */
+    public synchronized void setLimit(final int val) {
+      int newLimit = Math.max(1, val);
+      int diff = newLimit - limit;
+
+      if (diff > 0) {
+        permits.release(diff);
+      } else if (diff < 0) {
+        permits.reduce(-diff);
+      }
+
+      limit = newLimit;
+    }
+
+    /**
+     * @return max number running at once
+     */
+    public int getLimit() {
+      return limit;
+    }
+
+    /**
+     * @param val seconds each query may run - 0 for no limit
+     */
+    public void setTimeout(final int val) {
+      timeout = val;
+    }
+
+    /**
+     * @return seconds each query may run - 0 for no limit
+     */
+    public int getTimeout() {
+      return timeout;
+    }
+
+    /**
+     * @param val max rows returned by each query - 0 for no limit
+     */
+    public void setMaxRows(final int val) {
+      maxRows = val;
+    }
+
+    /**
+     * @return max rows returned by each query - 0 for no limit
+     */
+    public int getMaxRows() {
+      return maxRows;
+    }
+
+    /**
+     * @return number running now
+     */
+    public int getActive() {
+      return active.get();
+    }
+
+    /**
+     * @return number waiting now
+     */
+    public int getWaiting() {
+      return waiting.get();
+    }
+
+    /**
+     * @return number admitted
+     */
+    public long getAdmitted() {
+      return admittedCt.get();
+    }
+
+    /**
+     * @return number refused
+     */
+    public long getRejected() {
+      return rejectedCt.get();
+    }
+  }
+
+  private AdmissionController() {
+    classes.put(eventsClass, new QueryClass(eventsClass, 20, 120, 50000));
+    classes.put(syncClass, new QueryClass(syncClass, 10, 120, 50000));
+  }
+
+  /**
+   * @return the node-wide controller
+   */
+  public static AdmissionController getController() {
+    return controller;
+  }
+
+  /** Wait for admission of a heavy operation. If this returns true the
+   * caller must call release when done.
+   *
+   * @param name   class of query
+   * @param sess   session the queries will run in
+   * @return true if admitted, false if admission is disabled or already
+   *         held by this thread.
+   * @throws CalFacadeException - QueryLimitException if refused
+   */
+  public boolean admit(final String name,
+                       final HibSession sess) throws CalFacadeException {
+    if (!enabled || (admitted.get() != null)) {
+      return false;
+    }
+
+    QueryClass qc = getQueryClass(name);
+
+    if (!qc.permits.tryAcquire()) {
+      if (qc.waiting.get() >= maxQueue) {
+        qc.rejectedCt.incrementAndGet();
+        throw new QueryLimitException(QueryLimitException.rejected, name);
+      }
+
+      qc.waiting.incrementAndGet();
+
+      boolean acquired;
+      try {
+        acquired = qc.permits.tryAcquire(maxWait, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+        throw new CalFacadeException(ie);
+      } finally {
+        qc.waiting.decrementAndGet();
+      }
+
+      if (!acquired) {
+        qc.rejectedCt.incrementAndGet();
+        throw new QueryLimitException(QueryLimitException.rejected, name);
+      }
+    }
+
+    qc.active.incrementAndGet();
+    qc.admittedCt.incrementAndGet();
+    admitted.set(qc);
+
+    sess.setQueryLimits(qc.timeout, qc.maxRows);
+
+    return true;
+  }
+
+  /** Release an admission obtained by admit.
+   *
+   * @param sess   session the queries ran in
+   * @throws CalFacadeException
+   */
+  public void release(final HibSession sess) throws CalFacadeException {
+    QueryClass qc = admitted.get();
+
+    if (qc == null) {
+      return;
+    }
+
+    admitted.remove();
+    qc.active.decrementAndGet();
+    qc.permits.release();
+
+    sess.setQueryLimits(0, 0);
+  }
+
+  /**
+   * @param name of the class
+   * @return the class - created with default settings if not known
+   */
+  public QueryClass getQueryClass(final String name) {
+    QueryClass qc = classes.get(name);
+
+    if (qc != null) {
+      return qc;
+    }
+
+    synchronized (classes) {
+      qc = classes.get(name);
+
+      if (qc == null) {
+        qc = new QueryClass(name, 10, 120, 50000);
+        classes.put(name, qc);
+      }
+    }
+
+    return qc;
+  }
+
+  /**
+   * @param val true to apply admission control
+   */
+  public void setEnabled(final boolean val) {
+    enabled = val;
+  }
+
+  /**
+   * @return true if applying admission control
+   */
+  public boolean getEnabled() {
+    return enabled;
+  }
+
+  /**
+   * @param val millisecs to wait for admission
+   */
+  public void setMaxWait(final long val) {
+    maxWait = val;
+  }
+
+  /**
+   * @return millisecs to wait for admission
+   */
+  public long getMaxWait() {
+    return maxWait;
+  }
+
+  /**
+   * @param val max number waiting for each class before we refuse at once
+   */
+  public void setMaxQueue(final int val) {
+    maxQueue = val;
+  }
+
+  /**
+   * @return max number waiting for each class before we refuse at once
+   */
+  public int getMaxQueue() {
+    return maxQueue;
+  }
+
+  /** Called by the session when a query was cancelled by the timeout.
+   */
+  void timedOut() {
+    timeouts.incrementAndGet();
+  }
+
+  /** Called by the session when a query returned too many rows.
+   */
+  void tooManyResults() {
+    tooManyResults.incrementAndGet();
+  }
+
+  /**
+   * @return number of queries cancelled by the timeout
+   */
+  public long getTimeouts() {
+    return timeouts.get();
+  }
+
+  /**
+   * @return number of queries refused for returning too many rows
+   */
+  public long getTooManyResults() {
+    return tooManyResults.get();
+  }
+}
@@ -0,0 +1,332 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+        
+    http://www.apache.org/licenses/LICENSE-2.0
+        
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.calcore.hibernate;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** A node-wide map from the path of an internal alias to the chain of paths
+ * it resolves through, ending with the path of the final target.
+ *
+ * <p>Only paths are shared. Each session still fetches and access checks the
+ * collections on the chain - what the chain gives us is the ability to load
+ * them all in one go and to recognize a cycle without walking it.
+ *
+ * <p>An entry is removed when any collection on its chain is updated, moved
+ * or deleted on this node. Changes made elsewhere are caught by the walk,
+ * which is always carried out, and entries are discarded after a maximum age.
+ *
+ * @author douglm
+ */
+public class AliasCache {
+  private static final AliasCache cache = new AliasCache();
+
+  /** Depths at or beyond this are counted together */
+  public static final int maxDepthBucket = 8;
+
+  /** Immutable resolved chain */
+  public static class Chain {
+    final String[] paths;
+    final boolean cycle;
+    final long created;
+
+    Chain(final String[] paths, final boolean cycle) {
+      created = System.currentTimeMillis();
+      this.paths = paths;
+      this.cycle = cycle;
+    }
+
+    /**
+     * @return the alias, intermediate aliases and final target
+     */
+    public String[] getPaths() {
+      return paths;
+    }
+
+    /**
+     * @return true if the chain loops back on itself
+     */
+    public boolean getCycle() {
+      return cycle;
+    }
+
+    /**
+     * @param path
+     * @return true if path is on the chain
+     */
+    boolean contains(final String path) {
+      for (String p: paths) {
+        if (p.equals(path)) {
+          return true;
+        }
+      }
+
+      return false;
+    }
+
+    /**
+     * @param prefix
+     * @return true if any path on the chain starts with prefix
+     */
+    boolean containsPrefix(final String prefix) {
+      for (String p: paths) {
+        if (p.startsWith(prefix)) {
+          return true;
+        }
+      }
+
+      return false;
+    }
+  }
+
+  private final Map<String, Chain> entries = new ConcurrentHashMap<String, Chain>();
+
+  private volatile int maxEntries = 10000;
+
+  private volatile long maxAge = 5 * 60 * 1000;
+
+  private volatile boolean enabled = true;
+
+  private final AtomicLong resolutions = new AtomicLong();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong cycles = new AtomicLong();
+  private final AtomicLong invalidations = new AtomicLong();
+
+  private final AtomicLongArray depths = new AtomicLongArray(maxDepthBucket + 1);
+
+  /**
+   * @return the node-wide cache
+   */
+  public static AliasCache getCache() {
+    return cache;
+  }
+
+  /**
+   * @param path of the alias
+   * @return chain or null
+   */
+  public Chain get(final String path) {
+    if (!enabled) {
+      return null;
+    }
+
+    Chain ch = entries.get(path);
+
+    if ((ch != null) &&
+        ((System.currentTimeMillis() - ch.created) > maxAge)) {
+      entries.remove(path);
+      ch = null;
+    }
+
+    if (ch == null) {
+      misses.incrementAndGet();
+    } else {
+      hits.incrementAndGet();
+    }
+
+    return ch;
+  }
+
+  /**
+   * @param paths alias, intermediate aliases and final target
+   * @param cycle true if the chain loops
+   */
+  public void put(final String[] paths, final boolean cycle) {
+    if (!enabled || (paths.length < 2)) {
+      return;
+    }
+
+    if (entries.size() >= maxEntries) {
+      entries.clear();
+    }
+
+    entries.put(paths[0], new Chain(paths, cycle));
+  }
+
+  /** Record a full resolution of an alias
+   *
+   * @param depth number of aliases followed
+   * @param cycle true if a cycle was found
+   */
+  public void resolved(final int depth, final boolean cycle) {
+    resolutions.incrementAndGet();
+
+    if (cycle) {
+      cycles.incrementAndGet();
+    }
+
+    depths.incrementAndGet(Math.min(depth, maxDepthBucket));
+  }
+
+  /** Remove all chains which include the path
+   *
+   * @param path
+   */
+  public void remove(final String path) {
+    if ((path == null) || entries.isEmpty()) {
+      return;
+    }
+
+    invalidations.incrementAndGet();
+
+    Iterator<Chain> it = entries.values().iterator();
+
+    while (it.hasNext()) {
+      if (it.next().contains(path)) {
+        it.remove();
+      }
+    }
+  }
+
+  /** Remove all chains which include the path or anything below it
+   *
+   * @param path
+   */
+  public void removeTree(final String path) {
+    if ((path == null) || entries.isEmpty()) {
+      return;
+    }
+
+    invalidations.incrementAndGet();
+
+    String prefix = path + "/";
+    Iterator<Chain> it = entries.values().iterator();
+
+    while (it.hasNext()) {
+      Chain ch = it.next();
+
+      if (ch.contains(path) || ch.containsPrefix(prefix)) {
+        it.remove();
+      }
+    }
+  }
+
+  /** Discard everything
+   */
+  public void clear() {
+    invalidations.incrementAndGet();
+    entries.clear();
+  }
+
+  /**
+   * @param val false to disable
+   */
+  public void setEnabled(final boolean val) {
+    enabled = val;
+
+    if (!val) {
+      clear();
+    }
+  }
+
+  /**
+   * @return true if enabled
+   */
+  public boolean getEnabled() {
+    return enabled;
+  }
+
+  /**
+   * @param val maximum number of chains held
+   */
+  public void setMaxEntries(final int val) {
+    maxEntries = val;
+  }
+
+  /**
+   * @return maximum number of chains held
+   */
+  public int getMaxEntries() {
+    return maxEntries;
+  }
+
+  /**
+   * @param val maximum age in millisecs of a chain
+   */
+  public void setMaxAge(final long val) {
+    maxAge = val;
+  }
+
+  /**
+   * @return maximum age in millisecs of a chain
+   */
+  public long getMaxAge() {
+    return maxAge;
+  }
+
+  /**
+   * @return number of chains held
+   */
+  public int getSize() {
+    return entries.size();
+  }
+
+  /**
+   * @return number of full alias resolutions
+   */
+  public long getResolutions() {
+    return resolutions.get();
+  }
+
+  /**
+   * @return number of lookups which found a chain
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * @return number of lookups with no chain
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * @return number of resolutions which found a cycle
+   */
+  public long getCycles() {
+    return cycles.get();
+  }
+
+  /**
+   * @return number of invalidations
+   */
+  public long getInvalidations() {
+    return invalidations.get();
+  }
+
+  /**
+   * @return resolutions counted by depth - the last element counts
+   *          maxDepthBucket and deeper
+   */
+  public long[] getDepthCounts() {
+    long[] res = new long[depths.length()];
+
+    for (int i = 0; i < res.length; i++) {
+      res[i] = depths.get(i);
+    }
+
+    return res;
+  }
+}
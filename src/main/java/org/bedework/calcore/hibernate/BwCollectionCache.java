@@ -0,0 +1,173 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+        
+    http://www.apache.org/licenses/LICENSE-2.0
+        
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.calcore.hibernate;
+
+/** Exposes the node-wide collection caches.
+ *
+ * @author douglm
+ *
+ */
+public class BwCollectionCache implements BwCollectionCacheMBean {
+  public String getName() {
+    /* This apparently must be the same as the name attribute in the
+     * jboss service definition
+     */
+    return "org.bedework:service=BwCollectionCache";
+  }
+
+  public void setSharedCacheEnabled(final boolean val) {
+    SharedCollectionCache.getCache().setEnabled(val);
+  }
+
+  public boolean getSharedCacheEnabled() {
+    return SharedCollectionCache.getCache().getEnabled();
+  }
+
+  public void setSharedCacheMaxEntries(final int val) {
+    SharedCollectionCache.getCache().setMaxEntries(val);
+  }
+
+  public int getSharedCacheMaxEntries() {
+    return SharedCollectionCache.getCache().getMaxEntries();
+  }
+
+  public int getSharedCacheSize() {
+    return SharedCollectionCache.getCache().getSize();
+  }
+
+  public double getSharedCacheHitRatio() {
+    SharedCollectionCache scc = SharedCollectionCache.getCache();
+
+    return ratio(scc.getHits(), scc.getHits() + scc.getMisses());
+  }
+
+  public long getSharedCacheStale() {
+    return SharedCollectionCache.getCache().getStale();
+  }
+
+  public long getSharedCacheLoads() {
+    return SharedCollectionCache.getCache().getLoads();
+  }
+
+  public long getSharedCacheHits() {
+    return SharedCollectionCache.getCache().getHits();
+  }
+
+  public long getSessionCacheLoads() {
+    return SharedCollectionCache.getCache().getSessionLoads();
+  }
+
+  public long getSessionCacheHits() {
+    return SharedCollectionCache.getCache().getSessionHits();
+  }
+
+  public long getSessionCacheTokenQueries() {
+    return SharedCollectionCache.getCache().getTokenQueries();
+  }
+
+  public long getSessionCacheTokenChecks() {
+    return SharedCollectionCache.getCache().getTokenChecks();
+  }
+
+  public long getSessionCacheTokenFailures() {
+    return SharedCollectionCache.getCache().getTokenFailures();
+  }
+
+  public void setAliasCacheEnabled(final boolean val) {
+    AliasCache.getCache().setEnabled(val);
+  }
+
+  public boolean getAliasCacheEnabled() {
+    return AliasCache.getCache().getEnabled();
+  }
+
+  public void setAliasCacheMaxEntries(final int val) {
+    AliasCache.getCache().setMaxEntries(val);
+  }
+
+  public int getAliasCacheMaxEntries() {
+    return AliasCache.getCache().getMaxEntries();
+  }
+
+  public void setAliasCacheMaxAge(final long val) {
+    AliasCache.getCache().setMaxAge(val);
+  }
+
+  public long getAliasCacheMaxAge() {
+    return AliasCache.getCache().getMaxAge();
+  }
+
+  public int getAliasCacheSize() {
+    return AliasCache.getCache().getSize();
+  }
+
+  public long getAliasResolutions() {
+    return AliasCache.getCache().getResolutions();
+  }
+
+  public double getAliasCacheHitRatio() {
+    AliasCache ac = AliasCache.getCache();
+
+    return ratio(ac.getHits(), ac.getHits() + ac.getMisses());
+  }
+
+  public long getAliasCycles() {
+    return AliasCache.getCache().getCycles();
+  }
+
+  public long getAliasCacheInvalidations() {
+    return AliasCache.getCache().getInvalidations();
+  }
+
+  public String getAliasDepthHistogram() {
+    long[] counts = AliasCache.getCache().getDepthCounts();
+    StringBuilder sb = new StringBuilder();
+
+    /* Element 0 is unused - an alias is at least one deep */
+    for (int i = 1; i < counts.length; i++) {
+      if (i > 1) {
+        sb.append(" ");
+      }
+
+      sb.append(i);
+
+      if (i == AliasCache.maxDepthBucket) {
+        sb.append("+");
+      }
+
+      sb.append("=");
+      sb.append(counts[i]);
+    }
+
+    return sb.toString();
+  }
+
+  public void flush() {
+    SharedCollectionCache.getCache().clear();
+    AliasCache.getCache().clear();
+  }
+
+  private double ratio(final long val, final long total) {
+    if (total == 0) {
+      return 0;
+    }
+
+    return (double)val * 100 / total;
+  }
+}
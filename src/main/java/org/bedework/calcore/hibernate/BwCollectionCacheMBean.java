@@ -0,0 +1,170 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+        
+    http://www.apache.org/licenses/LICENSE-2.0
+        
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.calcore.hibernate;
+
+/** Management interface for the node-wide collection caches.
+ *
+ * @author douglm
+ *
+ */
+public interface BwCollectionCacheMBean {
+  /** Name apparently must be the same as the name attribute in the
+   * jboss service definition
+   *
+   * @return Name
+   */
+  public String getName();
+
+  /** Enable or disable the shared collection cache
+   *
+   * @param val
+   */
+  public void setSharedCacheEnabled(boolean val);
+
+  /**
+   * @return true if the shared collection cache is enabled
+   */
+  public boolean getSharedCacheEnabled();
+
+  /**
+   * @param val maximum number of collection paths held
+   */
+  public void setSharedCacheMaxEntries(int val);
+
+  /**
+   * @return maximum number of collection paths held
+   */
+  public int getSharedCacheMaxEntries();
+
+  /**
+   * @return number of collection paths held
+   */
+  public int getSharedCacheSize();
+
+  /**
+   * @return hits as a percentage of all lookups
+   */
+  public double getSharedCacheHitRatio();
+
+  /**
+   * @return number of snapshots found to be out of date
+   */
+  public long getSharedCacheStale();
+
+  /**
+   * @return number of snapshots loaded
+   */
+  public long getSharedCacheLoads();
+
+  /**
+   * @return number of times a snapshot was used
+   */
+  public long getSharedCacheHits();
+
+  /**
+   * @return number of collections loaded from the database by sessions
+   */
+  public long getSessionCacheLoads();
+
+  /**
+   * @return number of collections found in session caches
+   */
+  public long getSessionCacheHits();
+
+  /**
+   * @return number of token check queries run by session caches
+   */
+  public long getSessionCacheTokenQueries();
+
+  /**
+   * @return number of collection tokens checked by session caches
+   */
+  public long getSessionCacheTokenChecks();
+
+  /**
+   * @return number of token checks which found the collection changed or gone
+   */
+  public long getSessionCacheTokenFailures();
+
+  /** Enable or disable the alias chain cache
+   *
+   * @param val
+   */
+  public void setAliasCacheEnabled(boolean val);
+
+  /**
+   * @return true if the alias chain cache is enabled
+   */
+  public boolean getAliasCacheEnabled();
+
+  /**
+   * @param val maximum number of alias chains held
+   */
+  public void setAliasCacheMaxEntries(int val);
+
+  /**
+   * @return maximum number of alias chains held
+   */
+  public int getAliasCacheMaxEntries();
+
+  /**
+   * @param val maximum age in millisecs of an alias chain
+   */
+  public void setAliasCacheMaxAge(long val);
+
+  /**
+   * @return maximum age in millisecs of an alias chain
+   */
+  public long getAliasCacheMaxAge();
+
+  /**
+   * @return number of alias chains held
+   */
+  public int getAliasCacheSize();
+
+  /**
+   * @return number of full alias resolutions
+   */
+  public long getAliasResolutions();
+
+  /**
+   * @return hits as a percentage of all lookups
+   */
+  public double getAliasCacheHitRatio();
+
+  /**
+   * @return number of resolutions which found a cycle
+   */
+  public long getAliasCycles();
+
+  /**
+   * @return number of alias chain invalidations
+   */
+  public long getAliasCacheInvalidations();
+
+  /**
+   * @return resolutions counted by chain depth, e.g. "1=120 2=4 8+=0"
+   */
+  public String getAliasDepthHistogram();
+
+  /** Discard all cached information
+   *
+   */
+  public void flush();
+}
@@ -0,0 +1,112 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+        
+    http://www.apache.org/licenses/LICENSE-2.0
+        
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.calcore.hibernate;
+
+import org.apache.log4j.Logger;
+
+/** Exposes the metrics listener.
+ *
+ * @author douglm
+ *
+ */
+public class BwMetricsExporter implements BwMetricsExporterMBean {
+  private transient Logger log;
+
+  public String getName() {
+    /* This apparently must be the same as the name attribute in the
+     * jboss service definition
+     */
+    return "org.bedework:service=BwMetricsExporter";
+  }
+
+  public void setPort(final int val) {
+    MetricsExporter.getExporter().setPort(val);
+  }
+
+  public int getPort() {
+    return MetricsExporter.getExporter().getPort();
+  }
+
+  public void setBindAddress(final String val) {
+    MetricsExporter.getExporter().setBindAddress(val);
+  }
+
+  public String getBindAddress() {
+    return MetricsExporter.getExporter().getBindAddress();
+  }
+
+  public void setStatisticsEnabled(final boolean val) {
+    try {
+      MetricsExporter.getExporter().setStatisticsEnabled(val);
+    } catch (Throwable t) {
+      error(t);
+    }
+  }
+
+  public boolean getStatisticsEnabled() {
+    try {
+      return MetricsExporter.getExporter().getStatisticsEnabled();
+    } catch (Throwable t) {
+      error(t);
+      return false;
+    }
+  }
+
+  public String scrape() {
+    try {
+      return MetricsExporter.getExporter().scrape();
+    } catch (Throwable t) {
+      error(t);
+      return t.getMessage();
+    }
+  }
+
+  public String scrapeDeltas() {
+    try {
+      return MetricsExporter.getExporter().scrapeDeltas();
+    } catch (Throwable t) {
+      error(t);
+      return t.getMessage();
+    }
+  }
+
+  public void start() {
+    try {
+      MetricsExporter.getExporter().start();
+    } catch (Throwable t) {
+      error(t);
+    }
+  }
+
+  public void stop() {
+    MetricsExporter.getExporter().stop();
+  }
+
+  public boolean isStarted() {
+    return MetricsExporter.getExporter().isStarted();
+  }
+
+  private void error(final Throwable t) {
+    if (log == null) {
+      log = Logger.getLogger(this.getClass());
+    }
+
+    log.error(this, t);
+  }
+}
@@ -0,0 +1,89 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+        
+    http://www.apache.org/licenses/LICENSE-2.0
+        
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.calcore.hibernate;
+
+/** Management interface for the metrics listener.
+ *
+ * @author douglm
+ *
+ */
+public interface BwMetricsExporterMBean {
+  /** Name apparently must be the same as the name attribute in the
+   * jboss service definition
+   *
+   * @return Name
+   */
+  public String getName();
+
+  /**
+   * @param val port to listen on - takes effect on restart
+   */
+  public void setPort(int val);
+
+  /**
+   * @return port to listen on
+   */
+  public int getPort();
+
+  /**
+   * @param val address to listen on - takes effect on restart
+   */
+  public void setBindAddress(String val);
+
+  /**
+   * @return address to listen on
+   */
+  public String getBindAddress();
+
+  /**
+   * @param val true to have hibernate collect statistics
+   */
+  public void setStatisticsEnabled(boolean val);
+
+  /**
+   * @return true if hibernate is collecting statistics
+   */
+  public boolean getStatisticsEnabled();
+
+  /**
+   * @return current metrics in the text exposition format
+   */
+  public String scrape();
+
+  /**
+   * @return metrics with counters as the change since the previous call
+   */
+  public String scrapeDeltas();
+
+  /** Lifecycle
+   *
+   */
+  public void start();
+
+  /** Lifecycle
+   *
+   */
+  public void stop();
+
+  /** Lifecycle
+   *
+   * @return true if started
+   */
+  public boolean isStarted();
+}
@@ -0,0 +1,151 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+        
+    http://www.apache.org/licenses/LICENSE-2.0
+        
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.calcore.hibernate;
+
+import org.bedework.calcore.hibernate.AdmissionController.QueryClass;
+
+/** Exposes admission control of heavy queries.
+ *
+ * @author douglm
+ *
+ */
+public class BwQueryAdmission implements BwQueryAdmissionMBean {
+  public String getName() {
+    /* This apparently must be the same as the name attribute in the
+     * jboss service definition
+     */
+    return "org.bedework:service=BwQueryAdmission";
+  }
+
+  public void setEnabled(final boolean val) {
+    AdmissionController.getController().setEnabled(val);
+  }
+
+  public boolean getEnabled() {
+    return AdmissionController.getController().getEnabled();
+  }
+
+  public void setMaxWait(final long val) {
+    AdmissionController.getController().setMaxWait(val);
+  }
+
+  public long getMaxWait() {
+    return AdmissionController.getController().getMaxWait();
+  }
+
+  public void setMaxQueue(final int val) {
+    AdmissionController.getController().setMaxQueue(val);
+  }
+
+  public int getMaxQueue() {
+    return AdmissionController.getController().getMaxQueue();
+  }
+
+  public void setEventsLimit(final int val) {
+    getQueryClass(AdmissionController.eventsClass).setLimit(val);
+  }
+
+  public int getEventsLimit() {
+    return getQueryClass(AdmissionController.eventsClass).getLimit();
+  }
+
+  public void setEventsTimeout(final int val) {
+    getQueryClass(AdmissionController.eventsClass).setTimeout(val);
+  }
+
+  public int getEventsTimeout() {
+    return getQueryClass(AdmissionController.eventsClass).getTimeout();
+  }
+
+  public void setEventsMaxRows(final int val) {
+    getQueryClass(AdmissionController.eventsClass).setMaxRows(val);
+  }
+
+  public int getEventsMaxRows() {
+    return getQueryClass(AdmissionController.eventsClass).getMaxRows();
+  }
+
+  public int getEventsActive() {
+    return getQueryClass(AdmissionController.eventsClass).getActive();
+  }
+
+  public int getEventsWaiting() {
+    return getQueryClass(AdmissionController.eventsClass).getWaiting();
+  }
+
+  public long getEventsAdmitted() {
+    return getQueryClass(AdmissionController.eventsClass).getAdmitted();
+  }
+
+  public long getEventsRejected() {
+    return getQueryClass(AdmissionController.eventsClass).getRejected();
+  }
+
+  public void setSyncLimit(final int val) {
+    getQueryClass(AdmissionController.syncClass).setLimit(val);
+  }
+
+  public int getSyncLimit() {
+    return getQueryClass(AdmissionController.syncClass).getLimit();
+  }
+
+  public void setSyncTimeout(final int val) {
+    getQueryClass(AdmissionController.syncClass).setTimeout(val);
+  }
+
+  public int getSyncTimeout() {
+    return getQueryClass(AdmissionController.syncClass).getTimeout();
+  }
+
+  public void setSyncMaxRows(final int val) {
+    getQueryClass(AdmissionController.syncClass).setMaxRows(val);
+  }
+
+  public int getSyncMaxRows() {
+    return getQueryClass(AdmissionController.syncClass).getMaxRows();
+  }
+
+  public int getSyncActive() {
+    return getQueryClass(AdmissionController.syncClass).getActive();
+  }
+
+  public int getSyncWaiting() {
+    return getQueryClass(AdmissionController.syncClass).getWaiting();
+  }
+
+  public long getSyncAdmitted() {
+    return getQueryClass(AdmissionController.syncClass).getAdmitted();
+  }
+
+  public long getSyncRejected() {
+    return getQueryClass(AdmissionController.syncClass).getRejected();
+  }
+
+  public long getTimeouts() {
+    return AdmissionController.getController().getTimeouts();
+  }
+
+  public long getTooManyResults() {
+    return AdmissionController.getController().getTooManyResults();
+  }
+
+  private QueryClass getQueryClass(final String name) {
+    return AdmissionController.getController().getQueryClass(name);
+  }
+}
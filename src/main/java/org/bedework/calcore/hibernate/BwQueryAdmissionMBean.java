@@ -0,0 +1,173 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+        
+    http://www.apache.org/licenses/LICENSE-2.0
+        
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.calcore.hibernate;
+
+/** Management interface for admission control of heavy queries.
+ *
+ * @author douglm
+ *
+ */
+public interface BwQueryAdmissionMBean {
+  /** Name apparently must be the same as the name attribute in the
+   * jboss service definition
+   *
+   * @return Name
+   */
+  public String getName();
+
+  /**
+   * @param val true to apply admission control
+   */
+  public void setEnabled(boolean val);
+
+  /**
+   * @return true if applying admission control
+   */
+  public boolean getEnabled();
+
+  /**
+   * @param val millisecs to wait for admission
+   */
+  public void setMaxWait(long val);
+
+  /**
+   * @return millisecs to wait for admission
+   */
+  public long getMaxWait();
+
+  /**
+   * @param val max number waiting for each class before we refuse at once
+   */
+  public void setMaxQueue(int val);
+
+  /**
+   * @return max number waiting for each class before we refuse at once
+   */
+  public int getMaxQueue();
+
+  /**
+   * @param val max number of events queries running at once
+   */
+  public void setEventsLimit(int val);
+
+  /**
+   * @return max number of events queries running at once
+   */
+  public int getEventsLimit();
+
+  /**
+   * @param val seconds each events query may run - 0 for no limit
+   */
+  public void setEventsTimeout(int val);
+
+  /**
+   * @return seconds each events query may run - 0 for no limit
+   */
+  public int getEventsTimeout();
+
+  /**
+   * @param val max rows returned by each events query - 0 for no limit
+   */
+  public void setEventsMaxRows(int val);
+
+  /**
+   * @return max rows returned by each events query - 0 for no limit
+   */
+  public int getEventsMaxRows();
+
+  /**
+   * @return number of events queries running now
+   */
+  public int getEventsActive();
+
+  /**
+   * @return number of events queries waiting for admission (queue depth)
+   */
+  public int getEventsWaiting();
+
+  /**
+   * @return number of events queries admitted
+   */
+  public long getEventsAdmitted();
+
+  /**
+   * @return number of events queries refused
+   */
+  public long getEventsRejected();
+
+  /**
+   * @param val max number of sync queries running at once
+   */
+  public void setSyncLimit(int val);
+
+  /**
+   * @return max number of sync queries running at once
+   */
+  public int getSyncLimit();
+
+  /**
+   * @param val seconds each sync query may run - 0 for no limit
+   */
+  public void setSyncTimeout(int val);
+
+  /**
+   * @return seconds each sync query may run - 0 for no limit
+   */
+  public int getSyncTimeout();
+
+  /**
+   * @param val max rows returned by each sync query - 0 for no limit
+   */
+  public void setSyncMaxRows(int val);
+
+  /**
+   * @return max rows returned by each sync query - 0 for no limit
+   */
+  public int getSyncMaxRows();
+
+  /**
+   * @return number of sync queries running now
+   */
+  public int getSyncActive();
+
+  /**
+   * @return number of sync queries waiting for admission (queue depth)
+   */
+  public int getSyncWaiting();
+
+  /**
+   * @return number of sync queries admitted
+   */
+  public long getSyncAdmitted();
+
+  /**
+   * @return number of sync queries refused
+   */
+  public long getSyncRejected();
+
+  /**
+   * @return number of queries cancelled by the timeout
+   */
+  public long getTimeouts();
+
+  /**
+   * @return number of queries refused for returning too many rows
+   */
+  public long getTooManyResults();
+}
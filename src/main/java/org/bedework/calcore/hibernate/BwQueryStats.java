@@ -0,0 +1,61 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+        
+    http://www.apache.org/licenses/LICENSE-2.0
+        
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.calcore.hibernate;
+
+/** Exposes the query timing statistics.
+ *
+ * @author douglm
+ *
+ */
+public class BwQueryStats implements BwQueryStatsMBean {
+  public String getName() {
+    /* This apparently must be the same as the name attribute in the
+     * jboss service definition
+     */
+    return "org.bedework:service=BwQueryStats";
+  }
+
+  public void setEnabled(final boolean val) {
+    QueryStats.getStats().setEnabled(val);
+  }
+
+  public boolean getEnabled() {
+    return QueryStats.getStats().getEnabled();
+  }
+
+  public void setMaxShapes(final int val) {
+    QueryStats.getStats().setMaxShapes(val);
+  }
+
+  public int getMaxShapes() {
+    return QueryStats.getStats().getMaxShapes();
+  }
+
+  public int getShapeCount() {
+    return QueryStats.getStats().getShapeCount();
+  }
+
+  public String dump(final int max) {
+    return QueryStats.getStats().dump(max);
+  }
+
+  public void reset() {
+    QueryStats.getStats().reset();
+  }
+}
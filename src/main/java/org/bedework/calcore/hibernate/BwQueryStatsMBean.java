@@ -0,0 +1,70 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+        
+    http://www.apache.org/licenses/LICENSE-2.0
+        
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.calcore.hibernate;
+
+/** Management interface for the query timing statistics.
+ *
+ * @author douglm
+ *
+ */
+public interface BwQueryStatsMBean {
+  /** Name apparently must be the same as the name attribute in the
+   * jboss service definition
+   *
+   * @return Name
+   */
+  public String getName();
+
+  /**
+   * @param val true to record query timings
+   */
+  public void setEnabled(boolean val);
+
+  /**
+   * @return true if recording query timings
+   */
+  public boolean getEnabled();
+
+  /**
+   * @param val max number of query shapes recorded separately
+   */
+  public void setMaxShapes(int val);
+
+  /**
+   * @return max number of query shapes recorded separately
+   */
+  public int getMaxShapes();
+
+  /**
+   * @return number of query shapes recorded
+   */
+  public int getShapeCount();
+
+  /** Timings for the query shapes with the greatest total time. Times are
+   * in microsecs.
+   *
+   * @param max number of shapes - <= 0 for all
+   * @return text dump
+   */
+  public String dump(int max);
+
+  /** Discard the timings recorded so far.
+   */
+  public void reset();
+}
@@ -0,0 +1,105 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+        
+    http://www.apache.org/licenses/LICENSE-2.0
+        
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.calcore.hibernate;
+
+/** Exposes the routing of read only sessions to a replica.
+ *
+ * @author douglm
+ *
+ */
+public class BwReplicaRouter implements BwReplicaRouterMBean {
+  public String getName() {
+    /* This apparently must be the same as the name attribute in the
+     * jboss service definition
+     */
+    return "org.bedework:service=BwReplicaRouter";
+  }
+
+  public void setEnabled(final boolean val) {
+    ReplicaRouter.getRouter().setEnabled(val);
+  }
+
+  public boolean getEnabled() {
+    return ReplicaRouter.getRouter().getEnabled();
+  }
+
+  public void setConfigResource(final String val) {
+    ReplicaRouter.getRouter().setConfigResource(val);
+  }
+
+  public String getConfigResource() {
+    return ReplicaRouter.getRouter().getConfigResource();
+  }
+
+  public void setStalenessBudget(final long val) {
+    ReplicaRouter.getRouter().setStalenessBudget(val);
+  }
+
+  public long getStalenessBudget() {
+    return ReplicaRouter.getRouter().getStalenessBudget();
+  }
+
+  public void setCheckInterval(final long val) {
+    ReplicaRouter.getRouter().setCheckInterval(val);
+  }
+
+  public long getCheckInterval() {
+    return ReplicaRouter.getRouter().getCheckInterval();
+  }
+
+  public String getPrimaryToken() {
+    return ReplicaRouter.getRouter().getPrimaryToken();
+  }
+
+  public String getReplicaToken() {
+    return ReplicaRouter.getRouter().getReplicaToken();
+  }
+
+  public boolean getStale() {
+    return ReplicaRouter.getRouter().getStale();
+  }
+
+  public long getReplicaLag() {
+    return ReplicaRouter.getRouter().getReplicaLag();
+  }
+
+  public long getReplicaSessions() {
+    return ReplicaRouter.getRouter().getReplicaSessions();
+  }
+
+  public long getPrimarySessions() {
+    return ReplicaRouter.getRouter().getPrimarySessions();
+  }
+
+  public long getStaleRoutes() {
+    return ReplicaRouter.getRouter().getStaleRoutes();
+  }
+
+  public long getPinnedRoutes() {
+    return ReplicaRouter.getRouter().getPinnedRoutes();
+  }
+
+  public long getCheckFailures() {
+    return ReplicaRouter.getRouter().getCheckFailures();
+  }
+
+  public void closeReplica() {
+    ReplicaRouter.getRouter().closeReplica();
+  }
+}
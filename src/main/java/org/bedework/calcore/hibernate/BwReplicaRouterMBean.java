@@ -0,0 +1,122 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+        
+    http://www.apache.org/licenses/LICENSE-2.0
+        
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.calcore.hibernate;
+
+/** Management interface for routing read only sessions to a replica.
+ *
+ * @author douglm
+ *
+ */
+public interface BwReplicaRouterMBean {
+  /** Name apparently must be the same as the name attribute in the
+   * jboss service definition
+   *
+   * @return Name
+   */
+  public String getName();
+
+  /**
+   * @param val true to route read only sessions to the replica
+   */
+  public void setEnabled(boolean val);
+
+  /**
+   * @return true if routing to the replica
+   */
+  public boolean getEnabled();
+
+  /**
+   * @param val hibernate configuration resource for the replica
+   */
+  public void setConfigResource(String val);
+
+  /**
+   * @return hibernate configuration resource for the replica
+   */
+  public String getConfigResource();
+
+  /**
+   * @param val millisecs the replica may fall behind
+   */
+  public void setStalenessBudget(long val);
+
+  /**
+   * @return millisecs the replica may fall behind
+   */
+  public long getStalenessBudget();
+
+  /**
+   * @param val millisecs between checks of the replica
+   */
+  public void setCheckInterval(long val);
+
+  /**
+   * @return millisecs between checks of the replica
+   */
+  public long getCheckInterval();
+
+  /**
+   * @return latest lastmod timestamp on the primary when last checked
+   */
+  public String getPrimaryToken();
+
+  /**
+   * @return latest lastmod timestamp on the replica when last checked
+   */
+  public String getReplicaToken();
+
+  /**
+   * @return true if the replica was too far behind when last checked
+   */
+  public boolean getStale();
+
+  /**
+   * @return millisecs behind or 0 if up to date, -1 if unknown
+   */
+  public long getReplicaLag();
+
+  /**
+   * @return number of sessions routed to the replica
+   */
+  public long getReplicaSessions();
+
+  /**
+   * @return number of read only sessions routed to the primary
+   */
+  public long getPrimarySessions();
+
+  /**
+   * @return number routed to the primary because the replica was stale
+   */
+  public long getStaleRoutes();
+
+  /**
+   * @return number routed to the primary to read their own writes
+   */
+  public long getPinnedRoutes();
+
+  /**
+   * @return number of failed checks of the replica
+   */
+  public long getCheckFailures();
+
+  /** Discard the replica session factory - it is rebuilt on next use.
+   */
+  public void closeReplica();
+}
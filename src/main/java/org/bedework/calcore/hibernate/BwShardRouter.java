@@ -0,0 +1,150 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+        
+    http://www.apache.org/licenses/LICENSE-2.0
+        
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.calcore.hibernate;
+
+import org.apache.log4j.Logger;
+
+import java.util.Map;
+
+/** Exposes the routing of collections to database shards.
+ *
+ * @author douglm
+ *
+ */
+public class BwShardRouter implements BwShardRouterMBean {
+  private transient Logger log;
+
+  public String getName() {
+    /* This apparently must be the same as the name attribute in the
+     * jboss service definition
+     */
+    return "org.bedework:service=BwShardRouter";
+  }
+
+  public void setEnabled(final boolean val) {
+    ShardRouter.getRouter().setEnabled(val);
+  }
+
+  public boolean getEnabled() {
+    return ShardRouter.getRouter().getEnabled();
+  }
+
+  public void setConfigPrefix(final String val) {
+    ShardRouter.getRouter().setConfigPrefix(val);
+  }
+
+  public String getConfigPrefix() {
+    return ShardRouter.getRouter().getConfigPrefix();
+  }
+
+  public void setRefreshInterval(final long val) {
+    ShardRouter.getRouter().setRefreshInterval(val);
+  }
+
+  public long getRefreshInterval() {
+    return ShardRouter.getRouter().getRefreshInterval();
+  }
+
+  public void setNodeTimeout(final long val) {
+    ShardRouter.getRouter().setNodeTimeout(val);
+  }
+
+  public long getNodeTimeout() {
+    return ShardRouter.getRouter().getNodeTimeout();
+  }
+
+  public long getRulesVersion() {
+    return ShardRouter.getRouter().getRulesVersion();
+  }
+
+  public String getRules() {
+    Map<String, String> rules = ShardRouter.getRouter().getRules();
+    StringBuilder sb = new StringBuilder();
+
+    for (String path: rules.keySet()) {
+      if (sb.length() > 0) {
+        sb.append(",");
+      }
+
+      sb.append(path);
+      sb.append("=");
+      sb.append(rules.get(path));
+    }
+
+    return sb.toString();
+  }
+
+  public String getShards() {
+    StringBuilder sb = new StringBuilder();
+
+    for (String shard: ShardRouter.getRouter().getShards()) {
+      if (sb.length() > 0) {
+        sb.append(",");
+      }
+
+      sb.append(shard);
+    }
+
+    return sb.toString();
+  }
+
+  public String addRule(final String path, final String shard) {
+    return saveRule(path, shard);
+  }
+
+  public String removeRule(final String path) {
+    return saveRule(path, null);
+  }
+
+  public String getShard(final String path) {
+    return ShardRouter.getRouter().getShard(path);
+  }
+
+  public String migrate(final String path, final String shard) {
+    try {
+      return "Moved: " + new ShardMigrator().migrate(path, shard);
+    } catch (Throwable t) {
+      getLogger().error(this, t);
+      return "Migration failed: " + t.getMessage();
+    }
+  }
+
+  public void closeShard(final String shard) {
+    ShardRouter.getRouter().closeShard(shard);
+  }
+
+  private String saveRule(final String path, final String shard) {
+    try {
+      return "Rules version " +
+          ShardRouter.getRouter().saveRule(path, shard,
+                                           CalintfImpl.getSessionFactory());
+    } catch (Throwable t) {
+      getLogger().error(this, t);
+      return "Failed: " + t.getMessage();
+    }
+  }
+
+  private Logger getLogger() {
+    if (log == null) {
+      log = Logger.getLogger(this.getClass());
+    }
+
+    return log;
+  }
+}
@@ -0,0 +1,125 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+        
+    http://www.apache.org/licenses/LICENSE-2.0
+        
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.calcore.hibernate;
+
+/** Management interface for routing collections to database shards.
+ *
+ * @author douglm
+ *
+ */
+public interface BwShardRouterMBean {
+  /** Name apparently must be the same as the name attribute in the
+   * jboss service definition
+   *
+   * @return Name
+   */
+  public String getName();
+
+  /**
+   * @param val true to route by path
+   */
+  public void setEnabled(boolean val);
+
+  /**
+   * @return true if routing by path
+   */
+  public boolean getEnabled();
+
+  /**
+   * @param val prefix for shard hibernate configuration resources
+   */
+  public void setConfigPrefix(String val);
+
+  /**
+   * @return prefix for shard hibernate configuration resources
+   */
+  public String getConfigPrefix();
+
+  /**
+   * @param val millis between checks for changed rules
+   */
+  public void setRefreshInterval(long val);
+
+  /**
+   * @return millis between checks for changed rules
+   */
+  public long getRefreshInterval();
+
+  /**
+   * @param val millis after which a node which has not checked the rules is
+   *            taken to be gone. Must be longer than any request.
+   */
+  public void setNodeTimeout(long val);
+
+  /**
+   * @return millis after which a silent node is taken to be gone
+   */
+  public long getNodeTimeout();
+
+  /**
+   * @return version of the persisted rules in use on this node
+   */
+  public long getRulesVersion();
+
+  /**
+   * @return comma separated list of path=shard
+   */
+  public String getRules();
+
+  /**
+   * @return comma separated list of shard names
+   */
+  public String getShards();
+
+  /** Map a path prefix onto a shard for all nodes. Existing data is not
+   * moved.
+   *
+   * @param path
+   * @param shard
+   * @return String status
+   */
+  public String addRule(String path, String shard);
+
+  /** Remove the rule for a path prefix for all nodes.
+   *
+   * @param path
+   * @return String status
+   */
+  public String removeRule(String path);
+
+  /**
+   * @param path
+   * @return the shard holding the path
+   */
+  public String getShard(String path);
+
+  /** Move a subtree, usually a principal home, to another shard.
+   *
+   * @param path
+   * @param shard
+   * @return String status
+   */
+  public String migrate(String path, String shard);
+
+  /** Close the session factory for a shard - it is rebuilt on next use.
+   *
+   * @param shard
+   */
+  public void closeShard(String shard);
+}
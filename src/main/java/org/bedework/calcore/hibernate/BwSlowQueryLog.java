@@ -0,0 +1,89 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+        
+    http://www.apache.org/licenses/LICENSE-2.0
+        
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.calcore.hibernate;
+
+/** Exposes the slow query log.
+ *
+ * @author douglm
+ *
+ */
+public class BwSlowQueryLog implements BwSlowQueryLogMBean {
+  public String getName() {
+    /* This apparently must be the same as the name attribute in the
+     * jboss service definition
+     */
+    return "org.bedework:service=BwSlowQueryLog";
+  }
+
+  public void setEnabled(final boolean val) {
+    SlowQueryLog.getLog().setEnabled(val);
+  }
+
+  public boolean getEnabled() {
+    return SlowQueryLog.getLog().getEnabled();
+  }
+
+  public void setThreshold(final long val) {
+    SlowQueryLog.getLog().setThreshold(val);
+  }
+
+  public long getThreshold() {
+    return SlowQueryLog.getLog().getThreshold();
+  }
+
+  public void setLogToFile(final boolean val) {
+    SlowQueryLog.getLog().setLogToFile(val);
+  }
+
+  public boolean getLogToFile() {
+    return SlowQueryLog.getLog().getLogToFile();
+  }
+
+  public void setRedact(final String val) {
+    SlowQueryLog.getLog().setRedact(val);
+  }
+
+  public String getRedact() {
+    return SlowQueryLog.getLog().getRedact();
+  }
+
+  public void setCapacity(final int val) {
+    SlowQueryLog.getLog().setCapacity(val);
+  }
+
+  public int getCapacity() {
+    return SlowQueryLog.getLog().getCapacity();
+  }
+
+  public long getSlowQueries() {
+    return SlowQueryLog.getLog().getSlowQueries();
+  }
+
+  public long getFailedQueries() {
+    return SlowQueryLog.getLog().getFailedQueries();
+  }
+
+  public String dump() {
+    return SlowQueryLog.getLog().dump();
+  }
+
+  public void clear() {
+    SlowQueryLog.getLog().clear();
+  }
+}
@@ -0,0 +1,104 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+        
+    http://www.apache.org/licenses/LICENSE-2.0
+        
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.calcore.hibernate;
+
+/** Management interface for the slow query log.
+ *
+ * @author douglm
+ *
+ */
+public interface BwSlowQueryLogMBean {
+  /** Name apparently must be the same as the name attribute in the
+   * jboss service definition
+   *
+   * @return Name
+   */
+  public String getName();
+
+  /**
+   * @param val true to record slow queries
+   */
+  public void setEnabled(boolean val);
+
+  /**
+   * @return true if recording slow queries
+   */
+  public boolean getEnabled();
+
+  /**
+   * @param val millisecs above which a query is recorded
+   */
+  public void setThreshold(long val);
+
+  /**
+   * @return millisecs above which a query is recorded
+   */
+  public long getThreshold();
+
+  /**
+   * @param val true to also log slow queries to the
+   *            org.bedework.calcore.slowquery category
+   */
+  public void setLogToFile(boolean val);
+
+  /**
+   * @return true if also logging slow queries
+   */
+  public boolean getLogToFile();
+
+  /**
+   * @param val regular expression - values of parameters with matching
+   *            names are not recorded
+   */
+  public void setRedact(String val);
+
+  /**
+   * @return regular expression for parameters not recorded
+   */
+  public String getRedact();
+
+  /**
+   * @param val number of entries kept - changing it discards the entries
+   */
+  public void setCapacity(int val);
+
+  /**
+   * @return number of entries kept
+   */
+  public int getCapacity();
+
+  /**
+   * @return number of slow queries seen
+   */
+  public long getSlowQueries();
+
+  /**
+   * @return number of failed queries recorded
+   */
+  public long getFailedQueries();
+
+  /**
+   * @return the recorded slow queries, most recent first
+   */
+  public String dump();
+
+  /** Discard the recorded slow queries.
+   */
+  public void clear();
+}
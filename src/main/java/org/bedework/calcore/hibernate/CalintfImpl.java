@@ -19,8 +19,11 @@
 package org.bedework.calcore.hibernate;
 
 import org.bedework.calcore.AccessUtil;
+import org.bedework.calcore.AclInternCache;
 import org.bedework.calcore.CalintfBase;
+import org.bedework.calcore.FreeBusyMerger;
 import org.bedework.calcorei.CalintfInfo;
+import org.bedework.calcorei.CollectionTree;
 import org.bedework.calcorei.CoreEventInfo;
 import org.bedework.calcorei.CoreEventsI;
 import org.bedework.calcorei.HibSession;
@@ -48,9 +51,10 @@ import org.bedework.calfacade.exc.CalFacadeAccessException;
 import org.bedework.calfacade.exc.CalFacadeException;
 import org.bedework.calfacade.util.AccessUtilI;
 import org.bedework.calfacade.util.ChangeTable;
-import org.bedework.calfacade.util.Granulator.EventPeriod;
 import org.bedework.calfacade.wrappers.CalendarWrapper;
 import org.bedework.sysevents.events.SysEvent;
+import org.bedework.tracing.Span;
+import org.bedework.tracing.Tracer;
 
 import edu.rpi.cmt.access.Ace;
 import edu.rpi.cmt.access.AceWho;
@@ -59,9 +63,6 @@ import edu.rpi.cmt.access.PrivilegeDefs;
 import edu.rpi.cmt.access.PrivilegeSet;
 import edu.rpi.cmt.calendar.IcalDefs;
 
-import net.fortuna.ical4j.model.DateTime;
-import net.fortuna.ical4j.model.Period;
-
 import org.hibernate.FlushMode;
 import org.hibernate.SessionFactory;
 import org.hibernate.stat.Statistics;
@@ -70,6 +71,7 @@ import com.idega.hibernate.SessionFactoryUtil;
 
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 
@@ -127,9 +129,15 @@ public class CalintfImpl extends CalintfBase implements PrivilegeDefs {
 	private CoreCalendars calendars;
 
 	/**
-	 * Prevent updates.
+	 * Prevent updates. Read only sessions may be routed to a replica.
 	 */
-	// sprivate boolean readOnly;
+	private boolean readOnly;
+
+	/* True if the current hibernate session is on the replica */
+	private boolean onReplica;
+
+	/* Shard we are connected to - null for the default */
+	private String shard;
 
 	/**
 	 * Current hibernate session - exists only across one user interaction
@@ -149,8 +157,13 @@ public class CalintfImpl extends CalintfBase implements PrivilegeDefs {
 	 * <p>
 	 * It might be better to find some other approach for the j2ee world.
 	 */
-	private static SessionFactory sessionFactory;
-	private static Statistics dbStats;
+	private static volatile SessionFactory sessionFactory;
+	private static volatile Statistics dbStats;
+
+	/* Guards initialization of the statics above - they are shared by all
+	 * instances so an instance lock will not do.
+	 */
+	private static final Object initLock = new Object();
 
 	/*
 	 * ====================================================================
@@ -191,6 +204,7 @@ public class CalintfImpl extends CalintfBase implements PrivilegeDefs {
 				sessionless);
 
 		access.setCollectionGetter(calendars);
+		setPopulateSharedCaches();
 	}
 
 	private static class CalintfHelperHibCb implements
@@ -283,6 +297,38 @@ public class CalintfImpl extends CalintfBase implements PrivilegeDefs {
 		return access.getSuperUser();
 	}
 
+	public void setShard(final String val) throws CalFacadeException {
+		if (isOpen) {
+			throw new CalFacadeException("Cannot change shard when open");
+		}
+
+		if (ShardRouter.defaultShard.equals(val)) {
+			shard = null;
+		} else {
+			shard = val;
+		}
+	}
+
+	public String getShard() {
+		if (shard == null) {
+			return ShardRouter.defaultShard;
+		}
+
+		return shard;
+	}
+
+	public void setReadOnly(final boolean val) {
+		readOnly = val;
+	}
+
+	public boolean getReadOnly() {
+		return readOnly;
+	}
+
+	public boolean getUpdated() {
+		return (sess != null) && sess.getUpdated();
+	}
+
 	public void setMaximumAllowedPrivs(final PrivilegeSet val) {
 		access.setMaximumAllowedPrivs(val);
 	}
@@ -302,7 +348,11 @@ public class CalintfImpl extends CalintfBase implements PrivilegeDefs {
 		}
 
 		if (dbStats == null) {
-			dbStats = getSessionFactory().getStatistics();
+			synchronized (initLock) {
+				if (dbStats == null) {
+					dbStats = getSessionFactory().getStatistics();
+				}
+			}
 		}
 
 		dbStats.setStatisticsEnabled(enable);
@@ -324,6 +374,34 @@ public class CalintfImpl extends CalintfBase implements PrivilegeDefs {
 		return DbStatistics.getStats(dbStats);
 	}
 
+	/**
+	 * Build the session factory if that has not already been done. Called at
+	 * startup so the first session does not pay for it.
+	 *
+	 * @throws CalFacadeException
+	 */
+	public static void buildSessionFactory() throws CalFacadeException {
+		getSessionFactory();
+	}
+
+	/**
+	 * @return count of elements in memory for each second level cache region
+	 * @throws CalFacadeException
+	 */
+	public static Map<String, Long> getCacheRegionCounts()
+			throws CalFacadeException {
+		return DbStatistics.getCacheRegionCounts(getSessionFactory()
+				.getStatistics());
+	}
+
+	/**
+	 * @return hibernate statistics for the session factory
+	 * @throws CalFacadeException
+	 */
+	public static Statistics getDbStatistics() throws CalFacadeException {
+		return getSessionFactory().getStatistics();
+	}
+
 	public CalintfInfo getInfo() throws CalFacadeException {
 		return info;
 	}
@@ -355,8 +433,26 @@ public class CalintfImpl extends CalintfBase implements PrivilegeDefs {
 				debug("New hibernate session for " + objTimestamp);
 			}
 			sess = new HibSessionImpl();
-			sess.init(getSessionFactory(), getLogger());
-			if (webMode) {
+
+			SessionFactory sf = getSessionFactory();
+			onReplica = false;
+
+			/* Pick up rules changed on other nodes */
+			ShardRouter.getRouter().refresh(sf);
+
+			if (shard != null) {
+				sf = ShardRouter.getRouter().getFactory(shard, sf);
+			} else if (readOnly) {
+				SessionFactory rsf = ReplicaRouter.getRouter().route(sf,
+						getPrincipalRef());
+				onReplica = rsf != sf;
+				sf = rsf;
+			}
+
+			sess.init(sf, getLogger());
+			if (onReplica) {
+				sess.setReadOnly(true);
+			} else if (webMode) {
 				sess.setFlushMode(FlushMode.MANUAL);
 			} else if (debug) {
 				debug("Open session for " + objTimestamp);
@@ -366,6 +462,21 @@ public class CalintfImpl extends CalintfBase implements PrivilegeDefs {
 		if (access != null) {
 			access.open();
 		}
+
+		setPopulateSharedCaches();
+	}
+
+	/* Sessions on a replica may see old data - keep it out of the caches
+	 * shared by all sessions.
+	 */
+	private void setPopulateSharedCaches() {
+		if (access != null) {
+			access.setPopulateSharedCaches(!onReplica);
+		}
+
+		if (calendars != null) {
+			calendars.setPopulateSharedCaches(!onReplica);
+		}
 	}
 
 	public synchronized void close() throws CalFacadeException {
@@ -429,6 +540,8 @@ public class CalintfImpl extends CalintfBase implements PrivilegeDefs {
 	}
 
 	public void endTransaction() throws CalFacadeException {
+		Span span = Tracer.start("endTransaction");
+
 		try {
 			checkOpen();
 
@@ -437,7 +550,17 @@ public class CalintfImpl extends CalintfBase implements PrivilegeDefs {
 			}
 
 			if (!sess.rolledback()) {
+				String written = null;
+
+				if (calendars != null) {
+					written = calendars.flushTouched();
+				}
+
 				sess.commit();
+
+				if (written != null) {
+					ReplicaRouter.getRouter().written(getPrincipalRef(), written);
+				}
 			}
 
 			if (events != null) {
@@ -454,7 +577,10 @@ public class CalintfImpl extends CalintfBase implements PrivilegeDefs {
 			sess.rollback();
 			throw new CalFacadeException(t);
 		} finally {
+			/* Membership changes are now visible to other sessions */
+			AclInternCache.getCache().endTransaction();
 			flushNotifications();
+			span.end();
 		}
 	}
 
@@ -463,6 +589,11 @@ public class CalintfImpl extends CalintfBase implements PrivilegeDefs {
 			checkOpen();
 			sess.rollback();
 		} finally {
+			if (calendars != null) {
+				calendars.clearTouched();
+			}
+
+			AclInternCache.getCache().endTransaction();
 			clearNotifications();
 		}
 	}
@@ -649,6 +780,20 @@ public class CalintfImpl extends CalintfBase implements PrivilegeDefs {
 		return calendars.getCalendars(cal);
 	}
 
+	public CollectionTree getSubtree(final BwCalendar cal,
+			final int maxDepth) throws CalFacadeException {
+		checkOpen();
+
+		return calendars.getSubtree(cal, maxDepth);
+	}
+
+	public void prefetchCollections(final Collection<String> paths)
+			throws CalFacadeException {
+		checkOpen();
+
+		calendars.prefetchCollections(paths);
+	}
+
 	public BwCalendar resolveAlias(final BwCalendar val,
 			final boolean resolveSubAlias, final boolean freeBusy)
 			throws CalFacadeException {
@@ -735,6 +880,13 @@ public class CalintfImpl extends CalintfBase implements PrivilegeDefs {
 		return calendars.deleteCalendar(val, reallyDelete);
 	}
 
+	public int deleteCollectionTree(final BwCalendar val)
+			throws CalFacadeException {
+		checkOpen();
+
+		return calendars.deleteCollectionTree(val);
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -815,39 +967,19 @@ public class CalintfImpl extends CalintfBase implements PrivilegeDefs {
 		// assignGuid(fb);
 
 		try {
-			TreeSet<EventPeriod> eventPeriods = new TreeSet<EventPeriod>();
+			FreeBusyMerger merger = new FreeBusyMerger();
+
+			/* Don't report out of the requested period */
+			long startMillis = merger.toMillis(start.getDtval());
+			long endMillis = merger.toMillis(end.getDtval());
 
 			for (CoreEventInfo ei : events) {
 				BwEvent ev = ei.getEvent();
 
-				// Ignore if times were specified and this event is outside the
-				// times
-
-				BwDateTime estart = ev.getDtstart();
-				BwDateTime eend = ev.getDtend();
-
-				/* Don't report out of the requested period */
-
-				String dstart;
-				String dend;
-
-				if (estart.before(start)) {
-					dstart = start.getDtval();
-				} else {
-					dstart = estart.getDtval();
-				}
-
-				if (eend.after(end)) {
-					dend = end.getDtval();
-				} else {
-					dend = eend.getDtval();
-				}
-
-				DateTime psdt = new DateTime(dstart);
-				DateTime pedt = new DateTime(dend);
-
-				psdt.setUtc(true);
-				pedt.setUtc(true);
+				long pstart = Math.max(startMillis,
+						merger.toMillis(ev.getDtstart().getDtval()));
+				long pend = Math.min(endMillis,
+						merger.toMillis(ev.getDtend().getDtval()));
 
 				int type = BwFreeBusyComponent.typeBusy;
 
@@ -855,60 +987,23 @@ public class CalintfImpl extends CalintfBase implements PrivilegeDefs {
 					type = BwFreeBusyComponent.typeBusyTentative;
 				}
 
-				eventPeriods.add(new EventPeriod(psdt, pedt, type));
+				merger.add(pstart, pend, type);
 			}
 
-			/*
-			 * iterate through the sorted periods combining them where they are
-			 * adjacent or overlap
-			 */
-
-			Period p = null;
+			if (debug) {
+				trace("Free busy: merging " + merger.size() + " periods");
+			}
 
 			/*
-			 * For the moment just build a single BwFreeBusyComponent
+			 * Sort the periods combining them where they are adjacent or
+			 * overlap. We get one BwFreeBusyComponent per run of one type.
 			 */
-			BwFreeBusyComponent fbc = null;
-			int lastType = 0;
-
-			for (EventPeriod ep : eventPeriods) {
-				if (debug) {
-					trace(ep.toString());
-				}
-
-				if (p == null) {
-					p = new Period(ep.getStart(), ep.getEnd());
-					lastType = ep.getType();
-				} else if ((lastType != ep.getType())
-						|| ep.getStart().after(p.getEnd())) {
-					// Non adjacent periods
-					if (fbc == null) {
-						fbc = new BwFreeBusyComponent();
-						fbc.setType(lastType);
-						fb.addFreeBusyPeriod(fbc);
-					}
-					fbc.addPeriod(p.getStart(), p.getEnd());
-
-					if (lastType != ep.getType()) {
-						fbc = null;
-					}
-
-					p = new Period(ep.getStart(), ep.getEnd());
-					lastType = ep.getType();
-				} else if (ep.getEnd().after(p.getEnd())) {
-					// Extend the current period
-					p = new Period(p.getStart(), ep.getEnd());
-				} // else it falls within the existing period
-			}
-
-			if (p != null) {
-				if ((fbc == null) || (lastType != fbc.getType())) {
-					fbc = new BwFreeBusyComponent();
-					fbc.setType(lastType);
-					fb.addFreeBusyPeriod(fbc);
-				}
-				fbc.addPeriod(p.getStart(), p.getEnd());
+			merger.merge(fb);
+		} catch (CalFacadeException cfe) {
+			if (debug) {
+				error(cfe);
 			}
+			throw cfe;
 		} catch (Throwable t) {
 			if (debug) {
 				error(t);
@@ -1083,12 +1178,33 @@ public class CalintfImpl extends CalintfBase implements PrivilegeDefs {
 	 * ====================================================================
 	 */
 
-	private SessionFactory getSessionFactory() throws CalFacadeException {
+	private String getPrincipalRef() {
+		BwUser u = getUser();
+
+		if (u == null) {
+			return null;
+		}
+
+		return u.getPrincipalRef();
+	}
+
+	/** Use the given session factory rather than the configured one. For
+	 * tests which run against their own database.
+	 *
+	 * @param val session factory - null to go back to the configured one
+	 */
+	static void setSessionFactory(final SessionFactory val) {
+		synchronized (initLock) {
+			sessionFactory = val;
+		}
+	}
+
+	static SessionFactory getSessionFactory() throws CalFacadeException {
 		if (sessionFactory != null) {
 			return sessionFactory;
 		}
 
-		synchronized (this) {
+		synchronized (initLock) {
 			if (sessionFactory != null) {
 				return sessionFactory;
 			}
@@ -19,13 +19,17 @@
 package org.bedework.calcore.hibernate;
 
 import org.bedework.calcore.AccessUtil;
+import org.bedework.calcore.AclPathCache;
 import org.bedework.calcore.AccessUtil.CollectionGetter;
+import org.bedework.calcorei.CollectionTree;
 import org.bedework.calcorei.CoreCalendarsI;
 import org.bedework.calcorei.HibSession;
 import org.bedework.calfacade.BwCalendar;
 import org.bedework.calfacade.BwCollectionLastmod;
+import org.bedework.calfacade.BwEventAnnotation;
 import org.bedework.calfacade.BwEventObj;
 import org.bedework.calfacade.BwPrincipal;
+import org.bedework.calfacade.BwRecurrenceInstance;
 import org.bedework.calfacade.BwStats;
 import org.bedework.calfacade.BwStats.CacheStats;
 import org.bedework.calfacade.BwSystem;
@@ -51,7 +55,10 @@ import edu.rpi.sss.util.Util;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -95,6 +102,11 @@ public class CoreCalendars extends CalintfHelperHib
     //BwStats stats;
     CacheStats cs;
 
+    /* Counts for the current transaction */
+    int loads;
+    int sharedHits;
+    int tokenQueries;
+
     CollectionCache(final CoreCalendars cols,
                     final BwStats stats) {
       //this.stats = stats;
@@ -122,35 +134,105 @@ public class CoreCalendars extends CalintfHelperHib
       cache.remove(path);
     }
 
+    boolean contains(final String path) {
+      return cache.containsKey(path);
+    }
+
+    /* Remove and return the entries below path */
+    List<CalendarWrapper> removeTree(final String path) {
+      List<CalendarWrapper> res = new ArrayList<CalendarWrapper>();
+      String prefix = path + "/";
+
+      Iterator<CacheInfo> it = cache.values().iterator();
+
+      while (it.hasNext()) {
+        CacheInfo ci = it.next();
+
+        if (ci.col.getPath().startsWith(prefix)) {
+          res.add(ci.col);
+          it.remove();
+        }
+      }
+
+      return res;
+    }
+
     CalendarWrapper get(final String path) throws CalFacadeException {
       CacheInfo ci = cache.get(path);
 
       if (ci == null) {
-        cs.incMisses();
         return null;
       }
 
-      if (ci.checked) {
-        cs.incHits();
-        return ci.col;
+      if (!ci.checked) {
+        /* First unchecked reference since the flush - validate everything
+         * we have in one go.
+         */
+        validate();
+
+        ci = cache.get(path);
+
+        if (ci == null) {
+          // Deleted or changed - force refetch
+          return null;
+        }
       }
 
-      CollectionSynchInfo csi = cols.getSynchInfo(path, ci.token);
+      hit();
+      return ci.col;
+    }
 
-      if (csi == null) {
-        // Collection deleted?
-        cs.incMisses();
-        return null;
+    /* Check the tokens for all unchecked entries with a single query (or
+     * a few for a very large cache). Entries which have changed or
+     * disappeared are removed.
+     */
+    void validate() throws CalFacadeException {
+      List<String> paths = new ArrayList<String>();
+
+      for (CacheInfo ci: cache.values()) {
+        if (!ci.checked) {
+          paths.add(ci.col.getPath());
+        }
       }
 
-      if (!csi.changed) {
-        ci.checked = true;
+      if (paths.isEmpty()) {
+        return;
+      }
 
-        cs.incHits();
-        return ci.col;
+      Map<String, String> tokens = cols.getSyncTokens(paths);
+      tokenQueries++;
+      int failed = 0;
+
+      for (String path: paths) {
+        CacheInfo ci = cache.get(path);
+        String token = tokens.get(path);
+
+        if ((token == null) || !token.equals(ci.token)) {
+          cache.remove(path);
+          failed++;
+          continue;
+        }
+
+        ci.checked = true;
       }
 
-      return null;  // force refetch
+      sharedCache.tokenCheck(paths.size(), failed);
+    }
+
+    void load() {
+      cs.incMisses();
+      loads++;
+      sharedCache.sessionLoad();
+    }
+
+    void sharedHit() {
+      sharedCache.hit();
+      sharedHits++;
+    }
+
+    private void hit() {
+      cs.incHits();
+      sharedCache.sessionHit();
     }
 
     CalendarWrapper get(final String path, final String token) throws CalFacadeException {
@@ -165,7 +247,7 @@ public class CoreCalendars extends CalintfHelperHib
         return null;
       }
 
-      cs.incHits();
+      hit();
       return ci.col;
     }
 
@@ -177,6 +259,12 @@ public class CoreCalendars extends CalintfHelperHib
       cs.incFlushes();
     }
 
+    void resetCounts() {
+      loads = 0;
+      sharedHits = 0;
+      tokenQueries = 0;
+    }
+
     void clear() {
       cache.clear();
 
@@ -186,6 +274,25 @@ public class CoreCalendars extends CalintfHelperHib
 
   private CollectionCache colCache;
 
+  private static final SharedCollectionCache sharedCache =
+      SharedCollectionCache.getCache();
+
+  private static final AliasCache aliasCache = AliasCache.getCache();
+
+  /* False for sessions on a replica - see setPopulateSharedCaches */
+  private boolean populateSharedCaches = true;
+
+  /* Set when this transaction changed something affecting inherited access. */
+  private boolean accessChanged;
+
+  /* Collections touched in this transaction. The lastmod is written once for
+   * each at the end of the transaction rather than on every touch. Sorted so
+   * that concurrent writers update the rows in the same order.
+   */
+  private Set<String> touched = new TreeSet<String>();
+
+  private int touches;
+
   /** Constructor
    *
    * @param chcb
@@ -209,12 +316,25 @@ public class CoreCalendars extends CalintfHelperHib
     colCache = new CollectionCache(this, chcb.getStats());
   }
 
+  /** Set false for sessions which read from a replica. They may see
+   * collections older than the primary so they do not add to the alias
+   * and shared collection caches.
+   *
+   * @param val
+   */
+  public void setPopulateSharedCaches(final boolean val) {
+    populateSharedCaches = val;
+  }
+
   /* (non-Javadoc)
    * @see org.bedework.calcore.CalintfHelper#startTransaction()
    */
   @Override
   public void startTransaction() throws CalFacadeException {
     colCache.flush();  // Just in case
+    colCache.resetCounts();
+    touched.clear();
+    touches = 0;
   }
 
   /* (non-Javadoc)
@@ -222,7 +342,22 @@ public class CoreCalendars extends CalintfHelperHib
    */
   @Override
   public void endTransaction() throws CalFacadeException {
+    if (debug) {
+      trace("Collections: loaded=" + colCache.loads +
+            " shared hits=" + colCache.sharedHits +
+            " token queries=" + colCache.tokenQueries +
+            " touches=" + touches);
+    }
+
     colCache.flush();
+
+    if (accessChanged) {
+      /* Other sessions may have cached merged acls built from the
+       * uncommitted state. Invalidate again now we've committed.
+       */
+      AclPathCache.getCache().invalidate();
+      accessChanged = false;
+    }
   }
 
   /* ====================================================================
@@ -262,6 +397,51 @@ public class CoreCalendars extends CalintfHelperHib
     return csi;
   }
 
+  /* Max number of paths in one token query */
+  private static final int maxTokenQueryPaths = 500;
+
+  /** Get the current sync tokens for a number of collections.
+   *
+   * @param paths collection paths
+   * @return map from path to token. Missing entries for unknown paths.
+   * @throws CalFacadeException
+   */
+  @SuppressWarnings("unchecked")
+  private Map<String, String> getSyncTokens(final List<String> paths) throws CalFacadeException {
+    Map<String, String> tokens = new HashMap<String, String>();
+
+    HibSession sess = getSess();
+
+    StringBuilder sb = new StringBuilder();
+
+    sb.append("select lm.path, lm.timestamp, lm.sequence from ");
+    sb.append(BwCollectionLastmod.class.getName());
+    sb.append(" lm where lm.path in (:paths)");
+
+    String q = sb.toString();
+
+    for (int i = 0; i < paths.size(); i += maxTokenQueryPaths) {
+      sess.createQuery(q);
+      sess.setParameterList("paths",
+                            paths.subList(i, Math.min(paths.size(),
+                                                      i + maxTokenQueryPaths)));
+
+      List<Object[]> lms = sess.getList();
+
+      if (lms == null) {
+        continue;
+      }
+
+      for (Object[] lmfields: lms) {
+        tokens.put((String)lmfields[0],
+                   BwLastMod.getTagValue((String)lmfields[1],
+                                         (Integer)lmfields[2]));
+      }
+    }
+
+    return tokens;
+  }
+
   @Override
   public Collection<BwCalendar> getCalendars(final BwCalendar cal) throws CalFacadeException {
     Collection<BwCalendar> ch = getChildren(cal);
@@ -269,6 +449,32 @@ public class CoreCalendars extends CalintfHelperHib
     return checkAccess(ch, privAny, true);
   }
 
+  @Override
+  public CollectionTree getSubtree(final BwCalendar cal,
+                                   final int maxDepth) throws CalFacadeException {
+    CollectionTree tree = new CollectionTree(cal);
+
+    /* Parents come before children so an inaccessible collection causes its
+     * descendants to be dropped by the tree.
+     */
+    for (BwCalendar col: getDescendants(cal, maxDepth, false)) {
+      if (!tree.contains(col.getColPath())) {
+        continue;
+      }
+
+      if (checkAccess((CalendarWrapper)col, privAny, true) != null) {
+        tree.add(col);
+      }
+    }
+
+    return tree;
+  }
+
+  @Override
+  public void prefetchCollections(final Collection<String> paths) throws CalFacadeException {
+    prefetch(paths.toArray(new String[paths.size()]));
+  }
+
   /* (non-Javadoc)
    * @see org.bedework.calcorei.CoreCalendarsI#resolveAlias(org.bedework.calfacade.BwCalendar, boolean, boolean)
    */
@@ -280,10 +486,89 @@ public class CoreCalendars extends CalintfHelperHib
       return val;
     }
 
+    boolean fullWalk = resolveSubAlias && (val.getAliasTarget() == null) &&
+                       !val.getDisabled();
+
+    if (fullWalk) {
+      AliasCache.Chain ch = aliasCache.get(val.getPath());
+
+      if (ch != null) {
+        /* Load the collections on the chain we don't have in one go. The walk
+         * below then finds them in the cache and checks access as usual. We
+         * always walk - even for a cycle - so the chain is validated against
+         * the collections as they are now.
+         */
+        prefetch(ch.getPaths());
+      }
+    }
+
     ArrayList<String> pathElements = new ArrayList<String>();
     pathElements.add(val.getPath());
 
-    return resolveAlias(val, resolveSubAlias, freeBusy, pathElements);
+    BwCalendar res = resolveAlias(val, resolveSubAlias, freeBusy, pathElements);
+
+    if (!fullWalk) {
+      return res;
+    }
+
+    /* A cycle leaves the repeated path at the end */
+    String last = pathElements.get(pathElements.size() - 1);
+    boolean cycle = pathElements.indexOf(last) != pathElements.size() - 1;
+
+    aliasCache.resolved(pathElements.size() - 1, cycle);
+
+    if (!populateSharedCaches) {
+      return res;
+    }
+
+    if (cycle || ((res != null) && last.equals(res.getPath()))) {
+      aliasCache.put(pathElements.toArray(new String[pathElements.size()]),
+                     cycle);
+    }
+
+    return res;
+  }
+
+  /* Load any of the given collections not in the session cache. */
+  @SuppressWarnings("unchecked")
+  private void prefetch(final String[] paths) throws CalFacadeException {
+    List<String> missing = new ArrayList<String>();
+
+    for (String path: paths) {
+      if (!colCache.contains(path)) {
+        missing.add(path);
+      }
+    }
+
+    if (missing.size() < 2) {
+      // Not worth it
+      return;
+    }
+
+    HibSession sess = getSess();
+
+    StringBuilder sb = new StringBuilder();
+    sb.append("from ");
+    sb.append(BwCalendar.class.getName());
+    sb.append(" where path in (:paths)");
+
+    // XXX tombstone-schema
+    sb.append(" and (filterExpr is null or filterExpr <> :tsfilter)");
+
+    sess.createQuery(sb.toString());
+
+    sess.setParameterList("paths", missing);
+    sess.setString("tsfilter", BwCalendar.tombstonedFilter);
+
+    List<BwCalendar> cols = sess.getList();
+
+    if (cols == null) {
+      return;
+    }
+
+    for (BwCalendar c: cols) {
+      colCache.put(wrap(c));
+    }
   }
 
   private BwCalendar resolveAlias(final BwCalendar val,
@@ -300,6 +585,8 @@ public class CoreCalendars extends CalintfHelperHib
         return c;
       }
 
+      pathElements.add(c.getPath());
+
       return resolveAlias(c, true, freeBusy, pathElements);
     }
 
@@ -318,6 +605,7 @@ public class CoreCalendars extends CalintfHelperHib
 
     if (pathElements.contains(path)) {
       disableAlias(val);
+      pathElements.add(path);
       return null;
     }
 
@@ -358,6 +646,8 @@ public class CoreCalendars extends CalintfHelperHib
       val.updateLastmod();
       getSess().update(unwrap(val));
       //touchCalendar(val.getPath());
+      sharedCache.remove(val.getPath());
+      aliasCache.remove(val.getPath());
 
       notify(SysEvent.SysCode.COLLECTION_UPDATED, val);
 
@@ -379,6 +669,31 @@ public class CoreCalendars extends CalintfHelperHib
 
     HibSession sess = getSess();
 
+    /* See if another session has loaded it */
+    SharedCollectionCache.Entry sce = sharedCache.get(path);
+
+    if (sce != null) {
+      col = (BwCalendar)sess.get(BwCalendar.class, sce.id);
+
+      if ((col != null) && path.equals(col.getPath()) &&
+          !col.getTombstoned() &&
+          sce.token.equals(col.getLastmod().getTagValue())) {
+        colCache.sharedHit();
+
+        CalendarWrapper wcol = wrap(col);
+        colCache.put(wcol);
+
+        return wcol;
+      }
+
+      if (populateSharedCaches) {
+        /* A replica may just be behind */
+        sharedCache.stale(path);
+      }
+    }
+
+    colCache.load();
+
     sess.namedQuery("getCalendarByPath");
     sess.setString("path", path);
     sess.cacheableQuery();
@@ -409,6 +724,11 @@ public class CoreCalendars extends CalintfHelperHib
     CalendarWrapper wcol = wrap(col);
     if (wcol != null) {
       colCache.put(wcol);
+
+      if (populateSharedCaches &&
+          (col.getId() != CalFacadeDefs.unsavedItemKey)) {
+        sharedCache.put(path, col.getId(), col.getLastmod().getTagValue());
+      }
     }
 
     return wcol;
@@ -520,6 +840,8 @@ public class CoreCalendars extends CalintfHelperHib
   public void renameCalendar(BwCalendar val,
                              final String newName) throws CalFacadeException {
     colCache.flush();
+    sharedCache.removeTree(val.getPath());
+    aliasCache.removeTree(val.getPath());
 
     /* update will check access
      */
@@ -545,6 +867,7 @@ public class CoreCalendars extends CalintfHelperHib
 
     // Flush it again
     colCache.flush();
+    accessChanged();
   }
 
   /* (non-Javadoc)
@@ -554,6 +877,8 @@ public class CoreCalendars extends CalintfHelperHib
   public void moveCalendar(BwCalendar val,
                            final BwCalendar newParent) throws CalFacadeException {
     colCache.flush();
+    sharedCache.removeTree(val.getPath());
+    aliasCache.removeTree(val.getPath());
 
     /* check access - privbind on new parent privunbind on val?
      */
@@ -585,6 +910,7 @@ public class CoreCalendars extends CalintfHelperHib
 
     // Flush it again
     colCache.flush();
+    accessChanged();
   }
 
   /* (non-Javadoc)
@@ -592,33 +918,102 @@ public class CoreCalendars extends CalintfHelperHib
    */
   @Override
   public void touchCalendar(final String path) throws CalFacadeException {
+    touches++;
+
+    if (touched.contains(path)) {
+      // Already bumped in this transaction
+      return;
+    }
+
     BwCalendar col = getCollection(path);
     if (col == null) {
       return;
     }
 
-    // CALWRAPPER - if we're not cloning can we avoid this?
-    //val = (BwCalendar)getSess().merge(val);
+    /* Bump the in-memory copy so this session sees the change. The database
+     * is updated by flushTouched.
+     */
+    col.getLastmod().updateLastmod();
 
-    //val = (BwCalendar)getSess().merge(val);
+    touched.add(path);
+  }
 
-    BwLastMod lm = col.getLastmod();
-    lm.updateLastmod();
+  /** Write the lastmod for each collection touched in this transaction. Each
+   * gets one more bump so the token is later than anything changed in the
+   * transaction and greater than the last committed value.
+   *
+   * <p>Must be called before the commit.
+   *
+   * @return latest lastmod timestamp written or null for none
+   * @throws CalFacadeException
+   */
+  String flushTouched() throws CalFacadeException {
+    if (touched.isEmpty()) {
+      return null;
+    }
 
-    HibSession sess = getSess();
+    String latest = null;
 
-    StringBuilder sb = new StringBuilder();
+    try {
+      HibSession sess = getSess();
 
-    sb.append("update ");
-    sb.append(BwCollectionLastmod.class.getName());
-    sb.append(" set timestamp=:timestamp, sequence=:sequence where path=:path");
-    sess.createQuery(sb.toString());
+      /* So that collections created in this transaction have their row */
+      sess.flush();
 
-    sess.setString("timestamp", lm.getTimestamp());
-    sess.setInt("sequence", lm.getSequence());
-    sess.setString("path", path);
+      for (String path: touched) {
+        BwCalendar col = getCollection(path);
+        if (col == null) {
+          // Deleted in this transaction
+          continue;
+        }
 
-    sess.executeUpdate();
+        // CALWRAPPER - if we're not cloning can we avoid this?
+        //val = (BwCalendar)getSess().merge(val);
+
+        BwLastMod lm = col.getLastmod();
+        lm.updateLastmod();
+
+        sharedCache.remove(path);
+
+        StringBuilder sb = new StringBuilder();
+
+        sb.append("update ");
+        sb.append(BwCollectionLastmod.class.getName());
+        sb.append(" set timestamp=:timestamp, sequence=:sequence where path=:path");
+        sess.createQuery(sb.toString());
+
+        sess.setString("timestamp", lm.getTimestamp());
+        sess.setInt("sequence", lm.getSequence());
+        sess.setString("path", path);
+
+        if (sess.executeUpdate() == 0) {
+          /* Gone from under us - probably moved to another shard while we
+           * waited for the migrator's lock. Don't commit into thin air.
+           */
+          throw new CalFacadeException("Collection " + path +
+                                       " was moved or deleted");
+        }
+
+        if ((latest == null) || (latest.compareTo(lm.getTimestamp()) < 0)) {
+          latest = lm.getTimestamp();
+        }
+      }
+
+      if (debug) {
+        trace("Touched " + touched.size() + " collections for " +
+              touches + " touches");
+      }
+
+      return latest;
+    } finally {
+      touched.clear();
+    }
+  }
+
+  /** Discard pending touches - the transaction is being rolled back.
+   */
+  void clearTouched() {
+    touched.clear();
   }
 
   /* (non-Javadoc)
@@ -635,6 +1030,8 @@ public class CoreCalendars extends CalintfHelperHib
     val.updateLastmod();
     getSess().update(unwrap(val));
     //touchCalendar(val.getPath());
+    sharedCache.remove(val.getPath());
+    aliasCache.remove(val.getPath());
 
     notify(SysEvent.SysCode.COLLECTION_UPDATED, val);
 
@@ -655,12 +1052,14 @@ public class CoreCalendars extends CalintfHelperHib
 
       // Clear the cache - inheritance makes it difficult to be sure of the effects.
       colCache.clear();
+      accessChanged();
     } catch (CalFacadeException cfe) {
       sess.rollback();
       throw cfe;
     }
 
     sess.saveOrUpdate(unwrap(cal));
+    sharedCache.remove(cal.getPath());
 
     ((CalendarWrapper)cal).clearCurrentAccess(); // force recheck
     colCache.put((CalendarWrapper)cal);
@@ -678,8 +1077,10 @@ public class CoreCalendars extends CalintfHelperHib
 
     access.defaultAccess(cal, who);
     sess.saveOrUpdate(unwrap(cal));
+    sharedCache.remove(cal.getPath());
 
     colCache.flush();
+    accessChanged();
 
     notify(SysEvent.SysCode.COLLECTION_UPDATED, cal);
   }
@@ -743,6 +1144,9 @@ public class CoreCalendars extends CalintfHelperHib
     }
 
     colCache.remove(path);
+    sharedCache.removeTree(path);
+    aliasCache.removeTree(path);
+    accessChanged();
     touchCalendar(parentPath);
 
     notify(SysEvent.SysCode.COLLECTION_DELETED, val);
@@ -750,6 +1154,118 @@ public class CoreCalendars extends CalintfHelperHib
     return true;
   }
 
+  @Override
+  public int deleteCollectionTree(BwCalendar val) throws CalFacadeException {
+    colCache.flush();
+
+    HibSession sess = getSess();
+
+    access.checkAccess(val, privUnbind, false);
+
+    String parentPath = val.getColPath();
+    if (parentPath == null) {
+      throw new CalFacadeException(CalFacadeException.cannotDeleteCalendarRoot);
+    }
+
+    BwCalendar parent = getCalendar(parentPath, privWriteContent, false);
+    if (parent == null) {
+      throw new CalFacadeException(CalFacadeException.collectionNotFound);
+    }
+
+    val = getCalendar(val.getPath(), privUnbind, false);
+    if (val == null) {
+      throw new CalFacadeException(CalFacadeException.collectionNotFound);
+    }
+
+    String path = val.getPath();
+
+    /* Live descendants in path order - parents first. Those already
+     * tombstoned keep their existing tombstones.
+     */
+    List<BwCalendar> cols = new ArrayList<BwCalendar>();
+
+    for (BwCalendar col: getDescendants(val, 0, true)) {
+      if (!col.getTombstoned()) {
+        cols.add(col);
+      }
+    }
+
+    List<String> paths = new ArrayList<String>();
+    paths.add(path);
+
+    for (BwCalendar col: cols) {
+      paths.add(col.getPath());
+    }
+
+    /* Ensure none are in any (auth)user preferences */
+
+    sess.namedQuery("removeCalendarPrefForAll");
+    sess.setInt("id", val.getId());
+    sess.executeUpdate();
+
+    for (BwCalendar col: cols) {
+      sess.namedQuery("removeCalendarPrefForAll");
+      sess.setInt("id", col.getId());
+      sess.executeUpdate();
+    }
+
+    BwCalendar unwrapped = unwrap(val);
+
+    removeTombstoned(path);
+
+    unwrapped.tombstone();
+    sess.update(unwrapped);
+    sess.flush();
+
+    /* Everything below shares the stamp of the tombstoned root so a single
+     * sync-token comparison picks up the whole removal.
+     */
+    BwLastMod lm = unwrapped.getLastmod();
+    BwEventObj stamp = new BwEventObj();
+    stamp.setDtstamps();
+
+    int nevents = 0;
+
+    for (int i = 0; i < paths.size(); i += maxTokenQueryPaths) {
+      nevents += deleteEvents(paths.subList(i, Math.min(paths.size(),
+                                                        i + maxTokenQueryPaths)),
+                              stamp);
+    }
+
+    List<String> colPaths = paths.subList(1, paths.size());
+
+    for (int i = 0; i < colPaths.size(); i += maxTokenQueryPaths) {
+      tombstoneCollections(colPaths.subList(i,
+                                            Math.min(colPaths.size(),
+                                                     i + maxTokenQueryPaths)),
+                           lm);
+    }
+
+    /* The session copies are stale after the bulk updates */
+    for (BwCalendar col: cols) {
+      BwCalendar c = unwrap(col);
+
+      sess.evict(c.getLastmod());
+      sess.evict(c);
+    }
+
+    colCache.remove(path);
+    colCache.removeTree(path);
+    sharedCache.removeTree(path);
+    aliasCache.removeTree(path);
+    accessChanged();
+    touchCalendar(parentPath);
+
+    notify(SysEvent.SysCode.COLLECTION_DELETED, val);
+
+    if (debug) {
+      trace("Deleted tree " + path + ": " + cols.size() +
+            " collections, " + nevents + " events");
+    }
+
+    return nevents;
+  }
+
   /* (non-Javadoc)
    * @see org.bedework.calcorei.CoreCalendarsI#isEmpty(org.bedework.calfacade.BwCalendar)
    */
@@ -943,27 +1459,13 @@ public class CoreCalendars extends CalintfHelperHib
     String fpath = fixPath(path);
     BwCalendar thisCol = getCalendar(fpath, privAny, false);
 
-    HibSession sess = getSess();
-
-    StringBuilder sb = new StringBuilder();
-
-    sb.append("from ");
-    sb.append(BwCalendar.class.getName());
-    sb.append(" col ");
-    sb.append("where col.path like :path ");
-
-    sess.createQuery(sb.toString());
-
-    sess.setString("path", fpath + "/");
-
-    @SuppressWarnings("unchecked")
-    List<BwCalendar> cols = sess.getList();
+    /* Deleted collections are included - they change the token */
+    List<BwCalendar> cols = getDescendants(thisCol, 0, true);
 
     String token = thisCol.getLastmod().getTagValue();
 
     for (BwCalendar col: cols) {
-      BwCalendar wcol = wrap(col);
-      CurrentAccess ca = access.checkAccess(wcol, privAny, true);
+      CurrentAccess ca = access.checkAccess(col, privAny, true);
       if (!ca.getAccessAllowed()) {
         continue;
       }
@@ -1029,6 +1531,12 @@ public class CoreCalendars extends CalintfHelperHib
    *                   Private methods
    * ==================================================================== */
 
+  /* Something changed which may affect inherited access */
+  private void accessChanged() {
+    AclPathCache.getCache().invalidate();
+    accessChanged = true;
+  }
+
   private void removeTombstoned(final String path) throws CalFacadeException {
     HibSession sess = getSess();
 
@@ -1251,16 +1759,122 @@ public class CoreCalendars extends CalintfHelperHib
     }
   }
 
+  /* Tombstone all events in the given collections - at most
+   * maxTokenQueryPaths of them. Everything is done with bulk statements:
+   * recurrence instances and overrides go, the events themselves are
+   * tombstoned with the dtstamp, lastmod and ctoken of stamp so sync clients
+   * see the removals. Annotations elsewhere which refer to these events go
+   * as well.
+   */
+  private int deleteEvents(final List<String> paths,
+                           final BwEventObj stamp) throws CalFacadeException {
+    HibSession sess = getSess();
+
+    /* Instances of the masters and of any overrides */
+    StringBuilder sb = new StringBuilder();
+
+    sb.append("delete from ");
+    sb.append(BwRecurrenceInstance.class.getName());
+    sb.append(" where master in (");
+    selectEvents(sb, BwEventObj.class);
+    sb.append(") or override in (");
+    selectEvents(sb, BwEventAnnotation.class);
+    sb.append(")");
+
+    sess.createQuery(sb.toString());
+    sess.setParameterList("paths", paths);
+    sess.executeUpdate();
+
+    /* Annotations in these collections or referring to events in them */
+    sb = new StringBuilder();
+
+    sb.append("delete from ");
+    sb.append(BwEventAnnotation.class.getName());
+    sb.append(" where colPath in (:paths) or target in (");
+    selectEvents(sb, BwEventObj.class);
+    sb.append(") or master in (");
+    selectEvents(sb, BwEventObj.class);
+    sb.append(")");
+
+    sess.createQuery(sb.toString());
+    sess.setParameterList("paths", paths);
+    sess.executeUpdate();
+
+    sb = new StringBuilder();
+
+    sb.append("update ");
+    sb.append(BwEventObj.class.getName());
+    sb.append(" set tombstoned = true, recurring = false,");
+    sb.append(" dtstamp=:dtstamp, lastmod=:lastmod, ctoken=:ctoken");
+    sb.append(" where tombstoned = false and colPath in (:paths)");
+
+    sess.createQuery(sb.toString());
+    sess.setString("dtstamp", stamp.getDtstamp());
+    sess.setString("lastmod", stamp.getLastmod());
+    sess.setString("ctoken", stamp.getCtoken());
+    sess.setParameterList("paths", paths);
+
+    return sess.executeUpdate();
+  }
+
+  private void selectEvents(final StringBuilder sb,
+                            final Class<?> cl) {
+    sb.append("select ev from ");
+    sb.append(cl.getName());
+    sb.append(" ev where ev.colPath in (:paths)");
+  }
+
+  /* Tombstone the given collections - at most maxTokenQueryPaths of them -
+   * as BwCalendar.tombstone does, giving them all the lastmod lm.
+   */
+  private void tombstoneCollections(final List<String> paths,
+                                    final BwLastMod lm) throws CalFacadeException {
+    HibSession sess = getSess();
+    StringBuilder sb = new StringBuilder();
+
+    sb.append("update ");
+    sb.append(BwCollectionLastmod.class.getName());
+    sb.append(" set path=concat(path, :suffix),");
+    sb.append(" timestamp=:timestamp, sequence=:sequence");
+    sb.append(" where path in (:paths)");
+
+    sess.createQuery(sb.toString());
+    sess.setString("suffix", BwCalendar.tombstonedSuffix);
+    sess.setString("timestamp", lm.getTimestamp());
+    sess.setInt("sequence", lm.getSequence());
+    sess.setParameterList("paths", paths);
+    sess.executeUpdate();
+
+    sb = new StringBuilder();
+
+    sb.append("update ");
+    sb.append(BwCalendar.class.getName());
+    // XXX tombstone-schema
+    sb.append(" set path=concat(path, :suffix), filterExpr=:tsfilter");
+    sb.append(" where path in (:paths)");
+
+    sess.createQuery(sb.toString());
+    sess.setString("suffix", BwCalendar.tombstonedSuffix);
+    sess.setString("tsfilter", BwCalendar.tombstonedFilter);
+    sess.setParameterList("paths", paths);
+    sess.executeUpdate();
+  }
+
+  /* Set the new path for val and rewrite the paths of everything below it -
+   * see PathRewriter.
+   */
   private void updatePaths(BwCalendar val,
                            final BwCalendar newParent) throws CalFacadeException {
-    Collection<BwCalendar> children = getChildren(val);
+    HibSession sess = getSess();
 
     String oldColPath = val.getColPath();
+    String oldPath = val.getPath();
 
     val = unwrap(val);
 
     String ppath = newParent.getPath();
-    val.setPath(ppath + "/" + val.getName());
+    String newPath = ppath + "/" + val.getName();
+    val.setPath(newPath);
     val.setColPath(ppath);
 
     val.getLastmod().setPath(val.getPath());
@@ -1269,10 +1883,37 @@ public class CoreCalendars extends CalintfHelperHib
     notifyMove(SysEvent.SysCode.COLLECTION_MOVED,
                val.getName(), oldColPath, val);
 
-    //updateCalendar(val);
+    PathRewriter rewriter = new PathRewriter(sess);
 
-    for (BwCalendar ch: children) {
-      updatePaths(ch, val);
+    List moved = rewriter.rewrite(oldPath, newPath, val.getLastmod());
+
+    /* Any descendants we have in the session are now stale */
+    for (CalendarWrapper w: colCache.removeTree(oldPath)) {
+      BwCalendar c = unwrap(w);
+
+      sess.evict(c.getLastmod());
+      sess.evict(c);
+    }
+
+    if (debug) {
+      trace("Moved " + oldPath + " to " + newPath + ": " +
+            rewriter.getCollections() + " collections, " +
+            rewriter.getEntities() + " entities");
+    }
+
+    if (moved == null) {
+      return;
+    }
+
+    int plen = oldPath.length();
+
+    for (Object o: moved) {
+      Object[] fs = (Object[])o;
+      String colPath = (String)fs[1];
+
+      notifyMove(SysEvent.SysCode.COLLECTION_MOVED,
+                 (String)fs[0], colPath,
+                 newPath + colPath.substring(plen));
     }
   }
 
@@ -1345,15 +1986,214 @@ public class CoreCalendars extends CalintfHelperHib
                           final String name,
                           final String oldColPath,
                           final BwCalendar val) throws CalFacadeException {
+    notifyMove(code, name, oldColPath, val.getColPath());
+  }
+
+  private void notifyMove(final SysEvent.SysCode code,
+                          final String name,
+                          final String oldColPath,
+                          final String newColPath) throws CalFacadeException {
     try {
       postNotification(
          SysEvent.makeCollectionMoveEvent(code, name, oldColPath,
-                                          val.getColPath()));
+                                          newColPath));
     } catch (NotificationException ne) {
       throw new CalFacadeException(ne);
     }
   }
 
+  private static final Comparator<BwCalendar> pathOrder =
+    new Comparator<BwCalendar>() {
+      public int compare(final BwCalendar o1, final BwCalendar o2) {
+        return o1.getPath().compareTo(o2.getPath());
+      }
+    };
+
+  /* Return all collections below col, ordered by path so that parents come
+   * before their children. The paths are materialized so the subtree is a
+   * prefix match on the indexed path column - a couple of queries however
+   * deep the tree is.
+   *
+   * No access checks performed
+   */
+  @SuppressWarnings("unchecked")
+  private List<BwCalendar> getDescendants(final BwCalendar col,
+                                          final int maxDepth,
+                                          final boolean includeTombstoned) throws CalFacadeException {
+    List<BwCalendar> wch = new ArrayList<BwCalendar>();
+
+    if (col == null) {
+      return wch;
+    }
+
+    HibSession sess = getSess();
+
+    /* like treats "_" as a wildcard so we check the prefix again below */
+    String prefix = col.getPath() + "/";
+    int maxPathDepth = 0;
+
+    /* There is no depth column. We limit the depth in the query with a
+     * pattern matching paths with more separators than allowed.
+     */
+    String deeper = null;
+
+    if (maxDepth > 0) {
+      maxPathDepth = CollectionTree.depth(col.getPath()) + maxDepth;
+
+      StringBuilder dsb = new StringBuilder(prefix);
+
+      for (int i = 0; i < maxDepth; i++) {
+        dsb.append("%/");
+      }
+
+      dsb.append("%");
+      deeper = dsb.toString();
+    }
+
+    StringBuilder sb = new StringBuilder();
+    List<BwCalendar> ch = new ArrayList<BwCalendar>();
+
+    if (sessionless) {
+      sb.append("from ");
+      sb.append(BwCalendar.class.getName());
+      sb.append(" col where col.path like :prefix");
+
+      if (deeper != null) {
+        sb.append(" and col.path not like :deeper");
+      }
+
+      if (!includeTombstoned) {
+        // XXX tombstone-schema
+        sb.append(" and (col.filterExpr is null or col.filterExpr <> :tsfilter)");
+      }
+
+      sess.createQuery(sb.toString());
+
+      sess.setString("prefix", prefix + "%");
+
+      if (deeper != null) {
+        sess.setString("deeper", deeper);
+      }
+
+      if (!includeTombstoned) {
+        sess.setString("tsfilter", BwCalendar.tombstonedFilter);
+      }
+
+      List<BwCalendar> l = sess.getList();
+
+      if (l != null) {
+        for (BwCalendar c: l) {
+          if (inSubtree(c.getPath(), prefix, maxPathDepth)) {
+            ch.add(c);
+          }
+        }
+      }
+    } else {
+      /* As for getChildren - fetch the lastmod and paths then fetch those we
+       * haven't got in the cache.
+       */
+
+      sb.append("select lm.path, lm.timestamp, lm.sequence from ");
+      sb.append(BwCollectionLastmod.class.getName());
+      sb.append(" lm, ");
+      sb.append(BwCalendar.class.getName());
+      sb.append(" col where col.path like :prefix and lm.path=col.path");
+
+      if (deeper != null) {
+        sb.append(" and col.path not like :deeper");
+      }
+
+      if (!includeTombstoned) {
+        // XXX tombstone-schema
+        sb.append(" and (col.filterExpr is null or col.filterExpr <> :tsfilter)");
+      }
+
+      sess.createQuery(sb.toString());
+
+      sess.setString("prefix", prefix + "%");
+
+      if (deeper != null) {
+        sess.setString("deeper", deeper);
+      }
+
+      if (!includeTombstoned) {
+        sess.setString("tsfilter", BwCalendar.tombstonedFilter);
+      }
+
+      List chfields = sess.getList();
+
+      List<String> paths = new ArrayList<String>();
+
+      if (chfields != null) {
+        for (Object o: chfields) {
+          Object[] fs = (Object[])o;
+
+          String path = (String)fs[0];
+
+          if (!inSubtree(path, prefix, maxPathDepth)) {
+            continue;
+          }
+
+          String token = BwLastMod.getTagValue((String)fs[1], (Integer)fs[2]);
+
+          BwCalendar c = colCache.get(path, token);
+
+          if (c != null) {
+            wch.add(c);
+            continue;
+          }
+
+          paths.add(path);
+        }
+      }
+
+      for (int i = 0; i < paths.size(); i += maxTokenQueryPaths) {
+        sb = new StringBuilder();
+        sb.append("from ");
+        sb.append(BwCalendar.class.getName());
+        sb.append(" where path in (:paths)");
+
+        sess.createQuery(sb.toString());
+
+        sess.setParameterList("paths",
+                              paths.subList(i, Math.min(paths.size(),
+                                                        i + maxTokenQueryPaths)));
+
+        List<BwCalendar> l = sess.getList();
+
+        if (l != null) {
+          ch.addAll(l);
+        }
+      }
+    }
+
+    for (BwCalendar c: ch) {
+      CalendarWrapper wc = wrap(c);
+
+      /* Tombstoned collections must never be found through the cache */
+      if (!c.getTombstoned()) {
+        colCache.put(wc);
+      }
+
+      wch.add(wc);
+    }
+
+    Collections.sort(wch, pathOrder);
+
+    return wch;
+  }
+
+  private boolean inSubtree(final String path,
+                            final String prefix,
+                            final int maxPathDepth) {
+    if (!path.startsWith(prefix)) {
+      return false;
+    }
+
+    return (maxPathDepth <= 0) ||
+           (CollectionTree.depth(path) <= maxPathDepth);
+  }
+
   /* No access checks performed */
   @SuppressWarnings("unchecked")
   private Collection<BwCalendar> getChildren(final BwCalendar col) throws CalFacadeException {
@@ -18,6 +18,7 @@
 */
 package org.bedework.calcore.hibernate;
 
+import org.bedework.calcore.AccessPrefilter;
 import org.bedework.calcore.AccessUtil;
 import org.bedework.calcore.hibernate.FieldNamesMap.FieldnamesList;
 import org.bedework.calcorei.CoreEventInfo;
@@ -49,6 +50,8 @@ import org.bedework.icalendar.RecurUtil.RecurPeriods;
 import org.bedework.sysevents.NotificationException;
 import org.bedework.sysevents.events.StatsEvent;
 import org.bedework.sysevents.events.SysEvent;
+import org.bedework.tracing.Span;
+import org.bedework.tracing.Tracer;
 
 import edu.rpi.cmt.access.Acl.CurrentAccess;
 import edu.rpi.cmt.calendar.IcalDefs;
@@ -63,6 +66,7 @@ import net.fortuna.ical4j.model.TimeZone;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -193,6 +197,9 @@ import java.util.TreeSet;
  * @author Mike Douglass   douglm  - rpi.edu
  */
 public class CoreEvents extends CalintfHelperHib implements CoreEventsI {
+  /* For batch access checks */
+  private AccessUtil accessUtil;
+
   /** Constructor
    *
    * @param chcb
@@ -207,6 +214,8 @@ public class CoreEvents extends CalintfHelperHib implements CoreEventsI {
                     final boolean sessionless) {
     super(chcb);
     super.init(cb, access, currentMode, sessionless);
+
+    accessUtil = access;
   }
 
   /* (non-Javadoc)
@@ -384,8 +393,32 @@ public class CoreEvents extends CalintfHelperHib implements CoreEventsI {
                                              final FilterBase filter,
                                              final BwDateTime startDate, final BwDateTime endDate,
                                              final List<String> retrieveList,
-                                             RecurringRetrievalMode recurRetrieval,
+                                             final RecurringRetrievalMode recurRetrieval,
                                              final boolean freeBusy) throws CalFacadeException {
+    HibSession sess = getSess();
+    AdmissionController ac = AdmissionController.getController();
+
+    boolean admitted = ac.admit(AdmissionController.eventsClass, sess);
+    Span span = Tracer.start("CoreEvents.getEvents");
+
+    try {
+      return doGetEvents(calendars, filter, startDate, endDate,
+                         retrieveList, recurRetrieval, freeBusy);
+    } finally {
+      span.end();
+
+      if (admitted) {
+        ac.release(sess);
+      }
+    }
+  }
+
+  private Collection<CoreEventInfo> doGetEvents(final Collection<BwCalendar> calendars,
+                                                final FilterBase filter,
+                                                final BwDateTime startDate, final BwDateTime endDate,
+                                                final List<String> retrieveList,
+                                                RecurringRetrievalMode recurRetrieval,
+                                                final boolean freeBusy) throws CalFacadeException {
     /* Ensure dates are limited explicitly or implicitly */
     recurRetrieval = defaultRecurringRetrieval(recurRetrieval,
                                                startDate, endDate);
@@ -492,9 +525,15 @@ public class CoreEvents extends CalintfHelperHib implements CoreEventsI {
                 null, // uids
                 getEvents);
 
-    Collection<CoreEventInfo> ceis = postGetEvents(eqr.es, desiredAccess,
-                                                   returnResultAlways,
-                                                   null);
+    eqr.fetched = eqr.es.size();
+
+    Span span = Tracer.start("postGetEvents");
+    Collection<CoreEventInfo> ceis;
+    try {
+      ceis = postGetEvents(eqr.es, desiredAccess, returnResultAlways, null);
+    } finally {
+      span.end();
+    }
 
     /* Now get the annotations - these are not overrides */
     eventsQuery(eqr, startDate, endDate,
@@ -506,14 +545,39 @@ public class CoreEvents extends CalintfHelperHib implements CoreEventsI {
                 getAnnotations);
 
     if (!eqr.es.isEmpty()) {
-      ceis.addAll(postGetEvents(eqr.es, desiredAccess, returnResultAlways,
-                                eqr.flt));
+      eqr.fetched += eqr.es.size();
+
+      span = Tracer.start("postGetEvents");
+      try {
+        ceis.addAll(postGetEvents(eqr.es, desiredAccess, returnResultAlways,
+                                  eqr.flt));
+      } finally {
+        span.end();
+      }
     }
 
-    ceis = getRecurrences(eqr, ceis,
-                          startDate, endDate,
-                          retrieveListFields, recurRetrieval, desiredAccess,
-                          freeBusy);
+    int denied = 0;
+    if (eqr.deniedInLists != null) {
+      denied = eqr.deniedColPaths.size();
+    }
+
+    AccessPrefilter.getPrefilter().query(denied, eqr.fetched, ceis.size());
+
+    if (debug) {
+      trace("getEvents: fetched " + eqr.fetched +
+            " returned " + ceis.size() +
+            " (" + denied + " collections pre-filtered)");
+    }
+
+    span = Tracer.start("getRecurrences");
+    try {
+      ceis = getRecurrences(eqr, ceis,
+                            startDate, endDate,
+                            retrieveListFields, recurRetrieval, desiredAccess,
+                            freeBusy);
+    } finally {
+      span.end();
+    }
 
     return buildVavail(ceis);
   }
@@ -1431,6 +1495,7 @@ public class CoreEvents extends CalintfHelperHib implements CoreEventsI {
   }
 
   @Override
+  @SuppressWarnings("unchecked")
   public Set<CoreEventInfo> getSynchEvents(final String path,
                                            final String token) throws CalFacadeException {
     HibSession sess = getSess();
@@ -1467,8 +1532,18 @@ public class CoreEvents extends CalintfHelperHib implements CoreEventsI {
       sess.setString("token", token);
     }
 
-    @SuppressWarnings("unchecked")
-    List<BwEvent> evs = sess.getList();
+    AdmissionController ac = AdmissionController.getController();
+    boolean admitted = ac.admit(AdmissionController.syncClass, sess);
+
+    List<BwEvent> evs;
+
+    try {
+      evs = sess.getList();
+    } finally {
+      if (admitted) {
+        ac.release(sess);
+      }
+    }
 
     if (debug) {
       trace(" ----------- number evs = " + evs.size());
@@ -2724,6 +2799,19 @@ public class CoreEvents extends CalintfHelperHib implements CoreEventsI {
     /* This is set to the calendars we should search. */
     Collection<String> colPaths;
 
+    /* Calendars in which entities with no acl of their own are not
+     * accessible. Null if not yet determined.
+     */
+    Collection<String> deniedColPaths;
+
+    /* deniedColPaths split into in lists. Null if the pre-filter is not
+     * applied.
+     */
+    List<List<String>> deniedInLists;
+
+    /* Rows fetched for postGetEvents */
+    int fetched;
+
     void reset() {
       es = null;
       empty = true;
@@ -2915,6 +3003,7 @@ public class CoreEvents extends CalintfHelperHib implements CoreEventsI {
     }
 
     boolean setUser = false;
+    boolean prefilter = false;
 
     eqr.flt.addWhereFilters();
 
@@ -2937,6 +3026,39 @@ public class CoreEvents extends CalintfHelperHib implements CoreEventsI {
         setUser = false;
 
         whereClause.append(") ");
+
+        if ((getWhat == getEvents) || (getWhat == getAnnotations)) {
+          prefilter = accessPrefilter(eqr, freebusy);
+        }
+
+        if (prefilter) {
+          /* Exclude those we know we can't access */
+          whereClause.and();
+          whereClause.append(" ((");
+
+          for (int i = 0; i < eqr.deniedInLists.size(); i++) {
+            if (i > 0) {
+              whereClause.append(" and ");
+            }
+
+            whereClause.append(qevNameMstr);
+            whereClause.append(".colPath not in (:aclDeniedCols");
+            whereClause.append(i);
+            whereClause.append(")");
+          }
+
+          whereClause.append(") or ");
+          whereClause.append(qevNameMstr);
+          whereClause.append(".access is not null");
+
+          if (accessUtil.getAuthUser() != null) {
+            whereClause.append(" or ");
+            whereClause.append(qevNameMstr);
+            whereClause.append(".ownerHref = :aclPrincipal");
+          }
+
+          whereClause.append(") ");
+        }
       } else {
         // No valid calendars or user to limit search. Disallow
         eqr.es = new TreeSet();
@@ -2995,6 +3117,17 @@ public class CoreEvents extends CalintfHelperHib implements CoreEventsI {
       selectClause.doCalendarEntities(setUser, getUser(), eqr);
     }
 
+    if (prefilter) {
+      for (int i = 0; i < eqr.deniedInLists.size(); i++) {
+        sess.setParameterList("aclDeniedCols" + i, eqr.deniedInLists.get(i));
+      }
+
+      if (accessUtil.getAuthUser() != null) {
+        sess.setString("aclPrincipal",
+                       accessUtil.getAuthUser().getPrincipalRef());
+      }
+    }
+
     eqr.flt.parPass(sess);
 
     //if (debug) {
@@ -3022,6 +3155,49 @@ public class CoreEvents extends CalintfHelperHib implements CoreEventsI {
     }
   }
 
+  /* Return true if we should add the access pre-filter term. */
+  private boolean accessPrefilter(final EventsQueryResult eqr,
+                                  final boolean freebusy) throws CalFacadeException {
+    if (!AccessPrefilter.getPrefilter().getEnabled()) {
+      return false;
+    }
+
+    if (eqr.deniedColPaths == null) {
+      int desiredAccess = privRead;
+      if (freebusy) {
+        desiredAccess = privReadFreeBusy;
+      }
+
+      eqr.deniedColPaths = accessUtil.getDeniedCollections(eqr.colPaths,
+                                                           desiredAccess);
+
+      if (debug && !eqr.deniedColPaths.isEmpty()) {
+        trace("Access pre-filter excludes " + eqr.deniedColPaths);
+      }
+    }
+
+    if (eqr.deniedColPaths.isEmpty()) {
+      return false;
+    }
+
+    if (eqr.deniedInLists == null) {
+      eqr.deniedInLists = AccessPrefilter.getPrefilter().inLists(eqr.deniedColPaths);
+
+      if (eqr.deniedInLists == null) {
+        /* Too many - rely on the access check after the fetch */
+        eqr.deniedColPaths = Collections.emptyList();
+
+        if (debug) {
+          trace("Access pre-filter skipped - too many collections");
+        }
+
+        return false;
+      }
+    }
+
+    return true;
+  }
+
   private BwEvent makeEvent(final FieldnamesList retrieveListFields,
                             final Object[] evflds,
                             final int getWhat) throws CalFacadeException {
@@ -3299,12 +3475,20 @@ public class CoreEvents extends CalintfHelperHib implements CoreEventsI {
           throws CalFacadeException {
     TreeSet<CoreEventInfo> outevs = new TreeSet<CoreEventInfo>();
 
+    List<BwEvent> toCheck = new ArrayList<BwEvent>(evs.size());
+
     Iterator it = evs.iterator();
 
     while (it.hasNext()) {
-      BwEvent ev = (BwEvent)it.next();
+      toCheck.add((BwEvent)it.next());
+    }
 
-      CoreEventInfo cei = postGetEvent(ev, desiredAccess, nullForNoAccess, f);
+    /* Check access for all of them at once - most will share a collection */
+    CurrentAccess[] cas = accessUtil.checkAccess(toCheck, desiredAccess,
+                                                 nullForNoAccess);
+
+    for (int i = 0; i < cas.length; i++) {
+      CoreEventInfo cei = postGetEvent(toCheck.get(i), cas[i], f);
 
       if (cei == null) {
         continue;
@@ -3379,7 +3563,14 @@ public class CoreEvents extends CalintfHelperHib implements CoreEventsI {
 
     CurrentAccess ca = access.checkAccess(ev, desiredAccess, nullForNoAccess);
 
-    if (!ca.getAccessAllowed()) {
+    return postGetEvent(ev, ca, f);
+  }
+
+  /* Post processing of event for which access has been checked.
+   */
+  private CoreEventInfo postGetEvent(BwEvent ev, final CurrentAccess ca,
+                                     final Filters f) throws CalFacadeException {
+    if ((ev == null) || !ca.getAccessAllowed()) {
       return null;
     }
 
@@ -0,0 +1,486 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+        
+    http://www.apache.org/licenses/LICENSE-2.0
+        
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.calcore.hibernate;
+
+import org.hibernate.stat.CollectionStatistics;
+import org.hibernate.stat.EntityStatistics;
+import org.hibernate.stat.SecondLevelCacheStatistics;
+import org.hibernate.stat.Statistics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Structured form of the hibernate statistics and our own query timings,
+ * for monitoring systems rather than display.
+ *
+ * <p>Metrics are grouped in families with a name, type and help text. Each
+ * family has one or more samples distinguished by labels. The text format is
+ * the plain text exposition format used by Prometheus and others.
+ *
+ * @author douglm
+ */
+public class DbMetrics {
+  /** Type of a metric family */
+  public enum MetricType {
+    /** Only goes up - except on restart or reset */
+    counter,
+
+    /** Current value */
+    gauge,
+
+    /** Quantiles with a sum and count */
+    summary
+  }
+
+  /** One value in a family
+   */
+  public static class Sample {
+    private final String suffix;
+    private final String labels;
+    private final double value;
+
+    Sample(final String suffix,
+           final String labels,
+           final double value) {
+      this.suffix = suffix;
+      this.labels = labels;
+      this.value = value;
+    }
+
+    /**
+     * @return appended to the family name - usually empty
+     */
+    public String getSuffix() {
+      return suffix;
+    }
+
+    /**
+     * @return labels in exposition form, e.g. {region="x"} or empty
+     */
+    public String getLabels() {
+      return labels;
+    }
+
+    /**
+     * @return the value
+     */
+    public double getValue() {
+      return value;
+    }
+  }
+
+  /** A named, typed set of samples
+   */
+  public static class Family {
+    private final String name;
+    private final MetricType type;
+    private final String help;
+
+    private final List<Sample> samples = new ArrayList<Sample>();
+
+    Family(final String name,
+           final MetricType type,
+           final String help) {
+      this.name = name;
+      this.type = type;
+      this.help = help;
+    }
+
+    /**
+     * @return name of the family
+     */
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * @return type of the family
+     */
+    public MetricType getType() {
+      return type;
+    }
+
+    /**
+     * @return help text
+     */
+    public String getHelp() {
+      return help;
+    }
+
+    /**
+     * @return the samples
+     */
+    public List<Sample> getSamples() {
+      return Collections.unmodifiableList(samples);
+    }
+
+    void add(final double val) {
+      samples.add(new Sample("", "", val));
+    }
+
+    void add(final String labelName,
+             final String labelVal,
+             final double val) {
+      samples.add(new Sample("", labels(labelName, labelVal), val));
+    }
+  }
+
+  /** Number of query shapes given as summaries */
+  private static final int maxQueryShapes = 50;
+
+  private static final double[] quantiles = {0.5, 0.95, 0.99};
+
+  private DbMetrics() {
+  }
+
+  /**
+   * @param dbStats   may be null
+   * @return the current metrics
+   */
+  public static List<Family> getMetrics(final Statistics dbStats) {
+    List<Family> fs = new ArrayList<Family>();
+
+    if (dbStats != null) {
+      hibernateMetrics(fs, dbStats);
+    }
+
+    queryMetrics(fs);
+    collectionCacheMetrics(fs);
+
+    return fs;
+  }
+
+  /**
+   * @param fs  metrics
+   * @return metrics in the text exposition format
+   */
+  public static String format(final List<Family> fs) {
+    return format(fs, null);
+  }
+
+  /** Format the metrics giving counters and summary sums and counts as the
+   * change since the previous values. Gauges and quantiles are given as is.
+   * The previous values are replaced with the current ones.
+   *
+   * @param fs       metrics
+   * @param previous name and labels to value from last time - updated
+   * @return metrics in the text exposition format
+   */
+  public static String format(final List<Family> fs,
+                              final Map<String, Double> previous) {
+    StringBuilder sb = new StringBuilder();
+    Map<String, Double> current = null;
+
+    if (previous != null) {
+      current = new HashMap<String, Double>();
+    }
+
+    for (Family f: fs) {
+      if (f.getSamples().isEmpty()) {
+        continue;
+      }
+
+      sb.append("# HELP ");
+      sb.append(f.getName());
+      sb.append(" ");
+      sb.append(f.getHelp());
+      sb.append("\n# TYPE ");
+      sb.append(f.getName());
+      sb.append(" ");
+      sb.append(f.getType().name());
+      sb.append("\n");
+
+      for (Sample s: f.getSamples()) {
+        String key = f.getName() + s.getSuffix() + s.getLabels();
+        double val = s.getValue();
+
+        if ((current != null) && isCumulative(f, s)) {
+          current.put(key, val);
+
+          Double prev = previous.get(key);
+
+          /* A drop means the statistics were cleared */
+          if ((prev != null) && (prev <= val)) {
+            val -= prev;
+          }
+        }
+
+        sb.append(key);
+        sb.append(" ");
+        sb.append(formatVal(val));
+        sb.append("\n");
+      }
+    }
+
+    if (previous != null) {
+      previous.clear();
+      previous.putAll(current);
+    }
+
+    return sb.toString();
+  }
+
+  private static boolean isCumulative(final Family f,
+                                      final Sample s) {
+    if (f.getType() == MetricType.counter) {
+      return true;
+    }
+
+    return (f.getType() == MetricType.summary) &&
+           (s.getSuffix().length() > 0);
+  }
+
+  private static void hibernateMetrics(final List<Family> fs,
+                                       final Statistics dbStats) {
+    counter(fs, "bedework_db_sessions_opened_total",
+            "Sessions opened", dbStats.getSessionOpenCount());
+    counter(fs, "bedework_db_sessions_closed_total",
+            "Sessions closed", dbStats.getSessionCloseCount());
+    gauge(fs, "bedework_db_sessions_open",
+          "Sessions currently open",
+          dbStats.getSessionOpenCount() - dbStats.getSessionCloseCount());
+    counter(fs, "bedework_db_connections_total",
+            "Connection requests", dbStats.getConnectCount());
+    counter(fs, "bedework_db_flushes_total",
+            "Session flushes", dbStats.getFlushCount());
+    counter(fs, "bedework_db_transactions_total",
+            "Transactions", dbStats.getTransactionCount());
+    counter(fs, "bedework_db_transactions_successful_total",
+            "Successful transactions",
+            dbStats.getSuccessfulTransactionCount());
+    counter(fs, "bedework_db_optimistic_failures_total",
+            "Stale state failures", dbStats.getOptimisticFailureCount());
+
+    counter(fs, "bedework_db_queries_total",
+            "Queries executed", dbStats.getQueryExecutionCount());
+    gauge(fs, "bedework_db_query_max_millis",
+          "Longest query execution", dbStats.getQueryExecutionMaxTime());
+    counter(fs, "bedework_db_query_cache_hits_total",
+            "Query cache hits", dbStats.getQueryCacheHitCount());
+    counter(fs, "bedework_db_query_cache_misses_total",
+            "Query cache misses", dbStats.getQueryCacheMissCount());
+    counter(fs, "bedework_db_query_cache_puts_total",
+            "Query cache puts", dbStats.getQueryCachePutCount());
+
+    Family hits = new Family("bedework_db_cache_hits_total",
+                             MetricType.counter,
+                             "Second level cache hits by region");
+    Family misses = new Family("bedework_db_cache_misses_total",
+                               MetricType.counter,
+                               "Second level cache misses by region");
+    Family puts = new Family("bedework_db_cache_puts_total",
+                             MetricType.counter,
+                             "Second level cache puts by region");
+    Family elements = new Family("bedework_db_cache_elements",
+                                 MetricType.gauge,
+                                 "Second level cache elements in memory by region");
+    Family size = new Family("bedework_db_cache_bytes",
+                             MetricType.gauge,
+                             "Second level cache size in memory by region");
+
+    for (String r: dbStats.getSecondLevelCacheRegionNames()) {
+      SecondLevelCacheStatistics sls = dbStats.getSecondLevelCacheStatistics(r);
+
+      if (sls == null) {
+        continue;
+      }
+
+      hits.add("region", r, sls.getHitCount());
+      misses.add("region", r, sls.getMissCount());
+      puts.add("region", r, sls.getPutCount());
+      elements.add("region", r, sls.getElementCountInMemory());
+      size.add("region", r, sls.getSizeInMemory());
+    }
+
+    fs.add(hits);
+    fs.add(misses);
+    fs.add(puts);
+    fs.add(elements);
+    fs.add(size);
+
+    Family loads = new Family("bedework_db_entity_loads_total",
+                              MetricType.counter,
+                              "Entities loaded by entity");
+    Family fetches = new Family("bedework_db_entity_fetches_total",
+                                MetricType.counter,
+                                "Entities fetched by entity");
+    Family inserts = new Family("bedework_db_entity_inserts_total",
+                                MetricType.counter,
+                                "Entities inserted by entity");
+    Family updates = new Family("bedework_db_entity_updates_total",
+                                MetricType.counter,
+                                "Entities updated by entity");
+    Family deletes = new Family("bedework_db_entity_deletes_total",
+                                MetricType.counter,
+                                "Entities deleted by entity");
+
+    for (String e: dbStats.getEntityNames()) {
+      EntityStatistics es = dbStats.getEntityStatistics(e);
+
+      if (es == null) {
+        continue;
+      }
+
+      loads.add("entity", e, es.getLoadCount());
+      fetches.add("entity", e, es.getFetchCount());
+      inserts.add("entity", e, es.getInsertCount());
+      updates.add("entity", e, es.getUpdateCount());
+      deletes.add("entity", e, es.getDeleteCount());
+    }
+
+    fs.add(loads);
+    fs.add(fetches);
+    fs.add(inserts);
+    fs.add(updates);
+    fs.add(deletes);
+
+    Family cloads = new Family("bedework_db_collection_loads_total",
+                               MetricType.counter,
+                               "Collections loaded by role");
+    Family cfetches = new Family("bedework_db_collection_fetches_total",
+                                 MetricType.counter,
+                                 "Collections fetched by role");
+
+    for (String role: dbStats.getCollectionRoleNames()) {
+      CollectionStatistics cs = dbStats.getCollectionStatistics(role);
+
+      if (cs == null) {
+        continue;
+      }
+
+      cloads.add("role", role, cs.getLoadCount());
+      cfetches.add("role", role, cs.getFetchCount());
+    }
+
+    fs.add(cloads);
+    fs.add(cfetches);
+  }
+
+  /* Timings from QueryStats as summaries in seconds */
+  private static void queryMetrics(final List<Family> fs) {
+    Family f = new Family("bedework_db_query_seconds",
+                          MetricType.summary,
+                          "Query execution time by query shape");
+    Family rows = new Family("bedework_db_query_rows_total",
+                             MetricType.counter,
+                             "Rows returned or updated by query shape");
+
+    for (QueryStats.Shape s: QueryStats.getStats().getShapes(maxQueryShapes)) {
+      String lbl = escape(s.getName());
+
+      for (double q: quantiles) {
+        f.samples.add(new Sample("",
+                                 "{shape=\"" + lbl + "\",quantile=\"" +
+                                     q + "\"}",
+                                 s.getPercentile(q * 100) / 1000000.0));
+      }
+
+      String l = "{shape=\"" + lbl + "\"}";
+
+      f.samples.add(new Sample("_sum", l, s.getTotalMicros() / 1000000.0));
+      f.samples.add(new Sample("_count", l, s.getCount()));
+
+      rows.samples.add(new Sample("", l, s.getRows()));
+    }
+
+    fs.add(f);
+    fs.add(rows);
+  }
+
+  /* Counts from the shared and per-session collection caches */
+  private static void collectionCacheMetrics(final List<Family> fs) {
+    SharedCollectionCache scc = SharedCollectionCache.getCache();
+
+    gauge(fs, "bedework_collection_snapshots",
+          "Collection snapshots held", scc.getSize());
+    counter(fs, "bedework_collection_snapshot_hits_total",
+            "Collection snapshots used", scc.getHits());
+    counter(fs, "bedework_collection_snapshot_misses_total",
+            "Lookups with no collection snapshot", scc.getMisses());
+    counter(fs, "bedework_collection_snapshot_stale_total",
+            "Collection snapshots found out of date", scc.getStale());
+    counter(fs, "bedework_collection_loads_total",
+            "Collections loaded from the database by sessions",
+            scc.getSessionLoads());
+    counter(fs, "bedework_collection_cache_hits_total",
+            "Collections found in session caches", scc.getSessionHits());
+    counter(fs, "bedework_collection_token_queries_total",
+            "Collection token check queries", scc.getTokenQueries());
+    counter(fs, "bedework_collection_token_checks_total",
+            "Collection tokens checked", scc.getTokenChecks());
+    counter(fs, "bedework_collection_token_changes_total",
+            "Collection token checks which found a change",
+            scc.getTokenFailures());
+  }
+
+  private static void counter(final List<Family> fs,
+                              final String name,
+                              final String help,
+                              final double val) {
+    Family f = new Family(name, MetricType.counter, help);
+    f.add(val);
+    fs.add(f);
+  }
+
+  private static void gauge(final List<Family> fs,
+                            final String name,
+                            final String help,
+                            final double val) {
+    Family f = new Family(name, MetricType.gauge, help);
+    f.add(val);
+    fs.add(f);
+  }
+
+  private static String labels(final String name,
+                               final String val) {
+    return "{" + name + "=\"" + escape(val) + "\"}";
+  }
+
+  private static String escape(final String val) {
+    StringBuilder sb = new StringBuilder(val.length());
+
+    for (int i = 0; i < val.length(); i++) {
+      char c = val.charAt(i);
+
+      if (c == '\\') {
+        sb.append("\\\\");
+      } else if (c == '"') {
+        sb.append("\\\"");
+      } else if (c == '\n') {
+        sb.append("\\n");
+      } else {
+        sb.append(c);
+      }
+    }
+
+    return sb.toString();
+  }
+
+  private static String formatVal(final double val) {
+    if ((val == Math.rint(val)) && !Double.isInfinite(val) &&
+        (Math.abs(val) < 1e15)) {
+      return String.valueOf((long)val);
+    }
+
+    return String.valueOf(val);
+  }
+}
@@ -20,6 +20,9 @@ package org.bedework.calcore.hibernate;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 import org.bedework.calfacade.BwCalendar;
 import org.bedework.calfacade.BwCategory;
@@ -70,6 +73,7 @@ public class DbStatistics {
     ArrayList<StatsEntry> al = new ArrayList<StatsEntry>();
 
     if (dbStats == null) {
+      collectionCacheStats(al);
       return al;
     }
 
@@ -150,9 +154,92 @@ public class DbStatistics {
       secondLevelStats(al, dbStats, s);
     }
 
+    collectionCacheStats(al);
+    queryTimings(al);
+
     return al;
   }
 
+  /** Add the counts for the node-wide collection snapshot cache and the
+   * totals from the per-session collection caches. These are kept whether
+   * or not hibernate statistics are enabled.
+   *
+   * @param al
+   */
+  public static void collectionCacheStats(Collection<StatsEntry> al) {
+    SharedCollectionCache scc = SharedCollectionCache.getCache();
+
+    double hits = scc.getHits();
+    double misses = scc.getMisses();
+
+    al.add(new StatsEntry("Shared collection cache"));
+
+    al.add(new StatsEntry("Collection snapshots held", scc.getSize()));
+    al.add(new StatsEntry("Collection snapshot loads", scc.getLoads()));
+    al.add(new StatsEntry("Collection snapshot hits", scc.getHits()));
+    al.add(new StatsEntry("Collection snapshot misses", scc.getMisses()));
+    al.add(new StatsEntry("Collection snapshots stale", scc.getStale()));
+    al.add(new StatsEntry("Collection snapshot invalidations",
+                          scc.getInvalidations()));
+
+    if ((hits + misses) != 0) {
+      al.add(new StatsEntry("Collection snapshot hit ratio",
+                            hits / (hits + misses)));
+    }
+
+    al.add(new StatsEntry("Session collection caches"));
+
+    al.add(new StatsEntry("Collection loads", scc.getSessionLoads()));
+    al.add(new StatsEntry("Collection hits", scc.getSessionHits()));
+    al.add(new StatsEntry("Collection token queries", scc.getTokenQueries()));
+    al.add(new StatsEntry("Collection tokens checked", scc.getTokenChecks()));
+    al.add(new StatsEntry("Collection tokens changed", scc.getTokenFailures()));
+  }
+
+  /** Add the timings of the most costly query shapes recorded by QueryStats.
+   * Times are in microsecs.
+   *
+   * @param al
+   */
+  public static void queryTimings(Collection<StatsEntry> al) {
+    List<QueryStats.Shape> shapes = QueryStats.getStats().getShapes(20);
+
+    if (shapes.isEmpty()) {
+      return;
+    }
+
+    al.add(new StatsEntry("Query timings"));
+
+    for (QueryStats.Shape s: shapes) {
+      al.add(new StatsEntry(s.getName(), s.summary()));
+    }
+  }
+
+  /** Get the number of elements held in memory for each second level cache
+   * region. Does not require statistics to be enabled.
+   *
+   * @param dbStats
+   * @return Map region name to count
+   */
+  public static Map<String, Long> getCacheRegionCounts(Statistics dbStats) {
+    Map<String, Long> counts = new TreeMap<String, Long>();
+
+    if (dbStats == null) {
+      return counts;
+    }
+
+    for (String s: dbStats.getSecondLevelCacheRegionNames()) {
+      SecondLevelCacheStatistics slStats =
+        dbStats.getSecondLevelCacheStatistics(s);
+
+      if (slStats != null) {
+        counts.put(s, slStats.getElementCountInMemory());
+      }
+    }
+
+    return counts;
+  }
+
   private static void entityStats(Collection<StatsEntry> c, Statistics dbStats,
                                   Class cl) {
     String name = cl.getName();
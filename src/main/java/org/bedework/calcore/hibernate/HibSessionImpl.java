@@ -19,11 +19,14 @@
 package org.bedework.calcore.hibernate;
 
 import org.bedework.calcorei.HibSession;
+import org.bedework.calcorei.QueryLimitException;
 import org.bedework.calfacade.CalFacadeDefs;
 import org.bedework.calfacade.base.BwDbentity;
 import org.bedework.calfacade.base.BwUnversionedDbentity;
 import org.bedework.calfacade.exc.CalFacadeException;
 import org.bedework.calfacade.exc.CalFacadeStaleStateException;
+import org.bedework.tracing.Span;
+import org.bedework.tracing.Tracer;
 
 import org.apache.log4j.Logger;
 import org.hibernate.Criteria;
@@ -39,6 +42,8 @@ import org.hibernate.StaleStateException;
 import org.hibernate.Transaction;
 
 import java.io.Serializable;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -63,8 +68,44 @@ public class HibSessionImpl implements HibSession {
   /** Exception from this session. */
   Throwable exc;
 
+  /* Set for sessions on a replica - we must not update through them */
+  private boolean readOnly;
+
+  /* Set when an update is made in the current transaction */
+  private boolean updated;
+
+  /* Set by the admission controller for heavy operations */
+  private int queryTimeout;
+  private int maxRows;
+
+  /* True if the current query has an explicit max results */
+  private boolean maxResultsSet;
+
+  /* Named query name or query text for the timing statistics */
+  private String queryShape;
+
+  /* Parameter names and values alternately, held for the slow query log */
+  private transient List<Object> queryPars;
+
   private SimpleDateFormat dateFormatter = new SimpleDateFormat("yyyy-MM-dd");
 
+  /* Queries run by each thread - for reporting the cost of an operation which
+   * may span more than one session.
+   */
+  private static final ThreadLocal<long[]> threadQueries = new ThreadLocal<long[]>() {
+    @Override
+    protected long[] initialValue() {
+      return new long[1];
+    }
+  };
+
+  /**
+   * @return number of queries run by the current thread
+   */
+  public static long getThreadQueryCount() {
+    return threadQueries.get()[0];
+  }
+
   /** Set up for a hibernate interaction. Throw the object away on exception.
    *
    * @param sessFactory
@@ -86,6 +127,34 @@ public class HibSessionImpl implements HibSession {
     }
   }
 
+  /** Mark this session as read only. Updates will be rejected and the
+   * session is not flushed.
+   *
+   * @param val
+   * @throws CalFacadeException
+   */
+  public void setReadOnly(final boolean val) throws CalFacadeException {
+    readOnly = val;
+
+    if (val) {
+      setFlushMode(FlushMode.MANUAL);
+    }
+  }
+
+  /**
+   * @return true if read only
+   */
+  public boolean getReadOnly() {
+    return readOnly;
+  }
+
+  /**
+   * @return true if an update was made in the current transaction
+   */
+  public boolean getUpdated() {
+    return updated;
+  }
+
   public Session getSession() throws CalFacadeException {
     return sess;
   }
@@ -170,6 +239,7 @@ public class HibSessionImpl implements HibSession {
 
       tx = sess.beginTransaction();
       rolledBack = false;
+      updated = false;
       if (tx == null) {
         throw new CalFacadeException("Transaction not started");
       }
@@ -272,6 +342,9 @@ public class HibSessionImpl implements HibSession {
     try {
       crit = sess.createCriteria(cl);
       q = null;
+      maxResultsSet = false;
+      queryShape = "criteria " + cl.getName();
+      queryPars = null;
 
       return crit;
     } catch (Throwable t) {
@@ -308,6 +381,9 @@ public class HibSessionImpl implements HibSession {
     try {
       q = sess.createQuery(s);
       crit = null;
+      maxResultsSet = false;
+      queryShape = s;
+      queryPars = null;
     } catch (Throwable t) {
       handleException(t);
     }
@@ -322,6 +398,9 @@ public class HibSessionImpl implements HibSession {
     try {
       q = sess.createQuery(s);
       crit = null;
+      maxResultsSet = false;
+      queryShape = s;
+      queryPars = null;
       q.setFlushMode(FlushMode.COMMIT);
     } catch (Throwable t) {
       handleException(t);
@@ -364,6 +443,9 @@ public class HibSessionImpl implements HibSession {
 
       q = sq;
       crit = null;
+      maxResultsSet = false;
+      queryShape = s;
+      queryPars = null;
     } catch (Throwable t) {
       handleException(t);
     }
@@ -383,6 +465,9 @@ public class HibSessionImpl implements HibSession {
     try {
       q = sess.getNamedQuery(name);
       crit = null;
+      maxResultsSet = false;
+      queryShape = name;
+      queryPars = null;
     } catch (Throwable t) {
       handleException(t);
     }
@@ -419,6 +504,7 @@ public class HibSessionImpl implements HibSession {
 
     try {
       q.setString(parName, parVal);
+      addPar(parName, parVal);
     } catch (Throwable t) {
       handleException(t);
     }
@@ -441,6 +527,7 @@ public class HibSessionImpl implements HibSession {
       synchronized (dateFormatter) {
         q.setDate(parName, java.sql.Date.valueOf(dateFormatter.format(parVal)));
       }
+      addPar(parName, parVal);
     } catch (Throwable t) {
       handleException(t);
     }
@@ -460,6 +547,7 @@ public class HibSessionImpl implements HibSession {
 
     try {
       q.setBoolean(parName, parVal);
+      addPar(parName, parVal);
     } catch (Throwable t) {
       handleException(t);
     }
@@ -479,6 +567,7 @@ public class HibSessionImpl implements HibSession {
 
     try {
       q.setInteger(parName, parVal);
+      addPar(parName, parVal);
     } catch (Throwable t) {
       handleException(t);
     }
@@ -498,6 +587,7 @@ public class HibSessionImpl implements HibSession {
 
     try {
       q.setLong(parName, parVal);
+      addPar(parName, parVal);
     } catch (Throwable t) {
       handleException(t);
     }
@@ -517,6 +607,7 @@ public class HibSessionImpl implements HibSession {
 
     try {
       q.setEntity(parName, parVal);
+      addPar(parName, parVal);
     } catch (Throwable t) {
       handleException(t);
     }
@@ -533,6 +624,7 @@ public class HibSessionImpl implements HibSession {
 
     try {
       q.setParameter(parName, parVal);
+      addPar(parName, parVal);
     } catch (Throwable t) {
       handleException(t);
     }
@@ -549,6 +641,7 @@ public class HibSessionImpl implements HibSession {
 
     try {
       q.setParameterList(parName, parVal);
+      addPar(parName, parVal);
     } catch (Throwable t) {
       handleException(t);
     }
@@ -581,11 +674,18 @@ public class HibSessionImpl implements HibSession {
 
     try {
       q.setMaxResults(val);
+      maxResultsSet = true;
     } catch (Throwable t) {
       handleException(t);
     }
   }
 
+  public void setQueryLimits(final int timeout,
+                             final int maxRows) throws CalFacadeException {
+    queryTimeout = timeout;
+    this.maxRows = maxRows;
+  }
+
   /* (non-Javadoc)
    * @see org.bedework.calcorei.HibSession#getUnique()
    */
@@ -595,17 +695,30 @@ public class HibSessionImpl implements HibSession {
       throw new CalFacadeException(exc);
     }
 
+    threadQueries.get()[0]++;
+
+    long start = System.nanoTime();
+
     try {
+      applyTimeout();
+
+      Object o;
       if (q != null) {
-        return q.uniqueResult();
+        o = q.uniqueResult();
+      } else {
+        o = crit.uniqueResult();
       }
 
-      return crit.uniqueResult();
+      endQuery(start, (o == null) ? 0 : 1);
+
+      return o;
     } catch (NonUniqueResultException nure) {
       // Always bad news
+      queryFailed(start, nure);
       handleException(nure);
       return null;  // Don't get here
     } catch (Throwable t) {
+      queryFailed(start, t);
       handleException(t);
       return null;  // Don't get here
     }
@@ -622,23 +735,45 @@ public class HibSessionImpl implements HibSession {
       throw new CalFacadeException(exc);
     }
 
+    threadQueries.get()[0]++;
+
+    /* Ask for one more than allowed so we can tell if there were too many */
+    boolean capped = (maxRows > 0) && !maxResultsSet;
+    List l = null;
+    long start = System.nanoTime();
+
     try {
-      List l;
+      applyTimeout();
+
       if (q != null) {
+        if (capped) {
+          q.setMaxResults(maxRows + 1);
+        }
         l = q.list();
       } else {
+        if (capped) {
+          crit.setMaxResults(maxRows + 1);
+        }
         l = crit.list();
       }
-
-      if (l == null) {
-        return new ArrayList();
-      }
-
-      return l;
     } catch (Throwable t) {
+      queryFailed(start, t);
       handleException(t);
-      return null;  // Don't get here
     }
+
+    if (l == null) {
+      l = new ArrayList();
+    }
+
+    endQuery(start, l.size());
+
+    if (capped && (l.size() > maxRows)) {
+      AdmissionController.getController().tooManyResults();
+      throw new QueryLimitException(QueryLimitException.tooManyResults,
+                                    null);
+    }
+
+    return l;
   }
 
   /**
@@ -651,13 +786,26 @@ public class HibSessionImpl implements HibSession {
       throw new CalFacadeException(exc);
     }
 
+    checkWritable();
+
+    threadQueries.get()[0]++;
+
+    long start = System.nanoTime();
+
     try {
       if (q == null) {
         throw new CalFacadeException("No query for execute update");
       }
 
-      return q.executeUpdate();
+      int ct = q.executeUpdate();
+
+      endQuery(start, ct);
+
+      return ct;
     } catch (Throwable t) {
+      if (q != null) {
+        queryFailed(start, t);
+      }
       handleException(t);
       return 0;  // Don't get here
     }
@@ -675,6 +823,8 @@ public class HibSessionImpl implements HibSession {
       throw new CalFacadeException(exc);
     }
 
+    checkWritable();
+
     try {
       Object ent = obj;
 
@@ -705,6 +855,8 @@ public class HibSessionImpl implements HibSession {
       throw new CalFacadeException(exc);
     }
 
+    checkWritable();
+
     try {
       beforeSave(obj);
 
@@ -730,6 +882,8 @@ public class HibSessionImpl implements HibSession {
       throw new CalFacadeException(exc);
     }
 
+    checkWritable();
+
     try {
       Object ent = obj;
 
@@ -764,6 +918,8 @@ public class HibSessionImpl implements HibSession {
       throw new CalFacadeException(exc);
     }
 
+    checkWritable();
+
     try {
       return sess.merge(obj);
     } catch (Throwable t) {
@@ -819,6 +975,8 @@ public class HibSessionImpl implements HibSession {
       throw new CalFacadeException(exc);
     }
 
+    checkWritable();
+
     try {
       beforeSave(obj);
       sess.save(obj);
@@ -841,6 +999,8 @@ public class HibSessionImpl implements HibSession {
       throw new CalFacadeException(exc);
     }
 
+    checkWritable();
+
     try {
       sess.save(obj, id);
     } catch (Throwable t) {
@@ -859,6 +1019,8 @@ public class HibSessionImpl implements HibSession {
       throw new CalFacadeException(exc);
     }
 
+    checkWritable();
+
     try {
       beforeDelete(obj);
 
@@ -949,6 +1111,8 @@ public class HibSessionImpl implements HibSession {
       throw new CalFacadeException(exc);
     }
 
+    checkWritable();
+
     if (getLogger().isDebugEnabled()) {
       getLogger().debug("About to flush");
     }
@@ -1033,9 +1197,111 @@ public class HibSessionImpl implements HibSession {
       throw new CalFacadeStaleStateException(t);
     }
 
+    if (isTimeout(t)) {
+      AdmissionController.getController().timedOut();
+
+      QueryLimitException qle =
+        new QueryLimitException(QueryLimitException.timedOut, null);
+      qle.initCause(t);
+      throw qle;
+    }
+
     throw new CalFacadeException(t);
   }
 
+  private void addPar(final String name, final Object val) {
+    if (!SlowQueryLog.getLog().getEnabled()) {
+      return;
+    }
+
+    if (queryPars == null) {
+      queryPars = new ArrayList<Object>();
+    }
+
+    queryPars.add(name);
+    queryPars.add(val);
+  }
+
+  private void endQuery(final long start, final long rows) {
+    long nanos = System.nanoTime() - start;
+
+    QueryStats.getStats().record(queryShape, nanos, rows);
+    SlowQueryLog.getLog().check(queryShape, queryPars, nanos, rows);
+
+    if (Tracer.active()) {
+      Span span = Tracer.record("query", start, nanos);
+
+      span.setAttribute("rows", rows);
+      span.setAttribute("q", queryShape);
+    }
+  }
+
+  /* Called before handleException for a query which threw */
+  private void queryFailed(final long start, final Throwable t) {
+    long nanos = System.nanoTime() - start;
+    boolean timedOut = isTimeout(t);
+
+    String error;
+    if (timedOut) {
+      error = "timeout";
+    } else {
+      error = t.getClass().getName();
+    }
+
+    QueryStats.getStats().failed(queryShape, nanos, timedOut);
+    SlowQueryLog.getLog().failed(queryShape, queryPars, nanos, error);
+
+    if (Tracer.active()) {
+      Span span = Tracer.record("query", start, nanos);
+
+      span.setAttribute("q", queryShape);
+      span.setAttribute("error", error);
+    }
+  }
+
+  private void applyTimeout() {
+    if (queryTimeout <= 0) {
+      return;
+    }
+
+    if (q != null) {
+      q.setTimeout(queryTimeout);
+    } else if (crit != null) {
+      crit.setTimeout(queryTimeout);
+    }
+  }
+
+  /* True if the exception came from a statement cancelled by its timeout.
+   * Not every driver uses SQLTimeoutException, so also check the usual
+   * states for a cancelled statement.
+   */
+  private boolean isTimeout(final Throwable t) {
+    Throwable c = t;
+
+    while (c != null) {
+      if (c instanceof SQLTimeoutException) {
+        return true;
+      }
+
+      if (c instanceof SQLException) {
+        String state = ((SQLException)c).getSQLState();
+
+        if ((state != null) &&
+            (state.equals("57014") || state.startsWith("HYT"))) {
+          return true;
+        }
+      }
+
+      if (c.getCause() == c) {
+        break;
+      }
+
+      c = c.getCause();
+    }
+
+    return false;
+  }
+
   private void beforeSave(final Object o) throws CalFacadeException {
     if (!(o instanceof BwDbentity)) {
       return;
@@ -1093,4 +1359,12 @@ public class HibSessionImpl implements HibSession {
 
     return log;
   }
+
+  private void checkWritable() throws CalFacadeException {
+    if (readOnly) {
+      throw new CalFacadeException("Attempt to update in a read only session");
+    }
+
+    updated = true;
+  }
 }
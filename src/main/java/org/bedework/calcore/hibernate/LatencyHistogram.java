@@ -0,0 +1,140 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+        
+    http://www.apache.org/licenses/LICENSE-2.0
+        
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.calcore.hibernate;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** Lock free latency histogram in microsecs.
+ *
+ * <p>Times go into buckets a quarter of a power of 2 wide, so percentiles
+ * are accurate to within about 20%.
+ *
+ * @author douglm
+ */
+public class LatencyHistogram {
+  /* 4 buckets for each power of 2 microsecs */
+  private static final int subBuckets = 4;
+  private static final int numBuckets = 64 * subBuckets;
+
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong totalMicros = new AtomicLong();
+  private final AtomicLong maxMicros = new AtomicLong();
+
+  private final AtomicLongArray buckets = new AtomicLongArray(numBuckets);
+
+  /**
+   * @param micros  time to record
+   */
+  public void record(final long micros) {
+    count.incrementAndGet();
+    totalMicros.addAndGet(micros);
+    setMax(maxMicros, micros);
+
+    buckets.incrementAndGet(bucket(micros));
+  }
+
+  /**
+   * @return number recorded
+   */
+  public long getCount() {
+    return count.get();
+  }
+
+  /**
+   * @return total microsecs
+   */
+  public long getTotalMicros() {
+    return totalMicros.get();
+  }
+
+  /**
+   * @return longest microsecs
+   */
+  public long getMaxMicros() {
+    return maxMicros.get();
+  }
+
+  /**
+   * @param pct  percentile 0 - 100
+   * @return approximate microsecs at the percentile
+   */
+  public long getPercentile(final double pct) {
+    long ct = 0;
+
+    for (int i = 0; i < numBuckets; i++) {
+      ct += buckets.get(i);
+    }
+
+    if (ct == 0) {
+      return 0;
+    }
+
+    long target = (long)Math.ceil(ct * pct / 100);
+    long sofar = 0;
+
+    for (int i = 0; i < numBuckets; i++) {
+      sofar += buckets.get(i);
+
+      if ((sofar >= target) && (sofar > 0)) {
+        return Math.min(upperBound(i), getMaxMicros());
+      }
+    }
+
+    return getMaxMicros();
+  }
+
+  /** Raise max to val if it is lower.
+   *
+   * @param max
+   * @param val
+   */
+  public static void setMax(final AtomicLong max, final long val) {
+    for (;;) {
+      long cur = max.get();
+
+      if ((val <= cur) || max.compareAndSet(cur, val)) {
+        return;
+      }
+    }
+  }
+
+  /* Bucket i covers values from lowerBound(i) up to upperBound(i) */
+  static int bucket(final long micros) {
+    if (micros < subBuckets) {
+      return (int)Math.max(micros, 0);
+    }
+
+    int msb = 63 - Long.numberOfLeadingZeros(micros);
+    int sub = (int)((micros >> (msb - 2)) & (subBuckets - 1));
+
+    return Math.min(((msb - 1) * subBuckets) + sub, numBuckets - 1);
+  }
+
+  static long upperBound(final int bucket) {
+    if (bucket < subBuckets) {
+      return bucket;
+    }
+
+    int msb = (bucket / subBuckets) + 1;
+    long sub = bucket % subBuckets;
+
+    return ((subBuckets + sub + 1) << (msb - 2)) - 1;
+  }
+}
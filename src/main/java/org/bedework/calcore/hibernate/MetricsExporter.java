@@ -0,0 +1,223 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+        
+    http://www.apache.org/licenses/LICENSE-2.0
+        
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.calcore.hibernate;
+
+import org.bedework.calfacade.exc.CalFacadeException;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.apache.log4j.Logger;
+import org.hibernate.stat.Statistics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+
+/** Serves the database metrics over http in the plain text exposition
+ * format so they can be scraped by a monitoring system.
+ *
+ * <p>The listener is the one built in to the jvm and needs nothing else
+ * running. GET /metrics returns the current values. GET /metrics/delta
+ * returns counters as the change since the previous delta scrape, for
+ * collectors that do not compute rates themselves.
+ *
+ * <p>By default the listener is bound to the loopback address. Hibernate
+ * statistics must be enabled for most of the counters to move.
+ *
+ * @author douglm
+ */
+public class MetricsExporter {
+  private static final MetricsExporter exporter = new MetricsExporter();
+
+  private transient Logger log;
+
+  private volatile int port = 9465;
+
+  private volatile String bindAddress = "127.0.0.1";
+
+  private HttpServer server;
+
+  /* Values at the last delta scrape */
+  private final Map<String, Double> previous = new HashMap<String, Double>();
+
+  private MetricsExporter() {
+  }
+
+  /**
+   * @return the node-wide exporter
+   */
+  public static MetricsExporter getExporter() {
+    return exporter;
+  }
+
+  /**
+   * @param val port to listen on
+   */
+  public void setPort(final int val) {
+    port = val;
+  }
+
+  /**
+   * @return port to listen on
+   */
+  public int getPort() {
+    return port;
+  }
+
+  /**
+   * @param val address to listen on
+   */
+  public void setBindAddress(final String val) {
+    bindAddress = val;
+  }
+
+  /**
+   * @return address to listen on
+   */
+  public String getBindAddress() {
+    return bindAddress;
+  }
+
+  /**
+   * @param val true to have hibernate collect statistics
+   * @throws CalFacadeException
+   */
+  public void setStatisticsEnabled(final boolean val) throws CalFacadeException {
+    CalintfImpl.getDbStatistics().setStatisticsEnabled(val);
+  }
+
+  /**
+   * @return true if hibernate is collecting statistics
+   * @throws CalFacadeException
+   */
+  public boolean getStatisticsEnabled() throws CalFacadeException {
+    return CalintfImpl.getDbStatistics().isStatisticsEnabled();
+  }
+
+  /** Start listening.
+   *
+   * @throws CalFacadeException
+   */
+  public synchronized void start() throws CalFacadeException {
+    if (server != null) {
+      return;
+    }
+
+    try {
+      server = HttpServer.create(new InetSocketAddress(bindAddress, port), 0);
+      server.createContext("/metrics", new Handler());
+      server.start();
+    } catch (IOException ioe) {
+      server = null;
+      throw new CalFacadeException(ioe);
+    }
+
+    getLogger().info("Metrics listening on " + bindAddress + ":" + port);
+  }
+
+  /** Stop listening.
+   */
+  public synchronized void stop() {
+    if (server == null) {
+      return;
+    }
+
+    server.stop(0);
+    server = null;
+  }
+
+  /**
+   * @return true if listening
+   */
+  public synchronized boolean isStarted() {
+    return server != null;
+  }
+
+  /**
+   * @return current metrics in the text exposition format
+   * @throws CalFacadeException
+   */
+  public String scrape() throws CalFacadeException {
+    return DbMetrics.format(DbMetrics.getMetrics(getStats()));
+  }
+
+  /**
+   * @return metrics with counters as the change since the previous call
+   * @throws CalFacadeException
+   */
+  public String scrapeDeltas() throws CalFacadeException {
+    synchronized (previous) {
+      return DbMetrics.format(DbMetrics.getMetrics(getStats()), previous);
+    }
+  }
+
+  private Statistics getStats() throws CalFacadeException {
+    return CalintfImpl.getDbStatistics();
+  }
+
+  private class Handler implements HttpHandler {
+    public void handle(final HttpExchange ex) throws IOException {
+      try {
+        if (!"GET".equals(ex.getRequestMethod())) {
+          ex.sendResponseHeaders(405, -1);
+          return;
+        }
+
+        String path = ex.getRequestURI().getPath();
+        String body;
+
+        if (path.equals("/metrics") || path.equals("/metrics/")) {
+          body = scrape();
+        } else if (path.equals("/metrics/delta")) {
+          body = scrapeDeltas();
+        } else {
+          ex.sendResponseHeaders(404, -1);
+          return;
+        }
+
+        byte[] bytes = body.getBytes("UTF-8");
+
+        ex.getResponseHeaders().set("Content-Type",
+                                    "text/plain; version=0.0.4; charset=utf-8");
+        ex.sendResponseHeaders(200, bytes.length);
+
+        OutputStream os = ex.getResponseBody();
+        os.write(bytes);
+        os.close();
+      } catch (CalFacadeException cfe) {
+        getLogger().error("Unable to produce metrics", cfe);
+        ex.sendResponseHeaders(500, -1);
+      } finally {
+        ex.close();
+      }
+    }
+  }
+
+  private Logger getLogger() {
+    if (log == null) {
+      log = Logger.getLogger(this.getClass());
+    }
+
+    return log;
+  }
+}
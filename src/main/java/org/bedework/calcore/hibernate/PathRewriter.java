@@ -0,0 +1,195 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+        
+    http://www.apache.org/licenses/LICENSE-2.0
+        
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.calcore.hibernate;
+
+import org.bedework.calcorei.HibSession;
+import org.bedework.calfacade.BwCalendar;
+import org.bedework.calfacade.BwCollectionLastmod;
+import org.bedework.calfacade.BwEventAnnotation;
+import org.bedework.calfacade.BwEventObj;
+import org.bedework.calfacade.BwResource;
+import org.bedework.calfacade.BwResourceContent;
+import org.bedework.calfacade.exc.CalFacadeException;
+
+import java.util.List;
+
+/** Rewrite the paths of everything below a collection which has been
+ * renamed or moved.
+ *
+ * <p>The descendant collections, their lastmods and the contained entities
+ * are updated with a few bulk statements which replace the old path prefix,
+ * rather than loading and updating each object. The caller deals with the
+ * collection itself, with any objects in the session and with the caches.
+ *
+ * @author douglm
+ */
+class PathRewriter {
+  /* Entities other than collections which hold the path of their
+   * containing collection.
+   */
+  private static final Class<?>[] colPathClasses = {
+    BwEventObj.class,
+    BwEventAnnotation.class,
+    BwResource.class,
+    BwResourceContent.class,
+  };
+
+  private final HibSession sess;
+
+  private int collections;
+
+  private int entities;
+
+  /**
+   * @param sess
+   */
+  PathRewriter(final HibSession sess) {
+    this.sess = sess;
+  }
+
+  /** Rewrite the paths below oldPath. The lastmods of the descendants are
+   * set from the given lastmod so that synch reports see them as changed.
+   *
+   * @param oldPath
+   * @param newPath
+   * @param lastmod  new lastmod of the moved collection
+   * @return name and parent path, before the move, of each descendant
+   *         collection. May be null.
+   * @throws CalFacadeException
+   */
+  @SuppressWarnings("rawtypes")
+  List rewrite(final String oldPath,
+               final String newPath,
+               final BwCollectionLastmod lastmod) throws CalFacadeException {
+    String like = escapeLike(oldPath) + "/%";
+
+    /* Names and parents of the descendants for the notifications */
+    StringBuilder sb = new StringBuilder();
+
+    sb.append("select col.name, col.colPath from ");
+    sb.append(BwCalendar.class.getName());
+    sb.append(" col where col.path like :like escape '!'");
+
+    sess.createQuery(sb.toString());
+    sess.setString("like", like);
+
+    List moved = sess.getList();
+
+    /* Collections */
+    sb = new StringBuilder();
+
+    sb.append("update ");
+    sb.append(BwCalendar.class.getName());
+    sb.append(" set path=");
+    replacePrefix(sb, "path");
+    sb.append(", colPath=");
+    replacePrefix(sb, "colPath");
+    sb.append(" where path like :like escape '!'");
+
+    sess.createQuery(sb.toString());
+    setPrefixPars(oldPath, newPath, like);
+
+    collections = sess.executeUpdate();
+
+    /* Their lastmods */
+    sb = new StringBuilder();
+
+    sb.append("update ");
+    sb.append(BwCollectionLastmod.class.getName());
+    sb.append(" set path=");
+    replacePrefix(sb, "path");
+    sb.append(", timestamp=:timestamp, sequence=:sequence");
+    sb.append(" where path like :like escape '!'");
+
+    sess.createQuery(sb.toString());
+    setPrefixPars(oldPath, newPath, like);
+    sess.setString("timestamp", lastmod.getTimestamp());
+    sess.setInt("sequence", lastmod.getSequence());
+
+    sess.executeUpdate();
+
+    /* Contained entities - including those in the collection itself */
+    entities = 0;
+
+    for (Class<?> cl: colPathClasses) {
+      sb = new StringBuilder();
+
+      sb.append("update ");
+      sb.append(cl.getName());
+      sb.append(" set colPath=");
+      replacePrefix(sb, "colPath");
+      sb.append(" where colPath=:oldPath or colPath like :like escape '!'");
+
+      sess.createQuery(sb.toString());
+      setPrefixPars(oldPath, newPath, like);
+      sess.setString("oldPath", oldPath);
+
+      entities += sess.executeUpdate();
+    }
+
+    return moved;
+  }
+
+  /**
+   * @return number of descendant collections rewritten by the last call
+   */
+  int getCollections() {
+    return collections;
+  }
+
+  /**
+   * @return number of contained entities rewritten by the last call
+   */
+  int getEntities() {
+    return entities;
+  }
+
+  /* Append an expression which replaces the prefix set by setPrefixPars */
+  private void replacePrefix(final StringBuilder sb,
+                             final String field) {
+    sb.append("concat(:newPrefix, substring(");
+    sb.append(field);
+    sb.append(", :prefixEnd, length(");
+    sb.append(field);
+    sb.append(")))");
+  }
+
+  private void setPrefixPars(final String oldPrefix,
+                             final String newPrefix,
+                             final String like) throws CalFacadeException {
+    sess.setString("newPrefix", newPrefix);
+    sess.setInt("prefixEnd", oldPrefix.length() + 1);
+    sess.setString("like", like);
+  }
+
+  /* Escape like wildcards - "_" is common in names */
+  static String escapeLike(final String val) {
+    StringBuilder sb = new StringBuilder();
+
+    for (char ch: val.toCharArray()) {
+      if ((ch == '!') || (ch == '%') || (ch == '_')) {
+        sb.append('!');
+      }
+
+      sb.append(ch);
+    }
+
+    return sb.toString();
+  }
+}
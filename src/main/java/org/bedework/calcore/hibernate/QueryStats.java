@@ -0,0 +1,382 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+        
+    http://www.apache.org/licenses/LICENSE-2.0
+        
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.calcore.hibernate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/** Latency histograms and row counts for each shape of query run through
+ * HibSessionImpl.
+ *
+ * <p>A shape is the name of a named query, the class for a criteria query
+ * or the query text with literals and numbered parameter names replaced.
+ * Once maxShapes shapes are known any new ones are counted together.
+ *
+ * <p>Recording is lock free - each shape holds a set of atomic counters and
+ * a LatencyHistogram.
+ *
+ * @author douglm
+ */
+public class QueryStats {
+  private static final QueryStats stats = new QueryStats();
+
+  private volatile boolean enabled = true;
+
+  private volatile int maxShapes = 500;
+
+  /** Shape for queries recorded once the table is full */
+  public static final String otherShape = "(other)";
+
+  /* Normalized shape -> stats */
+  private final ConcurrentHashMap<String, Shape> shapes =
+    new ConcurrentHashMap<String, Shape>();
+
+  /* Query text as run -> stats. Saves normalizing every time */
+  private final Map<String, Shape> seen =
+    new ConcurrentHashMap<String, Shape>();
+
+  private volatile Shape other = new Shape(otherShape);
+
+  private static final Pattern literalPattern =
+      Pattern.compile("'([^']|'')*'");
+  private static final Pattern numberPattern =
+      Pattern.compile("\\b\\d+\\b");
+  private static final Pattern parPattern =
+      Pattern.compile("(:[A-Za-z_]+)\\d+");
+  private static final Pattern spacePattern =
+      Pattern.compile("\\s+");
+
+  /** Statistics for one shape of query.
+   */
+  public static class Shape {
+    private final String name;
+
+    private final LatencyHistogram times = new LatencyHistogram();
+
+    private final AtomicLong rows = new AtomicLong();
+    private final AtomicLong maxRows = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+
+    Shape(final String name) {
+      this.name = name;
+    }
+
+    void record(final long micros, final long rowCt) {
+      times.record(micros);
+      rows.addAndGet(rowCt);
+      LatencyHistogram.setMax(maxRows, rowCt);
+    }
+
+    void failed(final long micros, final boolean timedOut) {
+      times.record(micros);
+      errors.incrementAndGet();
+
+      if (timedOut) {
+        timeouts.incrementAndGet();
+      }
+    }
+
+    /**
+     * @return the shape
+     */
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * @return number of queries
+     */
+    public long getCount() {
+      return times.getCount();
+    }
+
+    /**
+     * @return total microsecs
+     */
+    public long getTotalMicros() {
+      return times.getTotalMicros();
+    }
+
+    /**
+     * @return longest microsecs
+     */
+    public long getMaxMicros() {
+      return times.getMaxMicros();
+    }
+
+    /**
+     * @return total rows returned or updated
+     */
+    public long getRows() {
+      return rows.get();
+    }
+
+    /**
+     * @return most rows returned or updated by one query
+     */
+    public long getMaxRows() {
+      return maxRows.get();
+    }
+
+    /**
+     * @return number of queries which failed - included in the count
+     */
+    public long getErrors() {
+      return errors.get();
+    }
+
+    /**
+     * @return number of queries cancelled by the query timeout - included in
+     *         the errors
+     */
+    public long getTimeouts() {
+      return timeouts.get();
+    }
+
+    /**
+     * @param pct  percentile 0 - 100
+     * @return approximate microsecs at the percentile
+     */
+    public long getPercentile(final double pct) {
+      return times.getPercentile(pct);
+    }
+
+    /**
+     * @return one line summary
+     */
+    public String summary() {
+      StringBuilder sb = new StringBuilder();
+
+      long ct = getCount();
+
+      sb.append("count=");
+      sb.append(ct);
+      sb.append(" totalms=");
+      sb.append(getTotalMicros() / 1000);
+      sb.append(" p50us=");
+      sb.append(getPercentile(50));
+      sb.append(" p95us=");
+      sb.append(getPercentile(95));
+      sb.append(" p99us=");
+      sb.append(getPercentile(99));
+      sb.append(" maxus=");
+      sb.append(getMaxMicros());
+      sb.append(" avgrows=");
+      if (ct == 0) {
+        sb.append(0);
+      } else {
+        sb.append(getRows() / ct);
+      }
+      sb.append(" maxrows=");
+      sb.append(getMaxRows());
+      if (getErrors() > 0) {
+        sb.append(" errors=");
+        sb.append(getErrors());
+        sb.append(" timeouts=");
+        sb.append(getTimeouts());
+      }
+
+      return sb.toString();
+    }
+  }
+
+  private QueryStats() {
+  }
+
+  /**
+   * @return the node-wide statistics
+   */
+  public static QueryStats getStats() {
+    return stats;
+  }
+
+  /** Record a query.
+   *
+   * @param query  named query name or query text
+   * @param nanos  time taken
+   * @param rows   rows returned or updated
+   */
+  public void record(final String query,
+                     final long nanos,
+                     final long rows) {
+    if (!enabled || (query == null)) {
+      return;
+    }
+
+    getShape(query).record(nanos / 1000, rows);
+  }
+
+  /** Record a query which failed.
+   *
+   * @param query  named query name or query text
+   * @param nanos  time taken
+   * @param timedOut true if cancelled by the query timeout
+   */
+  public void failed(final String query,
+                     final long nanos,
+                     final boolean timedOut) {
+    if (!enabled || (query == null)) {
+      return;
+    }
+
+    getShape(query).failed(nanos / 1000, timedOut);
+  }
+
+  /**
+   * @param val true to record queries
+   */
+  public void setEnabled(final boolean val) {
+    enabled = val;
+  }
+
+  /**
+   * @return true if recording queries
+   */
+  public boolean getEnabled() {
+    return enabled;
+  }
+
+  /**
+   * @param val max number of shapes recorded separately
+   */
+  public void setMaxShapes(final int val) {
+    maxShapes = val;
+  }
+
+  /**
+   * @return max number of shapes recorded separately
+   */
+  public int getMaxShapes() {
+    return maxShapes;
+  }
+
+  /**
+   * @return number of shapes recorded
+   */
+  public int getShapeCount() {
+    return shapes.size();
+  }
+
+  /**
+   * @param max  max number to return - <= 0 for all
+   * @return shapes with the greatest total time first
+   */
+  public List<Shape> getShapes(final int max) {
+    List<Shape> l = new ArrayList<Shape>(shapes.values());
+
+    if (other.getCount() > 0) {
+      l.add(other);
+    }
+
+    Collections.sort(l, new Comparator<Shape>() {
+      public int compare(final Shape s1, final Shape s2) {
+        long t1 = s1.getTotalMicros();
+        long t2 = s2.getTotalMicros();
+
+        if (t1 == t2) {
+          return s1.getName().compareTo(s2.getName());
+        }
+
+        if (t1 > t2) {
+          return -1;
+        }
+
+        return 1;
+      }
+    });
+
+    if ((max > 0) && (l.size() > max)) {
+      return l.subList(0, max);
+    }
+
+    return l;
+  }
+
+  /**
+   * @param max  max number of shapes to dump - <= 0 for all
+   * @return text dump with the greatest total time first
+   */
+  public String dump(final int max) {
+    StringBuilder sb = new StringBuilder();
+
+    for (Shape s: getShapes(max)) {
+      sb.append(s.summary());
+      sb.append("\n    ");
+      sb.append(s.getName());
+      sb.append("\n");
+    }
+
+    return sb.toString();
+  }
+
+  /** Discard everything recorded so far.
+   */
+  public void reset() {
+    shapes.clear();
+    seen.clear();
+    other = new Shape(otherShape);
+  }
+
+  private Shape getShape(final String query) {
+    Shape s = seen.get(query);
+
+    if (s != null) {
+      return s;
+    }
+
+    String name = normalize(query);
+
+    s = shapes.get(name);
+
+    if (s == null) {
+      if (shapes.size() >= maxShapes) {
+        return other;
+      }
+
+      s = new Shape(name);
+
+      Shape prev = shapes.putIfAbsent(name, s);
+
+      if (prev != null) {
+        s = prev;
+      }
+    }
+
+    if (seen.size() < (maxShapes * 4)) {
+      seen.put(query, s);
+    }
+
+    return s;
+  }
+
+  static String normalize(final String query) {
+    String s = literalPattern.matcher(query).replaceAll("?");
+    s = parPattern.matcher(s).replaceAll("$1#");
+    s = numberPattern.matcher(s).replaceAll("?");
+
+    return spacePattern.matcher(s).replaceAll(" ").trim();
+  }
+}
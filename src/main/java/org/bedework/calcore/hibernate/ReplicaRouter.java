@@ -0,0 +1,427 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+        
+    http://www.apache.org/licenses/LICENSE-2.0
+        
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.calcore.hibernate;
+
+import org.bedework.calfacade.BwCollectionLastmod;
+
+import org.apache.log4j.Logger;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.cfg.Configuration;
+
+import java.text.SimpleDateFormat;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Routes read only sessions to a replica database.
+ *
+ * <p>The replica has its own session factory built from a hibernate
+ * configuration resource. That should be a copy of the primary configuration
+ * with the datasource pointing at the replica and the second level cache
+ * turned off - the replica factory never sees our updates so it cannot keep
+ * a cache in step. For local testing two H2 databases with a periodic copy
+ * from one to the other will do.
+ *
+ * <p>Sessions are routed here for guests, which are always read only, and
+ * for the read only part of other requests - free/busy and event queries
+ * such as CalDAV reports - as long as the request has not yet made any
+ * updates. Replica sessions use but do not populate the caches shared by all
+ * sessions as what they see may be older than the primary.
+ *
+ * <p>How far behind the replica is gets measured using the collection
+ * lastmod tokens. At most once every checkInterval millis we fetch the latest
+ * lastmod timestamp from each database. If the replica is missing updates
+ * and its latest timestamp is older than the staleness budget all sessions
+ * go to the primary.
+ *
+ * <p>For read-your-writes the latest timestamp written by each principal on
+ * this node is remembered. A principal is pinned to the primary until the
+ * replica has caught up to that timestamp.
+ *
+ * @author douglm
+ */
+public class ReplicaRouter {
+  private static final ReplicaRouter router = new ReplicaRouter();
+
+  private transient Logger log;
+
+  private volatile boolean enabled;
+
+  private volatile String configResource = "/hibernate.replica.cfg.xml";
+
+  private volatile long stalenessBudget = 5 * 1000;
+
+  private volatile long checkInterval = 1000;
+
+  private volatile SessionFactory replicaFactory;
+
+  private final Object initLock = new Object();
+
+  /* Latest lastmod timestamp in each database when last checked */
+  private volatile String primaryToken;
+  private volatile String replicaToken;
+
+  private volatile long lastCheck;
+
+  private volatile boolean stale = true;
+
+  private static final int maxWriters = 10000;
+
+  /* principal href -> latest lastmod timestamp written on this node */
+  private final Map<String, String> writes =
+    new ConcurrentHashMap<String, String>();
+
+  private final AtomicLong replicaSessions = new AtomicLong();
+  private final AtomicLong primarySessions = new AtomicLong();
+  private final AtomicLong staleRoutes = new AtomicLong();
+  private final AtomicLong pinnedRoutes = new AtomicLong();
+  private final AtomicLong checkFailures = new AtomicLong();
+
+  /**
+   * @return the node-wide router
+   */
+  public static ReplicaRouter getRouter() {
+    return router;
+  }
+
+  /** Choose the session factory for a read only session.
+   *
+   * @param primary        the primary session factory
+   * @param principalHref  principal the session is for
+   * @return the replica factory or primary if the replica is not available
+   *         or too far behind.
+   */
+  public SessionFactory route(final SessionFactory primary,
+                              final String principalHref) {
+    if (!enabled) {
+      return primary;
+    }
+
+    SessionFactory replica = getReplicaFactory();
+
+    if (replica == null) {
+      primarySessions.incrementAndGet();
+      return primary;
+    }
+
+    check(primary, replica);
+
+    if (stale) {
+      staleRoutes.incrementAndGet();
+      primarySessions.incrementAndGet();
+      return primary;
+    }
+
+    if (principalHref != null) {
+      String written = writes.get(principalHref);
+
+      if (written != null) {
+        String rt = replicaToken;
+
+        if ((rt == null) || (rt.compareTo(written) < 0)) {
+          pinnedRoutes.incrementAndGet();
+          primarySessions.incrementAndGet();
+          return primary;
+        }
+
+        // Replica has caught up
+        writes.remove(principalHref);
+      }
+    }
+
+    replicaSessions.incrementAndGet();
+    return replica;
+  }
+
+  /** Called after a transaction which updated collections has committed.
+   *
+   * @param principalHref
+   * @param timestamp  latest lastmod timestamp written
+   */
+  public void written(final String principalHref,
+                      final String timestamp) {
+    if (!enabled || (principalHref == null) || (timestamp == null)) {
+      return;
+    }
+
+    if (writes.size() >= maxWriters) {
+      /* Pinning is lost for everybody - route them all to the primary until
+       * the next check.
+       */
+      writes.clear();
+      stale = true;
+    }
+
+    String prev = writes.get(principalHref);
+
+    if ((prev == null) || (prev.compareTo(timestamp) < 0)) {
+      writes.put(principalHref, timestamp);
+    }
+  }
+
+  /**
+   * @param val true to route read only sessions to the replica
+   */
+  public void setEnabled(final boolean val) {
+    enabled = val;
+  }
+
+  /**
+   * @return true if routing to the replica
+   */
+  public boolean getEnabled() {
+    return enabled;
+  }
+
+  /**
+   * @param val hibernate configuration resource for the replica
+   */
+  public void setConfigResource(final String val) {
+    configResource = val;
+  }
+
+  /**
+   * @return hibernate configuration resource for the replica
+   */
+  public String getConfigResource() {
+    return configResource;
+  }
+
+  /**
+   * @param val millisecs the replica may fall behind
+   */
+  public void setStalenessBudget(final long val) {
+    stalenessBudget = val;
+  }
+
+  /**
+   * @return millisecs the replica may fall behind
+   */
+  public long getStalenessBudget() {
+    return stalenessBudget;
+  }
+
+  /**
+   * @param val millisecs between checks of the replica
+   */
+  public void setCheckInterval(final long val) {
+    checkInterval = val;
+  }
+
+  /**
+   * @return millisecs between checks of the replica
+   */
+  public long getCheckInterval() {
+    return checkInterval;
+  }
+
+  /**
+   * @return latest lastmod timestamp on the primary when last checked
+   */
+  public String getPrimaryToken() {
+    return primaryToken;
+  }
+
+  /**
+   * @return latest lastmod timestamp on the replica when last checked
+   */
+  public String getReplicaToken() {
+    return replicaToken;
+  }
+
+  /**
+   * @return true if the replica was too far behind when last checked
+   */
+  public boolean getStale() {
+    return stale;
+  }
+
+  /**
+   * @return millisecs since the latest update on the replica if it is
+   *         missing updates, 0 if it is up to date, -1 if unknown
+   */
+  public long getReplicaLag() {
+    return lag(primaryToken, replicaToken, System.currentTimeMillis());
+  }
+
+  /**
+   * @return number of sessions routed to the replica
+   */
+  public long getReplicaSessions() {
+    return replicaSessions.get();
+  }
+
+  /**
+   * @return number of read only sessions routed to the primary
+   */
+  public long getPrimarySessions() {
+    return primarySessions.get();
+  }
+
+  /**
+   * @return number routed to the primary because the replica was stale
+   */
+  public long getStaleRoutes() {
+    return staleRoutes.get();
+  }
+
+  /**
+   * @return number routed to the primary to read their own writes
+   */
+  public long getPinnedRoutes() {
+    return pinnedRoutes.get();
+  }
+
+  /**
+   * @return number of failed checks of the replica
+   */
+  public long getCheckFailures() {
+    return checkFailures.get();
+  }
+
+  /** Discard the replica session factory. It is rebuilt on next use if we
+   * are still enabled.
+   */
+  public void closeReplica() {
+    synchronized (initLock) {
+      if (replicaFactory != null) {
+        try {
+          replicaFactory.close();
+        } catch (Throwable t) {
+          getLogger().error(this, t);
+        }
+      }
+
+      replicaFactory = null;
+      stale = true;
+      lastCheck = 0;
+    }
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  /* Package visible for tests */
+  SessionFactory getReplicaFactory() {
+    if (replicaFactory != null) {
+      return replicaFactory;
+    }
+
+    synchronized (initLock) {
+      if (replicaFactory != null) {
+        return replicaFactory;
+      }
+
+      try {
+        replicaFactory = new Configuration().configure(configResource)
+                                            .buildSessionFactory();
+      } catch (Throwable t) {
+        getLogger().error("Unable to build replica session factory from " +
+                          configResource + " - disabling", t);
+        enabled = false;
+      }
+
+      return replicaFactory;
+    }
+  }
+
+  /* Fetch the latest tokens if it's time. Only one thread does the check -
+   * the others carry on with the last result.
+   */
+  private void check(final SessionFactory primary,
+                     final SessionFactory replica) {
+    long now = System.currentTimeMillis();
+
+    if ((now - lastCheck) < checkInterval) {
+      return;
+    }
+
+    synchronized (this) {
+      if ((now - lastCheck) < checkInterval) {
+        return;
+      }
+
+      lastCheck = now;
+
+      try {
+        String pt = getLatestToken(primary);
+        String rt = getLatestToken(replica);
+
+        primaryToken = pt;
+        replicaToken = rt;
+
+        long lag = lag(pt, rt, now);
+
+        stale = (lag < 0) || (lag > stalenessBudget);
+      } catch (Throwable t) {
+        checkFailures.incrementAndGet();
+        getLogger().error("Unable to check replica", t);
+        stale = true;
+      }
+    }
+  }
+
+  private String getLatestToken(final SessionFactory sf) {
+    Session sess = sf.openSession();
+
+    try {
+      return (String)sess.createQuery("select max(lm.timestamp) from " +
+                                      BwCollectionLastmod.class.getName() +
+                                      " lm").uniqueResult();
+    } finally {
+      sess.close();
+    }
+  }
+
+  /* If the replica is missing updates we can't tell when they were made. The
+   * lag returned is the age of the latest update the replica does have,
+   * which is an upper bound.
+   */
+  private long lag(final String pt,
+                   final String rt,
+                   final long now) {
+    if ((pt == null) || ((rt != null) && (rt.compareTo(pt) >= 0))) {
+      return 0;
+    }
+
+    if (rt == null) {
+      return -1;
+    }
+
+    try {
+      SimpleDateFormat fmt = new SimpleDateFormat("yyyyMMdd'T'HHmmss'Z'");
+      fmt.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+      return Math.max(0, now - fmt.parse(rt).getTime());
+    } catch (Throwable t) {
+      return -1;
+    }
+  }
+
+  private Logger getLogger() {
+    if (log == null) {
+      log = Logger.getLogger(this.getClass());
+    }
+
+    return log;
+  }
+}
@@ -0,0 +1,567 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+        
+    http://www.apache.org/licenses/LICENSE-2.0
+        
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.calcore.hibernate;
+
+import org.bedework.calfacade.BwCalendar;
+import org.bedework.calfacade.BwCategory;
+import org.bedework.calfacade.BwCollectionLastmod;
+import org.bedework.calfacade.BwContact;
+import org.bedework.calfacade.BwEvent;
+import org.bedework.calfacade.BwEventAnnotation;
+import org.bedework.calfacade.BwEventObj;
+import org.bedework.calfacade.BwRecurrenceInstance;
+import org.bedework.calfacade.BwResource;
+import org.bedework.calfacade.BwResourceContent;
+import org.bedework.calfacade.exc.CalFacadeException;
+
+import org.apache.log4j.Logger;
+import org.hibernate.LockMode;
+import org.hibernate.Query;
+import org.hibernate.ReplicationMode;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/** Move a collection subtree - usually a principal home - from one shard
+ * to another.
+ *
+ * <p>Entities are copied with their ids. Categories, locations and contacts
+ * they refer to are copied if the target does not have them, as are the
+ * ancestors of the subtree.
+ *
+ * <p>The lastmod rows of the subtree are locked in the source for the whole
+ * move so writers wait for us and then fail. Once the copy is committed the
+ * persisted rules are updated to point at the target. Only when every node
+ * has loaded them is the subtree removed from the source, in the same
+ * transaction that took the locks.
+ *
+ * <p>The owner should not be active while this runs. Annotations which refer
+ * to events outside the subtree, e.g. a public event added to a personal
+ * calendar, cannot be moved and cause the migration to fail.
+ *
+ * @author douglm
+ */
+public class ShardMigrator {
+  private static final int batchSize = 100;
+
+  private transient Logger log;
+
+  /* Shared entities already copied in this run */
+  private Set<Object> copiedRefs;
+
+  /* Entities of the subtree already copied in this run */
+  private Set<Object> copied;
+
+  /** Counts of what was moved */
+  public static class Result {
+    /** */
+    public int collections;
+    /** */
+    public int events;
+    /** */
+    public int annotations;
+    /** */
+    public int instances;
+    /** */
+    public int resources;
+
+    @Override
+    public String toString() {
+      return "collections=" + collections +
+             " events=" + events +
+             " annotations=" + annotations +
+             " instances=" + instances +
+             " resources=" + resources;
+    }
+  }
+
+  /** Move the subtree rooted at path to the given shard.
+   *
+   * @param path     root of the subtree
+   * @param toShard  name of target shard
+   * @return Result
+   * @throws CalFacadeException
+   */
+  public Result migrate(final String path,
+                        final String toShard) throws CalFacadeException {
+    ShardRouter router = ShardRouter.getRouter();
+    SessionFactory primary = CalintfImpl.getSessionFactory();
+    Result res = new Result();
+
+    if (!router.getEnabled()) {
+      throw new CalFacadeException("Shard routing is not enabled");
+    }
+
+    /* Make sure we are starting from the current rules */
+    router.refresh(primary);
+
+    String fromShard = router.getShard(path);
+
+    if (fromShard.equals(toShard)) {
+      return res;
+    }
+
+    copiedRefs = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+    copied = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+
+    Session from = router.getFactory(fromShard, primary).openSession();
+    Session to = null;
+    Transaction fromTx = null;
+    Transaction toTx = null;
+    boolean inTarget = false;
+    boolean switched = false;
+
+    try {
+      fromTx = from.beginTransaction();
+
+      List<BwCalendar> cols = getCollections(from, path);
+
+      if (cols.isEmpty()) {
+        throw new CalFacadeException("No collection " + path);
+      }
+
+      List<String> pathList = new ArrayList<String>();
+
+      for (BwCalendar col: cols) {
+        pathList.add(col.getPath());
+      }
+
+      /* Every change to an event touches its collection. Holding the lastmod
+       * rows until we commit makes writers wait and then fail rather than
+       * commit into the source behind our back.
+       */
+      for (int i = 0; i < pathList.size(); i += batchSize) {
+        lock(from, pathList.subList(i, Math.min(i + batchSize,
+                                                pathList.size())));
+      }
+
+      if (getCollections(from, path).size() != cols.size()) {
+        throw new CalFacadeException("Collections under " + path +
+                                     " changed while locking - try again");
+      }
+
+      Set<String> paths = new HashSet<String>(pathList);
+
+      to = router.getFactory(toShard, primary).openSession();
+      toTx = to.beginTransaction();
+
+      copyAncestors(from, to, path, fromShard, toShard);
+
+      for (BwCalendar col: cols) {
+        copyCollection(to, col, ReplicationMode.EXCEPTION);
+        res.collections++;
+      }
+
+      copyChunks(from, to, pathList, paths, res);
+
+      toTx.commit();
+      close(to);
+      to = null;
+      inTarget = true;
+
+      /* From now on the subtree is read from the target - on every node once
+       * they have picked up the rule. Until then we keep our locks and leave
+       * the source alone.
+       */
+      long version = router.saveRule(path, toShard, primary);
+      switched = true;
+
+      router.awaitNodes(version, primary);
+
+      /* Anything which got into the source without waiting for our locks
+       * goes over too. Nothing new arrives now all nodes use the target.
+       */
+      to = router.getFactory(toShard, primary).openSession();
+      toTx = to.beginTransaction();
+
+      copyChunks(from, to, pathList, paths, res);
+
+      toTx.commit();
+
+      for (int i = 0; i < pathList.size(); i += batchSize) {
+        deleteChunk(from, pathList.subList(i, Math.min(i + batchSize,
+                                                       pathList.size())));
+      }
+
+      /* Children before parents */
+      for (int i = cols.size() - 1; i >= 0; i--) {
+        from.delete(cols.get(i));
+      }
+
+      fromTx.commit();
+
+      SharedCollectionCache.getCache().removeTree(path);
+      AliasCache.getCache().removeTree(path);
+
+      getLogger().info("Moved " + path + " from shard " + fromShard +
+                       " to " + toShard + ": " + res);
+
+      return res;
+    } catch (Throwable t) {
+      rollback(toTx);
+      rollback(fromTx);
+
+      if (switched) {
+        /* The target is in use - we can't take it back */
+        getLogger().error("Moved " + path + " to shard " + toShard +
+                          " but failed to remove it from " + fromShard +
+                          " - it must be removed by hand", t);
+      } else if (inTarget) {
+        removeCopy(router.getFactory(toShard, primary), path);
+      }
+
+      if (t instanceof CalFacadeException) {
+        throw (CalFacadeException)t;
+      }
+
+      throw new CalFacadeException(t);
+    } finally {
+      close(from);
+      close(to);
+    }
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  /* The collection and all its descendants, parents before children */
+  @SuppressWarnings("unchecked")
+  private List<BwCalendar> getCollections(final Session sess,
+                                          final String path) {
+    Query q = sess.createQuery("from " + BwCalendar.class.getName() +
+                               " col where col.path=:path" +
+                               " or col.path like :like escape '!'" +
+                               " order by length(col.path)");
+
+    q.setString("path", path);
+    q.setString("like", path.replace("!", "!!")
+                            .replace("%", "!%")
+                            .replace("_", "!_") + "/%");
+
+    return q.list();
+  }
+
+  private BwCalendar getCollection(final Session sess,
+                                   final String path) {
+    Query q = sess.createQuery("from " + BwCalendar.class.getName() +
+                               " col where col.path=:path");
+
+    q.setString("path", path);
+
+    return (BwCalendar)q.uniqueResult();
+  }
+
+  /* The target needs the parents of the subtree for access checks. Those
+   * the source holds for real overwrite any old copy - the target's own or
+   * another shard's are left alone. Changes to their access are copied
+   * across as they happen.
+   */
+  private void copyAncestors(final Session from,
+                             final Session to,
+                             final String path,
+                             final String fromShard,
+                             final String toShard) {
+    ShardRouter router = ShardRouter.getRouter();
+    String p = path;
+
+    while (true) {
+      int pos = p.lastIndexOf("/");
+
+      if (pos <= 0) {
+        return;
+      }
+
+      p = p.substring(0, pos);
+
+      BwCalendar col = getCollection(from, p);
+
+      if (col == null) {
+        return;
+      }
+
+      String shard = router.getShard(p);
+
+      if (shard.equals(fromShard) && !shard.equals(toShard)) {
+        copyCollection(to, col, ReplicationMode.OVERWRITE);
+      } else {
+        copyCollection(to, col, ReplicationMode.IGNORE);
+      }
+    }
+  }
+
+  private void copyCollection(final Session to,
+                              final BwCalendar col,
+                              final ReplicationMode mode) {
+    copyCategories(to, col.getCategories());
+    to.replicate(col, mode);
+    to.replicate(col.getLastmod(), mode);
+  }
+
+  /* Lock the lastmods of the collections in the chunk */
+  private void lock(final Session sess,
+                    final List<String> chunk) {
+    Query q = sess.createQuery("from " + BwCollectionLastmod.class.getName() +
+                               " lm where lm.path in (:paths)");
+
+    q.setParameterList("paths", chunk);
+    q.setLockMode("lm", LockMode.UPGRADE);
+
+    q.list();
+  }
+
+  private void copyChunks(final Session from,
+                          final Session to,
+                          final List<String> pathList,
+                          final Set<String> paths,
+                          final Result res) throws CalFacadeException {
+    for (int i = 0; i < pathList.size(); i += batchSize) {
+      List<String> chunk = pathList.subList(i, Math.min(i + batchSize,
+                                                        pathList.size()));
+
+      copyChunk(from, to, chunk, paths, res);
+    }
+  }
+
+  /* Take back a copy the rules never pointed at */
+  private void removeCopy(final SessionFactory sf,
+                          final String path) {
+    Session sess = null;
+    Transaction tx = null;
+
+    try {
+      sess = sf.openSession();
+      tx = sess.beginTransaction();
+
+      List<BwCalendar> cols = getCollections(sess, path);
+      List<String> pathList = new ArrayList<String>();
+
+      for (BwCalendar col: cols) {
+        pathList.add(col.getPath());
+      }
+
+      for (int i = 0; i < pathList.size(); i += batchSize) {
+        deleteChunk(sess, pathList.subList(i, Math.min(i + batchSize,
+                                                       pathList.size())));
+      }
+
+      for (int i = cols.size() - 1; i >= 0; i--) {
+        sess.delete(cols.get(i));
+      }
+
+      tx.commit();
+    } catch (Throwable t) {
+      rollback(tx);
+      getLogger().error("Unable to remove the copy of " + path +
+                        " from the target - it must be removed by hand", t);
+    } finally {
+      close(sess);
+    }
+  }
+
+  /* Entities already copied are skipped so this can be run again to pick up
+   * anything added since.
+   */
+  @SuppressWarnings("unchecked")
+  private void copyChunk(final Session from,
+                         final Session to,
+                         final List<String> chunk,
+                         final Set<String> paths,
+                         final Result res) throws CalFacadeException {
+    for (BwEventObj ev: (List<BwEventObj>)list(from, BwEventObj.class,
+                                                "ev.colPath in (:paths)",
+                                                chunk)) {
+      if (!copied.add(ev)) {
+        continue;
+      }
+
+      copyRefs(to, ev);
+      to.replicate(ev, ReplicationMode.EXCEPTION);
+      res.events++;
+    }
+
+    for (BwEventAnnotation ann: (List<BwEventAnnotation>)list(from,
+                                                             BwEventAnnotation.class,
+                                                             "ev.colPath in (:paths)",
+                                                             chunk)) {
+      if (!copied.add(ann)) {
+        continue;
+      }
+
+      if (outside(ann.getTarget(), paths) || outside(ann.getMaster(), paths)) {
+        throw new CalFacadeException("Annotation " + ann.getColPath() + "/" +
+                                     ann.getName() +
+                                     " refers to an event outside the subtree");
+      }
+
+      copyRefs(to, ann);
+      to.replicate(ann, ReplicationMode.EXCEPTION);
+      res.annotations++;
+    }
+
+    for (Object ri: list(from, BwRecurrenceInstance.class,
+                         "ev.master.colPath in (:paths)", chunk)) {
+      if (!copied.add(ri)) {
+        continue;
+      }
+
+      to.replicate(ri, ReplicationMode.EXCEPTION);
+      res.instances++;
+    }
+
+    for (Object r: list(from, BwResource.class,
+                        "ev.colPath in (:paths)", chunk)) {
+      if (!copied.add(r)) {
+        continue;
+      }
+
+      to.replicate(r, ReplicationMode.EXCEPTION);
+      res.resources++;
+    }
+
+    for (Object rc: list(from, BwResourceContent.class,
+                         "ev.colPath in (:paths)", chunk)) {
+      if (!copied.add(rc)) {
+        continue;
+      }
+
+      to.replicate(rc, ReplicationMode.EXCEPTION);
+    }
+
+    to.flush();
+    to.clear();
+  }
+
+  private void deleteChunk(final Session from,
+                           final List<String> chunk) {
+    /* Instances refer to overrides which refer to their masters */
+    for (Object o: list(from, BwRecurrenceInstance.class,
+                        "ev.master.colPath in (:paths)", chunk)) {
+      from.delete(o);
+    }
+
+    for (Object o: list(from, BwEventAnnotation.class,
+                        "ev.colPath in (:paths)", chunk)) {
+      from.delete(o);
+    }
+
+    for (Object o: list(from, BwEventObj.class,
+                        "ev.colPath in (:paths)", chunk)) {
+      from.delete(o);
+    }
+
+    for (Object o: list(from, BwResourceContent.class,
+                        "ev.colPath in (:paths)", chunk)) {
+      from.delete(o);
+    }
+
+    for (Object o: list(from, BwResource.class,
+                        "ev.colPath in (:paths)", chunk)) {
+      from.delete(o);
+    }
+
+    from.flush();
+  }
+
+  private List<?> list(final Session sess,
+                       final Class<?> cl,
+                       final String where,
+                       final Collection<String> paths) {
+    Query q = sess.createQuery("from " + cl.getName() + " ev where " + where);
+
+    q.setParameterList("paths", paths);
+
+    return q.list();
+  }
+
+  /* Shared entities may already be in the target */
+  private void copyRefs(final Session to,
+                        final BwEvent ev) {
+    copyCategories(to, ev.getCategories());
+
+    copyRef(to, ev.getLocation());
+
+    if (ev.getContacts() != null) {
+      for (BwContact ct: ev.getContacts()) {
+        copyRef(to, ct);
+      }
+    }
+  }
+
+  private void copyCategories(final Session to,
+                              final Collection<BwCategory> cats) {
+    if (cats == null) {
+      return;
+    }
+
+    for (BwCategory cat: cats) {
+      copyRef(to, cat);
+    }
+  }
+
+  private void copyRef(final Session to,
+                       final Object val) {
+    if ((val == null) || !copiedRefs.add(val)) {
+      return;
+    }
+
+    to.replicate(val, ReplicationMode.IGNORE);
+  }
+
+  private boolean outside(final BwEvent ev,
+                          final Set<String> paths) {
+    return (ev != null) && !paths.contains(ev.getColPath());
+  }
+
+  private void rollback(final Transaction tx) {
+    try {
+      if ((tx != null) && tx.isActive()) {
+        tx.rollback();
+      }
+    } catch (Throwable t) {
+      getLogger().error(this, t);
+    }
+  }
+
+  private void close(final Session sess) {
+    try {
+      if (sess != null) {
+        sess.close();
+      }
+    } catch (Throwable t) {
+      getLogger().error(this, t);
+    }
+  }
+
+  private Logger getLogger() {
+    if (log == null) {
+      log = Logger.getLogger(this.getClass());
+    }
+
+    return log;
+  }
+}
@@ -0,0 +1,114 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+        
+    http://www.apache.org/licenses/LICENSE-2.0
+        
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.calcore.hibernate;
+
+import java.io.Serializable;
+
+/** Records the shard rules version each node has loaded. The migrator waits
+ * for every live node to catch up before removing moved data.
+ *
+ * @author douglm
+ */
+public class ShardNode implements Serializable {
+  private int id = -1;
+
+  private int seq;
+
+  private String node;
+
+  private long version;
+
+  private long lastSeen;
+
+  /**
+   * @param val id
+   */
+  public void setId(final int val) {
+    id = val;
+  }
+
+  /**
+   * @return id
+   */
+  public int getId() {
+    return id;
+  }
+
+  /**
+   * @param val hibernate version
+   */
+  public void setSeq(final int val) {
+    seq = val;
+  }
+
+  /**
+   * @return hibernate version
+   */
+  public int getSeq() {
+    return seq;
+  }
+
+  /**
+   * @param val node name
+   */
+  public void setNode(final String val) {
+    node = val;
+  }
+
+  /**
+   * @return node name
+   */
+  public String getNode() {
+    return node;
+  }
+
+  /**
+   * @param val rules version loaded by the node
+   */
+  public void setVersion(final long val) {
+    version = val;
+  }
+
+  /**
+   * @return rules version loaded by the node
+   */
+  public long getVersion() {
+    return version;
+  }
+
+  /**
+   * @param val millis when the node last checked the rules
+   */
+  public void setLastSeen(final long val) {
+    lastSeen = val;
+  }
+
+  /**
+   * @return millis when the node last checked the rules
+   */
+  public long getLastSeen() {
+    return lastSeen;
+  }
+
+  @Override
+  public String toString() {
+    return "ShardNode{" + node + " version=" + version +
+           " lastSeen=" + lastSeen + "}";
+  }
+}
@@ -0,0 +1,657 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+        
+    http://www.apache.org/licenses/LICENSE-2.0
+        
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.calcore.hibernate;
+
+import org.bedework.calfacade.exc.CalFacadeException;
+
+import org.apache.log4j.Logger;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.hibernate.cfg.Configuration;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Maps collection paths onto database shards.
+ *
+ * <p>A rule maps a path prefix - usually a principal home or a public
+ * subtree - onto a named shard. A path belongs to the shard of the longest
+ * rule prefix which is equal to it or one of its ancestors. Paths matching
+ * no rule, and everything which is not a collection or in one - principals,
+ * preferences, syspars etc - stay in the default shard.
+ *
+ * <p>Each shard other than the default has its own session factory built
+ * from a hibernate configuration resource named configPrefix + shard +
+ * ".cfg.xml". Every shard needs copies of the ancestor collections of the
+ * subtrees it holds and of the categories, locations and contacts referred
+ * to by its events. The service layer keeps these in step with the
+ * originals.
+ * Ids must be allocated from disjoint ranges in each shard so that entities
+ * can be moved between them. For testing each shard can be an embedded H2
+ * database.
+ *
+ * <p>The rules are held in the default shard - see {@link ShardRule} - and
+ * every node reloads them when a session is opened, at most once every
+ * refreshInterval millis. Each node records the version it has loaded -
+ * see {@link ShardNode} - so that the migrator can wait until every node
+ * routes a moved subtree to its new shard. A node which cannot check the
+ * rules cannot open sessions. A node not seen for nodeTimeout millis is
+ * taken to be gone. nodeTimeout must be longer than any request.
+ *
+ * @author douglm
+ */
+public class ShardRouter {
+  /** The shard which holds everything not mapped elsewhere */
+  public static final String defaultShard = "default";
+
+  private static final ShardRouter router = new ShardRouter();
+
+  private transient Logger log;
+
+  private volatile boolean enabled;
+
+  private volatile String configPrefix = "/hibernate.shard.";
+
+  /* path prefix -> shard. Replaced as a whole on change */
+  private volatile Map<String, String> rules = new HashMap<String, String>();
+
+  private volatile long refreshInterval = 5 * 1000;
+
+  private volatile long nodeTimeout = 5 * 60 * 1000;
+
+  /* Version of the persisted rules we loaded - -1 for none */
+  private volatile long rulesVersion = -1;
+
+  private volatile long lastRefresh;
+
+  /* What we last told the others we loaded and when */
+  private long ackedVersion = -1;
+  private long lastAck;
+
+  private final Object refreshLock = new Object();
+
+  private final String nodeName =
+    ManagementFactory.getRuntimeMXBean().getName();
+
+  private final Map<String, SessionFactory> factories =
+    new ConcurrentHashMap<String, SessionFactory>();
+
+  private final Object initLock = new Object();
+
+  /**
+   * @return the node-wide router
+   */
+  public static ShardRouter getRouter() {
+    return router;
+  }
+
+  /**
+   * @param val true to route by path
+   */
+  public void setEnabled(final boolean val) {
+    enabled = val;
+  }
+
+  /**
+   * @return true if routing by path
+   */
+  public boolean getEnabled() {
+    return enabled;
+  }
+
+  /**
+   * @param val prefix for shard configuration resources
+   */
+  public void setConfigPrefix(final String val) {
+    configPrefix = val;
+  }
+
+  /**
+   * @return prefix for shard configuration resources
+   */
+  public String getConfigPrefix() {
+    return configPrefix;
+  }
+
+  /**
+   * @param val millis between checks for changed rules
+   */
+  public void setRefreshInterval(final long val) {
+    refreshInterval = val;
+  }
+
+  /**
+   * @return millis between checks for changed rules
+   */
+  public long getRefreshInterval() {
+    return refreshInterval;
+  }
+
+  /**
+   * @param val millis after which a node which has not checked the rules is
+   *            taken to be gone
+   */
+  public void setNodeTimeout(final long val) {
+    nodeTimeout = val;
+  }
+
+  /**
+   * @return millis after which a silent node is taken to be gone
+   */
+  public long getNodeTimeout() {
+    return nodeTimeout;
+  }
+
+  /**
+   * @return version of the persisted rules in use - -1 for none
+   */
+  public long getRulesVersion() {
+    return rulesVersion;
+  }
+
+  /**
+   * @return name of this node
+   */
+  public String getNodeName() {
+    return nodeName;
+  }
+
+  /** Reload the rules from the default shard if they have changed since
+   * we last looked. Does nothing if we looked in the last refreshInterval
+   * millis.
+   *
+   * @param primary  factory for the default shard
+   * @throws CalFacadeException if the rules cannot be checked
+   */
+  public void refresh(final SessionFactory primary) throws CalFacadeException {
+    if (!enabled ||
+        (System.currentTimeMillis() - lastRefresh < refreshInterval)) {
+      return;
+    }
+
+    synchronized (refreshLock) {
+      long now = System.currentTimeMillis();
+
+      if (now - lastRefresh < refreshInterval) {
+        return;
+      }
+
+      Session sess = null;
+      Transaction tx = null;
+
+      try {
+        sess = primary.openSession();
+        tx = sess.beginTransaction();
+
+        long version = getVersion(sess);
+
+        if (version != rulesVersion) {
+          Map<String, String> r = new HashMap<String, String>();
+
+          for (ShardRule rule: getRules(sess)) {
+            if (!defaultShard.equals(rule.getShard())) {
+              r.put(rule.getPrefix(), rule.getShard());
+            }
+          }
+
+          rules = r;
+          rulesVersion = version;
+
+          getLogger().info("Loaded shard rules version " + version +
+                           ": " + r);
+        }
+
+        /* Let the others know - but not on every check */
+        boolean ack = (ackedVersion != version) ||
+                      (now - lastAck > nodeTimeout / 4);
+
+        if (ack) {
+          ShardNode node = (ShardNode)sess.createQuery(
+                  "from " + ShardNode.class.getName() +
+                  " n where n.node=:node")
+              .setString("node", nodeName)
+              .uniqueResult();
+
+          if (node == null) {
+            node = new ShardNode();
+            node.setNode(nodeName);
+          }
+
+          node.setVersion(version);
+          node.setLastSeen(now);
+
+          sess.saveOrUpdate(node);
+        }
+
+        tx.commit();
+
+        lastRefresh = now;
+
+        if (ack) {
+          ackedVersion = version;
+          lastAck = now;
+        }
+      } catch (Throwable t) {
+        rollback(tx);
+        getLogger().error("Unable to check shard rules", t);
+        throw new CalFacadeException(t);
+      } finally {
+        close(sess);
+      }
+    }
+  }
+
+  /** Add or replace the rule for a path prefix in the default shard and
+   * start using it. Other nodes pick it up on their next refresh. Mapping a
+   * prefix onto the default shard removes any rule for it.
+   *
+   * @param prefix
+   * @param shard
+   * @param primary  factory for the default shard
+   * @return version of the rules with this change
+   * @throws CalFacadeException
+   */
+  public long saveRule(final String prefix,
+                       final String shard,
+                       final SessionFactory primary) throws CalFacadeException {
+    String sh = shard;
+
+    if (sh == null) {
+      sh = defaultShard;
+    }
+
+    Session sess = null;
+    Transaction tx = null;
+    long version;
+
+    try {
+      sess = primary.openSession();
+      tx = sess.beginTransaction();
+
+      version = getVersion(sess) + 1;
+
+      ShardRule rule = (ShardRule)sess.createQuery(
+              "from " + ShardRule.class.getName() +
+              " r where r.prefix=:prefix")
+          .setString("prefix", prefix)
+          .uniqueResult();
+
+      if (rule == null) {
+        rule = new ShardRule();
+        rule.setPrefix(prefix);
+      }
+
+      rule.setShard(sh);
+      rule.setVersion(version);
+
+      sess.saveOrUpdate(rule);
+
+      tx.commit();
+    } catch (Throwable t) {
+      rollback(tx);
+      throw new CalFacadeException(t);
+    } finally {
+      close(sess);
+    }
+
+    lastRefresh = 0;
+    refresh(primary);
+
+    return version;
+  }
+
+  /** Wait until every live node has loaded at least the given version of
+   * the rules. A node which stops checking is taken to be gone after
+   * nodeTimeout millis so this always returns in the end.
+   *
+   * @param version
+   * @param primary  factory for the default shard
+   * @throws CalFacadeException
+   */
+  public void awaitNodes(final long version,
+                         final SessionFactory primary) throws CalFacadeException {
+    while (true) {
+      lastRefresh = 0;
+      refresh(primary);
+
+      List<String> behind = new ArrayList<String>();
+      long now = System.currentTimeMillis();
+
+      Session sess = null;
+
+      try {
+        sess = primary.openSession();
+
+        for (Object o: sess.createQuery("from " +
+                                        ShardNode.class.getName()).list()) {
+          ShardNode node = (ShardNode)o;
+
+          if ((node.getVersion() < version) &&
+              (now - node.getLastSeen() < nodeTimeout)) {
+            behind.add(node.getNode());
+          }
+        }
+      } catch (Throwable t) {
+        throw new CalFacadeException(t);
+      } finally {
+        close(sess);
+      }
+
+      if (behind.isEmpty()) {
+        return;
+      }
+
+      getLogger().info("Waiting for nodes " + behind +
+                       " to load shard rules version " + version);
+
+      try {
+        Thread.sleep(Math.max(100, refreshInterval / 2));
+      } catch (InterruptedException ie) {
+        throw new CalFacadeException(ie);
+      }
+    }
+  }
+
+  /** Find the shard for a collection or entity path.
+   *
+   * @param path
+   * @return shard name - never null
+   */
+  public String getShard(final String path) {
+    if (!enabled || (path == null)) {
+      return defaultShard;
+    }
+
+    Map<String, String> r = rules;
+
+    if (r.isEmpty()) {
+      return defaultShard;
+    }
+
+    String p = path;
+
+    if (p.endsWith("/") && (p.length() > 1)) {
+      p = p.substring(0, p.length() - 1);
+    }
+
+    while (p.length() > 0) {
+      String shard = r.get(p);
+
+      if (shard != null) {
+        return shard;
+      }
+
+      int pos = p.lastIndexOf("/");
+
+      if (pos <= 0) {
+        break;
+      }
+
+      p = p.substring(0, pos);
+    }
+
+    return defaultShard;
+  }
+
+  /**
+   * @return names of all shards including the default
+   */
+  public Set<String> getShards() {
+    Set<String> shards = new TreeSet<String>();
+
+    shards.add(defaultShard);
+
+    if (enabled) {
+      shards.addAll(rules.values());
+    }
+
+    return shards;
+  }
+
+  /** Find the subtrees directly below the given collection which are held
+   * in a shard other than the collection's.
+   *
+   * @param parentPath
+   * @return paths - never null
+   */
+  public Collection<String> getMounts(final String parentPath) {
+    Collection<String> res = new ArrayList<String>();
+
+    if (!enabled || (parentPath == null)) {
+      return res;
+    }
+
+    Map<String, String> r = rules;
+
+    if (r.isEmpty()) {
+      return res;
+    }
+
+    String parentShard = getShard(parentPath);
+
+    for (String prefix: r.keySet()) {
+      int pos = prefix.lastIndexOf("/");
+
+      if ((pos <= 0) || !prefix.substring(0, pos).equals(parentPath)) {
+        continue;
+      }
+
+      if (!r.get(prefix).equals(parentShard)) {
+        res.add(prefix);
+      }
+    }
+
+    return res;
+  }
+
+  /** Find the shards holding subtrees below the given collection, other
+   * than the collection's own. Each has a copy of the collection for access
+   * checks.
+   *
+   * @param path
+   * @return shard names - never null
+   */
+  public Set<String> getShardsBelow(final String path) {
+    Set<String> res = new TreeSet<String>();
+
+    if (!enabled || (path == null)) {
+      return res;
+    }
+
+    Map<String, String> r = rules;
+    String prefix = path;
+
+    if (!prefix.endsWith("/")) {
+      prefix += "/";
+    }
+
+    for (String p: r.keySet()) {
+      if (p.startsWith(prefix)) {
+        res.add(r.get(p));
+      }
+    }
+
+    res.remove(getShard(path));
+
+    return res;
+  }
+
+  /**
+   * @return path prefix to shard for each rule
+   */
+  public Map<String, String> getRules() {
+    return Collections.unmodifiableMap(new TreeMap<String, String>(rules));
+  }
+
+  /** Add or replace the rule for a path prefix on this node only. It is
+   * replaced when the persisted rules next change - use saveRule to change
+   * the rules for all nodes. Mapping a prefix onto the default shard
+   * removes any rule for it.
+   *
+   * @param prefix
+   * @param shard
+   */
+  public synchronized void setRule(final String prefix,
+                                   final String shard) {
+    Map<String, String> r = new HashMap<String, String>(rules);
+
+    if ((shard == null) || defaultShard.equals(shard)) {
+      r.remove(prefix);
+    } else {
+      r.put(prefix, shard);
+    }
+
+    rules = r;
+  }
+
+  /** Replace all the rules on this node only - see setRule.
+   *
+   * @param val path prefix to shard
+   */
+  public synchronized void setRules(final Map<String, String> val) {
+    Map<String, String> r = new HashMap<String, String>();
+
+    for (String prefix: val.keySet()) {
+      String shard = val.get(prefix);
+
+      if ((shard != null) && !defaultShard.equals(shard)) {
+        r.put(prefix, shard);
+      }
+    }
+
+    rules = r;
+  }
+
+  /** Get the session factory for the given shard.
+   *
+   * @param shard
+   * @param primary  factory for the default shard
+   * @return SessionFactory
+   * @throws CalFacadeException
+   */
+  public SessionFactory getFactory(final String shard,
+                                   final SessionFactory primary) throws CalFacadeException {
+    if ((shard == null) || defaultShard.equals(shard)) {
+      return primary;
+    }
+
+    SessionFactory sf = factories.get(shard);
+
+    if (sf != null) {
+      return sf;
+    }
+
+    synchronized (initLock) {
+      sf = factories.get(shard);
+
+      if (sf != null) {
+        return sf;
+      }
+
+      String resource = configPrefix + shard + ".cfg.xml";
+
+      try {
+        sf = new Configuration().configure(resource).buildSessionFactory();
+      } catch (Throwable t) {
+        getLogger().error("Unable to build session factory for shard " +
+                          shard + " from " + resource, t);
+        throw new CalFacadeException(t);
+      }
+
+      factories.put(shard, sf);
+
+      return sf;
+    }
+  }
+
+  /** Close the session factory for a shard. It is rebuilt on next use.
+   *
+   * @param shard
+   */
+  public void closeShard(final String shard) {
+    synchronized (initLock) {
+      SessionFactory sf = factories.remove(shard);
+
+      if (sf == null) {
+        return;
+      }
+
+      try {
+        sf.close();
+      } catch (Throwable t) {
+        getLogger().error(this, t);
+      }
+    }
+  }
+
+  private long getVersion(final Session sess) {
+    Long l = (Long)sess.createQuery("select max(r.version) from " +
+                                    ShardRule.class.getName() + " r")
+        .uniqueResult();
+
+    if (l == null) {
+      return 0;
+    }
+
+    return l;
+  }
+
+  @SuppressWarnings("unchecked")
+  private List<ShardRule> getRules(final Session sess) {
+    return sess.createQuery("from " + ShardRule.class.getName()).list();
+  }
+
+  private void rollback(final Transaction tx) {
+    try {
+      if ((tx != null) && tx.isActive()) {
+        tx.rollback();
+      }
+    } catch (Throwable t) {
+      getLogger().error(this, t);
+    }
+  }
+
+  private void close(final Session sess) {
+    try {
+      if ((sess != null) && sess.isOpen()) {
+        sess.close();
+      }
+    } catch (Throwable t) {
+      getLogger().error(this, t);
+    }
+  }
+
+  private Logger getLogger() {
+    if (log == null) {
+      log = Logger.getLogger(this.getClass());
+    }
+
+    return log;
+  }
+}
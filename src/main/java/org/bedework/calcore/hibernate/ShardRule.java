@@ -0,0 +1,117 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+        
+    http://www.apache.org/licenses/LICENSE-2.0
+        
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.calcore.hibernate;
+
+import java.io.Serializable;
+
+/** A persisted shard rule mapping a path prefix onto a shard. Every change
+ * is stamped with a version one greater than any before it so that nodes
+ * can tell when to reload.
+ *
+ * <p>A rule mapping a prefix onto the default shard is kept rather than
+ * deleted so the version is not lost.
+ *
+ * @author douglm
+ */
+public class ShardRule implements Serializable {
+  private int id = -1;
+
+  private int seq;
+
+  private String prefix;
+
+  private String shard;
+
+  private long version;
+
+  /**
+   * @param val id
+   */
+  public void setId(final int val) {
+    id = val;
+  }
+
+  /**
+   * @return id
+   */
+  public int getId() {
+    return id;
+  }
+
+  /**
+   * @param val hibernate version
+   */
+  public void setSeq(final int val) {
+    seq = val;
+  }
+
+  /**
+   * @return hibernate version
+   */
+  public int getSeq() {
+    return seq;
+  }
+
+  /**
+   * @param val collection path prefix
+   */
+  public void setPrefix(final String val) {
+    prefix = val;
+  }
+
+  /**
+   * @return collection path prefix
+   */
+  public String getPrefix() {
+    return prefix;
+  }
+
+  /**
+   * @param val shard name
+   */
+  public void setShard(final String val) {
+    shard = val;
+  }
+
+  /**
+   * @return shard name
+   */
+  public String getShard() {
+    return shard;
+  }
+
+  /**
+   * @param val rules version at which this was last changed
+   */
+  public void setVersion(final long val) {
+    version = val;
+  }
+
+  /**
+   * @return rules version at which this was last changed
+   */
+  public long getVersion() {
+    return version;
+  }
+
+  @Override
+  public String toString() {
+    return "ShardRule{" + prefix + "=" + shard + " version=" + version + "}";
+  }
+}
@@ -0,0 +1,309 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+        
+    http://www.apache.org/licenses/LICENSE-2.0
+        
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.calcore.hibernate;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** A node-wide map from collection path to the collection id and the
+ * lastmod token it had when last loaded.
+ *
+ * <p>Collection objects are attached to a hibernate session and cannot be
+ * shared. What we share is an immutable snapshot of the identity and token.
+ * A session which does not have the collection can then fetch it by id,
+ * usually from the second level cache, rather than running a query. The
+ * token of the fetched object must match the snapshot or we go to the
+ * database.
+ *
+ * <p>Entries are removed when the collection is touched, updated, moved or
+ * deleted.
+ *
+ * <p>We also total the counts from the per-session collection caches here
+ * so they can be reported for the node.
+ *
+ * @author douglm
+ */
+public class SharedCollectionCache {
+  private static final SharedCollectionCache cache = new SharedCollectionCache();
+
+  /** Immutable snapshot */
+  public static class Entry {
+    final int id;
+    final String token;
+
+    Entry(final int id, final String token) {
+      this.id = id;
+      this.token = token;
+    }
+  }
+
+  private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+  private volatile int maxEntries = 20000;
+
+  private volatile boolean enabled = true;
+
+  private final AtomicLong loads = new AtomicLong();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong stale = new AtomicLong();
+  private final AtomicLong invalidations = new AtomicLong();
+
+  /* Totals from the per-session caches */
+  private final AtomicLong sessionLoads = new AtomicLong();
+  private final AtomicLong sessionHits = new AtomicLong();
+  private final AtomicLong tokenQueries = new AtomicLong();
+  private final AtomicLong tokenChecks = new AtomicLong();
+  private final AtomicLong tokenFailures = new AtomicLong();
+
+  /**
+   * @return the node-wide cache
+   */
+  public static SharedCollectionCache getCache() {
+    return cache;
+  }
+
+  /**
+   * @param path
+   * @return entry or null
+   */
+  public Entry get(final String path) {
+    if (!enabled) {
+      return null;
+    }
+
+    Entry e = entries.get(path);
+
+    if (e == null) {
+      misses.incrementAndGet();
+    }
+
+    return e;
+  }
+
+  /** Called when a snapshot was used
+   */
+  public void hit() {
+    hits.incrementAndGet();
+  }
+
+  /** Called when a session cache loaded a collection from the database
+   */
+  public void sessionLoad() {
+    sessionLoads.incrementAndGet();
+  }
+
+  /** Called when a session cache returned a collection it held
+   */
+  public void sessionHit() {
+    sessionHits.incrementAndGet();
+  }
+
+  /** Called when a session cache checked the tokens of the collections it
+   * held.
+   *
+   * @param checked  number of collections checked
+   * @param failed   number found changed or gone
+   */
+  public void tokenCheck(final int checked, final int failed) {
+    tokenQueries.incrementAndGet();
+    tokenChecks.addAndGet(checked);
+    tokenFailures.addAndGet(failed);
+  }
+
+  /** Called when a snapshot didn't match the fetched collection
+   *
+   * @param path
+   */
+  public void stale(final String path) {
+    stale.incrementAndGet();
+    entries.remove(path);
+  }
+
+  /**
+   * @param path
+   * @param id
+   * @param token
+   */
+  public void put(final String path, final int id, final String token) {
+    if (!enabled) {
+      return;
+    }
+
+    loads.incrementAndGet();
+
+    if (entries.size() >= maxEntries) {
+      entries.clear();
+    }
+
+    entries.put(path, new Entry(id, token));
+  }
+
+  /**
+   * @param path
+   */
+  public void remove(final String path) {
+    if (path == null) {
+      return;
+    }
+
+    invalidations.incrementAndGet();
+    entries.remove(path);
+  }
+
+  /** Remove the path and everything below it
+   *
+   * @param path
+   */
+  public void removeTree(final String path) {
+    if (path == null) {
+      return;
+    }
+
+    remove(path);
+
+    String prefix = path + "/";
+
+    Iterator<String> it = entries.keySet().iterator();
+
+    while (it.hasNext()) {
+      if (it.next().startsWith(prefix)) {
+        it.remove();
+      }
+    }
+  }
+
+  /** Discard everything
+   */
+  public void clear() {
+    invalidations.incrementAndGet();
+    entries.clear();
+  }
+
+  /**
+   * @param val false to disable
+   */
+  public void setEnabled(final boolean val) {
+    enabled = val;
+
+    if (!val) {
+      clear();
+    }
+  }
+
+  /**
+   * @return true if enabled
+   */
+  public boolean getEnabled() {
+    return enabled;
+  }
+
+  /**
+   * @param val maximum number of paths held
+   */
+  public void setMaxEntries(final int val) {
+    maxEntries = val;
+  }
+
+  /**
+   * @return maximum number of paths held
+   */
+  public int getMaxEntries() {
+    return maxEntries;
+  }
+
+  /**
+   * @return number of paths held
+   */
+  public int getSize() {
+    return entries.size();
+  }
+
+  /**
+   * @return number of snapshots loaded
+   */
+  public long getLoads() {
+    return loads.get();
+  }
+
+  /**
+   * @return number of times a snapshot was used
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * @return number of lookups with no snapshot
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * @return number of snapshots found to be out of date
+   */
+  public long getStale() {
+    return stale.get();
+  }
+
+  /**
+   * @return number of invalidations
+   */
+  public long getInvalidations() {
+    return invalidations.get();
+  }
+
+  /**
+   * @return number of collections loaded from the database by sessions
+   */
+  public long getSessionLoads() {
+    return sessionLoads.get();
+  }
+
+  /**
+   * @return number of collections found in session caches
+   */
+  public long getSessionHits() {
+    return sessionHits.get();
+  }
+
+  /**
+   * @return number of token check queries run by sessions
+   */
+  public long getTokenQueries() {
+    return tokenQueries.get();
+  }
+
+  /**
+   * @return number of collection tokens checked
+   */
+  public long getTokenChecks() {
+    return tokenChecks.get();
+  }
+
+  /**
+   * @return number of token checks which found the collection changed or gone
+   */
+  public long getTokenFailures() {
+    return tokenFailures.get();
+  }
+}
@@ -0,0 +1,473 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+        
+    http://www.apache.org/licenses/LICENSE-2.0
+        
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.calcore.hibernate;
+
+import org.bedework.calfacade.base.BwUnversionedDbentity;
+
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.regex.Pattern;
+
+/** Log of queries which took longer than a threshold.
+ *
+ * <p>Each slow query is recorded with its text, bound parameters, row count,
+ * elapsed time and the core method which ran it, in a ring buffer of the
+ * most recent entries. Values of parameters whose names match the redact
+ * pattern are not recorded.
+ *
+ * <p>Entries may also be logged at INFO to the category
+ * org.bedework.calcore.slowquery. A log4j RollingFileAppender on that
+ * category gives a rotating file.
+ *
+ * <p>Queries which fail - including those cancelled by the query timeout -
+ * are always recorded, whatever their elapsed time, with an error marker.
+ *
+ * <p>Below the threshold the only cost is holding on to the parameter
+ * values until the query has run.
+ *
+ * @author douglm
+ */
+public class SlowQueryLog {
+  private static final SlowQueryLog slowLog = new SlowQueryLog();
+
+  private static final String logCategory =
+      "org.bedework.calcore.slowquery";
+
+  private volatile boolean enabled = true;
+
+  private volatile long threshold = 500;
+
+  private volatile boolean logToFile;
+
+  private volatile Pattern redact =
+      Pattern.compile("(?i).*(password|principal|owner|email|href).*");
+
+  private volatile AtomicReferenceArray<Entry> entries =
+      new AtomicReferenceArray<Entry>(200);
+
+  private final AtomicLong next = new AtomicLong();
+
+  private final AtomicLong slowQueries = new AtomicLong();
+
+  private final AtomicLong failedQueries = new AtomicLong();
+
+  /* Max number of values shown for a list parameter */
+  private static final int maxListValues = 10;
+
+  /** A slow query.
+   */
+  public static class Entry {
+    private final long time;
+    private final long millis;
+    private final long rows;
+    private final String query;
+    private final String pars;
+    private final String caller;
+    private final String error;
+
+    Entry(final long millis,
+          final long rows,
+          final String query,
+          final String pars,
+          final String caller,
+          final String error) {
+      time = System.currentTimeMillis();
+      this.millis = millis;
+      this.rows = rows;
+      this.query = query;
+      this.pars = pars;
+      this.caller = caller;
+      this.error = error;
+    }
+
+    /**
+     * @return when the query finished
+     */
+    public long getTime() {
+      return time;
+    }
+
+    /**
+     * @return millisecs taken
+     */
+    public long getMillis() {
+      return millis;
+    }
+
+    /**
+     * @return rows returned or updated
+     */
+    public long getRows() {
+      return rows;
+    }
+
+    /**
+     * @return named query name or query text
+     */
+    public String getQuery() {
+      return query;
+    }
+
+    /**
+     * @return bound parameters
+     */
+    public String getPars() {
+      return pars;
+    }
+
+    /**
+     * @return methods which ran the query
+     */
+    public String getCaller() {
+      return caller;
+    }
+
+    /**
+     * @return null for a query which completed, otherwise what went wrong
+     */
+    public String getError() {
+      return error;
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder sb = new StringBuilder();
+
+      sb.append(new Date(time));
+      sb.append(" ms=");
+      sb.append(millis);
+      sb.append(" rows=");
+      sb.append(rows);
+      sb.append(" caller=");
+      sb.append(caller);
+      if (error != null) {
+        sb.append(" error=");
+        sb.append(error);
+      }
+      sb.append("\n    ");
+      sb.append(query);
+      sb.append("\n    pars: ");
+      sb.append(pars);
+
+      return sb.toString();
+    }
+  }
+
+  private SlowQueryLog() {
+  }
+
+  /**
+   * @return the node-wide log
+   */
+  public static SlowQueryLog getLog() {
+    return slowLog;
+  }
+
+  /**
+   * @return true if recording slow queries
+   */
+  public boolean getEnabled() {
+    return enabled;
+  }
+
+  /**
+   * @param val true to record slow queries
+   */
+  public void setEnabled(final boolean val) {
+    enabled = val;
+  }
+
+  /**
+   * @param val millisecs above which a query is recorded
+   */
+  public void setThreshold(final long val) {
+    threshold = val;
+  }
+
+  /**
+   * @return millisecs above which a query is recorded
+   */
+  public long getThreshold() {
+    return threshold;
+  }
+
+  /**
+   * @param val true to also log slow queries
+   */
+  public void setLogToFile(final boolean val) {
+    logToFile = val;
+  }
+
+  /**
+   * @return true if also logging slow queries
+   */
+  public boolean getLogToFile() {
+    return logToFile;
+  }
+
+  /**
+   * @param val regular expression - values of parameters with matching
+   *            names are not recorded
+   */
+  public void setRedact(final String val) {
+    redact = Pattern.compile(val);
+  }
+
+  /**
+   * @return regular expression for parameters not recorded
+   */
+  public String getRedact() {
+    return redact.pattern();
+  }
+
+  /** Change the number of entries kept. Discards the current entries.
+   *
+   * @param val number of entries kept
+   */
+  public void setCapacity(final int val) {
+    entries = new AtomicReferenceArray<Entry>(Math.max(1, val));
+  }
+
+  /**
+   * @return number of entries kept
+   */
+  public int getCapacity() {
+    return entries.length();
+  }
+
+  /**
+   * @return number of slow queries seen
+   */
+  public long getSlowQueries() {
+    return slowQueries.get();
+  }
+
+  /**
+   * @return number of failed queries seen
+   */
+  public long getFailedQueries() {
+    return failedQueries.get();
+  }
+
+  /** Record the query if it was slow.
+   *
+   * @param query  named query name or query text
+   * @param pars   parameter names and values alternately - may be null
+   * @param nanos  time taken
+   * @param rows   rows returned or updated
+   */
+  public void check(final String query,
+                    final List<Object> pars,
+                    final long nanos,
+                    final long rows) {
+    long millis = nanos / 1000000;
+
+    if (!enabled || (millis < threshold)) {
+      return;
+    }
+
+    slowQueries.incrementAndGet();
+
+    add(new Entry(millis, rows, query, formatPars(pars), getCaller(), null));
+  }
+
+  /** Record a query which failed.
+   *
+   * @param query  named query name or query text
+   * @param pars   parameter names and values alternately - may be null
+   * @param nanos  time taken
+   * @param error  marker for the failure - e.g. "timeout"
+   */
+  public void failed(final String query,
+                     final List<Object> pars,
+                     final long nanos,
+                     final String error) {
+    if (!enabled) {
+      return;
+    }
+
+    failedQueries.incrementAndGet();
+
+    add(new Entry(nanos / 1000000, 0, query, formatPars(pars), getCaller(),
+                  error));
+  }
+
+  private void add(final Entry ent) {
+    AtomicReferenceArray<Entry> ents = entries;
+
+    ents.set((int)(next.getAndIncrement() % ents.length()), ent);
+
+    if (logToFile) {
+      Logger.getLogger(logCategory).info(ent.toString());
+    }
+  }
+
+  /**
+   * @return recorded entries, most recent first
+   */
+  public List<Entry> getEntries() {
+    AtomicReferenceArray<Entry> ents = entries;
+    int len = ents.length();
+    long last = next.get();
+
+    List<Entry> l = new ArrayList<Entry>();
+
+    for (long i = last - 1; (i >= 0) && (i >= last - len); i--) {
+      Entry ent = ents.get((int)(i % len));
+
+      if (ent != null) {
+        l.add(ent);
+      }
+    }
+
+    return l;
+  }
+
+  /**
+   * @return text dump of the entries, most recent first
+   */
+  public String dump() {
+    StringBuilder sb = new StringBuilder();
+
+    for (Entry ent: getEntries()) {
+      sb.append(ent.toString());
+      sb.append("\n");
+    }
+
+    return sb.toString();
+  }
+
+  /** Discard the entries.
+   */
+  public void clear() {
+    setCapacity(getCapacity());
+  }
+
+  private String formatPars(final List<Object> pars) {
+    if ((pars == null) || pars.isEmpty()) {
+      return "";
+    }
+
+    StringBuilder sb = new StringBuilder();
+    Pattern rp = redact;
+
+    for (int i = 0; i + 1 < pars.size(); i += 2) {
+      String name = String.valueOf(pars.get(i));
+
+      if (i > 0) {
+        sb.append(", ");
+      }
+
+      sb.append(name);
+      sb.append("=");
+
+      if (rp.matcher(name).matches()) {
+        sb.append("***");
+      } else {
+        formatVal(sb, pars.get(i + 1));
+      }
+    }
+
+    return sb.toString();
+  }
+
+  private void formatVal(final StringBuilder sb, final Object val) {
+    if (val instanceof BwUnversionedDbentity) {
+      /* Avoid toString - it may touch lazy properties */
+      sb.append(val.getClass().getSimpleName());
+      sb.append("#");
+      sb.append(((BwUnversionedDbentity)val).getId());
+      return;
+    }
+
+    if (!(val instanceof Collection)) {
+      sb.append(val);
+      return;
+    }
+
+    Collection c = (Collection)val;
+
+    sb.append("(");
+    sb.append(c.size());
+    sb.append(")[");
+
+    Iterator it = c.iterator();
+    for (int i = 0; (i < maxListValues) && it.hasNext(); i++) {
+      if (i > 0) {
+        sb.append(", ");
+      }
+
+      formatVal(sb, it.next());
+    }
+
+    if (it.hasNext()) {
+      sb.append(", ...");
+    }
+
+    sb.append("]");
+  }
+
+  /* The first core method outside the session and the first caller
+   * outside the core.
+   */
+  private String getCaller() {
+    StackTraceElement[] st = new Throwable().getStackTrace();
+
+    String core = null;
+    String pkg = SlowQueryLog.class.getPackage().getName();
+
+    for (StackTraceElement el: st) {
+      String cl = el.getClassName();
+
+      if (cl.equals(SlowQueryLog.class.getName()) ||
+          cl.equals(HibSessionImpl.class.getName())) {
+        continue;
+      }
+
+      String meth = cl.substring(cl.lastIndexOf('.') + 1) + "." +
+                    el.getMethodName();
+
+      if (cl.startsWith(pkg)) {
+        if (core == null) {
+          core = meth;
+        }
+        continue;
+      }
+
+      if (core == null) {
+        return meth;
+      }
+
+      return core + " <- " + meth;
+    }
+
+    if (core == null) {
+      return "unknown";
+    }
+
+    return core;
+  }
+}
@@ -95,6 +95,39 @@ public interface Calintf extends CoreCalendarsI, CoreEventsI {
    */
   public boolean getSuperUser();
 
+  /** Connect this interface to the named database shard. Must be called
+   * before it is opened.
+   *
+   * @param val shard name
+   * @throws CalFacadeException
+   */
+  public void setShard(String val) throws CalFacadeException;
+
+  /**
+   *
+   * @return name of the shard we connect to
+   */
+  public String getShard();
+
+  /** Mark this interface as read only. Sessions opened after this may be
+   * routed to a replica database and updates will be rejected.
+   *
+   * @param val
+   */
+  public void setReadOnly(boolean val);
+
+  /**
+   *
+   * @return boolean true if read only
+   */
+  public boolean getReadOnly();
+
+  /**
+   *
+   * @return boolean true if this transaction has made updates
+   */
+  public boolean getUpdated();
+
   /**
    * @param val
    */
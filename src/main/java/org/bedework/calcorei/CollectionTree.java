@@ -0,0 +1,158 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+        
+    http://www.apache.org/licenses/LICENSE-2.0
+        
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.calcorei;
+
+import org.bedework.calfacade.BwCalendar;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/** A collection subtree retrieved in one operation and assembled in memory.
+ * Collections are added parent first. A collection whose parent is not in the
+ * tree is dropped, so that removing an inaccessible collection also hides its
+ * descendants.
+ *
+ * @author Mike Douglass
+ */
+public class CollectionTree implements Serializable {
+  private BwCalendar root;
+
+  private int rootDepth;
+
+  private Map<String, Collection<BwCalendar>> children =
+    new HashMap<String, Collection<BwCalendar>>();
+
+  private int size;
+
+  /**
+   * @param root
+   */
+  public CollectionTree(final BwCalendar root) {
+    this.root = root;
+    rootDepth = depth(root.getPath());
+    children.put(root.getPath(), new TreeSet<BwCalendar>());
+  }
+
+  /** Add a collection. Its parent must already be in the tree.
+   *
+   * @param val
+   * @return true if added, false if the parent is absent
+   */
+  public boolean add(final BwCalendar val) {
+    Collection<BwCalendar> ch = children.get(val.getColPath());
+
+    if (ch == null) {
+      return false;
+    }
+
+    ch.add(val);
+    children.put(val.getPath(), new TreeSet<BwCalendar>());
+    size++;
+
+    return true;
+  }
+
+  /**
+   * @return root of the tree
+   */
+  public BwCalendar getRoot() {
+    return root;
+  }
+
+  /**
+   * @param path
+   * @return true if the collection with the given path is in the tree
+   */
+  public boolean contains(final String path) {
+    return children.containsKey(path);
+  }
+
+  /**
+   * @param col
+   * @return children of the collection - empty for none or not in tree
+   */
+  public Collection<BwCalendar> getChildren(final BwCalendar col) {
+    Collection<BwCalendar> ch = children.get(col.getPath());
+
+    if (ch == null) {
+      return new TreeSet<BwCalendar>();
+    }
+
+    return ch;
+  }
+
+  /** Return all descendants of the given collection, parents before
+   * children.
+   *
+   * @param col
+   * @return list of collections - empty for none
+   */
+  public List<BwCalendar> getDescendants(final BwCalendar col) {
+    List<BwCalendar> res = new ArrayList<BwCalendar>();
+
+    addDescendants(col, res);
+
+    return res;
+  }
+
+  /**
+   * @param col
+   * @return levels below the root - 0 for the root itself
+   */
+  public int getDepth(final BwCalendar col) {
+    return depth(col.getPath()) - rootDepth;
+  }
+
+  /**
+   * @return number of collections below the root
+   */
+  public int size() {
+    return size;
+  }
+
+  /** Number of path elements in a collection path.
+   *
+   * @param path
+   * @return int depth
+   */
+  public static int depth(final String path) {
+    int d = 0;
+
+    for (int i = 0; i < path.length(); i++) {
+      if ((path.charAt(i) == '/') && (i + 1 < path.length())) {
+        d++;
+      }
+    }
+
+    return d;
+  }
+
+  private void addDescendants(final BwCalendar col,
+                              final List<BwCalendar> res) {
+    for (BwCalendar ch: getChildren(col)) {
+      res.add(ch);
+      addDescendants(ch, res);
+    }
+  }
+}
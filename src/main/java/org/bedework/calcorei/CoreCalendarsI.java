@@ -69,6 +69,29 @@ public interface CoreCalendarsI extends Serializable {
    */
   public Collection<BwCalendar> getCalendars(BwCalendar cal) throws CalFacadeException;
 
+  /** Returns the descendants of the given collection to which the current user
+   * has some access. The subtree is retrieved by path prefix rather than one
+   * level at a time. Aliases are not followed and a collection to which the
+   * user has no access hides its descendants.
+   *
+   * @param  cal          root of the subtree
+   * @param  maxDepth     levels below cal to return - <= 0 for all
+   * @return CollectionTree rooted at cal
+   * @throws CalFacadeException
+   */
+  public CollectionTree getSubtree(BwCalendar cal,
+                                   int maxDepth) throws CalFacadeException;
+
+  /** Load those of the given collections not already held by the session
+   * with a single query, so that later lookups of the paths need not go to
+   * the database. No access checks are made here - they are made as usual
+   * on lookup.
+   *
+   * @param  paths        collection paths
+   * @throws CalFacadeException
+   */
+  public void prefetchCollections(Collection<String> paths) throws CalFacadeException;
+
   /** Attempt to get calendar referenced by the alias. For an internal alias
    * the result will also be set in the aliasTarget property of the parameter.
    *
@@ -187,7 +210,8 @@ public interface CoreCalendarsI extends Serializable {
   public void moveCalendar(BwCalendar val,
                            BwCalendar newParent) throws CalFacadeException;
 
-  /** Mark collection as modified
+  /** Mark collection as modified. The stored lastmod is updated once per
+   * transaction, when the transaction ends.
    *
    * @param  path    String path for the collection
    * @throws CalFacadeException
@@ -233,6 +257,21 @@ public interface CoreCalendarsI extends Serializable {
   public boolean deleteCalendar(BwCalendar val,
                                 boolean reallyDelete) throws CalFacadeException;
 
+  /** Delete the given collection and everything below it. Access is checked
+   * once, at the root. Events and collections below the root are
+   * tombstoned with set based operations, without per-entity access checks
+   * or notifications, so sync clients still see the removals. The root is
+   * tombstoned and a single deletion notification posted.
+   *
+   * <p>No scheduling messages are sent for the removed events - this is
+   * intended for removing the home of a departed user or a retired calendar.
+   *
+   * @param val      BwCalendar root of the tree
+   * @return int     number of events removed
+   * @throws CalFacadeException
+   */
+  public int deleteCollectionTree(BwCalendar val) throws CalFacadeException;
+
   /** Check to see if a collection is empty. A collection is not empty if it
    * contains other collections or calendar entities.
    *
@@ -72,6 +72,24 @@ public interface HibSession extends Serializable {
    */
   public void disconnect() throws CalFacadeException;
 
+  /** Mark this session as read only. Updates will be rejected and the
+   * session is not flushed.
+   *
+   * @param val
+   * @throws CalFacadeException
+   */
+  public void setReadOnly(boolean val) throws CalFacadeException;
+
+  /**
+   * @return true if read only
+   */
+  public boolean getReadOnly();
+
+  /**
+   * @return true if an update was made in the current transaction
+   */
+  public boolean getUpdated();
+
   /** set the flushmode
    *
    * @param val
@@ -249,6 +267,17 @@ public interface HibSession extends Serializable {
    */
   public void setMaxResults(int val) throws CalFacadeException;
 
+  /** Limits applied to each following query until reset. A query with an
+   * explicit max results is not limited by maxRows.
+   *
+   * @param timeout  seconds each query may run - 0 for no limit
+   * @param maxRows  max rows a list may return - 0 for no limit. More
+   *                 results raise a QueryLimitException
+   * @throws CalFacadeException
+   */
+  public void setQueryLimits(int timeout,
+                             int maxRows) throws CalFacadeException;
+
   /** Return the single object resulting from the query.
    *
    * @return Object          retrieved object or null
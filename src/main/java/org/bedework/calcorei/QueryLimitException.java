@@ -0,0 +1,59 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+        
+    http://www.apache.org/licenses/LICENSE-2.0
+        
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.calcorei;
+
+import org.bedework.calfacade.exc.CalFacadeException;
+
+/** Thrown when a query is refused or cut short by the admission
+ * controller. The message is one of the keys defined here.
+ *
+ * @author douglm
+ */
+public class QueryLimitException extends CalFacadeException {
+  /** Too many queries of this class are running or waiting */
+  public static final String rejected =
+      "org.bedework.exception.query.rejected";
+
+  /** The query returned more rows than allowed */
+  public static final String tooManyResults =
+      "org.bedework.exception.query.toomanyresults";
+
+  /** The query ran longer than allowed */
+  public static final String timedOut =
+      "org.bedework.exception.query.timedout";
+
+  private String queryClass;
+
+  /**
+   * @param msg        one of the keys above
+   * @param queryClass class of query refused - may be null
+   */
+  public QueryLimitException(final String msg,
+                             final String queryClass) {
+    super(msg);
+    this.queryClass = queryClass;
+  }
+
+  /**
+   * @return class of query refused or null
+   */
+  public String getQueryClass() {
+    return queryClass;
+  }
+}
@@ -0,0 +1,69 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+        
+    http://www.apache.org/licenses/LICENSE-2.0
+        
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.calsvc;
+
+/** Exposes the service handler statistics.
+ *
+ * @author douglm
+ *
+ */
+public class BwOperationStats implements BwOperationStatsMBean {
+  public String getName() {
+    /* This apparently must be the same as the name attribute in the
+     * jboss service definition
+     */
+    return "org.bedework:service=BwOperationStats";
+  }
+
+  public void setEnabled(final boolean val) {
+    OperationStats.getStats().setEnabled(val);
+  }
+
+  public boolean getEnabled() {
+    return OperationStats.getStats().getEnabled();
+  }
+
+  public void setRequestThreshold(final long val) {
+    OperationStats.getStats().setRequestThreshold(val);
+  }
+
+  public long getRequestThreshold() {
+    return OperationStats.getStats().getRequestThreshold();
+  }
+
+  public long getRequests() {
+    return OperationStats.getStats().getRequests();
+  }
+
+  public long getSlowRequests() {
+    return OperationStats.getStats().getSlowRequests();
+  }
+
+  public String getOpSummary(final String name) {
+    return OperationStats.getStats().getOpSummary(name);
+  }
+
+  public String dump() {
+    return OperationStats.getStats().dump();
+  }
+
+  public void reset() {
+    OperationStats.getStats().reset();
+  }
+}
@@ -0,0 +1,81 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+        
+    http://www.apache.org/licenses/LICENSE-2.0
+        
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.calsvc;
+
+/** Management interface for the service handler statistics.
+ *
+ * @author douglm
+ *
+ */
+public interface BwOperationStatsMBean {
+  /** Name apparently must be the same as the name attribute in the
+   * jboss service definition
+   *
+   * @return Name
+   */
+  public String getName();
+
+  /**
+   * @param val true to record handler calls
+   */
+  public void setEnabled(boolean val);
+
+  /**
+   * @return true if recording handler calls
+   */
+  public boolean getEnabled();
+
+  /**
+   * @param val millisecs above which a request summary is logged
+   */
+  public void setRequestThreshold(long val);
+
+  /**
+   * @return millisecs above which a request summary is logged
+   */
+  public long getRequestThreshold();
+
+  /**
+   * @return number of requests
+   */
+  public long getRequests();
+
+  /**
+   * @return number of requests over the threshold
+   */
+  public long getSlowRequests();
+
+  /** Calls, errors, latency and queries for one operation. Latency is in
+   * microsecs.
+   *
+   * @param name handler.method, e.g. events.getEvents
+   * @return summary or null if not called
+   */
+  public String getOpSummary(String name);
+
+  /** Statistics for every operation, greatest total time first.
+   *
+   * @return text dump
+   */
+  public String dump();
+
+  /** Discard the statistics.
+   */
+  public void reset();
+}
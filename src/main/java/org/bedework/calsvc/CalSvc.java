@@ -84,19 +84,30 @@ package org.bedework.calsvc;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.TreeSet;
 
 import net.fortuna.ical4j.model.property.DtStamp;
 
 import org.apache.log4j.Logger;
+import org.bedework.calcore.hibernate.HibSessionImpl;
+import org.bedework.calcore.hibernate.ReplicaRouter;
+import org.bedework.calcore.hibernate.ShardRouter;
 import org.bedework.calcorei.Calintf;
 import org.bedework.calcorei.CalintfFactory;
+import org.bedework.calcorei.CollectionTree;
+import org.bedework.calcorei.CoreCalendarsI.GetSpecialCalendarResult;
 import org.bedework.calcorei.HibSession;
 import org.bedework.calfacade.BwCalendar;
 import org.bedework.calfacade.BwCategory;
 import org.bedework.calfacade.BwContact;
+import org.bedework.calfacade.BwEvent;
+import org.bedework.calfacade.BwEventProperty;
 import org.bedework.calfacade.BwLocation;
 import org.bedework.calfacade.BwPrincipal;
 import org.bedework.calfacade.BwStats;
@@ -148,6 +159,10 @@ import org.bedework.icalendar.IcalCallback;
 import org.bedework.icalendar.URIgen;
 import org.bedework.sysevents.events.SysEvent;
 import org.bedework.sysevents.events.SysEventBase;
+import org.bedework.tracing.Span;
+import org.bedework.tracing.Tracer;
+import org.hibernate.ReplicationMode;
+import org.hibernate.Session;
 import org.hibernate.exception.ConstraintViolationException;
 
 import com.idega.bedework.core.BedeworkCoreConstants;
@@ -201,6 +216,26 @@ public class CalSvc extends CalSvcI {
 	 */
 	private boolean creating;
 
+	/*
+	 * True for a slim service session. Work not needed by background
+	 * processors is skipped at init and the default timezone is fetched when
+	 * events are first touched.
+	 */
+	private boolean slim;
+
+	private static volatile boolean slimServiceSessions = true;
+
+	/* Default tzid from the preferences - fetched at most once */
+	private String defaultTzid;
+
+	private boolean defaultTzidFetched;
+
+	/*
+	 * Principal href, inbox and outbox paths checked in this transaction.
+	 * Recorded in EnsuredHomes once the transaction commits.
+	 */
+	private transient String[] pendingEnsured;
+
 	/*
 	 * The account that we are representing
 	 */
@@ -247,6 +282,20 @@ public class CalSvc extends CalSvcI {
 
 	private UsersI usersHandler;
 
+	/* Timed wrappers handed out for the handlers above */
+	private transient EventsI timedEvents;
+
+	private transient CalendarsI timedCalendars;
+
+	private transient IndexingI timedIndexing;
+
+	private transient SchedulingIntf timedSched;
+
+	private transient UsersI timedUsers;
+
+	/* Root span while open if the request is traced */
+	private transient Span requestSpan;
+
 	private ViewsI viewsHandler;
 
 	private EventProperties<BwCategory> categoriesHandler;
@@ -266,6 +315,27 @@ public class CalSvc extends CalSvcI {
 	 */
 	private transient Calintf cali;
 
+	/*
+	 * Interfaces to the other database shards used in this transaction -
+	 * discarded when the transaction ends.
+	 */
+	private transient Map<String, Calintf> shardCals;
+
+	/*
+	 * A write to the copies other shards hold of entities kept elsewhere - see
+	 * replicateToShards. It sets the copy to match the authoritative entity so
+	 * may be applied any number of times.
+	 */
+	private interface ShardCopy {
+		void apply(Session sess);
+	}
+
+	/* Copy writes made in this transaction by shard - see endTransaction */
+	private transient Map<String, List<ShardCopy>> shardCopies;
+
+	/* Read only interface for free/busy and queries - see getReadCal */
+	private transient Calintf readCal;
+
 	private transient PwEncryptionIntf pwEncrypt;
 
 	/**
@@ -453,6 +523,11 @@ public class CalSvc extends CalSvcI {
 
 		debug = getLogger().isDebugEnabled();
 
+		slim = slimServiceSessions && pars.getService() && !creating;
+
+		long startQueries = HibSessionImpl.getThreadQueryCount();
+		long start = System.nanoTime();
+
 		fixUsers();
 
 		try {
@@ -498,22 +573,13 @@ public class CalSvc extends CalSvcI {
 					"org.bedework.icalendar.TimeZoneRegistryFactoryImpl");
 
 			if (!creating) {
-				String tzid = getPrefsHandler().get().getDefaultTzid();
-
-				if (tzid != null) {
-					Timezones.setThreadDefaultTzid(tzid);
+				if (!slim) {
+					setThreadTzid();
 				}
 
 				// if (pars.getCaldav() && !pars.isGuest()) {
 				if (!pars.isGuest()) {
-					/* Ensure scheduling resources exist */
-					getCal().getSpecialCalendar(getUser(),
-							BwCalendar.calTypeInbox, true,
-							PrivilegeDefs.privAny);
-
-					getCal().getSpecialCalendar(getUser(),
-							BwCalendar.calTypeOutbox, true,
-							PrivilegeDefs.privAny);
+					ensureSchedulingCollections();
 				}
 
 				if ((pars.getPublicAdmin() || pars.getAllowSuperUser())
@@ -523,8 +589,10 @@ public class CalSvc extends CalSvcI {
 				}
 			}
 
-			postNotification(SysEvent.makePrincipalEvent(
-					SysEvent.SysCode.USER_SVCINIT, getUser()));
+			if (!slim) {
+				postNotification(SysEvent.makePrincipalEvent(
+						SysEvent.SysCode.USER_SVCINIT, getUser()));
+			}
 		} catch (CalFacadeException cfe) {
 			rollbackTransaction();
 			cfe.printStackTrace();
@@ -542,9 +610,77 @@ public class CalSvc extends CalSvcI {
 				close();
 			} catch (Throwable t2) {
 			}
+
+			if (debug) {
+				trace("init for " + pars.getAuthUser() + ": slim=" + slim
+						+ " queries="
+						+ (HibSessionImpl.getThreadQueryCount() - startQueries)
+						+ " millis=" + ((System.nanoTime() - start) / 1000000));
+			}
 		}
 	}
 
+	/**
+	 * Set true (the default) to have sessions for service principals skip the
+	 * parts of initialisation background processors do not need.
+	 *
+	 * @param val
+	 */
+	public static void setSlimServiceSessions(final boolean val) {
+		slimServiceSessions = val;
+	}
+
+	/**
+	 * @return true if service sessions are slim
+	 */
+	public static boolean getSlimServiceSessions() {
+		return slimServiceSessions;
+	}
+
+	/*
+	 * Set the thread default timezone from the preferences. The preferences
+	 * are only read the first time.
+	 */
+	private void setThreadTzid() throws CalFacadeException {
+		if (!defaultTzidFetched) {
+			defaultTzid = getPrefsHandler().get().getDefaultTzid();
+			defaultTzidFetched = true;
+		}
+
+		/* Null clears any value left on this thread */
+		Timezones.setThreadDefaultTzid(defaultTzid);
+	}
+
+	/*
+	 * Ensure the inbox and outbox exist. Once they have been seen we don't
+	 * check again for a while.
+	 */
+	private void ensureSchedulingCollections() throws CalFacadeException {
+		EnsuredHomes homes = EnsuredHomes.getHomes();
+		String href = getUser().getPrincipalRef();
+
+		if (homes.isEnsured(href)) {
+			return;
+		}
+
+		GetSpecialCalendarResult inbox = getHomeCal(getUser()).getSpecialCalendar(
+				getUser(), BwCalendar.calTypeInbox, true,
+				PrivilegeDefs.privAny);
+
+		GetSpecialCalendarResult outbox = getHomeCal(getUser()).getSpecialCalendar(
+				getUser(), BwCalendar.calTypeOutbox, true,
+				PrivilegeDefs.privAny);
+
+		if ((inbox == null) || (inbox.cal == null) || (outbox == null)
+				|| (outbox.cal == null)) {
+			return;
+		}
+
+		/* They may have just been created - wait for the commit */
+		pendingEnsured = new String[] { href, inbox.cal.getPath(),
+				outbox.cal.getPath() };
+	}
+
 	void setSuperUser(final boolean val) throws CalFacadeException {
 		superUser = val;
 		getCal().setSuperUser(val);
@@ -648,8 +784,45 @@ public class CalSvc extends CalSvcI {
 		}
 
 		open = true;
+		requestSpan = Tracer.startTrace("request");
+		OperationStats.getStats().startRequest();
+
+		boolean ok = false;
+
+		try {
+			openRequest();
+			ok = true;
+		} finally {
+			if (!ok) {
+				/* Don't leave the request or trace current on this thread */
+				open = false;
+
+				try {
+					getCal().close();
+				} catch (Throwable t) {
+				}
+
+				endRequest();
+			}
+		}
+	}
+
+	private void openRequest() throws CalFacadeException {
 		getCal().open(pars.getWebMode());
 
+		if (slim) {
+			/*
+			 * We may be running on a different thread from last time. Set the
+			 * thread tzid if we have it, otherwise clear anything left by the
+			 * last session to use this thread.
+			 */
+			if (defaultTzidFetched) {
+				setThreadTzid();
+			} else {
+				Timezones.setThreadDefaultTzid(null);
+			}
+		}
+
 		for (CalSvcDb handler : handlers) {
 			handler.open();
 		}
@@ -666,16 +839,48 @@ public class CalSvc extends CalSvcI {
 			return false;
 		}
 
+		if (shardCals != null) {
+			for (Calintf ci : shardCals.values()) {
+				if (ci.isRolledback()) {
+					return true;
+				}
+			}
+		}
+
 		return getCal().isRolledback();
 	}
 
 	@Override
 	public void close() throws CalFacadeException {
 		open = false;
-		getCal().close();
 
-		for (CalSvcDb handler : handlers) {
-			handler.close();
+		try {
+			// Anything left is uncommitted
+			shardCopies = null;
+			endShards(false, null);
+			getCal().close();
+
+			for (CalSvcDb handler : handlers) {
+				handler.close();
+			}
+		} finally {
+			endRequest();
+		}
+	}
+
+	/* End the request statistics and trace started by open */
+	private void endRequest() {
+		String who = null;
+		if (currentUser != null) {
+			who = currentUser.getPrincipalRef();
+		}
+
+		OperationStats.getStats().endRequest(who);
+
+		if (requestSpan != null) {
+			requestSpan.setAttribute("who", who);
+			Tracer.endTrace(requestSpan);
+			requestSpan = null;
 		}
 	}
 
@@ -684,14 +889,71 @@ public class CalSvc extends CalSvcI {
 		getCal().beginTransaction();
 	}
 
+	/*
+	 * The shards are committed one at a time. Those with writes of their own
+	 * go first, then the default shard, and last those which only hold copy
+	 * writes - see replicateToShards. A failure before the default shard
+	 * commits rolls back the rest, though a shard which has already committed
+	 * stays committed.
+	 *
+	 * Once the default shard has committed the copies can no longer be rolled
+	 * back with it. A copy shard which fails to commit is reconciled by
+	 * replaying its copy writes in a new transaction. As each sets the copy to
+	 * match the authoritative entity a replay - or a retry of the whole
+	 * request - leaves the shards consistent.
+	 */
 	@Override
 	public void endTransaction() throws CalFacadeException {
-		getCal().endTransaction();
+		String[] ensured = pendingEnsured;
+		pendingEnsured = null;
+
+		Map<String, List<ShardCopy>> copies = shardCopies;
+		shardCopies = null;
+
+		Set<String> copyOnly = getCopyOnlyShards(copies);
+
+		try {
+			endShards(true, copyOnly);
+		} catch (CalFacadeException cfe) {
+			try {
+				endShards(false, null);
+			} finally {
+				getCal().rollbackTransaction();
+			}
+			throw cfe;
+		}
+
+		boolean committing = !getCal().isRolledback();
+
+		try {
+			getCal().endTransaction();
+		} catch (CalFacadeException cfe) {
+			endShards(false, null);
+			throw cfe;
+		}
+
+		if (!committing) {
+			endShards(false, null);
+			return;
+		}
+
+		if (ensured != null) {
+			EnsuredHomes.getHomes().ensured(ensured[0], ensured[1], ensured[2]);
+		}
+
+		endCopyShards(copies);
 	}
 
 	@Override
 	public void rollbackTransaction() throws CalFacadeException {
-		getCal().rollbackTransaction();
+		pendingEnsured = null;
+		shardCopies = null;
+
+		try {
+			endShards(false, null);
+		} finally {
+			getCal().rollbackTransaction();
+		}
 	}
 
 	/*
@@ -835,9 +1097,18 @@ public class CalSvc extends CalSvcI {
 		if (eventsHandler == null) {
 			eventsHandler = new Events(getCalSvc(), getUser());
 			handlers.add((CalSvcDb) eventsHandler);
+
+			if (slim) {
+				setThreadTzid();
+			}
+		}
+
+		if (timedEvents == null) {
+			timedEvents = OperationStats.getStats().wrap(eventsHandler,
+					EventsI.class, "events");
 		}
 
-		return eventsHandler;
+		return timedEvents;
 	}
 
 	@Override
@@ -857,7 +1128,12 @@ public class CalSvc extends CalSvcI {
 			handlers.add((CalSvcDb) calendarsHandler);
 		}
 
-		return calendarsHandler;
+		if (timedCalendars == null) {
+			timedCalendars = OperationStats.getStats().wrap(calendarsHandler,
+					CalendarsI.class, "calendars");
+		}
+
+		return timedCalendars;
 	}
 
 	/*
@@ -887,7 +1163,12 @@ public class CalSvc extends CalSvcI {
 			handlers.add((CalSvcDb) indexingHandler);
 		}
 
-		return indexingHandler;
+		if (timedIndexing == null) {
+			timedIndexing = OperationStats.getStats().wrap(indexingHandler,
+					IndexingI.class, "indexing");
+		}
+
+		return timedIndexing;
 	}
 
 	@Override
@@ -912,7 +1193,12 @@ public class CalSvc extends CalSvcI {
 			handlers.add((CalSvcDb) sched);
 		}
 
-		return sched;
+		if (timedSched == null) {
+			timedSched = OperationStats.getStats().wrap(sched,
+					SchedulingIntf.class, "scheduling");
+		}
+
+		return timedSched;
 	}
 
 	@Override
@@ -940,7 +1226,35 @@ public class CalSvc extends CalSvcI {
 			((CalSvcDb) usersHandler).setPrincipal(getUser());
 		}
 
-		return usersHandler;
+		if (timedUsers == null) {
+			timedUsers = OperationStats.getStats().wrap(usersHandler,
+					UsersI.class, "users");
+		}
+
+		return timedUsers;
+	}
+
+	/*
+	 * The handlers themselves rather than the timed wrappers handed out above.
+	 * For callers which need methods outside the interface.
+	 */
+
+	Events getEvents() throws CalFacadeException {
+		getEventsHandler();
+
+		return (Events) eventsHandler;
+	}
+
+	Calendars getCalendars() throws CalFacadeException {
+		getCalendarsHandler();
+
+		return (Calendars) calendarsHandler;
+	}
+
+	Users getUsers() throws CalFacadeException {
+		getUsersHandler();
+
+		return (Users) usersHandler;
 	}
 
 	/*
@@ -1153,7 +1467,8 @@ public class CalSvc extends CalSvcI {
 		if (ent instanceof BwCalSuiteWrapper) {
 			ent = ((BwCalSuiteWrapper) ent).fetchEntity();
 		}
-		getCal().changeAccess(ent, aces, replaceAll);
+		getEntityCal(ent).changeAccess(ent, aces, replaceAll);
+		syncAncestorAccess(ent);
 	}
 
 	/*
@@ -1169,7 +1484,59 @@ public class CalSvc extends CalSvcI {
 		if (ent instanceof BwCalSuiteWrapper) {
 			ent = ((BwCalSuiteWrapper) ent).fetchEntity();
 		}
-		getCal().defaultAccess(ent, who);
+		getEntityCal(ent).defaultAccess(ent, who);
+		syncAncestorAccess(ent);
+	}
+
+	/*
+	 * Collections and events live in the shard holding their path. Anything
+	 * else is in the default shard.
+	 */
+	private Calintf getEntityCal(final BwShareableDbentity<?> ent)
+			throws CalFacadeException {
+		if (ent instanceof BwCalendar) {
+			return getCal((BwCalendar)ent);
+		}
+
+		if (ent instanceof BwEvent) {
+			return getCal(((BwEvent)ent).getColPath());
+		}
+
+		return getCal();
+	}
+
+	/*
+	 * Shards holding subtrees below a collection have a copy of it for access
+	 * checks. Keep the access of those copies in step.
+	 */
+	private void syncAncestorAccess(final BwShareableDbentity<?> ent)
+			throws CalFacadeException {
+		if (!(ent instanceof BwCalendar)) {
+			return;
+		}
+
+		BwCalendar col = (BwCalendar)ent;
+
+		final String path = col.getPath();
+		final String access = col.getAccess();
+
+		for (String shard: ShardRouter.getRouter().getShardsBelow(path)) {
+			copyToShard(shard, new ShardCopy() {
+				@Override
+				public void apply(final Session sess) {
+					sess.createQuery("update " + BwCalendar.class.getName() +
+							" set access=:access where path=:path")
+						.setString("access", access)
+						.setString("path", path)
+						.executeUpdate();
+				}
+
+				@Override
+				public String toString() {
+					return "access of " + path;
+				}
+			});
+		}
 	}
 
 	@Override
@@ -1244,8 +1611,60 @@ public class CalSvc extends CalSvcI {
 	private String getSynchItems(final BwCalendar col, final String token,
 			final List<SynchReportItem> items, final boolean recurse)
 			throws CalFacadeException {
-		Events eventsH = (Events) getEventsHandler();
-		Calendars colsH = (Calendars) getCalendarsHandler();
+		String newToken = addSynchItems(col, token, items);
+
+		if (!recurse) {
+			return newToken;
+		}
+
+		if (col.getAlias()) {
+			/* Children are those of the target */
+			Collection<BwCalendar> chilren = getCalendars().getChildren(col);
+
+			if (Util.isEmpty(chilren)) {
+				return newToken;
+			}
+
+			for (BwCalendar c : chilren) {
+				String t = getSynchItems(c, token, items, true);
+
+				if (t.compareTo(newToken) > 0) {
+					newToken = t;
+				}
+			}
+
+			return newToken;
+		}
+
+		/* Fetch the whole subtree at once. Aliases are leaves in the tree so we
+		 * recurse for those.
+		 */
+		CollectionTree tree = getSubtree(col);
+
+		for (BwCalendar c : tree.getDescendants(col)) {
+			String t;
+
+			if (c.getAlias()) {
+				t = getSynchItems(c, token, items, true);
+			} else {
+				t = addSynchItems(c, token, items);
+			}
+
+			if (t.compareTo(newToken) > 0) {
+				newToken = t;
+			}
+		}
+
+		return newToken;
+	}
+
+	/*
+	 * Add the changed events and collections for one collection.
+	 */
+	private String addSynchItems(final BwCalendar col, final String token,
+			final List<SynchReportItem> items) throws CalFacadeException {
+		Events eventsH = getEvents();
+		Calendars colsH = getCalendars();
 		String newToken = "";
 
 		if (debug) {
@@ -1279,24 +1698,6 @@ public class CalSvc extends CalSvcI {
 			items.add(new SynchReportItem(c));
 		}
 
-		if (!recurse) {
-			return newToken;
-		}
-
-		Collection<BwCalendar> chilren = colsH.getChildren(col);
-
-		if (Util.isEmpty(chilren)) {
-			return newToken;
-		}
-
-		for (BwCalendar c : chilren) {
-			String t = getSynchItems(c, token, items, true);
-
-			if (t.compareTo(newToken) > 0) {
-				newToken = t;
-			}
-		}
-
 		return newToken;
 	}
 
@@ -1323,15 +1724,507 @@ public class CalSvc extends CalSvcI {
 	 * This will get a calintf based on the supplied collection object.
 	 */
 	Calintf getCal(final BwCalendar cal) throws CalFacadeException {
-		return getCal();
+		if (cal == null) {
+			return getCal();
+		}
+
+		return getCal(cal.getPath());
+	}
+
+	/*
+	 * Get a calintf for the shard holding the collection or entity path.
+	 */
+	Calintf getCal(final String path) throws CalFacadeException {
+		return getShardCal(getShard(path));
+	}
+
+	/*
+	 * Get a calintf for the shard holding the principal's home.
+	 */
+	Calintf getHomeCal(final BwPrincipal principal) throws CalFacadeException {
+		if (getShards().size() == 1) {
+			return getCal();
+		}
+
+		return getCal(getCal().getPrincipalRootPath(principal));
+	}
+
+	/*
+	 * Name of the shard holding the path.
+	 */
+	String getShard(final String path) {
+		return ShardRouter.getRouter().getShard(path);
+	}
+
+	/*
+	 * Paths of subtrees held in a shard other than that of their parent.
+	 */
+	Collection<String> getShardMounts(final String parentPath) {
+		return ShardRouter.getRouter().getMounts(parentPath);
+	}
+
+	/*
+	 * Get a collection and everything below it the current user can see with
+	 * one query for each shard holding part of the subtree. Aliases are not
+	 * followed - they appear as leaves.
+	 */
+	CollectionTree getSubtree(final BwCalendar col) throws CalFacadeException {
+		CollectionTree tree = getCal(col).getSubtree(col, 0);
+
+		addShardMounts(tree, col);
+
+		return tree;
+	}
+
+	/*
+	 * Graft on the subtrees below col held in other shards.
+	 */
+	private void addShardMounts(final CollectionTree tree, final BwCalendar col)
+			throws CalFacadeException {
+		List<BwCalendar> cols = tree.getDescendants(col);
+		cols.add(0, col);
+
+		for (BwCalendar c : cols) {
+			for (String path : getShardMounts(c.getPath())) {
+				if (tree.contains(path)) {
+					continue;
+				}
+
+				Calintf ci = getCal(path);
+				BwCalendar mounted = ci.getCalendar(path, PrivilegeDefs.privAny,
+						true);
+
+				if ((mounted == null) || !tree.add(mounted)) {
+					continue;
+				}
+
+				for (BwCalendar d : ci.getSubtree(mounted, 0).getDescendants(
+						mounted)) {
+					tree.add(d);
+				}
+
+				addShardMounts(tree, mounted);
+			}
+		}
+	}
+
+	/*
+	 * Names of all the shards - for queries which need to see everything.
+	 */
+	Collection<String> getShards() {
+		return ShardRouter.getRouter().getShards();
+	}
+
+	/*
+	 * Get a calintf for the named shard. Those for shards other than the
+	 * default are set up as we would be and take part in the current
+	 * transaction.
+	 */
+	Calintf getShardCal(final String shard) throws CalFacadeException {
+		if (ShardRouter.defaultShard.equals(shard)) {
+			return getCal();
+		}
+
+		if (shardCals == null) {
+			shardCals = new HashMap<String, Calintf>();
+		}
+
+		Calintf ci = shardCals.get(shard);
+
+		if (ci != null) {
+			return ci;
+		}
+
+		ci = newCal(shard, getCal().getReadOnly());
+
+		shardCals.put(shard, ci);
+
+		return ci;
+	}
+
+	/*
+	 * Categories, locations and contacts live in the default shard. The other
+	 * shards hold copies, with the same ids, of those their events refer to.
+	 */
+
+	/*
+	 * Make sure the shard holding the path has the categories, location and
+	 * contacts the event refers to.
+	 */
+	void ensureEventRefs(final String path,
+						 final BwEvent ev) throws CalFacadeException {
+		String shard = getShard(path);
+
+		if (ShardRouter.defaultShard.equals(shard)) {
+			return;
+		}
+
+		Session sess = getShardSession(shard);
+
+		if (ev.getCategories() != null) {
+			for (BwCategory cat: ev.getCategories()) {
+				sess.replicate(cat, ReplicationMode.IGNORE);
+			}
+		}
+
+		if (ev.getLocation() != null) {
+			sess.replicate(ev.getLocation(), ReplicationMode.IGNORE);
+		}
+
+		if (ev.getContacts() != null) {
+			for (BwContact ct: ev.getContacts()) {
+				sess.replicate(ct, ReplicationMode.IGNORE);
+			}
+		}
+	}
+
+	/*
+	 * Copy a new or changed category, location or contact to the other
+	 * shards.
+	 */
+	void replicateToShards(final BwEventProperty val) throws CalFacadeException {
+		for (String shard: getShards()) {
+			if (ShardRouter.defaultShard.equals(shard)) {
+				continue;
+			}
+
+			copyToShard(shard, new ShardCopy() {
+				@Override
+				public void apply(final Session sess) {
+					sess.replicate(val, ReplicationMode.OVERWRITE);
+				}
+
+				@Override
+				public String toString() {
+					return "replicate " + val.getClass().getSimpleName() + " " +
+							val.getId();
+				}
+			});
+		}
+	}
+
+	/*
+	 * Remove a category, location or contact from the other shards.
+	 */
+	void deleteFromShards(final BwEventProperty val) throws CalFacadeException {
+		for (String shard: getShards()) {
+			if (ShardRouter.defaultShard.equals(shard)) {
+				continue;
+			}
+
+			copyToShard(shard, new ShardCopy() {
+				@Override
+				public void apply(final Session sess) {
+					Object o = sess.get(val.getClass(), val.getId());
+
+					if (o != null) {
+						sess.delete(o);
+					}
+				}
+
+				@Override
+				public String toString() {
+					return "delete " + val.getClass().getSimpleName() + " " +
+							val.getId();
+				}
+			});
+		}
+	}
+
+	/*
+	 * Apply a copy write and remember it for endTransaction. It is flushed
+	 * now so that constraint failures - a shard still referring to a deleted
+	 * category say - surface while the whole transaction can roll back.
+	 */
+	private void copyToShard(final String shard,
+							 final ShardCopy copy) throws CalFacadeException {
+		Session sess = getShardSession(shard);
+
+		copy.apply(sess);
+		sess.flush();
+
+		if (shardCopies == null) {
+			shardCopies = new HashMap<String, List<ShardCopy>>();
+		}
+
+		List<ShardCopy> l = shardCopies.get(shard);
+
+		if (l == null) {
+			l = new ArrayList<ShardCopy>();
+			shardCopies.put(shard, l);
+		}
+
+		l.add(copy);
+	}
+
+	/*
+	 * Shards in this transaction with copy writes and nothing else. Copy
+	 * writes go through the hibernate session so do not mark the calintf
+	 * updated.
+	 */
+	private Set<String> getCopyOnlyShards(final Map<String, List<ShardCopy>> copies) {
+		Set<String> res = new TreeSet<String>();
+
+		if ((copies == null) || (shardCals == null)) {
+			return res;
+		}
+
+		for (String shard: copies.keySet()) {
+			Calintf ci = shardCals.get(shard);
+
+			if ((ci != null) && !ci.getUpdated()) {
+				res.add(shard);
+			}
+		}
+
+		return res;
+	}
+
+	/*
+	 * Commit the shards left by endShards - those with only copy writes -
+	 * after the default shard has committed. A shard which fails is
+	 * reconciled by replaying its copy writes. Every shard is tried before
+	 * any failure is reported.
+	 */
+	private void endCopyShards(final Map<String, List<ShardCopy>> copies)
+			throws CalFacadeException {
+		if ((shardCals == null) || shardCals.isEmpty()) {
+			return;
+		}
+
+		CalFacadeException exc = null;
+
+		try {
+			for (Map.Entry<String, Calintf> ent : shardCals.entrySet()) {
+				String shard = ent.getKey();
+				Calintf ci = ent.getValue();
+
+				try {
+					if (ci.isRolledback()) {
+						throw new CalFacadeException("Shard " + shard +
+								" was rolled back");
+					}
+
+					ci.endTransaction();
+				} catch (CalFacadeException cfe) {
+					try {
+						ci.rollbackTransaction();
+					} catch (Throwable t) {
+					}
+
+					warn("Commit of copies to shard " + shard +
+							" failed - replaying " + copies.get(shard));
+
+					try {
+						replayCopies(shard, copies.get(shard));
+					} catch (CalFacadeException rcfe) {
+						error("Shard " + shard + " is out of step: " +
+								copies.get(shard) + " not applied");
+						error(rcfe);
+
+						if (exc == null) {
+							exc = rcfe;
+						}
+					}
+				} finally {
+					try {
+						ci.close();
+					} catch (Throwable t) {
+					}
+				}
+			}
+		} finally {
+			shardCals.clear();
+		}
+
+		if (exc != null) {
+			throw exc;
+		}
+	}
+
+	private void replayCopies(final String shard,
+							  final List<ShardCopy> copies) throws CalFacadeException {
+		if (copies == null) {
+			return;
+		}
+
+		Calintf ci = newCal(shard, false);
+
+		try {
+			Session sess = ((HibSession)ci.getDbSession()).getSession();
+
+			for (ShardCopy copy: copies) {
+				copy.apply(sess);
+			}
+
+			ci.endTransaction();
+		} catch (CalFacadeException cfe) {
+			ci.rollbackTransaction();
+			throw cfe;
+		} catch (Throwable t) {
+			ci.rollbackTransaction();
+			throw new CalFacadeException(t);
+		} finally {
+			try {
+				ci.close();
+			} catch (Throwable t) {
+			}
+		}
+	}
+
+	private Session getShardSession(final String shard) throws CalFacadeException {
+		return ((HibSession)getShardCal(shard).getDbSession()).getSession();
+	}
+
+	/*
+	 * Get a calintf for requests which only read - free/busy and event
+	 * queries such as CalDAV reports. It is read only so it may be routed to
+	 * the replica database. We stay on the primary if routing is off, in web
+	 * mode - where the session and its objects live on between requests - if
+	 * the collections are sharded or if this transaction has made updates
+	 * the replica can't have seen.
+	 */
+	Calintf getReadCal() throws CalFacadeException {
+		Calintf main = getCal();
+
+		if ((readCal != null) && !main.getUpdated()) {
+			return readCal;
+		}
+
+		if (!ReplicaRouter.getRouter().getEnabled() || main.getReadOnly()
+				|| pars.getWebMode() || (getShards().size() != 1)
+				|| main.getUpdated()) {
+			return main;
+		}
+
+		readCal = newCal(null, true);
+
+		return readCal;
+	}
+
+	/*
+	 * A calintf set up as we would be, taking part in the current transaction.
+	 */
+	private Calintf newCal(final String shard,
+			final boolean readOnly) throws CalFacadeException {
+		Calintf ci = CalintfFactory.getIntf(BedeworkCoreConstants.CLASS_IDEGA_CALINF_IMPL);
+
+		ci.initDb(getDbProps());
+		ci.setShard(shard);
+		ci.setReadOnly(readOnly);
+		ci.open(pars.getWebMode());
+		ci.beginTransaction();
+
+		try {
+			ci.init(getSysparsHandler().get(), new AccessUtilCb(this), null,
+					currentUser, pars.getPublicAdmin(), pars.getSessionsless());
+
+			ci.setSuperUser(superUser);
+
+			if (currentUser.getUnauthenticated()) {
+				ci.setMaximumAllowedPrivs(PrivilegeSet.readOnlyPrivileges);
+			}
+		} catch (CalFacadeException cfe) {
+			ci.rollbackTransaction();
+			ci.close();
+			throw cfe;
+		}
+
+		return ci;
+	}
+
+	/*
+	 * Commit or roll back and close the shard interfaces used in this
+	 * transaction, other than those in keep which are left open.
+	 */
+	private void endShards(final boolean commit,
+						   final Set<String> keep) throws CalFacadeException {
+		if (readCal != null) {
+			/* Nothing to commit */
+			try {
+				readCal.rollbackTransaction();
+			} catch (Throwable t) {
+			} finally {
+				try {
+					readCal.close();
+				} catch (Throwable t) {
+				}
+
+				readCal = null;
+			}
+		}
+
+		if ((shardCals == null) || shardCals.isEmpty()) {
+			return;
+		}
+
+		CalFacadeException exc = null;
+
+		try {
+			for (Iterator<Map.Entry<String, Calintf>> it =
+					shardCals.entrySet().iterator(); it.hasNext();) {
+				Map.Entry<String, Calintf> ent = it.next();
+
+				if ((keep != null) && keep.contains(ent.getKey())) {
+					continue;
+				}
+
+				Calintf ci = ent.getValue();
+				it.remove();
+
+				try {
+					if (commit && (exc == null) && !ci.isRolledback()) {
+						ci.endTransaction();
+					} else {
+						ci.rollbackTransaction();
+					}
+				} catch (CalFacadeException cfe) {
+					if (exc == null) {
+						exc = cfe;
+					}
+				} finally {
+					try {
+						ci.close();
+					} catch (Throwable t) {
+					}
+				}
+			}
+		} finally {
+			if (keep == null) {
+				shardCals.clear();
+			}
+		}
+
+		if (exc != null) {
+			throw exc;
+		}
+	}
+
+	private Properties getDbProps() {
+		Properties props = new Properties();
+		if (pars.getDbPars() != null) {
+			if (pars.getDbPars().getCachePrefix() != null) {
+				props.setProperty("cachePrefix", pars.getDbPars()
+						.getCachePrefix());
+				props.setProperty("cachingOn",
+						String.valueOf(pars.getDbPars().getCachingOn()));
+			}
+		}
+
+		return props;
 	}
 
 	/*
 	 * We need to synchronize this code to prevent stale update exceptions. db
 	 * locking might be better - this could still fail in a clustered
 	 * environment for example.
+	 *
+	 * The updates which collide are to the same principal - logging on or
+	 * adding a new user - so only sessions for the same account need to wait
+	 * for each other. The locks are striped by account - we hold the stripes
+	 * for both the authenticated and the run-as account.
 	 */
-	private static volatile Object synchlock = new Object();
+	private static final StripedLocks synchlocks = new StripedLocks(64);
 
 	/*
 	 * Currently this gets a local calintf only. Later we need to use a par to
@@ -1342,191 +2235,196 @@ public class CalSvc extends CalSvcI {
 			return cali;
 		}
 
-		synchronized (synchlock) {
-			cali = CalintfFactory.getIntf(BedeworkCoreConstants.CLASS_IDEGA_CALINF_IMPL);
+		/* Both the authenticated and the run-as user may be added. Take both
+		 * stripes, lowest first, so sessions can't deadlock.
+		 */
+		Object[] locks = synchlocks.locksFor(pars.getAuthUser(),
+				pars.getUser());
 
-			try {
-				Properties props = new Properties();
-				if (pars.getDbPars() != null) {
-					if (pars.getDbPars().getCachePrefix() != null) {
-						props.setProperty("cachePrefix", pars.getDbPars()
-								.getCachePrefix());
-						props.setProperty("cachingOn",
-								String.valueOf(pars.getDbPars().getCachingOn()));
-					}
+		synchronized (locks[0]) {
+			synchronized (locks[1]) {
+				return initCal();
+			}
+		}
+	}
+
+	private Calintf initCal() throws CalFacadeException {
+		cali = CalintfFactory.getIntf(BedeworkCoreConstants.CLASS_IDEGA_CALINF_IMPL);
+
+		try {
+			cali.initDb(getDbProps());
+			cali.open(pars.getWebMode()); // Just for the user interactions
+			cali.beginTransaction();
+
+			String runAsUser = pars.getUser();
+
+			if (pars.getCalSuite() != null) {
+				BwCalSuite cs = CalSuites.fetch(cali.getDbSession(),
+						pars.getCalSuite());
+
+				if (cs == null) {
+					error("******************************************************");
+					error("Unable to fetch calendar suite "
+							+ pars.getCalSuite());
+					error("Is the database correctly initialised?");
+					error("******************************************************");
+					throw new CalFacadeException(
+							CalFacadeException.unknownCalsuite,
+							pars.getCalSuite());
 				}
 
-				cali.initDb(props);
-				cali.open(pars.getWebMode()); // Just for the user interactions
-				cali.beginTransaction();
+				getCalSuitesHandler().set(new BwCalSuiteWrapper(cs));
+				/*
+				 * For administrative use we use the account of the admin
+				 * group the user is a direct member of
+				 * 
+				 * For public clients we use the calendar suite owning
+				 * group.
+				 */
+				if (!pars.getPublicAdmin()) {
+					runAsUser = cs.getGroup().getOwnerHref();
+				}
+			}
 
-				String runAsUser = pars.getUser();
+			/* Get ourselves a user object */
+			String authenticatedUser = pars.getAuthUser();
 
-				if (pars.getCalSuite() != null) {
-					BwCalSuite cs = CalSuites.fetch(cali.getDbSession(),
-							pars.getCalSuite());
+			Users users = getUsers();
 
-					if (cs == null) {
-						error("******************************************************");
-						error("Unable to fetch calendar suite "
-								+ pars.getCalSuite());
-						error("Is the database correctly initialised?");
-						error("******************************************************");
-						throw new CalFacadeException(
-								CalFacadeException.unknownCalsuite,
-								pars.getCalSuite());
-					}
+			if (runAsUser == null) {
+				runAsUser = authenticatedUser;
+			}
 
-					getCalSuitesHandler().set(new BwCalSuiteWrapper(cs));
-					/*
-					 * For administrative use we use the account of the admin
-					 * group the user is a direct member of
-					 * 
-					 * For public clients we use the calendar suite owning
-					 * group.
-					 */
-					if (!pars.getPublicAdmin()) {
-						runAsUser = cs.getGroup().getOwnerHref();
-					}
+			if (authenticatedUser == null) {
+				// Unauthenticated use
+				currentUser = users.getUser(runAsUser);
+				if (currentUser == null) {
+					// XXX Should we set this one up?
+					currentUser = new BwUser();
 				}
 
-				/* Get ourselves a user object */
-				String authenticatedUser = pars.getAuthUser();
-
-				Users users = (Users) getUsersHandler();
+				currentUser.setUnauthenticated(true);
+				currentAuthUser = currentUser;
+			} else {
+				currentUser = users.getUser(authenticatedUser);
+				if (currentUser == null) {
+					/*
+					 * Add the user to the database. Presumably this is
+					 * first logon
+					 */
+					getLogger().debug("Add new user " + authenticatedUser);
 
-				if (runAsUser == null) {
-					runAsUser = authenticatedUser;
+					currentUser = addUser(authenticatedUser);
 				}
 
-				if (authenticatedUser == null) {
-					// Unauthenticated use
-					currentUser = users.getUser(runAsUser);
-					if (currentUser == null) {
-						// XXX Should we set this one up?
-						currentUser = new BwUser();
-					}
+				currentAuthUser = currentUser;
 
-					currentUser.setUnauthenticated(true);
-					currentAuthUser = currentUser;
+				if (authenticatedUser.equals(runAsUser)) {
+					getLogger().debug(
+							"Authenticated user " + authenticatedUser
+									+ " logged on");
 				} else {
-					currentUser = users.getUser(authenticatedUser);
+					currentUser = users.getUser(runAsUser);
 					if (currentUser == null) {
+						// throw new CalFacadeException("User " + runAsUser
+						// + " does not exist.");
 						/*
 						 * Add the user to the database. Presumably this is
 						 * first logon
 						 */
-						getLogger().debug("Add new user " + authenticatedUser);
-
-						currentUser = addUser(authenticatedUser);
-					}
-
-					currentAuthUser = currentUser;
-
-					if (authenticatedUser.equals(runAsUser)) {
 						getLogger().debug(
-								"Authenticated user " + authenticatedUser
-										+ " logged on");
-					} else {
-						currentUser = users.getUser(runAsUser);
-						if (currentUser == null) {
-							// throw new CalFacadeException("User " + runAsUser
-							// + " does not exist.");
-							/*
-							 * Add the user to the database. Presumably this is
-							 * first logon
-							 */
-							getLogger().debug(
-									"Add new run-as-user " + runAsUser);
-
-							currentUser = addUser(runAsUser);
-						}
+								"Add new run-as-user " + runAsUser);
 
-						getLogger().debug(
-								"Authenticated user " + authenticatedUser
-										+ " logged on - running as "
-										+ runAsUser);
+						currentUser = addUser(runAsUser);
 					}
 
-					currentUser.setGroups(getDirectories().getAllGroups(
-							currentUser));
-					currentUser.setPrincipalInfo(getDirectories().getDirInfo(
-							currentUser));
+					getLogger().debug(
+							"Authenticated user " + authenticatedUser
+									+ " logged on - running as "
+									+ runAsUser);
 				}
 
-				cali.init(getSysparsHandler().get(), new AccessUtilCb(this), null, currentUser, pars.getPublicAdmin(),
-						pars.getSessionsless());
+				currentUser.setGroups(getDirectories().getAllGroups(
+						currentUser));
+				currentUser.setPrincipalInfo(getDirectories().getDirInfo(
+						currentUser));
+			}
 
-				if (!currentUser.getUnauthenticated()) {
-					if (pars.getService()) {
-						postNotification(SysEvent.makePrincipalEvent(
-								SysEvent.SysCode.SERVICE_USER_LOGIN,
-								currentUser));
-					} else if (!creating) {
-						users.logon(currentUser);
+			cali.init(getSysparsHandler().get(), new AccessUtilCb(this), null, currentUser, pars.getPublicAdmin(),
+					pars.getSessionsless());
 
-						postNotification(SysEvent.makePrincipalEvent(
-								SysEvent.SysCode.USER_LOGIN, currentUser));
-					}
-				} else {
-					getCal().setMaximumAllowedPrivs(
-							PrivilegeSet.readOnlyPrivileges);
+			if (!currentUser.getUnauthenticated()) {
+				if (pars.getService()) {
+					postNotification(SysEvent.makePrincipalEvent(
+							SysEvent.SysCode.SERVICE_USER_LOGIN,
+							currentUser));
+				} else if (!creating) {
+					users.logon(currentUser);
 
-					// If we have a runAsUser it's a public client. Pretend we
-					// authenticated
-					currentUser.setUnauthenticated(runAsUser == null);
+					postNotification(SysEvent.makePrincipalEvent(
+							SysEvent.SysCode.USER_LOGIN, currentUser));
 				}
+			} else {
+				getCal().setMaximumAllowedPrivs(
+						PrivilegeSet.readOnlyPrivileges);
 
-				if (pars.getPublicAdmin() || pars.isGuest()) {
-					if (debug) {
-						trace("PublicAdmin: " + pars.getPublicAdmin()
-								+ " user: " + runAsUser);
-					}
+				/* Guests can't update - let them use the replica */
+				getCal().setReadOnly(true);
 
-					/*
-					 * We may be running as a different user. The preferences we
-					 * want to see are those of the user we are running as -
-					 * i.e. the 'run.as' user not those of the authenticated
-					 * user.
-					 */
+				// If we have a runAsUser it's a public client. Pretend we
+				// authenticated
+				currentUser.setUnauthenticated(runAsUser == null);
+			}
 
-					BwCalSuiteWrapper suite = getCalSuitesHandler().get();
-					BwUser user;
+			if (pars.getPublicAdmin() || pars.isGuest()) {
+				if (debug) {
+					trace("PublicAdmin: " + pars.getPublicAdmin()
+							+ " user: " + runAsUser);
+				}
 
-					if (suite != null) {
-						// Use this user
-						user = (BwUser) users.getPrincipal(suite.getGroup()
-								.getOwnerHref());
-					} else if (runAsUser == null) {
-						// Unauthenticated CalDAV for example?
-						user = currentUser;
-					} else {
-						// No calendar suite set up
+				/*
+				 * We may be running as a different user. The preferences we
+				 * want to see are those of the user we are running as -
+				 * i.e. the 'run.as' user not those of the authenticated
+				 * user.
+				 */
+
+				BwCalSuiteWrapper suite = getCalSuitesHandler().get();
+				BwUser user;
+
+				if (suite != null) {
+					// Use this user
+					user = (BwUser) users.getPrincipal(suite.getGroup()
+							.getOwnerHref());
+				} else if (runAsUser == null) {
+					// Unauthenticated CalDAV for example?
+					user = currentUser;
+				} else {
+					// No calendar suite set up
 
-						// XXX This is messy
-						if (runAsUser.startsWith("/")) {
-							user = (BwUser) users.getPrincipal(runAsUser);
-						} else {
-							user = users.getUser(runAsUser);
-						}
+					// XXX This is messy
+					if (runAsUser.startsWith("/")) {
+						user = (BwUser) users.getPrincipal(runAsUser);
+					} else {
+						user = users.getUser(runAsUser);
 					}
-
-					((CalSvcDb) getPrefsHandler()).setPrincipal(user);
-					((CalSvcDb) getCalSuitesHandler()).setPrincipal(user);
 				}
 
-				return cali;
-			} catch (CalFacadeException cfe) {
-				error(cfe);
-				throw cfe;
-			} catch (Throwable t) {
-				error(t);
-				throw new CalFacadeException(t);
-			} finally {
-				cali.endTransaction();
-				cali.close();
-				// cali.flushAll();
+				((CalSvcDb) getPrefsHandler()).setPrincipal(user);
+				((CalSvcDb) getCalSuitesHandler()).setPrincipal(user);
 			}
+
+			return cali;
+		} catch (CalFacadeException cfe) {
+			error(cfe);
+			throw cfe;
+		} catch (Throwable t) {
+			error(t);
+			throw new CalFacadeException(t);
+		} finally {
+			cali.endTransaction();
+			cali.close();
+			// cali.flushAll();
 		}
 	}
 
@@ -1538,7 +2436,7 @@ public class CalSvc extends CalSvcI {
 	 * Create the user. Get a new CalSvc object for that purpose.
 	 */
 	BwUser addUser(final String val) throws CalFacadeException {
-		Users users = (Users) getUsersHandler();
+		Users users = getUsers();
 
 		/*
 		 * Run this in a separate transaction to ensure we don't fail if the
@@ -1558,7 +2456,7 @@ public class CalSvc extends CalSvcI {
 			nsvc.open();
 			nsvc.beginTransaction();
 
-			Users nusers = (Users) nsvc.getUsersHandler();
+			Users nusers = nsvc.getUsers();
 
 			nusers.createUser(val);
 		} catch (CalFacadeException cfe) {
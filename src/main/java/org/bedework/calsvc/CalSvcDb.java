@@ -19,6 +19,7 @@
 package org.bedework.calsvc;
 
 import org.bedework.calcorei.Calintf;
+import org.bedework.calcorei.CollectionTree;
 import org.bedework.calcorei.HibSession;
 import org.bedework.caldav.util.filter.FilterBase;
 import org.bedework.calfacade.BwCalendar;
@@ -118,7 +119,7 @@ public class CalSvcDb implements Serializable {
                                             final boolean scheduling,
                                             final RecurringRetrievalMode recurRetrieval)
                             throws CalFacadeException {
-    Events events = (Events)getSvc().getEventsHandler();
+    Events events = getSvc().getEvents();
 
     return events.get(colPath, guid, recurrenceId, scheduling,
                       recurRetrieval);
@@ -135,7 +136,7 @@ public class CalSvcDb implements Serializable {
   protected boolean deleteEvent(final EventInfo ei,
                                 final boolean scheduling,
                                 final boolean sendSchedulingReply) throws CalFacadeException {
-    Events events = (Events)getSvc().getEventsHandler();
+    Events events = getSvc().getEvents();
 
     return events.delete(ei, scheduling, sendSchedulingReply);
   }
@@ -144,7 +145,7 @@ public class CalSvcDb implements Serializable {
                                           final int calType,
                                           final boolean create,
                                           final int access) throws CalFacadeException {
-    Calendars cals = (Calendars)getSvc().getCalendarsHandler();
+    Calendars cals = getSvc().getCalendars();
 
     return cals.getSpecial(owner, calType, create, access);
   }
@@ -182,7 +183,7 @@ public class CalSvcDb implements Serializable {
                                             final List<String> retrieveList,
                                             final RecurringRetrievalMode recurRetrieval,
                                             final boolean freeBusy) throws CalFacadeException {
-   Events events = (Events)getSvc().getEventsHandler();
+   Events events = getSvc().getEvents();
 
    return events.getMatching(cals, filter, startDate, endDate,
                              retrieveList,
@@ -312,6 +313,38 @@ public class CalSvcDb implements Serializable {
     return svci.getCal(cal);
   }
 
+  /** Get the interface for the shard holding the principal's home.
+   *
+   * @param principal
+   * @return Calintf
+   * @throws CalFacadeException
+   */
+  protected Calintf getHomeCal(final BwPrincipal principal) throws CalFacadeException {
+    return svci.getHomeCal(principal);
+  }
+
+  /** Get the interface for the shard holding the given path.
+   *
+   * @param path of a collection or entity
+   * @return Calintf
+   * @throws CalFacadeException
+   */
+  protected Calintf getCal(final String path) throws CalFacadeException {
+    return svci.getCal(path);
+  }
+
+  /** Get a collection and everything below it the current user can see,
+   * with one query for each shard holding part of the subtree. Aliases are
+   * not followed - they appear as leaves.
+   *
+   * @param col
+   * @return CollectionTree
+   * @throws CalFacadeException
+   */
+  protected CollectionTree getSubtree(final BwCalendar col) throws CalFacadeException {
+    return svci.getSubtree(col);
+  }
+
   protected BwUser getPublicUser() throws CalFacadeException {
     return getSvc().getUsersHandler().getPublicUser();
   }
@@ -0,0 +1,358 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+        
+    http://www.apache.org/licenses/LICENSE-2.0
+        
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.calsvc;
+
+import org.bedework.calfacade.exc.CalFacadeException;
+import org.bedework.calsvci.CalSvcFactoryDefault;
+import org.bedework.calsvci.CalSvcI;
+import org.bedework.calsvci.CalSvcIPars;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+/** A node-wide pool of initialised service sessions for background
+ * processors.
+ *
+ * <p>Initialising a CalSvc object opens the interface, ensures the scheduling
+ * collections and loads the preferences. A processor handling a run of
+ * messages for the same principal can lease a session which has already
+ * been through that rather than build a new one for each message.
+ *
+ * <p>Sessions are pooled per principal and are only pooled closed. One which
+ * was rolled back or failed is discarded. Idle sessions are evicted after
+ * idleTimeout and all sessions after maxLifetime so that cached state does
+ * not get too old.
+ *
+ * @author Mike Douglass
+ */
+public class CalSvcPool {
+  private static final CalSvcPool pool = new CalSvcPool();
+
+  private static class Entry {
+    final CalSvcI svci;
+    final String principalHref;
+    final long created;
+    long lastUsed;
+
+    Entry(final CalSvcI svci, final String principalHref) {
+      this.svci = svci;
+      this.principalHref = principalHref;
+      created = System.currentTimeMillis();
+    }
+  }
+
+  /* Idle sessions by principal - most recently used first */
+  private final Map<String, LinkedList<Entry>> idle =
+    new HashMap<String, LinkedList<Entry>>();
+
+  private final Map<CalSvcI, Entry> leased = new IdentityHashMap<CalSvcI, Entry>();
+
+  private int idleCount;
+
+  private volatile int maxIdle = 50;
+
+  private volatile int maxIdlePerPrincipal = 2;
+
+  private volatile long idleTimeout = 60 * 1000;
+
+  private volatile long maxLifetime = 10 * 60 * 1000;
+
+  private long leases;
+  private long reused;
+  private long created;
+  private long evicted;
+  private long discarded;
+  private long initNanos;
+
+  /**
+   * @return the node-wide pool
+   */
+  public static CalSvcPool getPool() {
+    return pool;
+  }
+
+  /** Lease a closed session for the principal. Return it with release.
+   *
+   * @param principalHref
+   * @param allowSuperUser
+   * @return CalSvcI
+   * @throws CalFacadeException
+   */
+  public CalSvcI lease(final String principalHref,
+                       final boolean allowSuperUser) throws CalFacadeException {
+    Entry e = take(principalHref);
+
+    if (e == null) {
+      long start = System.nanoTime();
+
+      CalSvcIPars runAsPars = CalSvcIPars.getServicePars(principalHref,
+                                                         false,   // publicAdmin
+                                                         allowSuperUser);
+
+      e = new Entry(new CalSvcFactoryDefault().getSvc(runAsPars),
+                    principalHref);
+
+      synchronized (this) {
+        created++;
+        initNanos += System.nanoTime() - start;
+      }
+    }
+
+    synchronized (this) {
+      leases++;
+      leased.put(e.svci, e);
+    }
+
+    return e.svci;
+  }
+
+  /** Return a leased session. It must be closed.
+   *
+   * @param svci
+   * @param reusable false if the session failed or was rolled back
+   */
+  public void release(final CalSvcI svci,
+                      final boolean reusable) {
+    if (svci == null) {
+      return;
+    }
+
+    synchronized (this) {
+      Entry e = leased.remove(svci);
+
+      if (e == null) {
+        // Not one of ours
+        return;
+      }
+
+      long now = System.currentTimeMillis();
+
+      if (!reusable || svci.isOpen() ||
+          (now - e.created > maxLifetime) ||
+          (idleCount >= maxIdle)) {
+        discarded++;
+        return;
+      }
+
+      LinkedList<Entry> l = idle.get(e.principalHref);
+
+      if (l == null) {
+        l = new LinkedList<Entry>();
+        idle.put(e.principalHref, l);
+      }
+
+      if (l.size() >= maxIdlePerPrincipal) {
+        discarded++;
+        return;
+      }
+
+      e.lastUsed = now;
+      l.addFirst(e);
+      idleCount++;
+    }
+  }
+
+  /** Remove idle sessions which have expired
+   */
+  public synchronized void evictIdle() {
+    long now = System.currentTimeMillis();
+
+    Iterator<LinkedList<Entry>> lit = idle.values().iterator();
+
+    while (lit.hasNext()) {
+      LinkedList<Entry> l = lit.next();
+      Iterator<Entry> it = l.iterator();
+
+      while (it.hasNext()) {
+        if (expired(it.next(), now)) {
+          it.remove();
+          idleCount--;
+          evicted++;
+        }
+      }
+
+      if (l.isEmpty()) {
+        lit.remove();
+      }
+    }
+  }
+
+  /** Discard all idle sessions
+   */
+  public synchronized void clear() {
+    evicted += idleCount;
+    idle.clear();
+    idleCount = 0;
+  }
+
+  /**
+   * @param val maximum number of idle sessions
+   */
+  public void setMaxIdle(final int val) {
+    maxIdle = val;
+  }
+
+  /**
+   * @return maximum number of idle sessions
+   */
+  public int getMaxIdle() {
+    return maxIdle;
+  }
+
+  /**
+   * @param val maximum number of idle sessions for one principal
+   */
+  public void setMaxIdlePerPrincipal(final int val) {
+    maxIdlePerPrincipal = val;
+  }
+
+  /**
+   * @return maximum number of idle sessions for one principal
+   */
+  public int getMaxIdlePerPrincipal() {
+    return maxIdlePerPrincipal;
+  }
+
+  /**
+   * @param val millisecs an idle session is kept
+   */
+  public void setIdleTimeout(final long val) {
+    idleTimeout = val;
+  }
+
+  /**
+   * @return millisecs an idle session is kept
+   */
+  public long getIdleTimeout() {
+    return idleTimeout;
+  }
+
+  /**
+   * @param val millisecs after which a session is not reused
+   */
+  public void setMaxLifetime(final long val) {
+    maxLifetime = val;
+  }
+
+  /**
+   * @return millisecs after which a session is not reused
+   */
+  public long getMaxLifetime() {
+    return maxLifetime;
+  }
+
+  /**
+   * @return number of idle sessions
+   */
+  public synchronized int getIdleCount() {
+    return idleCount;
+  }
+
+  /**
+   * @return number of leases
+   */
+  public synchronized long getLeases() {
+    return leases;
+  }
+
+  /**
+   * @return number of leases satisfied by an idle session
+   */
+  public synchronized long getReused() {
+    return reused;
+  }
+
+  /**
+   * @return number of sessions initialised
+   */
+  public synchronized long getCreated() {
+    return created;
+  }
+
+  /**
+   * @return number of idle sessions evicted
+   */
+  public synchronized long getEvicted() {
+    return evicted;
+  }
+
+  /**
+   * @return number of returned sessions not pooled
+   */
+  public synchronized long getDiscarded() {
+    return discarded;
+  }
+
+  /**
+   * @return average millisecs to initialise a session
+   */
+  public synchronized double getAvgInitMillis() {
+    if (created == 0) {
+      return 0;
+    }
+
+    return (double)initNanos / created / 1000000;
+  }
+
+  /**
+   * @return estimated millisecs of initialisation saved by reuse
+   */
+  public synchronized double getInitMillisSaved() {
+    return reused * getAvgInitMillis();
+  }
+
+  private synchronized Entry take(final String principalHref) {
+    LinkedList<Entry> l = idle.get(principalHref);
+
+    if (l == null) {
+      return null;
+    }
+
+    long now = System.currentTimeMillis();
+
+    while (!l.isEmpty()) {
+      Entry e = l.removeFirst();
+      idleCount--;
+
+      if (expired(e, now)) {
+        evicted++;
+        continue;
+      }
+
+      if (l.isEmpty()) {
+        idle.remove(principalHref);
+      }
+
+      reused++;
+      return e;
+    }
+
+    idle.remove(principalHref);
+
+    return null;
+  }
+
+  private boolean expired(final Entry e, final long now) {
+    return (now - e.lastUsed > idleTimeout) ||
+           (now - e.created > maxLifetime);
+  }
+}
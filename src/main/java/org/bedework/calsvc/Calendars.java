@@ -40,6 +40,9 @@ import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 
@@ -87,7 +90,7 @@ class Calendars extends CalSvcDb implements CalendarsI {
       path = getSvc().getUsersHandler().getUserRootPath(getPrincipal());
     }
 
-    return getSvc().getCal().getCalendar(path, PrivilegeDefs.privRead, true);
+    return getCal(path).getCalendar(path, PrivilegeDefs.privRead, true);
   }
 
   /* (non-Javadoc)
@@ -102,8 +105,9 @@ class Calendars extends CalSvcDb implements CalendarsI {
     } else {
       priv = PrivilegeDefs.privRead;
     }
-    return getSvc().getCal().getCalendar(getSvc().getCal().getPrincipalRootPath(principal),
-                                         priv, true);
+    String path = getCal().getPrincipalRootPath(principal);
+
+    return getCal(path).getCalendar(path, priv, true);
   }
 
   /* (non-Javadoc)
@@ -131,6 +135,8 @@ class Calendars extends CalSvcDb implements CalendarsI {
       return cols;
     }
 
+    prefetchPath(pathEls);
+
     /* First, keep adding elements until we get a BwCalendar result.
      * This handles the user root not being accessible
      */
@@ -228,6 +234,33 @@ class Calendars extends CalSvcDb implements CalendarsI {
     return cols;
   }
 
+  /* Load the collections named by each leading part of the path with one
+   * query for each shard involved. The lookups made walking the path then
+   * find them in the session.
+   */
+  private void prefetchPath(final String[] pathEls) throws CalFacadeException {
+    Map<Calintf, List<String>> byShard = new HashMap<Calintf, List<String>>();
+    String path = "";
+
+    for (int i = 1; i < pathEls.length; i++) {
+      path += "/" + pathEls[i];
+
+      Calintf ci = getCal(path);
+      List<String> paths = byShard.get(ci);
+
+      if (paths == null) {
+        paths = new ArrayList<String>();
+        byShard.put(ci, paths);
+      }
+
+      paths.add(path);
+    }
+
+    for (Map.Entry<Calintf, List<String>> ent: byShard.entrySet()) {
+      ent.getKey().prefetchCollections(ent.getValue());
+    }
+  }
+
   /* (non-Javadoc)
    * @see org.bedework.calsvci.CalendarsI#getChildren(org.bedework.calfacade.BwCalendar)
    */
@@ -236,7 +269,28 @@ class Calendars extends CalSvcDb implements CalendarsI {
     if (col.getCalType() == BwCalendar.calTypeAlias) {
       resolveAlias(col, true, false);
     }
-    return getSvc().getCal().getCalendars(col.getAliasedEntity());
+    BwCalendar target = col.getAliasedEntity();
+    Collection<BwCalendar> res = getCal(target).getCalendars(target);
+    Collection<String> mounts = getSvc().getShardMounts(target.getPath());
+
+    if (mounts.isEmpty()) {
+      return res;
+    }
+
+    /* Subtrees held in other shards don't appear in the parent's shard */
+    Collection<BwCalendar> children = new ArrayList<BwCalendar>(res);
+
+    for (String path: mounts) {
+      BwCalendar mounted = getCal(path).getCalendar(path,
+                                                    PrivilegeDefs.privAny,
+                                                    true);
+
+      if (mounted != null) {
+        children.add(mounted);
+      }
+    }
+
+    return children;
   }
 
   /* (non-Javadoc)
@@ -257,7 +311,7 @@ class Calendars extends CalSvcDb implements CalendarsI {
    */
   @Override
   public boolean isEmpty(final BwCalendar val) throws CalFacadeException {
-    return getSvc().getCal().isEmpty(val);
+    return getCal(val).isEmpty(val);
   }
 
   /* (non-Javadoc)
@@ -278,7 +332,7 @@ class Calendars extends CalSvcDb implements CalendarsI {
       path = path.substring(0, path.length() - 1);
     }
 
-    return getSvc().getCal().getCalendar(path, PrivilegeDefs.privAny, false);
+    return getCal(path).getCalendar(path, PrivilegeDefs.privAny, false);
   }
 
   /* (non-Javadoc)
@@ -287,14 +341,14 @@ class Calendars extends CalSvcDb implements CalendarsI {
   @Override
   public BwCalendar getSpecial(final int calType,
                                final boolean create) throws CalFacadeException {
-    Calintf.GetSpecialCalendarResult gscr =  getSvc().getCal().getSpecialCalendar(
+    Calintf.GetSpecialCalendarResult gscr =  getHomeCal(getPrincipal()).getSpecialCalendar(
                              getPrincipal(), calType, create,
                                        PrivilegeDefs.privAny);
     if (gscr.noUserHome) {
       getSvc().getUsersHandler().add(getPrincipal().getAccount());
     }
 
-    return getSvc().getCal().getSpecialCalendar(getPrincipal(), calType, create,
+    return getHomeCal(getPrincipal()).getSpecialCalendar(getPrincipal(), calType, create,
                                                 PrivilegeDefs.privAny).cal;
   }
 
@@ -328,7 +382,7 @@ class Calendars extends CalSvcDb implements CalendarsI {
       encryptPw(val);
     }
 
-    val =  getSvc().getCal().add(val, parentPath);
+    val =  getCal(parentPath + "/" + val.getName()).add(val, parentPath);
 
     SynchI synch = getSvc().getSynch();
 
@@ -347,7 +401,8 @@ class Calendars extends CalSvcDb implements CalendarsI {
   @Override
   public void rename(final BwCalendar val,
                      final String newName) throws CalFacadeException {
-    getSvc().getCal().renameCalendar(val, newName);
+    EnsuredHomes.getHomes().removePath(val.getPath());
+    getCal(val).renameCalendar(val, newName);
   }
 
   /* (non-Javadoc)
@@ -356,7 +411,15 @@ class Calendars extends CalSvcDb implements CalendarsI {
   @Override
   public void move(final BwCalendar val,
                    final BwCalendar newParent) throws CalFacadeException {
-    getSvc().getCal().moveCalendar(val, newParent);
+    /* Moving a subtree between databases is the migrator's job */
+    if (!getSvc().getShard(val.getPath()).equals(
+                        getSvc().getShard(newParent.getPath() + "/" +
+                                          val.getName()))) {
+      throw new CalFacadeException("Cannot move a collection between shards");
+    }
+
+    EnsuredHomes.getHomes().removePath(val.getPath());
+    getCal(val).moveCalendar(val, newParent);
   }
 
   /* (non-Javadoc)
@@ -376,7 +439,7 @@ class Calendars extends CalSvcDb implements CalendarsI {
       encryptPw(val);
     }
 
-    getSvc().getCal().updateCalendar(val);
+    getCal(val).updateCalendar(val);
   }
 
   /* (non-Javadoc)
@@ -394,51 +457,125 @@ class Calendars extends CalSvcDb implements CalendarsI {
     if (!emptyIt) {
       /** Only allow delete if not in use
        */
-      if (!getSvc().getCal().isEmpty(val)) {
+      if (!getCal(val).isEmpty(val)) {
         throw new CalFacadeException(CalFacadeException.collectionNotEmpty);
       }
     }
 
+    /* If it's an alias we just delete it - otherwise we might need to empty it.
+     * Everything below is fetched in one go, parents before children.
+     */
+    List<BwCalendar> descendants;
+
+    if (!val.getInternalAlias() && emptyIt) {
+      descendants = getSubtree(val).getDescendants(val);
+    } else {
+      descendants = new ArrayList<BwCalendar>();
+    }
+
+    checkNotDefault(val);
+
+    for (BwCalendar cal: descendants) {
+      checkNotDefault(cal);
+    }
+
+    /* Children before their parents */
+    for (int i = descendants.size() - 1; i >= 0; i--) {
+      BwCalendar cal = descendants.get(i);
+
+      if (!deleteOne(cal, true)) {
+        // Somebody else at it
+        getSvc().rollbackTransaction();
+        throw new CalFacadeException(CalFacadeException.collectionNotFound,
+                                     cal.getPath());
+      }
+    }
+
+    return deleteOne(val, emptyIt);
+  }
+
+  private void checkNotDefault(final BwCalendar val) throws CalFacadeException {
     BwPreferences prefs = getSvc().getPrefsHandler().get(
              getSvc().getUsersHandler().getPrincipal(val.getOwnerHref()));
     if (val.getPath().equals(prefs.getDefaultCalendarPath())) {
       throw new CalFacadeException(CalFacadeException.cannotDeleteDefaultCalendar);
     }
+  }
 
+  /* Delete one collection whose children have gone */
+  private boolean deleteOne(final BwCalendar val,
+                            final boolean emptyIt) throws CalFacadeException {
     /* Remove from preferences */
     getSvc().getPrefsHandler().updateAdminPrefs(true, val, null, null, null);
 
-    /* If it' an alias we just delete it - otherwise we might need to empty it.
-     */
-    if (!val.getInternalAlias() && emptyIt) {
-      if (val.getCalendarCollection()) {
-        RecurringRetrievalMode rrm = new RecurringRetrievalMode(Rmode.overrides);
-
-        for (EventInfo ei: getSvc().getEventsHandler().getEvents(val,
-                                                                 null,
-                                                                 null,
-                                                                 null,
-                                                                 null, // retrieveList
-                                                                 rrm)) {
-          ((Events)getSvc().getEventsHandler()).delete(ei, false, true, true);
-        }
-      }
+    if (!val.getInternalAlias() && emptyIt && val.getCalendarCollection()) {
+      RecurringRetrievalMode rrm = new RecurringRetrievalMode(Rmode.overrides);
 
-      for (BwCalendar cal: getChildren(val)) {
-        if (!delete(cal, true, true)) {
-          // Somebody else at it
-          getSvc().rollbackTransaction();
-          throw new CalFacadeException(CalFacadeException.collectionNotFound,
-                                       cal.getPath());
-        }
+      for (EventInfo ei: getSvc().getEventsHandler().getEvents(val,
+                                                               null,
+                                                               null,
+                                                               null,
+                                                               null, // retrieveList
+                                                               rrm)) {
+        getSvc().getEvents().delete(ei, false, true, true);
       }
     }
 
     getSvc().getSynch().unsubscribe(val);
 
+    EnsuredHomes.getHomes().removePath(val.getPath());
+
     /* Attempt to tombstone it
      */
-    return getSvc().getCal().deleteCalendar(val, false);
+    return getCal(val).deleteCalendar(val, false);
+  }
+
+  /** Delete a collection and everything below it using the bulk operations
+   * of the low level interface. Unlike delete(val, true) no scheduling
+   * messages are sent for the events removed.
+   *
+   * @param val
+   * @return number of events removed
+   * @throws CalFacadeException
+   */
+  public int deleteTree(final BwCalendar val) throws CalFacadeException {
+    BwPreferences prefs = getSvc().getPrefsHandler().get(
+             getSvc().getUsersHandler().getPrincipal(val.getOwnerHref()));
+    if ((prefs != null) &&
+        (prefs.getDefaultCalendarPath() != null) &&
+        (prefs.getDefaultCalendarPath().equals(val.getPath()) ||
+         prefs.getDefaultCalendarPath().startsWith(val.getPath() + "/"))) {
+      throw new CalFacadeException(CalFacadeException.cannotDeleteDefaultCalendar);
+    }
+
+    /* Remove from preferences */
+    getSvc().getPrefsHandler().updateAdminPrefs(true, val, null, null, null);
+
+    List<BwCalendar> descendants = getSubtree(val).getDescendants(val);
+
+    for (BwCalendar col: descendants) {
+      getSvc().getSynch().unsubscribe(col);
+    }
+
+    getSvc().getSynch().unsubscribe(val);
+
+    EnsuredHomes.getHomes().removePath(val.getPath());
+
+    /* Subtrees mounted from other shards go first, deepest first. Each
+     * shard tombstones its own part of the tree.
+     */
+    int nevents = 0;
+
+    for (int i = descendants.size() - 1; i >= 0; i--) {
+      BwCalendar col = descendants.get(i);
+
+      if (!getSvc().getShard(col.getPath()).equals(
+                          getSvc().getShard(col.getColPath()))) {
+        nevents += getCal(col).deleteCollectionTree(col);
+      }
+    }
+
+    return nevents + getCal(val).deleteCollectionTree(val);
   }
 
   /* (non-Javadoc)
@@ -490,14 +627,14 @@ class Calendars extends CalSvcDb implements CalendarsI {
                         final int calType,
                         final boolean create,
                         final int access) throws CalFacadeException {
-    Calintf.GetSpecialCalendarResult gscr =  getSvc().getCal().getSpecialCalendar(
+    Calintf.GetSpecialCalendarResult gscr =  getHomeCal(owner).getSpecialCalendar(
                                       owner, calType, create,
                                                 PrivilegeDefs.privAny);
     if (gscr.noUserHome) {
       getSvc().getUsersHandler().add(owner.getAccount());
     }
 
-    return getSvc().getCal().getSpecialCalendar(owner, calType, create,
+    return getHomeCal(owner).getSpecialCalendar(owner, calType, create,
                                          PrivilegeDefs.privAny).cal;
   }
 
@@ -0,0 +1,219 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+        
+    http://www.apache.org/licenses/LICENSE-2.0
+        
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.calsvc;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** A node-wide record of principals whose scheduling collections are known
+ * to exist. Service initialisation checks for, and if necessary creates, the
+ * inbox and outbox. Once they exist they almost never go away so we only
+ * need to check once in a while.
+ *
+ * <p>Entries are removed when one of the recorded collections, or a
+ * collection above it, is deleted or moved, or the principal is removed.
+ * They also expire after maxAge, which covers changes made on another node.
+ *
+ * @author Mike Douglass
+ */
+public class EnsuredHomes {
+  private static final EnsuredHomes homes = new EnsuredHomes();
+
+  private static class Entry {
+    final String[] paths;
+    final long created;
+
+    Entry(final String[] paths) {
+      this.paths = paths;
+      created = System.currentTimeMillis();
+    }
+
+    boolean affectedBy(final String path) {
+      String prefix = path + "/";
+
+      for (String p: paths) {
+        if (p.equals(path) || p.startsWith(prefix)) {
+          return true;
+        }
+      }
+
+      return false;
+    }
+  }
+
+  private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+  private volatile boolean enabled = true;
+
+  private volatile int maxEntries = 50000;
+
+  private volatile long maxAge = 60 * 60 * 1000;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong invalidations = new AtomicLong();
+
+  /**
+   * @return the node-wide record
+   */
+  public static EnsuredHomes getHomes() {
+    return homes;
+  }
+
+  /**
+   * @param principalHref
+   * @return true if the principal's collections are known to exist
+   */
+  public boolean isEnsured(final String principalHref) {
+    if (!enabled) {
+      return false;
+    }
+
+    Entry e = entries.get(principalHref);
+
+    if ((e == null) ||
+        (System.currentTimeMillis() - e.created > maxAge)) {
+      misses.incrementAndGet();
+      return false;
+    }
+
+    hits.incrementAndGet();
+    return true;
+  }
+
+  /** Record that the collections exist
+   *
+   * @param principalHref
+   * @param paths of the collections
+   */
+  public void ensured(final String principalHref,
+                      final String... paths) {
+    if (!enabled) {
+      return;
+    }
+
+    if (entries.size() >= maxEntries) {
+      entries.clear();
+    }
+
+    entries.put(principalHref, new Entry(paths));
+  }
+
+  /** The principal has changed or gone
+   *
+   * @param principalHref
+   */
+  public void remove(final String principalHref) {
+    if (principalHref == null) {
+      return;
+    }
+
+    invalidations.incrementAndGet();
+    entries.remove(principalHref);
+  }
+
+  /** A collection was deleted or moved
+   *
+   * @param path
+   */
+  public void removePath(final String path) {
+    if ((path == null) || entries.isEmpty()) {
+      return;
+    }
+
+    invalidations.incrementAndGet();
+
+    Iterator<Entry> it = entries.values().iterator();
+
+    while (it.hasNext()) {
+      if (it.next().affectedBy(path)) {
+        it.remove();
+      }
+    }
+  }
+
+  /** Discard everything
+   */
+  public void clear() {
+    invalidations.incrementAndGet();
+    entries.clear();
+  }
+
+  /**
+   * @param val false to disable
+   */
+  public void setEnabled(final boolean val) {
+    enabled = val;
+
+    if (!val) {
+      clear();
+    }
+  }
+
+  /**
+   * @return true if enabled
+   */
+  public boolean getEnabled() {
+    return enabled;
+  }
+
+  /**
+   * @param val millisecs after which we check again
+   */
+  public void setMaxAge(final long val) {
+    maxAge = val;
+  }
+
+  /**
+   * @return millisecs after which we check again
+   */
+  public long getMaxAge() {
+    return maxAge;
+  }
+
+  /**
+   * @return number of principals recorded
+   */
+  public int getSize() {
+    return entries.size();
+  }
+
+  /**
+   * @return number of checks skipped
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * @return number of checks made
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * @return number of invalidations
+   */
+  public long getInvalidations() {
+    return invalidations.get();
+  }
+}
@@ -31,6 +31,7 @@ import org.bedework.calsvci.EventProperties;
 
 import edu.rpi.cmt.access.PrivilegeDefs;
 
+import java.util.ArrayList;
 import java.util.Collection;
 
 /** Class which handles manipulation of BwEventProperty subclasses which are
@@ -234,6 +235,9 @@ public class EventPropertiesImpl <T extends BwEventProperty>
       throw new CalFacadeException("org.bedework.duplicate.object");
     }
 
+    /* Events in other shards may refer to it */
+    getSvc().replicateToShards(val);
+
     return true;
   }
 
@@ -262,6 +266,8 @@ public class EventPropertiesImpl <T extends BwEventProperty>
       sess.rollback();
       throw new CalFacadeException("org.bedework.duplicate.object");
     }
+
+    getSvc().replicateToShards(val);
   }
 
   /* (non-Javadoc)
@@ -289,6 +295,8 @@ public class EventPropertiesImpl <T extends BwEventProperty>
     sess.executeUpdate();
 
     sess.delete(val);
+    getSvc().deleteFromShards(val);
+
     return 0;
   }
 
@@ -324,9 +332,20 @@ public class EventPropertiesImpl <T extends BwEventProperty>
     return total;
   }
 
+  /* Referring events may be in any shard */
   private long getRefsCount(final T val, final String queryName) throws CalFacadeException {
-    HibSession sess = getSess();
+    long total = 0;
+
+    for (String shard: getSvc().getShards()) {
+      total += getRefsCount(getShardSess(shard), val, queryName);
+    }
+
+    return total;
+  }
 
+  private long getRefsCount(final HibSession sess,
+                            final T val,
+                            final String queryName) throws CalFacadeException {
     sess.namedQuery(queryName);
     sess.setEntity("ent", val);
 
@@ -351,13 +370,17 @@ public class EventPropertiesImpl <T extends BwEventProperty>
 
   private Collection<PropertyRef> getRefs(final T val,
                                           final String queryName) throws CalFacadeException {
-    HibSession sess = getSess();
+    Collection<PropertyRef> refs = new ArrayList<PropertyRef>();
 
-    sess.namedQuery(queryName);
-    sess.setEntity("ent", val);
+    for (String shard: getSvc().getShards()) {
+      HibSession sess = getShardSess(shard);
 
-    /* May get multiple counts back for events and annotations. */
-    Collection<PropertyRef> refs = sess.getList();
+      sess.namedQuery(queryName);
+      sess.setEntity("ent", val);
+
+      /* May get multiple counts back for events and annotations. */
+      refs.addAll(sess.getList());
+    }
 
     if (debug) {
       trace(" ----------- count = " + refs.size());
@@ -366,6 +389,10 @@ public class EventPropertiesImpl <T extends BwEventProperty>
     return refs;
   }
 
+  private HibSession getShardSess(final String shard) throws CalFacadeException {
+    return (HibSession)getSvc().getShardCal(shard).getDbSession();
+  }
+
   /* (non-Javadoc)
    * @see org.bedework.calsvci.EventProperties#ensureExists(org.bedework.calfacade.BwEventProperty, java.lang.String)
    */
@@ -20,7 +20,9 @@ package org.bedework.calsvc;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 
@@ -92,7 +94,7 @@ Events(final CalSvc svci,
                                    final RecurringRetrievalMode recurRetrieval,
                                    final boolean scheduling)
           throws CalFacadeException {
-    Collection<EventInfo> res = postProcess(getCal().getEvent(colPath,
+    Collection<EventInfo> res = postProcess(getCal(colPath).getEvent(colPath,
                                                               guid,
                                                               recurrenceId,
                                                               scheduling,
@@ -112,7 +114,7 @@ Events(final CalSvc svci,
   public EventInfo get(final String colPath, final String name,
                        final RecurringRetrievalMode recurRetrieval)
           throws CalFacadeException {
-    EventInfo res = postProcess(getCal().getEvent(colPath,
+    EventInfo res = postProcess(getCal(colPath).getEvent(colPath,
                                                   name,
                                                   recurRetrieval));
 
@@ -293,16 +295,20 @@ Events(final CalSvc svci,
 
       UpdateEventResult uer;
 
+      ensureEventRefs(event, overrides);
+
       if (proxy != null) {
-        uer = getCal().addEvent(override, overrides, scheduling, rollbackOnError);
+        uer = getCal(event.getColPath()).addEvent(override, overrides,
+                                                  scheduling, rollbackOnError);
       } else {
-        uer = getCal().addEvent(event, overrides, scheduling, rollbackOnError);
+        uer = getCal(event.getColPath()).addEvent(event, overrides,
+                                                  scheduling, rollbackOnError);
       }
 
       if (ei.getNumAvailables() != 0) {
         for (EventInfo oei: ei.getAvailable()) {
           oei.getEvent().setName(event.getName());
-          UpdateEventResult auer = getCal().addEvent(oei.getEvent(), null,
+          UpdateEventResult auer = getCal(event.getColPath()).addEvent(oei.getEvent(), null,
                                                      scheduling, rollbackOnError);
           if (auer.errorCode != null) {
             //?
@@ -428,7 +434,9 @@ Events(final CalSvc svci,
 
       updateEntities(updResult, event);
 
-      UpdateEventResult uer = getCal().updateEvent(event,
+      ensureEventRefs(event, ei.getOverrideProxies());
+
+      UpdateEventResult uer = getCal(event.getColPath()).updateEvent(event,
                                                    ei.getOverrideProxies(),
                                                    ei.getDeletedOverrideProxies(),
                                                    changes);
@@ -532,6 +540,21 @@ Events(final CalSvc svci,
     return updResult.hasChanged;
   }
 
+  /* The shard holding the event needs the entities it refers to */
+  private void ensureEventRefs(final BwEvent event,
+                               final Collection<BwEventProxy> overrides)
+          throws CalFacadeException {
+    getSvc().ensureEventRefs(event.getColPath(), event);
+
+    if (overrides == null) {
+      return;
+    }
+
+    for (BwEventProxy ovei: overrides) {
+      getSvc().ensureEventRefs(event.getColPath(), ovei.getRef());
+    }
+  }
+
   /* (non-Javadoc)
    * @see org.bedework.calsvci.EventsI#markDeleted(org.bedework.calfacade.BwEvent)
    */
@@ -542,7 +565,7 @@ Events(final CalSvc svci,
       // Have write access - just set the flag and move it into the owners trash
       event.setDeleted(true);
 
-      GetSpecialCalendarResult gscr = getCal().getSpecialCalendar(getUser(), //event.getOwner(),
+      GetSpecialCalendarResult gscr = getHomeCal(getUser()).getSpecialCalendar(getUser(), //event.getOwner(),
                                           BwCalendar.calTypeTrash,
                                           true,
                                           PrivilegeDefs.privWriteContent);
@@ -583,9 +606,16 @@ Events(final CalSvc svci,
 
     // Where does the ref go? Not in the same calendar - we have no access
 
-    BwCalendar cal = getCal().getSpecialCalendar(getPrincipal(),
+    BwCalendar cal = getHomeCal(getPrincipal()).getSpecialCalendar(getPrincipal(),
                                      BwCalendar.calTypeDeleted,
                                      true, PrivilegeDefs.privRead).cal;
+
+    /* The annotation refers to its target so must be in the same shard */
+    if (!getSvc().getShard(cal.getPath()).equals(
+                        getSvc().getShard(event.getColPath()))) {
+      throw new CalFacadeException("Cannot mark deleted an event in another shard");
+    }
+
     proxy.setOwnerHref(getPrincipal().getPrincipalRef());
     proxy.setDeleted(true);
     proxy.setColPath(cal.getPath());
@@ -598,7 +628,19 @@ Events(final CalSvc svci,
   @Override
   public Collection<BwCalendar> findCalendars(final String guid,
                                               final String rid) throws CalFacadeException {
-    return getCal().findCalendars(guid, rid);
+    Collection<String> shards = getSvc().getShards();
+
+    if (shards.size() == 1) {
+      return getCal().findCalendars(guid, rid);
+    }
+
+    Collection<BwCalendar> cals = new ArrayList<BwCalendar>();
+
+    for (String shard: shards) {
+      cals.addAll(getSvc().getShardCal(shard).findCalendars(guid, rid));
+    }
+
+    return cals;
   }
 
   @Override
@@ -656,9 +698,13 @@ Events(final CalSvc svci,
 
           String fromPath = from.getColPath();
 
-          getCal().moveEvent(from, fromPath, to.getPath());
+          if (!getSvc().getShard(fromPath).equals(getSvc().getShard(to.getPath()))) {
+            throw new CalFacadeException("Cannot move an event between shards");
+          }
 
-          getCal().touchCalendar(fromPath);
+          getCal(fromPath).moveEvent(from, fromPath, to.getPath());
+
+          getCal(fromPath).touchCalendar(fromPath);
         } else {
           // Just changing name
           from.setName(name);
@@ -815,10 +861,50 @@ Events(final CalSvc svci,
       }
     }
 
-    ts.addAll(postProcess(getCal().getEvents(calSet, filter,
-                          startDate, endDate,
-                          retrieveList,
-                          recurRetrieval, freeBusy)));
+    Collection<String> shards = getSvc().getShards();
+
+    if (shards.size() == 1) {
+      /* Read only - may go to the replica */
+      ts.addAll(postProcess(getSvc().getReadCal().getEvents(calSet, filter,
+                            startDate, endDate,
+                            retrieveList,
+                            recurRetrieval, freeBusy)));
+
+      return ts;
+    }
+
+    /* Query each shard for the collections it holds. With no collections we
+     * are searching everything so we ask them all.
+     */
+    Map<String, Collection<BwCalendar>> byShard =
+      new HashMap<String, Collection<BwCalendar>>();
+
+    if (calSet == null) {
+      for (String shard: shards) {
+        byShard.put(shard, null);
+      }
+    } else {
+      for (BwCalendar cal: calSet) {
+        String shard = getSvc().getShard(cal.getPath());
+        Collection<BwCalendar> cs = byShard.get(shard);
+
+        if (cs == null) {
+          cs = new ArrayList<BwCalendar>();
+          byShard.put(shard, cs);
+        }
+
+        cs.add(cal);
+      }
+    }
+
+    for (String shard: byShard.keySet()) {
+      ts.addAll(postProcess(getSvc().getShardCal(shard).getEvents(byShard.get(shard),
+                                                                 filter,
+                                                                 startDate, endDate,
+                                                                 retrieveList,
+                                                                 recurRetrieval,
+                                                                 freeBusy)));
+    }
 
     return ts;
   }
@@ -839,13 +925,34 @@ Events(final CalSvc svci,
                             final boolean scheduling,
                             final RecurringRetrievalMode recurRetrieval)
                             throws CalFacadeException {
-    return postProcess(getCal().getEvent(colPath, guid, recurrenceId,
-                                         scheduling, recurRetrieval));
+    if (colPath != null) {
+      return postProcess(getCal(colPath).getEvent(colPath, guid, recurrenceId,
+                                                  scheduling, recurRetrieval));
+    }
+
+    Collection<String> shards = getSvc().getShards();
+
+    if (shards.size() == 1) {
+      return postProcess(getCal().getEvent(colPath, guid, recurrenceId,
+                                           scheduling, recurRetrieval));
+    }
+
+    /* Could be in any of them */
+    Collection<CoreEventInfo> ceis = new ArrayList<CoreEventInfo>();
+
+    for (String shard: shards) {
+      ceis.addAll(getSvc().getShardCal(shard).getEvent(colPath, guid,
+                                                       recurrenceId,
+                                                       scheduling,
+                                                       recurRetrieval));
+    }
+
+    return postProcess(ceis);
   }
 
   Set<EventInfo> getSynchEvents(final String path,
                                 final String lastmod) throws CalFacadeException {
-    return postProcess(getCal().getSynchEvents(path, lastmod));
+    return postProcess(getCal(path).getSynchEvents(path, lastmod));
   }
 
   /** Method which allows us to flag it as a scheduling action
@@ -914,9 +1021,9 @@ Events(final CalSvc svci,
       }
     }
 
-    if (!getCal().deleteEvent(event,
-                              scheduling,
-                              reallyDelete).eventDeleted) {
+    if (!getCal(event.getColPath()).deleteEvent(event,
+                                                scheduling,
+                                                reallyDelete).eventDeleted) {
       getSvc().rollbackTransaction();
       return false;
     }
@@ -926,9 +1033,9 @@ Events(final CalSvc svci,
     }
 
     for (EventInfo aei: ei.getAvailable()) {
-      if (!getCal().deleteEvent(aei.getEvent(),
-                                scheduling,
-                                true).eventDeleted) {
+      if (!getCal(aei.getEvent().getColPath()).deleteEvent(aei.getEvent(),
+                                                           scheduling,
+                                                           true).eventDeleted) {
         getSvc().rollbackTransaction();
         return false;
       }
@@ -1143,7 +1250,7 @@ Events(final CalSvc svci,
      * This way we get too many.
      */
     if (!isGuest() && !isPublicAdmin()) {
-      BwCalendar cal = getCal().getSpecialCalendar(getPrincipal(), BwCalendar.calTypeDeleted,
+      BwCalendar cal = getHomeCal(getPrincipal()).getSpecialCalendar(getPrincipal(), BwCalendar.calTypeDeleted,
                                                    false,
                                                    PrivilegeDefs.privRead).cal;
 
@@ -1151,7 +1258,7 @@ Events(final CalSvc svci,
         // Not supported or never deleted anything
         deleted = new ArrayList<CoreEventInfo>();
       } else {
-        deleted = getCal().getDeletedProxies(cal);
+        deleted = getCal(cal).getDeletedProxies(cal);
       }
     }
 
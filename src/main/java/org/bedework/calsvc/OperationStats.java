@@ -0,0 +1,507 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+        
+    http://www.apache.org/licenses/LICENSE-2.0
+        
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.calsvc;
+
+import org.bedework.calcore.hibernate.HibSessionImpl;
+import org.bedework.calcore.hibernate.LatencyHistogram;
+import org.bedework.tracing.Span;
+import org.bedework.tracing.Tracer;
+
+import org.apache.log4j.Logger;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Calls, errors, latency and database queries for each public method of
+ * the service handlers.
+ *
+ * <p>CalSvc hands out a wrapper for each instrumented handler which times
+ * every call through its interface. Calls between handlers go through the
+ * wrappers as well so are also counted, but only the outermost call on a
+ * thread counts towards the request summary.
+ *
+ * <p>A request runs from CalSvc.open to close. If it takes longer than the
+ * request threshold a summary of the operations it ran is logged. Each call
+ * is also a span if the request is being traced.
+ *
+ * @author douglm
+ */
+public class OperationStats {
+  private static final OperationStats stats = new OperationStats();
+
+  private transient Logger log;
+
+  private volatile boolean enabled = true;
+
+  private volatile long requestThreshold = 2000;
+
+  /* handler.method -> stats */
+  private final ConcurrentHashMap<String, Op> ops =
+    new ConcurrentHashMap<String, Op>();
+
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong slowRequests = new AtomicLong();
+
+  /* More than this and we assume earlier requests were not ended */
+  private static final int maxNesting = 8;
+
+  private static final ThreadLocal<Request> threadRequest =
+      new ThreadLocal<Request>();
+
+  /* Number of operations listed in a request summary */
+  private static final int maxSummaryOps = 10;
+
+  /** Statistics for one operation.
+   */
+  public static class Op {
+    private final String name;
+
+    private final LatencyHistogram times = new LatencyHistogram();
+
+    private final AtomicLong errors = new AtomicLong();
+
+    private final AtomicLong queries = new AtomicLong();
+
+    Op(final String name) {
+      this.name = name;
+    }
+
+    /**
+     * @return handler.method
+     */
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * @return latencies in microsecs
+     */
+    public LatencyHistogram getTimes() {
+      return times;
+    }
+
+    /**
+     * @return number of calls which threw an exception
+     */
+    public long getErrors() {
+      return errors.get();
+    }
+
+    /**
+     * @return number of database queries
+     */
+    public long getQueries() {
+      return queries.get();
+    }
+
+    /**
+     * @return one line summary
+     */
+    public String summary() {
+      StringBuilder sb = new StringBuilder();
+
+      long ct = times.getCount();
+
+      sb.append("calls=");
+      sb.append(ct);
+      sb.append(" errors=");
+      sb.append(getErrors());
+      sb.append(" totalms=");
+      sb.append(times.getTotalMicros() / 1000);
+      sb.append(" p50us=");
+      sb.append(times.getPercentile(50));
+      sb.append(" p95us=");
+      sb.append(times.getPercentile(95));
+      sb.append(" p99us=");
+      sb.append(times.getPercentile(99));
+      sb.append(" maxus=");
+      sb.append(times.getMaxMicros());
+      sb.append(" avgqueries=");
+      if (ct == 0) {
+        sb.append(0);
+      } else {
+        sb.append(getQueries() / ct);
+      }
+
+      return sb.toString();
+    }
+  }
+
+  /* Operations run by the request on this thread. A request started while
+   * another is running - e.g. the nested session used to add a user - stacks
+   * on top of it.
+   */
+  private static class Request {
+    final Request outer;
+
+    /* Number of enclosing requests */
+    final int level;
+
+    long start = System.currentTimeMillis();
+    long startQueries = HibSessionImpl.getThreadQueryCount();
+
+    int depth;
+
+    /* name -> calls, micros */
+    Map<String, long[]> ops = new HashMap<String, long[]>();
+
+    Request(final Request outer) {
+      if ((outer == null) || (outer.level >= maxNesting)) {
+        /* Requests which were never ended - don't let the stack grow */
+        this.outer = null;
+        level = 0;
+      } else {
+        this.outer = outer;
+        level = outer.level + 1;
+      }
+    }
+  }
+
+  private class Timer implements InvocationHandler {
+    private final Object handler;
+    private final String handlerName;
+
+    private final Map<Method, Op> methodOps =
+      new ConcurrentHashMap<Method, Op>();
+
+    Timer(final Object handler,
+          final String handlerName) {
+      this.handler = handler;
+      this.handlerName = handlerName;
+    }
+
+    public Object invoke(final Object proxy,
+                         final Method method,
+                         final Object[] args) throws Throwable {
+      if (!enabled || (method.getDeclaringClass() == Object.class)) {
+        return call(method, args);
+      }
+
+      Op op = methodOps.get(method);
+
+      if (op == null) {
+        op = getOp(handlerName + "." + method.getName());
+        methodOps.put(method, op);
+      }
+
+      Request req = threadRequest.get();
+
+      if (req != null) {
+        req.depth++;
+      }
+
+      Span span = Tracer.start(op.getName());
+      long start = System.nanoTime();
+      long startQueries = HibSessionImpl.getThreadQueryCount();
+      boolean ok = false;
+
+      try {
+        Object res = call(method, args);
+        ok = true;
+
+        return res;
+      } finally {
+        long micros = (System.nanoTime() - start) / 1000;
+
+        op.times.record(micros);
+        op.queries.addAndGet(HibSessionImpl.getThreadQueryCount() -
+                             startQueries);
+
+        if (!ok) {
+          op.errors.incrementAndGet();
+          span.setAttribute("error", true);
+        }
+
+        span.end();
+
+        if (req != null) {
+          req.depth--;
+
+          if (req.depth == 0) {
+            long[] vals = req.ops.get(op.getName());
+
+            if (vals == null) {
+              vals = new long[2];
+              req.ops.put(op.getName(), vals);
+            }
+
+            vals[0]++;
+            vals[1] += micros;
+          }
+        }
+      }
+    }
+
+    private Object call(final Method method,
+                        final Object[] args) throws Throwable {
+      try {
+        return method.invoke(handler, args);
+      } catch (InvocationTargetException ite) {
+        throw ite.getCause();
+      }
+    }
+  }
+
+  private OperationStats() {
+  }
+
+  /**
+   * @return the node-wide statistics
+   */
+  public static OperationStats getStats() {
+    return stats;
+  }
+
+  /** Return a wrapper for the handler which records each call through the
+   * interface.
+   *
+   * @param handler  the handler
+   * @param iface    interface the wrapper implements
+   * @param name     name for the handler in the statistics
+   * @return the wrapper
+   */
+  public <T> T wrap(final T handler,
+                    final Class<T> iface,
+                    final String name) {
+    Object p = Proxy.newProxyInstance(iface.getClassLoader(),
+                                      new Class[]{iface},
+                                      new Timer(handler, name));
+
+    return iface.cast(p);
+  }
+
+  /** Called when a request starts on this thread.
+   */
+  public void startRequest() {
+    if (!enabled) {
+      return;
+    }
+
+    threadRequest.set(new Request(threadRequest.get()));
+  }
+
+  /** Called when a request ends on this thread. Logs a summary if it was
+   * slow.
+   *
+   * @param who    principal for the request
+   */
+  public void endRequest(final String who) {
+    Request req = threadRequest.get();
+
+    if (req == null) {
+      return;
+    }
+
+    /* Back to the enclosing request if any */
+    if (req.outer == null) {
+      threadRequest.remove();
+    } else {
+      threadRequest.set(req.outer);
+    }
+
+    requests.incrementAndGet();
+
+    long millis = System.currentTimeMillis() - req.start;
+
+    if (millis < requestThreshold) {
+      return;
+    }
+
+    slowRequests.incrementAndGet();
+
+    List<Map.Entry<String, long[]>> l =
+      new ArrayList<Map.Entry<String, long[]>>(req.ops.entrySet());
+
+    Collections.sort(l, new Comparator<Map.Entry<String, long[]>>() {
+      public int compare(final Map.Entry<String, long[]> e1,
+                         final Map.Entry<String, long[]> e2) {
+        return Long.valueOf(e2.getValue()[1]).compareTo(e1.getValue()[1]);
+      }
+    });
+
+    StringBuilder sb = new StringBuilder("Slow request: who=");
+    sb.append(who);
+    sb.append(" ms=");
+    sb.append(millis);
+    sb.append(" queries=");
+    sb.append(HibSessionImpl.getThreadQueryCount() - req.startQueries);
+
+    int i = 0;
+    for (Map.Entry<String, long[]> e: l) {
+      if (i == maxSummaryOps) {
+        sb.append(" ...");
+        break;
+      }
+
+      sb.append(" ");
+      sb.append(e.getKey());
+      sb.append("=");
+      sb.append(e.getValue()[0]);
+      sb.append("/");
+      sb.append(e.getValue()[1] / 1000);
+      sb.append("ms");
+      i++;
+    }
+
+    getLogger().info(sb.toString());
+  }
+
+  /**
+   * @param val true to record operations
+   */
+  public void setEnabled(final boolean val) {
+    enabled = val;
+  }
+
+  /**
+   * @return true if recording operations
+   */
+  public boolean getEnabled() {
+    return enabled;
+  }
+
+  /**
+   * @param val millisecs above which a request summary is logged
+   */
+  public void setRequestThreshold(final long val) {
+    requestThreshold = val;
+  }
+
+  /**
+   * @return millisecs above which a request summary is logged
+   */
+  public long getRequestThreshold() {
+    return requestThreshold;
+  }
+
+  /**
+   * @return number of requests
+   */
+  public long getRequests() {
+    return requests.get();
+  }
+
+  /**
+   * @return number of requests over the threshold
+   */
+  public long getSlowRequests() {
+    return slowRequests.get();
+  }
+
+  /**
+   * @return operations with the greatest total time first
+   */
+  public List<Op> getOps() {
+    List<Op> l = new ArrayList<Op>(ops.values());
+
+    Collections.sort(l, new Comparator<Op>() {
+      public int compare(final Op o1, final Op o2) {
+        long t1 = o1.getTimes().getTotalMicros();
+        long t2 = o2.getTimes().getTotalMicros();
+
+        if (t1 == t2) {
+          return o1.getName().compareTo(o2.getName());
+        }
+
+        if (t1 > t2) {
+          return -1;
+        }
+
+        return 1;
+      }
+    });
+
+    return l;
+  }
+
+  /**
+   * @param name handler.method
+   * @return one line summary or null if not called
+   */
+  public String getOpSummary(final String name) {
+    Op op = ops.get(name);
+
+    if (op == null) {
+      return null;
+    }
+
+    return op.summary();
+  }
+
+  /**
+   * @return text dump with the greatest total time first
+   */
+  public String dump() {
+    StringBuilder sb = new StringBuilder();
+
+    for (Op op: getOps()) {
+      sb.append(op.getName());
+      sb.append(": ");
+      sb.append(op.summary());
+      sb.append("\n");
+    }
+
+    return sb.toString();
+  }
+
+  /** Discard the statistics. Wrappers already handed out keep recording to
+   * the old entries until their session ends.
+   */
+  public void reset() {
+    ops.clear();
+    requests.set(0);
+    slowRequests.set(0);
+  }
+
+  private Op getOp(final String name) {
+    Op op = ops.get(name);
+
+    if (op != null) {
+      return op;
+    }
+
+    op = new Op(name);
+
+    Op prev = ops.putIfAbsent(name, op);
+
+    if (prev != null) {
+      return prev;
+    }
+
+    return op;
+  }
+
+  private Logger getLogger() {
+    if (log == null) {
+      log = Logger.getLogger(this.getClass());
+    }
+
+    return log;
+  }
+}
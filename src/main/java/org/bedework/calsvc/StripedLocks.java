@@ -0,0 +1,85 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+        
+    http://www.apache.org/licenses/LICENSE-2.0
+        
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.calsvc;
+
+/** A fixed set of locks striped by account. Sessions for the same account
+ * share a stripe and wait for each other; sessions for different accounts
+ * usually don't.
+ *
+ * <p>Where two accounts are involved the locks are always returned lowest
+ * stripe first so callers taking both can't deadlock.
+ *
+ * @author Mike Douglass
+ */
+class StripedLocks {
+  private final Object[] locks;
+
+  /**
+   * @param stripes number of locks
+   */
+  StripedLocks(final int stripes) {
+    locks = new Object[stripes];
+
+    for (int i = 0; i < stripes; i++) {
+      locks[i] = new Object();
+    }
+  }
+
+  /**
+   * @return number of locks
+   */
+  int size() {
+    return locks.length;
+  }
+
+  /**
+   * @param account - may be null
+   * @return stripe for the account
+   */
+  int stripe(final String account) {
+    if (account == null) {
+      return 0;
+    }
+
+    return (account.hashCode() & 0x7fffffff) % locks.length;
+  }
+
+  /**
+   * @param account - may be null
+   * @return lock for the account
+   */
+  Object lockFor(final String account) {
+    return locks[stripe(account)];
+  }
+
+  /** Locks to hold for a pair of accounts, lowest stripe first. Both
+   * elements are the same object if the accounts share a stripe.
+   *
+   * @param account1 - may be null
+   * @param account2 - may be null
+   * @return two locks in the order they must be taken
+   */
+  Object[] locksFor(final String account1, final String account2) {
+    int s1 = stripe(account1);
+    int s2 = stripe(account2);
+
+    return new Object[]{locks[Math.min(s1, s2)],
+                        locks[Math.max(s1, s2)]};
+  }
+}
@@ -168,7 +168,7 @@ public class TimeZonesStoreImpl implements TimeZonesStoreI {
       }
       // Get event ids from db.
       iinfo.lastmod = System.currentTimeMillis();
-      iinfo.ids = ((Events)svci.getEventsHandler()).getEventKeysForTzupdate(lastmod);
+      iinfo.ids = svci.getEvents().getEventKeysForTzupdate(lastmod);
 
       if (iinfo.ids == null) {
         iinfo.ids = new ArrayList<InternalEventKey>();
@@ -193,7 +193,7 @@ public class TimeZonesStoreImpl implements TimeZonesStoreI {
       BwDateTime end = checkDateTimeForTZ(ikey.getEnd(), owner, iinfo);
 
       if ((start != null) || (end != null)) {
-        CoreEventInfo cei = ((Events)svci.getEventsHandler()).getEvent(ikey);
+        CoreEventInfo cei = svci.getEvents().getEvent(ikey);
         BwEvent ev = cei.getEvent();
 
         if (cei != null) {
@@ -290,12 +290,14 @@ class Users extends CalSvcDb implements UsersI {
 
     BwCalendar home = getSvc().getCalendarsHandler().get(userRoot);
     if (home != null) {
-      getSvc().getCalendarsHandler().delete(home, true);
+      getSvc().getCalendars().deleteTree(home);
     }
 
     /* Remove preferences */
     getSvc().getPrefsHandler().delete(prefs);
 
+    EnsuredHomes.getHomes().remove(user.getPrincipalRef());
+
     getSess().delete(user);
   }
 
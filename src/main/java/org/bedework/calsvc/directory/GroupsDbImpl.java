@@ -18,6 +18,7 @@
 */
 package org.bedework.calsvc.directory;
 
+import org.bedework.calcore.AclInternCache;
 import org.bedework.calcorei.HibSession;
 import org.bedework.calfacade.BwGroup;
 import org.bedework.calfacade.BwGroupEntry;
@@ -171,6 +172,9 @@ public class GroupsDbImpl extends AbstractDirImpl {
     ent.setMember(val);
 
     getSess().save(ent);
+
+    // Membership affects access
+    AclInternCache.getCache().membershipChanged();
   }
 
   /* (non-Javadoc)
@@ -213,6 +217,9 @@ public class GroupsDbImpl extends AbstractDirImpl {
     }
 
     getSess().delete(ent);
+
+    // Membership affects access
+    AclInternCache.getCache().membershipChanged();
   }
 
   /* (non-Javadoc)
@@ -239,6 +246,9 @@ public class GroupsDbImpl extends AbstractDirImpl {
     sess.executeUpdate();
 
     sess.delete(group);
+
+    // Membership affects access
+    AclInternCache.getCache().membershipChanged();
  }
 
   /* (non-Javadoc)
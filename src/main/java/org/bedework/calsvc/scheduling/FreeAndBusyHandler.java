@@ -18,6 +18,7 @@
 */
 package org.bedework.calsvc.scheduling;
 
+import org.bedework.calcorei.CollectionTree;
 import org.bedework.caldav.util.filter.EntityTypeFilter;
 import org.bedework.caldav.util.filter.FilterBase;
 import org.bedework.caldav.util.filter.OrFilter;
@@ -328,14 +329,37 @@ public abstract class FreeAndBusyHandler extends OutBoxHandler {
         if (cal.getAffectsFreeBusy()) {
           resCals.add(cal);
         }
-      } else {
+      } else if (cal.getAlias()) {
+        // Children are those of the target
         addToFreeBusySet(resCals, getSvc().getCalendarsHandler().getChildren(cal));
+      } else {
+        // Fetch everything below in one go
+        CollectionTree tree = getSubtree(cal);
+
+        addToFreeBusySet(resCals, tree, tree.getChildren(cal));
       }
     }
 
     return resCals;
   }
 
+  /* As above for collections in a tree we already have */
+  private void addToFreeBusySet(final Collection<BwCalendar> resCals,
+                                final CollectionTree tree,
+                                final Collection<BwCalendar> fbset) throws CalFacadeException {
+    for (BwCalendar cal: fbset) {
+      if (cal.getCalType() == BwCalendar.calTypeCalendarCollection) {
+        if (cal.getAffectsFreeBusy()) {
+          resCals.add(cal);
+        }
+      } else if (cal.getAlias()) {
+        addToFreeBusySet(resCals, getSvc().getCalendarsHandler().getChildren(cal));
+      } else {
+        addToFreeBusySet(resCals, tree, tree.getChildren(cal));
+      }
+    }
+  }
+
   /* (non-Javadoc)
    * @see org.bedework.calsvci.SchedulingI#aggregateFreeBusy(org.bedework.calfacade.ScheduleResult, org.bedework.calfacade.BwDateTime, org.bedework.calfacade.BwDateTime, org.bedework.calfacade.BwDuration)
    */
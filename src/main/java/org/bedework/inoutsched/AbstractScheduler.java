@@ -20,9 +20,8 @@ package org.bedework.inoutsched;
 
 import org.bedework.calfacade.exc.CalFacadeException;
 import org.bedework.calsvc.CalSvcDb;
-import org.bedework.calsvci.CalSvcFactoryDefault;
+import org.bedework.calsvc.CalSvcPool;
 import org.bedework.calsvci.CalSvcI;
-import org.bedework.calsvci.CalSvcIPars;
 
 /** Handles a queue of scheduling requests. We need to delay
  * processing until after the initiating request is processed. In addition,
@@ -47,18 +46,37 @@ public abstract class AbstractScheduler extends CalSvcDb implements ScheduleMess
   protected CalSvcI getSvci(final String principalHref) throws CalFacadeException {
     CalSvcI svci;
 
-    /* account is what we authenticated with.
-     * user, if non-null, is the user calendar we want to access.
-     */
-    CalSvcIPars runAsPars = CalSvcIPars.getServicePars(principalHref,//principal.getAccount(),
-                                                       false,   // publicAdmin
-                                                       "/principals/users/root".equals(principalHref));  // allow SuperUser
+    CalSvcPool pool = CalSvcPool.getPool();
+
+    pool.evictIdle();
 
-    svci = new CalSvcFactoryDefault().getSvc(runAsPars);
+    /* A session for this principal which has already been initialised if
+     * we have one.
+     */
+    svci = pool.lease(principalHref,
+                      "/principals/users/root".equals(principalHref));  // allow SuperUser
     setSvc(svci);
 
-    svci.open();
-    svci.beginTransaction();
+    boolean ok = false;
+
+    try {
+      svci.open();
+      svci.beginTransaction();
+      ok = true;
+    } finally {
+      if (!ok) {
+        /* Don't leak the lease - the session is in an unknown state */
+        try {
+          if (svci.isOpen()) {
+            svci.close();
+          }
+        } catch (Throwable t) {
+          // Going back anyway
+        } finally {
+          pool.release(svci, false);
+        }
+      }
+    }
 
     return svci;
   }
@@ -72,21 +90,34 @@ public abstract class AbstractScheduler extends CalSvcDb implements ScheduleMess
   }
 
   protected void closeSvci(final CalSvcI svci) throws CalFacadeException {
-    if ((svci == null) || !svci.isOpen()) {
+    if (svci == null) {
+      return;
+    }
+
+    if (!svci.isOpen()) {
+      // Still leased - something failed after the open
+      CalSvcPool.getPool().release(svci, false);
       return;
     }
 
     CalFacadeException exc = null;
+    boolean reusable = false;
 
     try {
       try {
+        reusable = !svci.isRolledback();
         svci.endTransaction();
       } catch (CalFacadeException cfe) {
         rollback(svci);
         exc = cfe;
+        reusable = false;
       }
     } finally {
-      svci.close();
+      try {
+        svci.close();
+      } finally {
+        CalSvcPool.getPool().release(svci, reusable);
+      }
     }
 
     if (exc != null) {
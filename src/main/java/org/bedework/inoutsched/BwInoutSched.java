@@ -18,6 +18,9 @@
 */
 package org.bedework.inoutsched;
 
+import org.bedework.calsvc.CalSvc;
+import org.bedework.calsvc.CalSvcPool;
+
 import org.apache.log4j.Logger;
 
 /**
@@ -87,6 +90,46 @@ public class BwInoutSched /*extends InoutSched*/ implements BwInoutSchedMBean {
     return counts;
   }
 
+  public void setSessionIdleTimeout(final long val) {
+    CalSvcPool.getPool().setIdleTimeout(val);
+  }
+
+  public long getSessionIdleTimeout() {
+    return CalSvcPool.getPool().getIdleTimeout();
+  }
+
+  public void setSessionPoolMaxIdle(final int val) {
+    CalSvcPool.getPool().setMaxIdle(val);
+  }
+
+  public int getSessionPoolMaxIdle() {
+    return CalSvcPool.getPool().getMaxIdle();
+  }
+
+  public long getSessionLeases() {
+    return CalSvcPool.getPool().getLeases();
+  }
+
+  public long getSessionsReused() {
+    return CalSvcPool.getPool().getReused();
+  }
+
+  public double getSessionAvgInitMillis() {
+    return CalSvcPool.getPool().getAvgInitMillis();
+  }
+
+  public double getSessionInitMillisSaved() {
+    return CalSvcPool.getPool().getInitMillisSaved();
+  }
+
+  public void setSlimServiceSessions(final boolean val) {
+    CalSvc.setSlimServiceSessions(val);
+  }
+
+  public boolean getSlimServiceSessions() {
+    return CalSvc.getSlimServiceSessions();
+  }
+
   public String getName() {
     /* This apparently must be the same as the name attribute in the
      * jboss service definition
@@ -164,6 +207,8 @@ public class BwInoutSched /*extends InoutSched*/ implements BwInoutSchedMBean {
     stopProc(outProcessor);
     outProcessor = null;
 
+    CalSvcPool.getPool().clear();
+
     info("************************************************************");
     info(" * " + getName() + " terminated");
     info("************************************************************");
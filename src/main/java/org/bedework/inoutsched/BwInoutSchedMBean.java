@@ -71,6 +71,57 @@ public interface BwInoutSchedMBean {
    */
   public Counts getCounts();
 
+  /**
+   * @param val millisecs an idle pooled session is kept
+   */
+  public void setSessionIdleTimeout(long val);
+
+  /**
+   * @return millisecs an idle pooled session is kept
+   */
+  public long getSessionIdleTimeout();
+
+  /**
+   * @param val maximum number of idle pooled sessions
+   */
+  public void setSessionPoolMaxIdle(int val);
+
+  /**
+   * @return maximum number of idle pooled sessions
+   */
+  public int getSessionPoolMaxIdle();
+
+  /**
+   * @return number of sessions leased from the pool
+   */
+  public long getSessionLeases();
+
+  /**
+   * @return number of leases which reused an initialised session
+   */
+  public long getSessionsReused();
+
+  /**
+   * @return average millisecs to initialise a session
+   */
+  public double getSessionAvgInitMillis();
+
+  /**
+   * @return estimated millisecs of initialisation saved by reuse
+   */
+  public double getSessionInitMillisSaved();
+
+  /**
+   * @param val true for service sessions to skip initialisation the
+   *             processors do not need
+   */
+  public void setSlimServiceSessions(boolean val);
+
+  /**
+   * @return true if service sessions are slim
+   */
+  public boolean getSlimServiceSessions();
+
   /** Name apparently must be the same as the name attribute in the
    * jboss service definition
    *
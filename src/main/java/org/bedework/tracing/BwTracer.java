@@ -0,0 +1,165 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+        
+    http://www.apache.org/licenses/LICENSE-2.0
+        
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.tracing;
+
+import org.apache.log4j.Logger;
+
+/** Exposes request tracing.
+ *
+ * @author douglm
+ *
+ */
+public class BwTracer implements BwTracerMBean {
+  private transient Logger log;
+
+  public String getName() {
+    /* This apparently must be the same as the name attribute in the
+     * jboss service definition
+     */
+    return "org.bedework:service=BwTracer";
+  }
+
+  public void setEnabled(final boolean val) {
+    Tracer.getTracer().setEnabled(val);
+  }
+
+  public boolean getEnabled() {
+    return Tracer.getTracer().getEnabled();
+  }
+
+  public void setSampleRate(final double val) {
+    Tracer.getTracer().setSampleRate(val);
+  }
+
+  public double getSampleRate() {
+    return Tracer.getTracer().getSampleRate();
+  }
+
+  public void setMinMillis(final long val) {
+    Tracer.getTracer().setMinMillis(val);
+  }
+
+  public long getMinMillis() {
+    return Tracer.getTracer().getMinMillis();
+  }
+
+  public void setCapacity(final int val) {
+    Tracer.getTracer().getRing().setCapacity(val);
+  }
+
+  public int getCapacity() {
+    return Tracer.getTracer().getRing().getCapacity();
+  }
+
+  public void setExporterClass(final String val) {
+    if ((val == null) || (val.length() == 0)) {
+      Tracer.getTracer().setExporter(null);
+      return;
+    }
+
+    try {
+      Object o = Class.forName(val).newInstance();
+
+      Tracer.getTracer().setExporter((TraceExporter)o);
+    } catch (Throwable t) {
+      getLogger().error("Unable to use exporter " + val, t);
+    }
+  }
+
+  public String getExporterClass() {
+    TraceExporter exp = Tracer.getTracer().getExporter();
+
+    if (exp == null) {
+      return null;
+    }
+
+    return exp.getClass().getName();
+  }
+
+  public void setMaxSpans(final int val) {
+    Tracer.getTracer().setMaxSpans(val);
+  }
+
+  public int getMaxSpans() {
+    return Tracer.getTracer().getMaxSpans();
+  }
+
+  public long getDroppedSpans() {
+    return Tracer.getTracer().getDroppedSpans();
+  }
+
+  public long getTraces() {
+    return Tracer.getTracer().getTraces();
+  }
+
+  public long getExported() {
+    return Tracer.getTracer().getExported();
+  }
+
+  public String listTraces() {
+    StringBuilder sb = new StringBuilder();
+
+    for (Trace t: Tracer.getTracer().getRing().getTraces()) {
+      sb.append(t.getId());
+      sb.append(" ");
+      sb.append(t.getRoot().getName());
+      sb.append(" us=");
+      sb.append(t.getRoot().getNanos() / 1000);
+      sb.append(" spans=");
+      sb.append(t.getSpans().size());
+      sb.append("\n");
+    }
+
+    return sb.toString();
+  }
+
+  public String getTrace(final String id) {
+    Trace t = Tracer.getTracer().getRing().getTrace(id);
+
+    if (t == null) {
+      return null;
+    }
+
+    return t.toString();
+  }
+
+  public String dump(final int max) {
+    StringBuilder sb = new StringBuilder();
+
+    int i = 0;
+    for (Trace t: Tracer.getTracer().getRing().getTraces()) {
+      if ((max > 0) && (i == max)) {
+        break;
+      }
+
+      sb.append(t.toString());
+      i++;
+    }
+
+    return sb.toString();
+  }
+
+  private Logger getLogger() {
+    if (log == null) {
+      log = Logger.getLogger(this.getClass());
+    }
+
+    return log;
+  }
+}
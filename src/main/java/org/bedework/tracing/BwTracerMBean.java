@@ -0,0 +1,126 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+        
+    http://www.apache.org/licenses/LICENSE-2.0
+        
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.tracing;
+
+/** Management interface for request tracing.
+ *
+ * @author douglm
+ *
+ */
+public interface BwTracerMBean {
+  /** Name apparently must be the same as the name attribute in the
+   * jboss service definition
+   *
+   * @return Name
+   */
+  public String getName();
+
+  /**
+   * @param val true to trace sampled requests
+   */
+  public void setEnabled(boolean val);
+
+  /**
+   * @return true if tracing sampled requests
+   */
+  public boolean getEnabled();
+
+  /**
+   * @param val fraction of requests traced - 0 to 1
+   */
+  public void setSampleRate(double val);
+
+  /**
+   * @return fraction of requests traced
+   */
+  public double getSampleRate();
+
+  /**
+   * @param val millisecs a trace must take to be kept
+   */
+  public void setMinMillis(long val);
+
+  /**
+   * @return millisecs a trace must take to be kept
+   */
+  public long getMinMillis();
+
+  /**
+   * @param val number of traces kept in memory - changing it discards them
+   */
+  public void setCapacity(int val);
+
+  /**
+   * @return number of traces kept in memory
+   */
+  public int getCapacity();
+
+  /**
+   * @param val class name of a TraceExporter which also receives finished
+   *            traces, e.g. org.bedework.tracing.LogExporter. Empty for none
+   */
+  public void setExporterClass(String val);
+
+  /**
+   * @return class name of the additional exporter or null
+   */
+  public String getExporterClass();
+
+  /**
+   * @param val max spans recorded for one trace - more are dropped
+   */
+  public void setMaxSpans(int val);
+
+  /**
+   * @return max spans recorded for one trace
+   */
+  public int getMaxSpans();
+
+  /**
+   * @return number of spans dropped because a trace was full
+   */
+  public long getDroppedSpans();
+
+  /**
+   * @return number of requests traced
+   */
+  public long getTraces();
+
+  /**
+   * @return number of traces kept
+   */
+  public long getExported();
+
+  /**
+   * @return ids of the traces in memory, most recent first
+   */
+  public String listTraces();
+
+  /**
+   * @param id of a trace
+   * @return the trace as text
+   */
+  public String getTrace(String id);
+
+  /**
+   * @param max number of traces - <= 0 for all
+   * @return the most recent traces as text
+   */
+  public String dump(int max);
+}
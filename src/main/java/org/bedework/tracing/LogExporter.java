@@ -0,0 +1,34 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+        
+    http://www.apache.org/licenses/LICENSE-2.0
+        
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.tracing;
+
+import org.apache.log4j.Logger;
+
+/** Writes finished traces at INFO to the category org.bedework.tracing. A
+ * log4j RollingFileAppender on that category gives a local rotating file.
+ *
+ * @author douglm
+ */
+public class LogExporter implements TraceExporter {
+  private static final Logger log = Logger.getLogger("org.bedework.tracing");
+
+  public void export(final Trace val) {
+    log.info(val.toString());
+  }
+}
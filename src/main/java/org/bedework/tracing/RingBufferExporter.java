@@ -0,0 +1,97 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+        
+    http://www.apache.org/licenses/LICENSE-2.0
+        
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.tracing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/** Keeps the most recent finished traces in memory.
+ *
+ * @author douglm
+ */
+public class RingBufferExporter implements TraceExporter {
+  private volatile AtomicReferenceArray<Trace> traces;
+
+  private final AtomicLong next = new AtomicLong();
+
+  /**
+   * @param capacity number of traces kept
+   */
+  public RingBufferExporter(final int capacity) {
+    setCapacity(capacity);
+  }
+
+  public void export(final Trace val) {
+    AtomicReferenceArray<Trace> ts = traces;
+
+    ts.set((int)(next.getAndIncrement() % ts.length()), val);
+  }
+
+  /** Change the number of traces kept. Discards the current traces.
+   *
+   * @param val number of traces kept
+   */
+  public void setCapacity(final int val) {
+    traces = new AtomicReferenceArray<Trace>(Math.max(1, val));
+  }
+
+  /**
+   * @return number of traces kept
+   */
+  public int getCapacity() {
+    return traces.length();
+  }
+
+  /**
+   * @return traces, most recent first
+   */
+  public List<Trace> getTraces() {
+    AtomicReferenceArray<Trace> ts = traces;
+    int len = ts.length();
+    long last = next.get();
+
+    List<Trace> l = new ArrayList<Trace>();
+
+    for (long i = last - 1; (i >= 0) && (i >= last - len); i--) {
+      Trace t = ts.get((int)(i % len));
+
+      if (t != null) {
+        l.add(t);
+      }
+    }
+
+    return l;
+  }
+
+  /**
+   * @param id of a trace
+   * @return the trace or null if not kept
+   */
+  public Trace getTrace(final String id) {
+    for (Trace t: getTraces()) {
+      if (t.getId().equals(id)) {
+        return t;
+      }
+    }
+
+    return null;
+  }
+}
@@ -0,0 +1,194 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+        
+    http://www.apache.org/licenses/LICENSE-2.0
+        
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.tracing;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** A timed section of a trace. Spans nest - each has the span which was
+ * current when it started as its parent.
+ *
+ * <p>Spans are started through the Tracer and must be ended on the thread
+ * that started them, normally in a finally block. When nothing is being
+ * traced the Tracer hands out a shared span which records nothing.
+ *
+ * @author douglm
+ */
+public class Span {
+  /** Records nothing */
+  static final Span noop = new Span(null, null, null, 0, 0) {
+    @Override
+    public void setAttribute(final String name, final Object val) {
+    }
+
+    @Override
+    public void count(final String name, final long nanos) {
+    }
+
+    @Override
+    public void end() {
+    }
+  };
+
+  private final Trace trace;
+  private final Span parent;
+  private final String name;
+  private final int id;
+
+  private final long start;
+  private final long startNanos;
+  private volatile long nanos = -1;
+
+  private Map<String, Object> attrs;
+
+  /* name -> count, nanos */
+  private Map<String, long[]> counts;
+
+  Span(final Trace trace,
+       final Span parent,
+       final String name,
+       final int id,
+       final long startNanos) {
+    this.trace = trace;
+    this.parent = parent;
+    this.name = name;
+    this.id = id;
+    this.startNanos = startNanos;
+    start = System.currentTimeMillis() -
+            ((System.nanoTime() - startNanos) / 1000000);
+  }
+
+  /**
+   * @return false for the span handed out when not tracing
+   */
+  public boolean isRecording() {
+    return this != noop;
+  }
+
+  /**
+   * @return trace this span belongs to
+   */
+  public Trace getTrace() {
+    return trace;
+  }
+
+  /**
+   * @return parent span or null for the root
+   */
+  public Span getParent() {
+    return parent;
+  }
+
+  /**
+   * @return name
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * @return id within the trace
+   */
+  public int getId() {
+    return id;
+  }
+
+  /**
+   * @return millisecs since the epoch when the span started
+   */
+  public long getStart() {
+    return start;
+  }
+
+  /**
+   * @return nanosecs from start to end or -1 if not ended
+   */
+  public long getNanos() {
+    return nanos;
+  }
+
+  /**
+   * @param name
+   * @param val
+   */
+  public synchronized void setAttribute(final String name, final Object val) {
+    if (attrs == null) {
+      attrs = new LinkedHashMap<String, Object>();
+    }
+
+    attrs.put(name, val);
+  }
+
+  /**
+   * @return attributes - may be null
+   */
+  public synchronized Map<String, Object> getAttributes() {
+    return attrs;
+  }
+
+  /** Count something too frequent and cheap to have a span of its own, e.g.
+   * individual access checks.
+   *
+   * @param name  what is counted
+   * @param nanos time taken
+   */
+  public synchronized void count(final String name, final long nanos) {
+    if (counts == null) {
+      counts = new LinkedHashMap<String, long[]>();
+    }
+
+    long[] vals = counts.get(name);
+
+    if (vals == null) {
+      vals = new long[2];
+      counts.put(name, vals);
+    }
+
+    vals[0]++;
+    vals[1] += nanos;
+  }
+
+  /**
+   * @return counts - name to count and nanosecs - may be null
+   */
+  public synchronized Map<String, long[]> getCounts() {
+    return counts;
+  }
+
+  /** End the span. The parent becomes the current span. Ending the root
+   * span finishes the trace.
+   */
+  public void end() {
+    end(System.nanoTime() - startNanos);
+  }
+
+  void end(final long val) {
+    if (nanos >= 0) {
+      return;
+    }
+
+    nanos = val;
+
+    Tracer.getTracer().ended(this);
+  }
+
+  long getStartNanos() {
+    return startNanos;
+  }
+}
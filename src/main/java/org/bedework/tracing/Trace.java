@@ -0,0 +1,172 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+        
+    http://www.apache.org/licenses/LICENSE-2.0
+        
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.tracing;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** The spans recorded for one sampled request.
+ *
+ * @author douglm
+ */
+public class Trace {
+  private final String id;
+
+  private final List<Span> spans =
+    Collections.synchronizedList(new ArrayList<Span>());
+
+  private final AtomicInteger nextSpan = new AtomicInteger();
+
+  private final int maxSpans;
+
+  private final AtomicInteger dropped = new AtomicInteger();
+
+  private Span root;
+
+  Trace(final String id,
+        final int maxSpans) {
+    this.id = id;
+    this.maxSpans = maxSpans;
+  }
+
+  /**
+   * @return id of the trace
+   */
+  public String getId() {
+    return id;
+  }
+
+  /**
+   * @return the root span
+   */
+  public Span getRoot() {
+    return root;
+  }
+
+  /**
+   * @return number of spans not recorded because the trace was full
+   */
+  public int getDropped() {
+    return dropped.get();
+  }
+
+  /**
+   * @return spans in the order they started
+   */
+  public List<Span> getSpans() {
+    synchronized (spans) {
+      return new ArrayList<Span>(spans);
+    }
+  }
+
+  /* Returns null if the trace is full */
+  Span addSpan(final Span parent,
+               final String name,
+               final long startNanos) {
+    if ((parent != null) && (spans.size() >= maxSpans)) {
+      dropped.incrementAndGet();
+      return null;
+    }
+
+    Span s = new Span(this, parent, name, nextSpan.getAndIncrement(),
+                      startNanos);
+
+    if (parent == null) {
+      root = s;
+    }
+
+    spans.add(s);
+
+    return s;
+  }
+
+  /**
+   * @return the spans as an indented tree with times in microsecs
+   */
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder("Trace ");
+
+    sb.append(id);
+    sb.append(" ");
+    if (root != null) {
+      sb.append(new Date(root.getStart()));
+    }
+    if (dropped.get() > 0) {
+      sb.append(" dropped=");
+      sb.append(dropped.get());
+    }
+    sb.append("\n");
+
+    for (Span s: getSpans()) {
+      int depth = 0;
+      for (Span p = s.getParent(); p != null; p = p.getParent()) {
+        depth++;
+      }
+
+      for (int i = 0; i <= depth; i++) {
+        sb.append("  ");
+      }
+
+      sb.append(s.getName());
+      sb.append(" us=");
+      if (s.getNanos() < 0) {
+        sb.append("?");
+      } else {
+        sb.append(s.getNanos() / 1000);
+      }
+
+      if (s.getParent() != null) {
+        sb.append(" at=");
+        sb.append((s.getStartNanos() - root.getStartNanos()) / 1000);
+      }
+
+      Map<String, Object> attrs = s.getAttributes();
+      if (attrs != null) {
+        for (Map.Entry<String, Object> a: attrs.entrySet()) {
+          sb.append(" ");
+          sb.append(a.getKey());
+          sb.append("=");
+          sb.append(a.getValue());
+        }
+      }
+
+      Map<String, long[]> counts = s.getCounts();
+      if (counts != null) {
+        for (Map.Entry<String, long[]> c: counts.entrySet()) {
+          sb.append(" ");
+          sb.append(c.getKey());
+          sb.append("=");
+          sb.append(c.getValue()[0]);
+          sb.append("/");
+          sb.append(c.getValue()[1] / 1000);
+          sb.append("us");
+        }
+      }
+
+      sb.append("\n");
+    }
+
+    return sb.toString();
+  }
+}
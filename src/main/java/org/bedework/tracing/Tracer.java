@@ -0,0 +1,459 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+        
+    http://www.apache.org/licenses/LICENSE-2.0
+        
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.tracing;
+
+import org.apache.log4j.Logger;
+
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Lightweight request tracing.
+ *
+ * <p>A trace starts when a request starts, for a sampled fraction of
+ * requests. Within a traced request each instrumented section is a span,
+ * nested under the span current on the thread when it started. Work handed
+ * to another thread can carry the current span along by wrapping the
+ * Runnable or Callable.
+ *
+ * <p>Finished traces go to an in-memory ring buffer and optionally to a
+ * pluggable exporter, e.g. LogExporter. Nothing outside the jvm is needed.
+ *
+ * <p>When the request is not sampled no spans are created - the cost of an
+ * instrumented section is one thread local lookup.
+ *
+ * @author douglm
+ */
+public class Tracer {
+  private static final Tracer tracer = new Tracer();
+
+  private transient Logger log;
+
+  private volatile boolean enabled = true;
+
+  private volatile double sampleRate = 0.01;
+
+  private volatile long minMillis;
+
+  /* A current span in a trace older than this was never ended */
+  private static final long maxTraceMillis = 10 * 60 * 1000;
+
+  private final RingBufferExporter ring = new RingBufferExporter(100);
+
+  private volatile TraceExporter exporter;
+
+  private final Random random = new Random();
+
+  private final AtomicLong traces = new AtomicLong();
+  private final AtomicLong exported = new AtomicLong();
+
+  /* Max spans recorded for one trace */
+  private volatile int maxSpans = 2000;
+
+  private final AtomicLong droppedSpans = new AtomicLong();
+
+  private static final ThreadLocal<Span> current = new ThreadLocal<Span>();
+
+  /* Requests in progress on this thread: depth and start millis of the
+   * outermost. Set by startTrace and cleared by endTrace.
+   */
+  private static final ThreadLocal<long[]> requests = new ThreadLocal<long[]>() {
+    @Override
+    protected long[] initialValue() {
+      return new long[2];
+    }
+  };
+
+  private Tracer() {
+  }
+
+  /**
+   * @return the node-wide tracer
+   */
+  public static Tracer getTracer() {
+    return tracer;
+  }
+
+  /** Start a trace for a request if it is sampled. A request started while
+   * another is in progress on this thread is part of that request and gets
+   * a child span instead. Anything left current by an earlier request is
+   * discarded. Must be matched by a call to endTrace.
+   *
+   * @param name of the root span
+   * @return the span - one which records nothing if not sampled
+   */
+  public static Span startTrace(final String name) {
+    long[] req = requests.get();
+    long now = System.currentTimeMillis();
+
+    if ((req[0] > 0) && ((now - req[1]) < maxTraceMillis)) {
+      // Nested in a request on this thread
+      req[0]++;
+      return start(name);
+    }
+
+    /* A new request. Any span still current, or request still counted, was
+     * left over from one which did not end.
+     */
+    req[0] = 1;
+    req[1] = now;
+    current.remove();
+
+    if (!tracer.sampled()) {
+      return Span.noop;
+    }
+
+    tracer.traces.incrementAndGet();
+
+    Trace t = new Trace(Long.toHexString(tracer.random.nextLong()),
+                        tracer.maxSpans);
+    Span s = t.addSpan(null, name, System.nanoTime());
+
+    current.set(s);
+
+    return s;
+  }
+
+  /** End a span returned by startTrace.
+   *
+   * @param s the span
+   */
+  public static void endTrace(final Span s) {
+    long[] req = requests.get();
+
+    if (req[0] > 0) {
+      req[0]--;
+    }
+
+    s.end();
+
+    if (req[0] == 0) {
+      // Nothing from this request survives it
+      current.remove();
+    }
+  }
+
+  /** Start a span within the current trace.
+   *
+   * @param name of the span
+   * @return the span - one which records nothing if not tracing
+   */
+  public static Span start(final String name) {
+    Span parent = current.get();
+
+    if (parent == null) {
+      return Span.noop;
+    }
+
+    Span s = parent.getTrace().addSpan(parent, name, System.nanoTime());
+
+    if (s == null) {
+      tracer.droppedSpans.incrementAndGet();
+      return Span.noop;
+    }
+
+    current.set(s);
+
+    return s;
+  }
+
+  /** Record a span which has already finished, e.g. a query timed
+   * elsewhere.
+   *
+   * @param name       of the span
+   * @param startNanos System.nanoTime at the start
+   * @param nanos      time taken
+   * @return the span - one which records nothing if not tracing
+   */
+  public static Span record(final String name,
+                            final long startNanos,
+                            final long nanos) {
+    Span parent = current.get();
+
+    if (parent == null) {
+      return Span.noop;
+    }
+
+    Span s = parent.getTrace().addSpan(parent, name, startNanos);
+
+    if (s == null) {
+      tracer.droppedSpans.incrementAndGet();
+      return Span.noop;
+    }
+
+    s.end(nanos);
+
+    return s;
+  }
+
+  /**
+   * @return true if the current thread is being traced
+   */
+  public static boolean active() {
+    return current.get() != null;
+  }
+
+  /**
+   * @return the current span - one which records nothing if not tracing
+   */
+  public static Span current() {
+    Span s = current.get();
+
+    if (s == null) {
+      return Span.noop;
+    }
+
+    return s;
+  }
+
+  /** Count something too frequent to have spans of its own against the
+   * current span.
+   *
+   * @param name  what is counted
+   * @param nanos time taken
+   */
+  public static void count(final String name, final long nanos) {
+    Span s = current.get();
+
+    if (s != null) {
+      s.count(name, nanos);
+    }
+  }
+
+  /** Wrap a task so spans it starts on another thread belong to the current
+   * span.
+   *
+   * @param val the task
+   * @return the wrapped task or val if not tracing
+   */
+  public static Runnable wrap(final Runnable val) {
+    final Span parent = current.get();
+
+    if (parent == null) {
+      return val;
+    }
+
+    return new Runnable() {
+      public void run() {
+        Span prev = current.get();
+        current.set(parent);
+
+        try {
+          val.run();
+        } finally {
+          restore(prev);
+        }
+      }
+    };
+  }
+
+  /** Wrap a task so spans it starts on another thread belong to the current
+   * span.
+   *
+   * @param val the task
+   * @return the wrapped task or val if not tracing
+   */
+  public static <T> Callable<T> wrap(final Callable<T> val) {
+    final Span parent = current.get();
+
+    if (parent == null) {
+      return val;
+    }
+
+    return new Callable<T>() {
+      public T call() throws Exception {
+        Span prev = current.get();
+        current.set(parent);
+
+        try {
+          return val.call();
+        } finally {
+          restore(prev);
+        }
+      }
+    };
+  }
+
+  /**
+   * @param val true to sample requests
+   */
+  public void setEnabled(final boolean val) {
+    enabled = val;
+  }
+
+  /**
+   * @return true if sampling requests
+   */
+  public boolean getEnabled() {
+    return enabled;
+  }
+
+  /**
+   * @param val fraction of requests traced - 0 to 1
+   */
+  public void setSampleRate(final double val) {
+    sampleRate = val;
+  }
+
+  /**
+   * @return fraction of requests traced
+   */
+  public double getSampleRate() {
+    return sampleRate;
+  }
+
+  /**
+   * @param val millisecs a trace must take to be kept
+   */
+  public void setMinMillis(final long val) {
+    minMillis = val;
+  }
+
+  /**
+   * @return millisecs a trace must take to be kept
+   */
+  public long getMinMillis() {
+    return minMillis;
+  }
+
+  /**
+   * @param val max spans recorded for one trace - more are dropped
+   */
+  public void setMaxSpans(final int val) {
+    maxSpans = val;
+  }
+
+  /**
+   * @return max spans recorded for one trace
+   */
+  public int getMaxSpans() {
+    return maxSpans;
+  }
+
+  /**
+   * @return number of spans dropped because a trace was full
+   */
+  public long getDroppedSpans() {
+    return droppedSpans.get();
+  }
+
+  /**
+   * @return the in-memory buffer of finished traces
+   */
+  public RingBufferExporter getRing() {
+    return ring;
+  }
+
+  /**
+   * @param val exporter which also receives finished traces - null for none
+   */
+  public void setExporter(final TraceExporter val) {
+    exporter = val;
+  }
+
+  /**
+   * @return exporter which also receives finished traces or null
+   */
+  public TraceExporter getExporter() {
+    return exporter;
+  }
+
+  /**
+   * @return number of requests traced
+   */
+  public long getTraces() {
+    return traces.get();
+  }
+
+  /**
+   * @return number of traces kept
+   */
+  public long getExported() {
+    return exported.get();
+  }
+
+  void ended(final Span s) {
+    Span cur = current.get();
+
+    if (s.getParent() == null) {
+      /* Root - drop anything left current from this trace */
+      if ((cur != null) && (cur.getTrace() == s.getTrace())) {
+        current.remove();
+      }
+
+      finish(s.getTrace());
+      return;
+    }
+
+    if (cur == s) {
+      current.set(s.getParent());
+    }
+  }
+
+  private static void restore(final Span prev) {
+    if (prev == null) {
+      current.remove();
+    } else {
+      current.set(prev);
+    }
+  }
+
+  private boolean sampled() {
+    if (!enabled) {
+      return false;
+    }
+
+    double rate = sampleRate;
+
+    if (rate <= 0) {
+      return false;
+    }
+
+    return (rate >= 1) || (random.nextDouble() < rate);
+  }
+
+  private void finish(final Trace t) {
+    if ((t.getRoot().getNanos() / 1000000) < minMillis) {
+      return;
+    }
+
+    exported.incrementAndGet();
+    ring.export(t);
+
+    TraceExporter exp = exporter;
+
+    if (exp == null) {
+      return;
+    }
+
+    try {
+      exp.export(t);
+    } catch (Throwable th) {
+      getLogger().error("Trace exporter failed", th);
+    }
+  }
+
+  private Logger getLogger() {
+    if (log == null) {
+      log = Logger.getLogger(this.getClass());
+    }
+
+    return log;
+  }
+}
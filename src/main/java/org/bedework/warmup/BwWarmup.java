@@ -0,0 +1,511 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+        
+    http://www.apache.org/licenses/LICENSE-2.0
+        
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.warmup;
+
+import org.bedework.calcore.hibernate.AliasCache;
+import org.bedework.calcore.hibernate.CalintfImpl;
+import org.bedework.calcore.hibernate.SharedCollectionCache;
+import org.bedework.calfacade.BwCalendar;
+import org.bedework.calfacade.BwPrincipal;
+import org.bedework.calfacade.exc.CalFacadeException;
+import org.bedework.calfacade.ifs.Directories;
+import org.bedework.calsvc.CalSvcPool;
+import org.bedework.calsvc.EnsuredHomes;
+import org.bedework.calsvci.CalSvcI;
+import org.bedework.calsvci.CalendarsI;
+import org.bedework.calsvci.IndexingI;
+
+import edu.rpi.cct.misc.indexing.SearchLimits;
+
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/** Runs a set of representative operations when the service is started so
+ * that the session factory, the hibernate second level cache, syspars, the
+ * directory and collection caches and the public index searcher are loaded
+ * before the first real request arrives.
+ *
+ * <p>Each step runs in its own transaction. A failed step is logged and
+ * counted but does not stop the others.
+ *
+ * @author douglm
+ *
+ */
+public class BwWarmup implements BwWarmupMBean {
+  private transient Logger log;
+
+  boolean debug;
+
+  /* Steps run with a session, in order */
+  private static final String[] steps = {
+    "syspars",
+    "hosts",
+    "public",
+    "collections",
+    "principals",
+    "search"
+  };
+
+  private String principal;
+
+  private boolean warmupAtStart = true;
+
+  private int publicDepth = 2;
+
+  private String collectionPaths;
+
+  private String principals;
+
+  private String searchQuery;
+
+  private boolean started;
+
+  private volatile boolean warm;
+
+  private volatile long warmupMillis;
+
+  private volatile String stepMillis = "";
+
+  private volatile int failedSteps;
+
+  /**
+   *
+   */
+  public BwWarmup() {
+    debug = getLogger().isDebugEnabled();
+  }
+
+  public void setPrincipal(final String val) {
+    principal = val;
+  }
+
+  public String getPrincipal() {
+    return principal;
+  }
+
+  public void setWarmupAtStart(final boolean val) {
+    warmupAtStart = val;
+  }
+
+  public boolean getWarmupAtStart() {
+    return warmupAtStart;
+  }
+
+  public void setPublicDepth(final int val) {
+    publicDepth = val;
+  }
+
+  public int getPublicDepth() {
+    return publicDepth;
+  }
+
+  public void setCollectionPaths(final String val) {
+    collectionPaths = val;
+  }
+
+  public String getCollectionPaths() {
+    return collectionPaths;
+  }
+
+  public void setPrincipals(final String val) {
+    principals = val;
+  }
+
+  public String getPrincipals() {
+    return principals;
+  }
+
+  public void setSearchQuery(final String val) {
+    searchQuery = val;
+  }
+
+  public String getSearchQuery() {
+    return searchQuery;
+  }
+
+  public boolean isWarm() {
+    return warm;
+  }
+
+  public long getWarmupMillis() {
+    return warmupMillis;
+  }
+
+  public String getStepMillis() {
+    return stepMillis;
+  }
+
+  public int getFailedSteps() {
+    return failedSteps;
+  }
+
+  public String getCacheFill() {
+    StringBuilder sb = new StringBuilder();
+
+    SharedCollectionCache scc = SharedCollectionCache.getCache();
+    AliasCache ac = AliasCache.getCache();
+
+    sb.append("collections=");
+    sb.append(scc.getSize());
+    sb.append("/");
+    sb.append(scc.getMaxEntries());
+
+    sb.append(" aliases=");
+    sb.append(ac.getSize());
+    sb.append("/");
+    sb.append(ac.getMaxEntries());
+
+    sb.append(" homes=");
+    sb.append(EnsuredHomes.getHomes().getSize());
+
+    sb.append(" sessions=");
+    sb.append(CalSvcPool.getPool().getIdleCount());
+
+    if (!warm) {
+      // Don't build the session factory just to report on it
+      return sb.toString();
+    }
+
+    try {
+      Map<String, Long> counts = CalintfImpl.getCacheRegionCounts();
+
+      for (String region: counts.keySet()) {
+        sb.append(" ");
+        sb.append(region);
+        sb.append("=");
+        sb.append(counts.get(region));
+      }
+    } catch (Throwable t) {
+      error(t);
+    }
+
+    return sb.toString();
+  }
+
+  public synchronized String warmup() {
+    info("************************************************************");
+    info(" * Warming up " + getName());
+    info("************************************************************");
+
+    long start = System.currentTimeMillis();
+    StringBuilder sb = new StringBuilder();
+    int failed = 0;
+
+    /* Build the session factory on its own so we can see what it costs */
+    long stepStart = System.currentTimeMillis();
+
+    try {
+      CalintfImpl.buildSessionFactory();
+    } catch (Throwable t) {
+      error("Unable to build session factory");
+      error(t);
+      failed++;
+    }
+
+    addStep(sb, "sessionFactory", stepStart);
+
+    if (getPrincipal() == null) {
+      error("No principal set - only the session factory was built");
+      failed++;
+    } else {
+      failed += runSteps(sb);
+    }
+
+    warmupMillis = System.currentTimeMillis() - start;
+    stepMillis = sb.toString();
+    failedSteps = failed;
+    warm = true;
+
+    String status = "Warm up took " + warmupMillis + " millis: " +
+                    stepMillis + " failed=" + failed;
+
+    info(status);
+    info("Cache fill: " + getCacheFill());
+
+    return status;
+  }
+
+  public String getName() {
+    /* This apparently must be the same as the name attribute in the
+     * jboss service definition
+     */
+    return "org.bedework:service=BwWarmup";
+  }
+
+  public boolean isStarted() {
+    return started;
+  }
+
+  /* The warm up runs in the start method so the service is not reported as
+   * started until it is done.
+   */
+  public synchronized void start() {
+    started = true;
+
+    if (getWarmupAtStart()) {
+      warmup();
+    }
+  }
+
+  public synchronized void stop() {
+    started = false;
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  /* Lease a session and run each step. Returns the number which failed. */
+  private int runSteps(final StringBuilder sb) {
+    CalSvcPool pool = CalSvcPool.getPool();
+    CalSvcI svci;
+    int failed = 0;
+
+    long stepStart = System.currentTimeMillis();
+
+    try {
+      svci = pool.lease(getPrincipal(),
+                        "/principals/users/root".equals(getPrincipal()));  // allow SuperUser
+    } catch (Throwable t) {
+      error("Unable to get a session for " + getPrincipal());
+      error(t);
+      return 1;
+    }
+
+    addStep(sb, "session", stepStart);
+
+    boolean reusable = true;
+
+    try {
+      for (String step: steps) {
+        stepStart = System.currentTimeMillis();
+
+        if (!runStep(svci, step)) {
+          failed++;
+          reusable = false;
+        }
+
+        addStep(sb, step, stepStart);
+      }
+    } finally {
+      pool.release(svci, reusable);
+    }
+
+    return failed;
+  }
+
+  private boolean runStep(final CalSvcI svci,
+                          final String step) {
+    boolean ok = false;
+
+    try {
+      svci.open();
+      svci.beginTransaction();
+
+      doStep(svci, step);
+
+      ok = true;
+    } catch (Throwable t) {
+      error("Warm up step " + step + " failed");
+      error(t);
+
+      try {
+        svci.rollbackTransaction();
+      } catch (Throwable t1) {
+      }
+    }
+
+    try {
+      if (svci.isOpen()) {
+        try {
+          svci.endTransaction();
+        } finally {
+          svci.close();
+        }
+      }
+    } catch (Throwable t) {
+      error("Warm up step " + step + " failed to end");
+      error(t);
+      ok = false;
+    }
+
+    return ok;
+  }
+
+  private void doStep(final CalSvcI svci,
+                      final String step) throws CalFacadeException {
+    if (step.equals("syspars")) {
+      svci.getSysparsHandler().get();
+      svci.getSysparsHandler().getRootUsers();
+      svci.getSysparsHandler().getSupportedLocales();
+      return;
+    }
+
+    if (step.equals("hosts")) {
+      svci.getHostsHandler().getAll();
+      return;
+    }
+
+    CalendarsI cals = svci.getCalendarsHandler();
+
+    if (step.equals("public")) {
+      int ct = loadTree(cals, cals.getPublicCalendars(), getPublicDepth());
+
+      if (debug) {
+        trace("Loaded " + ct + " public collections");
+      }
+      return;
+    }
+
+    if (step.equals("collections")) {
+      for (String path: split(getCollectionPaths())) {
+        BwCalendar col = cals.get(path);
+
+        if (col == null) {
+          warn("Warm up collection " + path + " does not exist");
+          continue;
+        }
+
+        loadTree(cals, col, 1);
+      }
+      return;
+    }
+
+    if (step.equals("principals")) {
+      Directories dirs = svci.getDirectories();
+
+      for (String href: split(getPrincipals())) {
+        if (!dirs.validPrincipal(href)) {
+          warn("Warm up principal " + href + " is not valid");
+          continue;
+        }
+
+        BwPrincipal p = dirs.getPrincipal(href);
+
+        dirs.principalToCaladdr(p);
+        dirs.getDirInfo(p);
+      }
+      return;
+    }
+
+    if (step.equals("search")) {
+      if (getSearchQuery() == null) {
+        return;
+      }
+
+      IndexingI idx = svci.getIndexingHandler();
+      SearchLimits limits = idx.fromToday();
+
+      if (idx.search(true, null, getSearchQuery(), limits) > 0) {
+        idx.getSearchResult(0, 1, limits);
+      }
+    }
+  }
+
+  /* Load the collection and its descendants down to the given depth. Returns
+   * the number of collections seen.
+   */
+  private int loadTree(final CalendarsI cals,
+                       final BwCalendar col,
+                       final int depth) throws CalFacadeException {
+    if (col == null) {
+      return 0;
+    }
+
+    int ct = 1;
+
+    if (depth <= 0) {
+      return ct;
+    }
+
+    Collection<BwCalendar> children = cals.getChildren(col);
+
+    if (children == null) {
+      return ct;
+    }
+
+    for (BwCalendar ch: children) {
+      ct += loadTree(cals, ch, depth - 1);
+    }
+
+    return ct;
+  }
+
+  private void addStep(final StringBuilder sb,
+                       final String step,
+                       final long stepStart) {
+    if (sb.length() > 0) {
+      sb.append(" ");
+    }
+
+    sb.append(step);
+    sb.append("=");
+    sb.append(System.currentTimeMillis() - stepStart);
+  }
+
+  private List<String> split(final String val) {
+    List<String> res = new ArrayList<String>();
+
+    if (val == null) {
+      return res;
+    }
+
+    for (String s: val.split(",")) {
+      s = s.trim();
+
+      if (s.length() > 0) {
+        res.add(s);
+      }
+    }
+
+    return res;
+  }
+
+  protected Logger getLogger() {
+    if (log == null) {
+      log = Logger.getLogger(this.getClass());
+    }
+
+    return log;
+  }
+
+  protected void error(final Throwable t) {
+    getLogger().error(this, t);
+  }
+
+  protected void error(final String msg) {
+    getLogger().error(msg);
+  }
+
+  protected void warn(final String msg) {
+    getLogger().warn(msg);
+  }
+
+  protected void info(final String msg) {
+    getLogger().info(msg);
+  }
+
+  protected void trace(final String msg) {
+    getLogger().debug(msg);
+  }
+}
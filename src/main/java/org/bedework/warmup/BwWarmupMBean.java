@@ -0,0 +1,144 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+        
+    http://www.apache.org/licenses/LICENSE-2.0
+        
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.warmup;
+
+/** Warms up the caches and the hibernate session factory at startup so that
+ * the first requests after a restart are not all served cold.
+ *
+ * @author douglm
+ *
+ */
+public interface BwWarmupMBean {
+  /** Principal we run under
+   *
+   * @param val
+   */
+  public void setPrincipal(String val);
+
+  /**
+   * @return String principal we use
+   */
+  public String getPrincipal();
+
+  /**
+   * @param val true to warm up when the service is started
+   */
+  public void setWarmupAtStart(boolean val);
+
+  /**
+   * @return true to warm up when the service is started
+   */
+  public boolean getWarmupAtStart();
+
+  /**
+   * @param val levels of the public collection tree to load
+   */
+  public void setPublicDepth(int val);
+
+  /**
+   * @return levels of the public collection tree to load
+   */
+  public int getPublicDepth();
+
+  /**
+   * @param val comma separated list of collection paths to load with their
+   *            children
+   */
+  public void setCollectionPaths(String val);
+
+  /**
+   * @return comma separated list of collection paths
+   */
+  public String getCollectionPaths();
+
+  /**
+   * @param val comma separated list of principal hrefs to look up in the
+   *            directory
+   */
+  public void setPrincipals(String val);
+
+  /**
+   * @return comma separated list of principal hrefs
+   */
+  public String getPrincipals();
+
+  /**
+   * @param val query run against the public index - null for none
+   */
+  public void setSearchQuery(String val);
+
+  /**
+   * @return query run against the public index
+   */
+  public String getSearchQuery();
+
+  /**
+   * @return true once a warm up has completed
+   */
+  public boolean isWarm();
+
+  /**
+   * @return millisecs taken by the last warm up
+   */
+  public long getWarmupMillis();
+
+  /**
+   * @return millisecs taken by each step of the last warm up
+   */
+  public String getStepMillis();
+
+  /**
+   * @return number of steps which failed in the last warm up
+   */
+  public int getFailedSteps();
+
+  /**
+   * @return current fill levels of the node wide caches
+   */
+  public String getCacheFill();
+
+  /** Run the warm up now
+   *
+   * @return String status
+   */
+  public String warmup();
+
+  /** Name apparently must be the same as the name attribute in the
+   * jboss service definition
+   *
+   * @return Name
+   */
+  public String getName();
+
+  /** Lifecycle
+   *
+   */
+  public void start();
+
+  /** Lifecycle
+   *
+   */
+  public void stop();
+
+  /** Lifecycle
+   *
+   * @return true if started
+   */
+  public boolean isStarted();
+}
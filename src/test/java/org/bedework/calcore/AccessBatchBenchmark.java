@@ -0,0 +1,255 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+        
+    http://www.apache.org/licenses/LICENSE-2.0
+        
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.calcore;
+
+import org.bedework.calfacade.BwCalendar;
+import org.bedework.calfacade.BwEventObj;
+import org.bedework.calfacade.BwUser;
+import org.bedework.calfacade.base.BwShareableDbentity;
+import org.bedework.calfacade.exc.CalFacadeException;
+import org.bedework.calfacade.util.AccessUtilI;
+
+import edu.rpi.cmt.access.Access;
+import edu.rpi.cmt.access.AccessPrincipal;
+import edu.rpi.cmt.access.Ace;
+import edu.rpi.cmt.access.AceWho;
+import edu.rpi.cmt.access.Acl;
+import edu.rpi.cmt.access.Acl.CurrentAccess;
+import edu.rpi.cmt.access.Privilege;
+import edu.rpi.cmt.access.PrivilegeDefs;
+import edu.rpi.cmt.access.Privileges;
+import edu.rpi.cmt.access.WhoDefs;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/** Compare the batch access check with checking each entity on its own.
+ * The entities are spread over a few collections shared with the checking
+ * user for different privileges, and some have acls of their own. Each
+ * invocation uses a new session so the per-session table starts empty, as
+ * it would at the start of a request. Run with
+ * <pre>
+ *   mvn test-compile exec:java -Dexec.classpathScope=test
+ *       -Dexec.mainClass=org.bedework.calcore.AccessBatchBenchmark
+ * </pre>
+ *
+ * @author douglm
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AccessBatchBenchmark implements PrivilegeDefs {
+  /** Number of entities checked */
+  @Param({"100", "1000", "10000"})
+  public int entities;
+
+  /** Desired access */
+  @Param({"" + privRead, "" + privWrite})
+  public int how;
+
+  private Map<String, BwUser> users;
+
+  private Map<String, BwCalendar> cols;
+
+  private List<BwShareableDbentity<?>> ents;
+
+  private final AccessUtilI.CallBack cb = new AccessUtilI.CallBack() {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public AccessPrincipal getPrincipal(final String href)
+        throws CalFacadeException {
+      return users.get(href);
+    }
+
+    @Override
+    public String getUserCalendarRoot() throws CalFacadeException {
+      return "user";
+    }
+
+    @Override
+    public String makeHref(final String id, final int whoType) {
+      return "/principals/users/" + id;
+    }
+  };
+
+  private final AccessUtil.CollectionGetter cg =
+      new AccessUtil.CollectionGetter() {
+    public BwCalendar getCollection(final String path)
+        throws CalFacadeException {
+      return cols.get(path);
+    }
+  };
+
+  /**
+   * @throws Throwable
+   */
+  @Setup
+  public void setup() throws Throwable {
+    Random rand = new Random(42);
+
+    users = new HashMap<String, BwUser>();
+    cols = new HashMap<String, BwCalendar>();
+    ents = new ArrayList<BwShareableDbentity<?>>();
+
+    user("auser");
+    BwUser other = user("other");
+
+    col("/", other, Access.getDefaultPublicAccess());
+    col("/user", other, null);
+    col("/user/other", other, Access.getDefaultPersonalAccess());
+
+    BwCalendar[] shared = {
+      col("/user/other/calendar", other, null),
+      col("/user/other/read", other, grant("auser", privRead)),
+      col("/user/other/write", other, grant("auser", privRead, privWrite)),
+      col("/user/other/freebusy", other, grant("auser", privReadFreeBusy)),
+    };
+
+    String[] entAcls = {
+      grant("auser", privRead),
+      grant("auser", privWriteContent),
+    };
+
+    for (int i = 0; i < entities; i++) {
+      BwEventObj ev = new BwEventObj();
+
+      ev.setId(i);
+      ev.setName("ev" + i + ".ics");
+      ev.setColPath(shared[rand.nextInt(shared.length)].getPath());
+      ev.setOwnerHref(other.getPrincipalRef());
+      ev.setCreatorHref(other.getPrincipalRef());
+
+      if (rand.nextInt(10) == 0) {
+        ev.setAccess(entAcls[rand.nextInt(entAcls.length)]);
+      }
+
+      ents.add(ev);
+    }
+  }
+
+  /**
+   * @return results
+   * @throws Throwable
+   */
+  @Benchmark
+  public CurrentAccess[] batch() throws Throwable {
+    return accessUtil().checkAccess(ents, how, true);
+  }
+
+  /**
+   * @return results
+   * @throws Throwable
+   */
+  @Benchmark
+  public CurrentAccess[] single() throws Throwable {
+    AccessUtil au = accessUtil();
+    CurrentAccess[] cas = new CurrentAccess[ents.size()];
+
+    for (int i = 0; i < cas.length; i++) {
+      cas[i] = au.checkAccess(ents.get(i), how, true);
+    }
+
+    return cas;
+  }
+
+  /**
+   * @param args
+   * @throws Throwable
+   */
+  public static void main(final String[] args) throws Throwable {
+    new Runner(new OptionsBuilder()
+        .include(AccessBatchBenchmark.class.getSimpleName())
+        .build()).run();
+  }
+
+  private AccessUtil accessUtil() throws Throwable {
+    AccessUtil au = new AccessUtil();
+
+    au.init(cb);
+    au.setCollectionGetter(cg);
+    au.setAuthUser(users.get("/principals/users/auser"));
+
+    return au;
+  }
+
+  private String grant(final String account,
+                       final int... privs) throws Throwable {
+    Collection<Ace> aces =
+        Acl.decode(Access.getDefaultPersonalAccess().toCharArray()).getAces();
+    Collection<Privilege> privileges = new ArrayList<Privilege>();
+
+    for (int priv: privs) {
+      privileges.add(Privileges.makePriv(priv));
+    }
+
+    aces.add(Ace.makeAce(AceWho.getAceWho(account, WhoDefs.whoTypeUser, false),
+                         privileges, null));
+
+    return new Acl(aces).encodeStr();
+  }
+
+  private BwUser user(final String account) {
+    BwUser u = new BwUser();
+
+    u.setAccount(account);
+    u.setPrincipalRef("/principals/users/" + account);
+
+    users.put(u.getPrincipalRef(), u);
+
+    return u;
+  }
+
+  private BwCalendar col(final String path,
+                         final BwUser owner,
+                         final String access) {
+    BwCalendar col = new BwCalendar();
+
+    col.setPath(path);
+    col.setOwnerHref(owner.getPrincipalRef());
+    col.setCreatorHref(owner.getPrincipalRef());
+    col.setAccess(access);
+
+    cols.put(path, col);
+
+    return col;
+  }
+}
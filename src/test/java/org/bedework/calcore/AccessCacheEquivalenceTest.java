@@ -0,0 +1,385 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+        
+    http://www.apache.org/licenses/LICENSE-2.0
+        
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.calcore;
+
+import org.bedework.calfacade.BwCalendar;
+import org.bedework.calfacade.BwEventObj;
+import org.bedework.calfacade.BwUser;
+import org.bedework.calfacade.base.BwShareableDbentity;
+import org.bedework.calfacade.exc.CalFacadeException;
+import org.bedework.calfacade.util.AccessUtilI;
+
+import edu.rpi.cmt.access.Access;
+import edu.rpi.cmt.access.AccessPrincipal;
+import edu.rpi.cmt.access.Ace;
+import edu.rpi.cmt.access.AceWho;
+import edu.rpi.cmt.access.Acl;
+import edu.rpi.cmt.access.Acl.CurrentAccess;
+import edu.rpi.cmt.access.Privilege;
+import edu.rpi.cmt.access.PrivilegeDefs;
+import edu.rpi.cmt.access.Privileges;
+import edu.rpi.cmt.access.WhoDefs;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/** Check that access evaluated through the shared and per-session caches -
+ * for single entities and in batches - is the same as access evaluated
+ * with every cache off.
+ *
+ * @author douglm
+ */
+public class AccessCacheEquivalenceTest implements PrivilegeDefs {
+  private static final int[] desired = {
+    privAny, privRead, privWrite, privWriteAcl, privReadFreeBusy
+  };
+
+  private Map<String, BwUser> users;
+
+  private Map<String, BwCalendar> cols;
+
+  private List<BwShareableDbentity<?>> ents;
+
+  private final AccessUtilI.CallBack cb = new AccessUtilI.CallBack() {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public AccessPrincipal getPrincipal(final String href)
+        throws CalFacadeException {
+      return users.get(href);
+    }
+
+    @Override
+    public String getUserCalendarRoot() throws CalFacadeException {
+      return "user";
+    }
+
+    @Override
+    public String makeHref(final String id, final int whoType) {
+      return "/principals/users/" + id;
+    }
+  };
+
+  private final AccessUtil.CollectionGetter cg =
+      new AccessUtil.CollectionGetter() {
+    public BwCalendar getCollection(final String path)
+        throws CalFacadeException {
+      return cols.get(path);
+    }
+  };
+
+  @Before
+  public void setUp() throws Throwable {
+    users = new HashMap<String, BwUser>();
+    cols = new HashMap<String, BwCalendar>();
+    ents = new ArrayList<BwShareableDbentity<?>>();
+
+    BwUser auser = user("auser");
+    BwUser other = user("other");
+    BwUser pub = user("public-user");
+
+    col("/", pub, Access.getDefaultPublicAccess());
+    col("/user", pub, null);
+    col("/public", pub, null);
+    col("/public/cals", pub, null);
+    col("/user/auser", auser, Access.getDefaultPersonalAccess());
+    col("/user/auser/calendar", auser, null);
+    col("/user/other", other, Access.getDefaultPersonalAccess());
+    col("/user/other/calendar", other, null);
+
+    for (String path: new String[]{"/public/cals",
+                                   "/user/auser/calendar",
+                                   "/user/other/calendar"}) {
+      BwCalendar col = cols.get(path);
+
+      ents.add(col);
+
+      /* Several in each so the batch check reuses results */
+      for (int i = 0; i < 3; i++) {
+        ents.add(event(col, users.get(col.getOwnerHref()), null));
+      }
+
+      ents.add(event(col, auser, null));
+      ents.add(event(col, other, Access.getDefaultPersonalAccess()));
+    }
+
+    flushShared();
+  }
+
+  @After
+  public void tearDown() {
+    AclPathCache.getCache().setEnabled(true);
+    AclInternCache.getCache().setEnabled(true);
+    flushShared();
+  }
+
+  /** Warm caches must give the same answers as no caches.
+   */
+  @Test
+  public void testSingleEquivalence() throws Throwable {
+    for (String who: new String[]{"auser", "other"}) {
+      AccessUtil cached = accessUtil(who);
+
+      for (int pass = 0; pass < 2; pass++) {
+        for (BwShareableDbentity<?> ent: ents) {
+          for (int how: desired) {
+            boolean expected = uncached(who, ent, how);
+
+            AclPathCache.getCache().setEnabled(true);
+            AclInternCache.getCache().setEnabled(true);
+
+            assertEquals(id(who, ent, how, pass), expected,
+                         cached.checkAccess(ent, how, true).getAccessAllowed());
+          }
+        }
+      }
+    }
+
+    assertTrue(AclPathCache.getCache().getHits() > 0);
+  }
+
+  /** The batch check must agree with checking one at a time.
+   */
+  @Test
+  public void testBatchEquivalence() throws Throwable {
+    for (String who: new String[]{"auser", "other"}) {
+      for (int how: desired) {
+        AccessUtil au = accessUtil(who);
+
+        CurrentAccess[] cas = au.checkAccess(ents, how, true);
+
+        assertEquals(ents.size(), cas.length);
+
+        for (int i = 0; i < ents.size(); i++) {
+          BwShareableDbentity<?> ent = ents.get(i);
+
+          assertEquals(id(who, ent, how, 0), uncached(who, ent, how),
+                       cas[i].getAccessAllowed());
+        }
+      }
+    }
+  }
+
+  /** The batch check must agree with checking one at a time when access is
+   * granted piecemeal, so that entities in one collection get different
+   * answers for the same desired access.
+   */
+  @Test
+  public void testMixedBatchEquivalence() throws Throwable {
+    BwUser other = users.get("/principals/users/other");
+    List<BwShareableDbentity<?>> mixed = new ArrayList<BwShareableDbentity<?>>();
+
+    BwCalendar shared = col("/user/other/shared", other,
+                            grant("auser", privRead));
+    BwCalendar fb = col("/user/other/freebusy", other,
+                        grant("auser", privReadFreeBusy));
+    BwCalendar drop = col("/user/other/drop", other,
+                          grant("auser", privRead, privWrite));
+
+    for (BwCalendar col: new BwCalendar[]{shared, fb, drop,
+                                          cols.get("/user/other/calendar")}) {
+      mixed.add(col);
+      mixed.add(event(col, other, null));
+      mixed.add(event(col, other, grant("auser", privRead)));
+      mixed.add(event(col, other, grant("auser", privWriteContent)));
+      mixed.add(event(col, other, grant("auser", privRead, privWriteAcl)));
+      mixed.add(event(col, other, grant("auser", privReadFreeBusy)));
+      mixed.add(event(col, other, null));
+    }
+
+    flushShared();
+
+    int[] mixedDesired = {
+      privAny, privRead, privWrite, privWriteContent, privWriteAcl,
+      privReadFreeBusy
+    };
+
+    for (String who: new String[]{"auser", "other"}) {
+      for (int how: mixedDesired) {
+        CurrentAccess[] cas = accessUtil(who).checkAccess(mixed, how, true);
+
+        assertEquals(mixed.size(), cas.length);
+
+        /* Per-item through a fresh session so nothing is shared with the
+         * batch session */
+        AccessUtil single = accessUtil(who);
+        boolean someAllowed = false;
+        boolean someDenied = false;
+
+        for (int i = 0; i < mixed.size(); i++) {
+          BwShareableDbentity<?> ent = mixed.get(i);
+          boolean allowed = single.checkAccess(ent, how, true).getAccessAllowed();
+
+          assertEquals(id(who, ent, how, 0), allowed,
+                       cas[i].getAccessAllowed());
+          assertEquals(id(who, ent, how, 1), uncached(who, ent, how),
+                       cas[i].getAccessAllowed());
+
+          someAllowed |= allowed;
+          someDenied |= !allowed;
+        }
+
+        if (who.equals("auser") && (how != privAny)) {
+          /* Make sure the inputs really were mixed */
+          assertTrue(id(who, shared, how, 0), someAllowed && someDenied);
+        }
+      }
+    }
+  }
+
+  /** A changed acl must be seen through the caches.
+   */
+  @Test
+  public void testAclChange() throws Throwable {
+    BwEventObj ev = event(cols.get("/user/other/calendar"),
+                          users.get("/principals/users/other"), null);
+
+    boolean before = accessUtil("auser").checkAccess(ev, privRead,
+                                                     true).getAccessAllowed();
+    assertEquals(uncached("auser", ev, privRead), before);
+
+    /* Open up other's home as changeAccess would */
+    cols.get("/user/other").setAccess(Access.getDefaultPublicAccess());
+    AclPathCache.getCache().invalidate();
+
+    boolean after = accessUtil("auser").checkAccess(ev, privRead,
+                                                    true).getAccessAllowed();
+    assertEquals(uncached("auser", ev, privRead), after);
+
+    assertTrue(!before && after);
+  }
+
+  private boolean uncached(final String who,
+                           final BwShareableDbentity<?> ent,
+                           final int how) throws Throwable {
+    AclPathCache.getCache().setEnabled(false);
+    AclInternCache.getCache().setEnabled(false);
+
+    try {
+      return accessUtil(who).checkAccess(ent, how, true).getAccessAllowed();
+    } finally {
+      AclPathCache.getCache().setEnabled(true);
+      AclInternCache.getCache().setEnabled(true);
+    }
+  }
+
+  private AccessUtil accessUtil(final String who) throws Throwable {
+    AccessUtil au = new AccessUtil();
+
+    au.init(cb);
+    au.setCollectionGetter(cg);
+    au.setAuthUser(users.get("/principals/users/" + who));
+
+    return au;
+  }
+
+  /* An encoded acl with the default personal access plus the given
+   * privileges for one user. */
+  private String grant(final String account,
+                       final int... privs) throws Throwable {
+    Collection<Ace> aces =
+        Acl.decode(Access.getDefaultPersonalAccess().toCharArray()).getAces();
+    Collection<Privilege> how = new ArrayList<Privilege>();
+
+    for (int priv: privs) {
+      how.add(Privileges.makePriv(priv));
+    }
+
+    aces.add(Ace.makeAce(AceWho.getAceWho(account, WhoDefs.whoTypeUser, false),
+                         how, null));
+
+    return new Acl(aces).encodeStr();
+  }
+
+  private void flushShared() {
+    AclPathCache.getCache().invalidate();
+    AclInternCache.getCache().flush();
+  }
+
+  private String id(final String who,
+                    final BwShareableDbentity<?> ent,
+                    final int how,
+                    final int pass) {
+    String what;
+
+    if (ent instanceof BwCalendar) {
+      what = ((BwCalendar)ent).getPath();
+    } else {
+      BwEventObj ev = (BwEventObj)ent;
+      what = ev.getColPath() + "/" + ev.getName();
+    }
+
+    return who + " " + what + " how=" + how + " pass=" + pass;
+  }
+
+  private BwUser user(final String account) {
+    BwUser u = new BwUser();
+
+    u.setAccount(account);
+    u.setPrincipalRef("/principals/users/" + account);
+
+    users.put(u.getPrincipalRef(), u);
+
+    return u;
+  }
+
+  private BwCalendar col(final String path,
+                         final BwUser owner,
+                         final String access) {
+    BwCalendar col = new BwCalendar();
+
+    col.setPath(path);
+    col.setOwnerHref(owner.getPrincipalRef());
+    col.setCreatorHref(owner.getPrincipalRef());
+    col.setAccess(access);
+
+    cols.put(path, col);
+
+    return col;
+  }
+
+  private int eventNum;
+
+  private BwEventObj event(final BwCalendar col,
+                           final BwUser owner,
+                           final String access) {
+    BwEventObj ev = new BwEventObj();
+
+    ev.setId(eventNum);
+    ev.setName("ev" + eventNum + ".ics");
+    eventNum++;
+
+    ev.setColPath(col.getPath());
+    ev.setOwnerHref(owner.getPrincipalRef());
+    ev.setCreatorHref(owner.getPrincipalRef());
+    ev.setAccess(access);
+
+    return ev;
+  }
+}
@@ -0,0 +1,215 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+        
+    http://www.apache.org/licenses/LICENSE-2.0
+        
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.calcore;
+
+import org.bedework.calfacade.BwUser;
+
+import edu.rpi.cmt.access.Access;
+import edu.rpi.cmt.access.Ace;
+import edu.rpi.cmt.access.AceWho;
+import edu.rpi.cmt.access.Acl;
+import edu.rpi.cmt.access.Acl.CurrentAccess;
+import edu.rpi.cmt.access.Privilege;
+import edu.rpi.cmt.access.PrivilegeDefs;
+import edu.rpi.cmt.access.Privileges;
+import edu.rpi.cmt.access.WhoDefs;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/** Compare evaluation through acls compiled by the session access table
+ * with the access library. Each invocation evaluates every acl for a few
+ * desired accesses, as a request listing a collection would. The compiled
+ * benchmark starts with an empty table each time so it pays for compiling.
+ * Run with
+ * <pre>
+ *   mvn test-compile exec:java -Dexec.classpathScope=test
+ *       -Dexec.mainClass=org.bedework.calcore.AccessEvaluationBenchmark
+ * </pre>
+ *
+ * @author douglm
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AccessEvaluationBenchmark implements PrivilegeDefs {
+  private static final int[] desired = {
+    privAny, privRead, privWrite, privReadFreeBusy
+  };
+
+  /** Number of distinct acls */
+  @Param({"10", "100", "1000"})
+  public int acls;
+
+  private Access access;
+
+  private final Access.AccessCb cb = new Access.AccessCb() {
+    public String makeHref(final String id, final int whoType) {
+      return "/principals/users/" + id;
+    }
+  };
+
+  private BwUser who;
+
+  private BwUser owner;
+
+  private char[][] aclChars;
+
+  /**
+   * @throws Throwable
+   */
+  @Setup
+  public void setup() throws Throwable {
+    Random rand = new Random(42);
+
+    access = new Access();
+    who = user("auser");
+    owner = user("other");
+
+    int[] privs = {privRead, privWrite, privWriteContent, privReadFreeBusy};
+
+    aclChars = new char[acls][];
+
+    /* Personal access with a share to one of a few users */
+    for (int i = 0; i < acls; i++) {
+      Collection<Ace> aces =
+          Acl.decode(Access.getDefaultPersonalAccess().toCharArray()).getAces();
+      Collection<Privilege> how = new ArrayList<Privilege>();
+
+      how.add(Privileges.makePriv(privs[rand.nextInt(privs.length)]));
+
+      aces.add(Ace.makeAce(AceWho.getAceWho("user" + rand.nextInt(4),
+                                            WhoDefs.whoTypeUser, false),
+                           how, null));
+
+      if (rand.nextInt(2) == 0) {
+        aces.add(Ace.makeAce(AceWho.getAceWho("auser",
+                                              WhoDefs.whoTypeUser, false),
+                             how, null));
+      }
+
+      aclChars[i] = new Acl(aces).encodeAll();
+    }
+  }
+
+  /**
+   * @return count of allowed
+   * @throws Throwable
+   */
+  @Benchmark
+  public int library() throws Throwable {
+    int n = 0;
+
+    for (char[] acl: aclChars) {
+      for (int how: desired) {
+        if (evaluate(acl, how).getAccessAllowed()) {
+          n++;
+        }
+      }
+    }
+
+    return n;
+  }
+
+  /**
+   * @return count of allowed
+   * @throws Throwable
+   */
+  @Benchmark
+  public int compiled() throws Throwable {
+    SessionAccessTable sat = new SessionAccessTable();
+    String ownerHref = owner.getPrincipalRef();
+    int n = 0;
+
+    sat.setPrincipal(who);
+
+    for (char[] acl: aclChars) {
+      for (int how: desired) {
+        long key = sat.key(ownerHref, acl, how, null);
+        CurrentAccess ca = sat.evaluate(key, ownerHref, acl, how, null);
+
+        if (ca == null) {
+          /* Deferred - as AccessUtil would */
+          ca = evaluate(acl, how);
+        }
+
+        if (ca.getAccessAllowed()) {
+          n++;
+        }
+      }
+    }
+
+    return n;
+  }
+
+  /**
+   * @param args
+   * @throws Throwable
+   */
+  public static void main(final String[] args) throws Throwable {
+    new Runner(new OptionsBuilder()
+        .include(AccessEvaluationBenchmark.class.getSimpleName())
+        .build()).run();
+  }
+
+  private CurrentAccess evaluate(final char[] acl,
+                                 final int how) throws Throwable {
+    if (how == privAny) {
+      return access.checkAny(cb, who, owner, acl, null);
+    }
+
+    if (how == privRead) {
+      return access.checkRead(cb, who, owner, acl, null);
+    }
+
+    if (how == privWrite) {
+      return access.checkReadWrite(cb, who, owner, acl, null);
+    }
+
+    return access.evaluateAccess(cb, who, owner, how, acl, null);
+  }
+
+  private static BwUser user(final String account) {
+    BwUser u = new BwUser();
+
+    u.setAccount(account);
+    u.setPrincipalRef("/principals/users/" + account);
+
+    return u;
+  }
+}
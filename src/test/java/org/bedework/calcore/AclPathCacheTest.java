@@ -0,0 +1,161 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+        
+    http://www.apache.org/licenses/LICENSE-2.0
+        
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.calcore;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/** Tests for the node-wide merged acl cache.
+ *
+ * @author douglm
+ */
+public class AclPathCacheTest {
+  private static final char[] merged = "merged".toCharArray();
+
+  /**
+   */
+  @Test
+  public void testGetPut() {
+    AclPathCache cache = new AclPathCache();
+
+    long v = cache.getVersion();
+
+    assertNull(cache.get("/public", "acl"));
+
+    cache.put("/public", "acl", merged, v, 0);
+
+    assertNotNull(cache.get("/public", "acl"));
+
+    /* The collection's own acl changed in this session */
+    assertNull(cache.get("/public", "other"));
+
+    /* Stale merge started before an invalidation */
+    cache.invalidate();
+    cache.put("/public", "acl", merged, v, 0);
+
+    assertNull(cache.get("/public", "acl"));
+    assertEquals(0, cache.getSize());
+  }
+
+  /**
+   * @throws Throwable
+   */
+  @Test
+  public void testExpiry() throws Throwable {
+    AclPathCache cache = new AclPathCache();
+    cache.setMaxAge(10);
+
+    cache.put("/public", "acl", merged, cache.getVersion(), 0);
+    Thread.sleep(50);
+
+    assertNull(cache.get("/public", "acl"));
+    assertEquals(1, cache.getExpirations());
+    assertEquals(0, cache.getSize());
+  }
+
+  /** The least recently used entries go first.
+   *
+   * @throws Throwable
+   */
+  @Test
+  public void testEviction() throws Throwable {
+    AclPathCache cache = new AclPathCache();
+    cache.setMaxEntries(10);
+
+    for (int i = 0; i < 10; i++) {
+      cache.put("/p" + i, "acl", merged, cache.getVersion(), 0);
+      Thread.sleep(2);
+    }
+
+    /* Use the first five again */
+    for (int i = 0; i < 5; i++) {
+      assertNotNull(cache.get("/p" + i, "acl"));
+    }
+
+    Thread.sleep(2);
+
+    cache.put("/p10", "acl", merged, cache.getVersion(), 0);
+
+    /* Down to 90% */
+    assertEquals(9, cache.getSize());
+    assertEquals(2, cache.getEvictions());
+
+    for (int i = 0; i < 5; i++) {
+      assertNotNull("/p" + i, cache.get("/p" + i, "acl"));
+    }
+
+    assertNull(cache.get("/p5", "acl"));
+    assertNull(cache.get("/p6", "acl"));
+    assertNotNull(cache.get("/p10", "acl"));
+  }
+
+  /** Readers and writers together - the size stays bounded.
+   *
+   * @throws Throwable
+   */
+  @Test
+  public void testConcurrent() throws Throwable {
+    final AclPathCache cache = new AclPathCache();
+    cache.setMaxEntries(100);
+
+    final Throwable[] failed = new Throwable[1];
+    Thread[] threads = new Thread[8];
+
+    for (int t = 0; t < threads.length; t++) {
+      final int id = t;
+
+      threads[t] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            for (int i = 0; i < 20000; i++) {
+              String path = "/p" + ((i * (id + 1)) % 300);
+
+              if (cache.get(path, "acl") == null) {
+                cache.put(path, "acl", merged, cache.getVersion(), 0);
+              }
+            }
+          } catch (Throwable t) {
+            failed[0] = t;
+          }
+        }
+      });
+      threads[t].start();
+    }
+
+    for (Thread t: threads) {
+      t.join();
+    }
+
+    if (failed[0] != null) {
+      throw failed[0];
+    }
+
+    /* Whoever evicts last sees everything added */
+    assertTrue(cache.getSize() <= 100);
+    assertTrue(cache.getHits() > 0);
+    assertTrue(cache.getEvictions() > 0);
+    assertFalse(cache.getSize() == 0);
+  }
+}
@@ -0,0 +1,193 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+        
+    http://www.apache.org/licenses/LICENSE-2.0
+        
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.calcore;
+
+import org.bedework.calfacade.BwEventObj;
+import org.bedework.calfacade.BwFreeBusyComponent;
+import org.bedework.calfacade.util.Granulator.EventPeriod;
+
+import net.fortuna.ical4j.model.DateTime;
+import net.fortuna.ical4j.model.Period;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/** Compare the free/busy merger with the TreeSet of EventPeriod merge
+ * getFreeBusy used before. Both start from the dtval strings held in the
+ * events. Run with
+ * <pre>
+ *   mvn test-compile exec:java -Dexec.classpathScope=test
+ *       -Dexec.mainClass=org.bedework.calcore.FreeBusyMergerBenchmark
+ * </pre>
+ *
+ * @author douglm
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FreeBusyMergerBenchmark {
+  private static final long hour = 60 * 60 * 1000;
+
+  /* 2012-01-01T00:00:00Z */
+  private static final long base = 1325376000000L;
+
+  /** Number of events in the free/busy period */
+  @Param({"100", "1000", "10000"})
+  public int events;
+
+  private String[] starts;
+  private String[] ends;
+  private int[] types;
+
+  /**
+   */
+  @Setup
+  public void setup() {
+    Random rand = new Random(42);
+    SimpleDateFormat fmt = new SimpleDateFormat("yyyyMMdd'T'HHmmss'Z'");
+    fmt.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+    starts = new String[events];
+    ends = new String[events];
+    types = new int[events];
+
+    /* A month of meetings */
+    for (int i = 0; i < events; i++) {
+      long start = base + rand.nextInt(30 * 24 * 4) * hour / 4;
+
+      starts[i] = fmt.format(new Date(start));
+      ends[i] = fmt.format(new Date(start + (1 + rand.nextInt(8)) * hour / 4));
+
+      if (rand.nextInt(10) == 0) {
+        types[i] = BwFreeBusyComponent.typeBusyTentative;
+      } else {
+        types[i] = BwFreeBusyComponent.typeBusy;
+      }
+    }
+  }
+
+  /**
+   * @return the free/busy
+   * @throws Throwable
+   */
+  @Benchmark
+  public BwEventObj merger() throws Throwable {
+    FreeBusyMerger merger = new FreeBusyMerger();
+
+    for (int i = 0; i < events; i++) {
+      merger.add(merger.toMillis(starts[i]), merger.toMillis(ends[i]),
+                 types[i]);
+    }
+
+    BwEventObj fb = new BwEventObj();
+    merger.merge(fb);
+
+    return fb;
+  }
+
+  /**
+   * @return the free/busy
+   * @throws Throwable
+   */
+  @Benchmark
+  public BwEventObj eventPeriods() throws Throwable {
+    TreeSet<EventPeriod> eventPeriods = new TreeSet<EventPeriod>();
+
+    for (int i = 0; i < events; i++) {
+      DateTime psdt = new DateTime(starts[i]);
+      DateTime pedt = new DateTime(ends[i]);
+
+      psdt.setUtc(true);
+      pedt.setUtc(true);
+
+      eventPeriods.add(new EventPeriod(psdt, pedt, types[i]));
+    }
+
+    BwEventObj fb = new BwEventObj();
+    Period p = null;
+    BwFreeBusyComponent fbc = null;
+    int lastType = 0;
+
+    for (EventPeriod ep: eventPeriods) {
+      if (p == null) {
+        p = new Period(ep.getStart(), ep.getEnd());
+        lastType = ep.getType();
+      } else if ((lastType != ep.getType()) ||
+                 ep.getStart().after(p.getEnd())) {
+        if (fbc == null) {
+          fbc = new BwFreeBusyComponent();
+          fbc.setType(lastType);
+          fb.addFreeBusyPeriod(fbc);
+        }
+        fbc.addPeriod(p.getStart(), p.getEnd());
+
+        if (lastType != ep.getType()) {
+          fbc = null;
+        }
+
+        p = new Period(ep.getStart(), ep.getEnd());
+        lastType = ep.getType();
+      } else if (ep.getEnd().after(p.getEnd())) {
+        p = new Period(p.getStart(), ep.getEnd());
+      }
+    }
+
+    if (p != null) {
+      if ((fbc == null) || (lastType != fbc.getType())) {
+        fbc = new BwFreeBusyComponent();
+        fbc.setType(lastType);
+        fb.addFreeBusyPeriod(fbc);
+      }
+      fbc.addPeriod(p.getStart(), p.getEnd());
+    }
+
+    return fb;
+  }
+
+  /**
+   * @param args
+   * @throws Throwable
+   */
+  public static void main(final String[] args) throws Throwable {
+    new Runner(new OptionsBuilder()
+        .include(FreeBusyMergerBenchmark.class.getSimpleName())
+        .build()).run();
+  }
+}
@@ -0,0 +1,278 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+        
+    http://www.apache.org/licenses/LICENSE-2.0
+        
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.calcore;
+
+import org.bedework.calfacade.BwEventObj;
+import org.bedework.calfacade.BwFreeBusyComponent;
+import org.bedework.calfacade.exc.CalFacadeException;
+
+import net.fortuna.ical4j.model.DateTime;
+import net.fortuna.ical4j.model.Period;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/** Check the free/busy merger against a straightforward sort and merge.
+ *
+ * @author douglm
+ */
+public class FreeBusyMergerTest {
+  private static final long hour = 60 * 60 * 1000;
+
+  /* 2012-01-01T00:00:00Z */
+  private static final long base = 1325376000000L;
+
+  private static final int[] types = {
+    BwFreeBusyComponent.typeBusy,
+    BwFreeBusyComponent.typeBusyUnavailable,
+    BwFreeBusyComponent.typeBusyTentative
+  };
+
+  /** Random overlapping, adjacent, contained and duplicate periods of
+   * interleaved types. Enough of them to get past the insertion sort.
+   *
+   * @throws Throwable
+   */
+  @Test
+  public void testMatchesReference() throws Throwable {
+    Random rand = new Random(42);
+
+    for (int run = 0; run < 50; run++) {
+      FreeBusyMerger fbm = new FreeBusyMerger();
+      List<long[]> in = new ArrayList<long[]>();
+
+      int num = rand.nextInt(200);
+
+      for (int i = 0; i < num; i++) {
+        int t = types[rand.nextInt(types.length)];
+        long start = base + rand.nextInt(500) * hour / 4;
+        long end = start + (1 + rand.nextInt(12)) * hour / 4;
+
+        fbm.add(start, end, t);
+        in.add(new long[]{start, end, t});
+      }
+
+      assertEquals(num, fbm.size());
+
+      BwEventObj fb = new BwEventObj();
+      fbm.merge(fb);
+
+      assertEquals("run " + run, reference(in), components(fb));
+    }
+  }
+
+  /** A component for each run of one type, as getFreeBusy always gave.
+   *
+   * @throws Throwable
+   */
+  @Test
+  public void testInterleaved() throws Throwable {
+    FreeBusyMerger fbm = new FreeBusyMerger();
+
+    fbm.add(base, base + hour, BwFreeBusyComponent.typeBusy);
+    fbm.add(base + hour, base + 3 * hour, BwFreeBusyComponent.typeBusyTentative);
+    fbm.add(base + 2 * hour, base + 4 * hour, BwFreeBusyComponent.typeBusy);
+    fbm.add(base + 5 * hour, base + 6 * hour, BwFreeBusyComponent.typeBusy);
+
+    BwEventObj fb = new BwEventObj();
+    fbm.merge(fb);
+
+    List<String> got = components(fb);
+
+    assertEquals(3, got.size());
+    assertEquals(component(BwFreeBusyComponent.typeBusy,
+                           base, base + hour), got.get(0));
+    assertEquals(component(BwFreeBusyComponent.typeBusyTentative,
+                           base + hour, base + 3 * hour), got.get(1));
+    assertEquals(component(BwFreeBusyComponent.typeBusy,
+                           base + 2 * hour, base + 4 * hour,
+                           base + 5 * hour, base + 6 * hour), got.get(2));
+  }
+
+  /** Adjacent periods are joined - a gap keeps them apart.
+   */
+  @Test
+  public void testAdjacent() throws Throwable {
+    FreeBusyMerger fbm = new FreeBusyMerger();
+
+    fbm.add(base + 2 * hour, base + 3 * hour, BwFreeBusyComponent.typeBusy);
+    fbm.add(base, base + hour, BwFreeBusyComponent.typeBusy);
+    fbm.add(base + hour, base + 2 * hour, BwFreeBusyComponent.typeBusy);
+    fbm.add(base + 4 * hour, base + 5 * hour, BwFreeBusyComponent.typeBusy);
+
+    BwEventObj fb = new BwEventObj();
+    fbm.merge(fb);
+
+    List<long[]> got = periods(fb, BwFreeBusyComponent.typeBusy);
+
+    assertEquals(2, got.size());
+    assertEquals(base, got.get(0)[0]);
+    assertEquals(base + 3 * hour, got.get(0)[1]);
+    assertEquals(base + 4 * hour, got.get(1)[0]);
+    assertEquals(base + 5 * hour, got.get(1)[1]);
+  }
+
+  /** Same answers as ical4j and the java calendar.
+   */
+  @Test
+  public void testToMillis() throws Throwable {
+    FreeBusyMerger fbm = new FreeBusyMerger();
+
+    assertEquals(new DateTime("20120315T083000Z").getTime(),
+                 fbm.toMillis("20120315T083000Z"));
+    assertEquals(new DateTime("20120315T083000").getTime(),
+                 fbm.toMillis("20120315T083000"));
+
+    Calendar cal = Calendar.getInstance();
+    cal.clear();
+    cal.set(2012, 2, 15);
+
+    assertEquals(cal.getTimeInMillis(), fbm.toMillis("20120315"));
+
+    for (String bad: new String[]{"2012031", "20120315X083000",
+                                  "20120315T083000Y", "2012a315"}) {
+      try {
+        fbm.toMillis(bad);
+        fail("Accepted " + bad);
+      } catch (CalFacadeException cfe) {
+      }
+    }
+  }
+
+  /* The merge getFreeBusy did over a TreeSet of EventPeriod */
+  private List<String> reference(final List<long[]> in) {
+    List<long[]> sorted = new ArrayList<long[]>(in);
+
+    Collections.sort(sorted, new Comparator<long[]>() {
+      @Override
+      public int compare(final long[] o1, final long[] o2) {
+        for (int i = 0; i < 3; i++) {
+          if (o1[i] != o2[i]) {
+            return (o1[i] < o2[i]) ? -1 : 1;
+          }
+        }
+
+        return 0;
+      }
+    });
+
+    List<String> res = new ArrayList<String>();
+    StringBuilder fbc = null;
+    long[] p = null;
+
+    for (long[] ep: sorted) {
+      if (p == null) {
+        p = ep.clone();
+      } else if ((p[2] != ep[2]) || (ep[0] > p[1])) {
+        if (fbc == null) {
+          fbc = new StringBuilder(String.valueOf(p[2]));
+        }
+
+        fbc.append(" ").append(p[0]).append("-").append(p[1]);
+
+        if (p[2] != ep[2]) {
+          res.add(fbc.toString());
+          fbc = null;
+        }
+
+        p = ep.clone();
+      } else if (ep[1] > p[1]) {
+        p[1] = ep[1];
+      }
+    }
+
+    if (p != null) {
+      if (fbc == null) {
+        fbc = new StringBuilder(String.valueOf(p[2]));
+      }
+
+      fbc.append(" ").append(p[0]).append("-").append(p[1]);
+      res.add(fbc.toString());
+    }
+
+    return res;
+  }
+
+  private String component(final int type,
+                           final long... times) {
+    StringBuilder sb = new StringBuilder(String.valueOf(type));
+
+    for (int i = 0; i < times.length; i += 2) {
+      sb.append(" ").append(times[i]).append("-").append(times[i + 1]);
+    }
+
+    return sb.toString();
+  }
+
+  /* Each component as "type start-end start-end ..." */
+  private List<String> components(final BwEventObj fb) {
+    List<String> res = new ArrayList<String>();
+
+    if (fb.getFreeBusyPeriods() == null) {
+      return res;
+    }
+
+    for (BwFreeBusyComponent fbc: fb.getFreeBusyPeriods()) {
+      StringBuilder sb = new StringBuilder(String.valueOf(fbc.getType()));
+
+      for (Object o: fbc.getPeriods()) {
+        Period p = (Period)o;
+
+        sb.append(" ").append(p.getStart().getTime())
+          .append("-").append(p.getEnd().getTime());
+      }
+
+      res.add(sb.toString());
+    }
+
+    return res;
+  }
+
+  private List<long[]> periods(final BwEventObj fb,
+                               final int type) {
+    List<long[]> res = new ArrayList<long[]>();
+
+    if (fb.getFreeBusyPeriods() == null) {
+      return res;
+    }
+
+    for (BwFreeBusyComponent fbc: fb.getFreeBusyPeriods()) {
+      if (fbc.getType() != type) {
+        continue;
+      }
+
+      for (Object o: fbc.getPeriods()) {
+        Period p = (Period)o;
+
+        res.add(new long[]{p.getStart().getTime(), p.getEnd().getTime()});
+      }
+    }
+
+    return res;
+  }
+}
@@ -0,0 +1,337 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+        
+    http://www.apache.org/licenses/LICENSE-2.0
+        
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.calcore;
+
+import org.bedework.calfacade.BwGroup;
+import org.bedework.calfacade.BwUser;
+
+import edu.rpi.cmt.access.Access;
+import edu.rpi.cmt.access.Ace;
+import edu.rpi.cmt.access.AceWho;
+import edu.rpi.cmt.access.Acl;
+import edu.rpi.cmt.access.Acl.CurrentAccess;
+import edu.rpi.cmt.access.Privilege;
+import edu.rpi.cmt.access.PrivilegeDefs;
+import edu.rpi.cmt.access.PrivilegeSet;
+import edu.rpi.cmt.access.Privileges;
+import edu.rpi.cmt.access.WhoDefs;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/** Check acls compiled by the session access table give the same answers as
+ * the access library, over randomly generated acls, principals, owners and
+ * maximum privileges.
+ *
+ * @author douglm
+ */
+public class SessionAccessTableTest implements PrivilegeDefs {
+  private static final int acls = 2000;
+
+  private static final int[] desired = {
+    privAny, privRead, privWrite, privWriteContent, privWriteAcl,
+    privReadAcl, privReadFreeBusy, privBind, privUnbind, privAll
+  };
+
+  private static final int[] granted = {
+    privAll, privRead, privWrite, privWriteContent, privWriteProperties,
+    privWriteAcl, privReadAcl, privReadFreeBusy, privBind, privUnbind,
+    privSchedule
+  };
+
+  private static final String[] userNames = {"auser", "other", "third"};
+
+  private static final String[] groupNames = {"g1", "g2", "g3"};
+
+  private static final int[] anyWhoTypes = {
+    WhoDefs.whoTypeOwner, WhoDefs.whoTypeAuthenticated,
+    WhoDefs.whoTypeUnauthenticated, WhoDefs.whoTypeOther, WhoDefs.whoTypeAll
+  };
+
+  private Access access;
+
+  private final Access.AccessCb cb = new Access.AccessCb() {
+    public String makeHref(final String id, final int whoType) {
+      return "/principals/users/" + id;
+    }
+  };
+
+  private Random rand;
+
+  private List<BwUser> principals;
+
+  private List<BwUser> owners;
+
+  private List<PrivilegeSet> privs;
+
+  @Before
+  public void setUp() throws Throwable {
+    access = new Access();
+    rand = new Random(12345);
+
+    BwUser auser = user("auser");
+    auser.setGroups(groups("g1", "g2"));
+
+    BwUser other = user("other");
+
+    BwUser unauth = user("unauthenticated");
+    unauth.setUnauthenticated(true);
+
+    principals = new ArrayList<BwUser>();
+    principals.add(auser);
+    principals.add(other);
+    principals.add(unauth);
+
+    owners = new ArrayList<BwUser>();
+    owners.add(auser);
+    owners.add(other);
+    owners.add(user("third"));
+
+    privs = new ArrayList<PrivilegeSet>();
+    privs.add(null);
+    privs.add(PrivilegeSet.userHomeMaxPrivileges);
+    privs.add(PrivilegeSet.readOnlyPrivileges);
+  }
+
+  /** Compiled evaluation must agree with the library for every random acl,
+   * for the access decision and for each privilege in the result.
+   */
+  @Test
+  public void testRandomEquivalence() throws Throwable {
+    int compiled = 0;
+    int deferred = 0;
+
+    for (int i = 0; i < acls; i++) {
+      char[] acl = randomAcl();
+
+      for (BwUser who: principals) {
+        SessionAccessTable sat = new SessionAccessTable();
+        sat.setPrincipal(who);
+
+        for (BwUser owner: owners) {
+          for (PrivilegeSet ps: privs) {
+            for (int how: desired) {
+              String id = "acl=" + new String(acl) +
+                          " who=" + who.getAccount() +
+                          " owner=" + owner.getAccount() +
+                          " maxPrivs=" + privs.indexOf(ps) +
+                          " how=" + how;
+
+              long key = sat.key(owner.getPrincipalRef(), acl, how, ps);
+              CurrentAccess ca = sat.evaluate(key, owner.getPrincipalRef(),
+                                              acl, how, ps);
+
+              if (ca == null) {
+                deferred++;
+                continue;
+              }
+
+              compiled++;
+
+              CurrentAccess lib = evaluate(who, owner, acl, how, ps);
+
+              assertEquals(id, lib.getAccessAllowed(), ca.getAccessAllowed());
+              assertPrivileges(id, lib.getPrivileges(), ca.getPrivileges());
+
+              /* And the table must now hold it */
+              assertSame(id, ca, sat.get(key));
+            }
+          }
+        }
+      }
+    }
+
+    /* Most acls should compile */
+    assertTrue("compiled=" + compiled + " deferred=" + deferred,
+               compiled > deferred);
+  }
+
+  /** The default acls are the common case - they must compile.
+   */
+  @Test
+  public void testDefaultsCompile() throws Throwable {
+    for (String def: new String[]{Access.getDefaultPersonalAccess(),
+                                  Access.getDefaultPublicAccess()}) {
+      char[] acl = def.toCharArray();
+
+      for (BwUser who: principals) {
+        SessionAccessTable sat = new SessionAccessTable();
+        sat.setPrincipal(who);
+
+        for (BwUser owner: owners) {
+          for (int how: desired) {
+            long key = sat.key(owner.getPrincipalRef(), acl, how, null);
+            CurrentAccess ca = sat.evaluate(key, owner.getPrincipalRef(),
+                                            acl, how, null);
+            String id = def + " who=" + who.getAccount() +
+                        " owner=" + owner.getAccount() + " how=" + how;
+
+            assertTrue(id, ca != null);
+            assertEquals(id,
+                         evaluate(who, owner, acl, how, null).getAccessAllowed(),
+                         ca.getAccessAllowed());
+          }
+        }
+      }
+    }
+  }
+
+  private void assertPrivileges(final String id,
+                                final PrivilegeSet lib,
+                                final PrivilegeSet compiled) {
+    if (lib == null) {
+      for (int i = 0; i <= privMaxType; i++) {
+        assertEquals(id + " priv=" + i, false, allowed(compiled, i));
+      }
+      return;
+    }
+
+    for (int i = 0; i <= privMaxType; i++) {
+      assertEquals(id + " priv=" + i, allowed(lib, i), allowed(compiled, i));
+    }
+  }
+
+  private static boolean allowed(final PrivilegeSet ps, final int i) {
+    if (ps == null) {
+      return false;
+    }
+
+    char p = ps.getPrivilege(i);
+
+    return (p == allowed) || (p == allowedInherited);
+  }
+
+  /* An acl of up to 5 aces for distinct whos, sometimes merged with a
+   * parent acl as collection acls are. */
+  private char[] randomAcl() throws Throwable {
+    Collection<Ace> aces = randomAces();
+
+    if (rand.nextInt(2) == 0) {
+      return new Acl(aces).encodeAll();
+    }
+
+    char[] parent = new Acl(randomAces()).encodeAll();
+
+    return Acl.decode(new Acl(aces).encodeAll()).merge(parent,
+                                                       "/parent").encodeAll();
+  }
+
+  private Collection<Ace> randomAces() throws Throwable {
+    Collection<Ace> aces = new ArrayList<Ace>();
+    Set<String> whos = new HashSet<String>();
+    int n = rand.nextInt(6);
+
+    for (int i = 0; i < n; i++) {
+      AceWho who = randomWho();
+
+      if (!whos.add(who.getWhoType() + who.getWho() + who.getNotWho())) {
+        continue;
+      }
+
+      Collection<Privilege> how = new ArrayList<Privilege>();
+      int np = 1 + rand.nextInt(3);
+
+      for (int j = 0; j < np; j++) {
+        Privilege p = Privileges.makePriv(granted[rand.nextInt(granted.length)]);
+
+        if (rand.nextInt(5) == 0) {
+          p = Privilege.cloneDenied(p);
+        }
+
+        how.add(p);
+      }
+
+      aces.add(Ace.makeAce(who, how, null));
+    }
+
+    return aces;
+  }
+
+  private AceWho randomWho() {
+    int r = rand.nextInt(10);
+
+    if (r < 3) {
+      return AceWho.getAceWho(userNames[rand.nextInt(userNames.length)],
+                              WhoDefs.whoTypeUser, rand.nextInt(20) == 0);
+    }
+
+    if (r < 5) {
+      return AceWho.getAceWho(groupNames[rand.nextInt(groupNames.length)],
+                              WhoDefs.whoTypeGroup, false);
+    }
+
+    return AceWho.getAceWho(null, anyWhoTypes[rand.nextInt(anyWhoTypes.length)],
+                            false);
+  }
+
+  private CurrentAccess evaluate(final BwUser who,
+                                 final BwUser owner,
+                                 final char[] acl,
+                                 final int how,
+                                 final PrivilegeSet ps) throws Throwable {
+    if (how == privAny) {
+      return access.checkAny(cb, who, owner, acl, ps);
+    }
+
+    if (how == privRead) {
+      return access.checkRead(cb, who, owner, acl, ps);
+    }
+
+    if (how == privWrite) {
+      return access.checkReadWrite(cb, who, owner, acl, ps);
+    }
+
+    return access.evaluateAccess(cb, who, owner, how, acl, ps);
+  }
+
+  private static Set<BwGroup> groups(final String... names) {
+    Set<BwGroup> gs = new HashSet<BwGroup>();
+
+    for (String name: names) {
+      BwGroup g = new BwGroup();
+
+      g.setAccount(name);
+      g.setPrincipalRef("/principals/groups/" + name);
+
+      gs.add(g);
+    }
+
+    return gs;
+  }
+
+  private static BwUser user(final String account) {
+    BwUser u = new BwUser();
+
+    u.setAccount(account);
+    u.setPrincipalRef("/principals/users/" + account);
+
+    return u;
+  }
+}
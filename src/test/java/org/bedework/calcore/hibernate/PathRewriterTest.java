@@ -0,0 +1,266 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+        
+    http://www.apache.org/licenses/LICENSE-2.0
+        
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.calcore.hibernate;
+
+import org.bedework.calfacade.BwCalendar;
+import org.bedework.calfacade.BwCollectionLastmod;
+import org.bedework.calfacade.BwDateTime;
+import org.bedework.calfacade.BwEventObj;
+import org.bedework.calfacade.base.StartEndComponent;
+import org.bedework.calfacade.exc.CalFacadeException;
+
+import edu.rpi.cmt.calendar.IcalDefs;
+
+import org.apache.log4j.Logger;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.hibernate.cfg.Configuration;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/** Tests for the bulk rewrite of paths below a renamed or moved collection,
+ * against an in-memory H2 database.
+ *
+ * @author douglm
+ */
+public class PathRewriterTest {
+  private static final String owner = "/principals/users/admin";
+
+  private static SessionFactory sf;
+
+  /**
+   */
+  @BeforeClass
+  public static void buildFactory() {
+    sf = new Configuration().configure("/hibernate.test.cfg.xml")
+                            .buildSessionFactory();
+  }
+
+  /**
+   */
+  @AfterClass
+  public static void closeFactory() {
+    sf.close();
+  }
+
+  /**
+   * @throws CalFacadeException
+   */
+  @Before
+  public void populate() throws CalFacadeException {
+    Session sess = sf.openSession();
+    Transaction tx = sess.beginTransaction();
+
+    for (Object o: sess.createQuery("from " +
+                                    BwEventObj.class.getName()).list()) {
+      sess.delete(o);
+    }
+
+    for (Object o: sess.createQuery("from " + BwCalendar.class.getName() +
+                                    " col order by length(col.path) desc")
+                       .list()) {
+      sess.delete(o);
+    }
+
+    addCollection(sess, "/public");
+    addCollection(sess, "/public/my_dept");
+    addCollection(sess, "/public/my_dept/a");
+    addCollection(sess, "/public/my_dept/a/b");
+
+    /* Would match an unescaped like on my_dept */
+    addCollection(sess, "/public/myxdept");
+    addCollection(sess, "/public/myxdept/a");
+
+    /* Shares a prefix but not a path element */
+    addCollection(sess, "/public/my_dept2");
+
+    addEvent(sess, "/public/my_dept", "top");
+    addEvent(sess, "/public/my_dept/a", "a1");
+    addEvent(sess, "/public/my_dept/a", "a2");
+    addEvent(sess, "/public/my_dept/a/b", "b1");
+    addEvent(sess, "/public/myxdept/a", "x1");
+    addEvent(sess, "/public/my_dept2", "d1");
+
+    tx.commit();
+    sess.close();
+  }
+
+  /**
+   * @throws CalFacadeException
+   */
+  @Test
+  public void testRename() throws CalFacadeException {
+    BwCollectionLastmod lm = getCollection("/public/my_dept").getLastmod();
+    lm.setTimestamp("20300101T000000Z");
+    lm.setSequence(7);
+
+    HibSessionImpl sess = new HibSessionImpl();
+    sess.init(sf, Logger.getLogger(getClass()));
+    sess.beginTransaction();
+
+    PathRewriter rewriter = new PathRewriter(sess);
+
+    List<?> moved = rewriter.rewrite("/public/my_dept", "/public/sales", lm);
+
+    sess.commit();
+    sess.close();
+
+    assertEquals(2, rewriter.getCollections());
+    assertEquals(4, rewriter.getEntities());
+
+    /* Names and parents before the move */
+    Map<String, String> m = new HashMap<String, String>();
+
+    for (Object o: moved) {
+      Object[] fs = (Object[])o;
+      m.put((String)fs[0], (String)fs[1]);
+    }
+
+    assertEquals(2, m.size());
+    assertEquals("/public/my_dept", m.get("a"));
+    assertEquals("/public/my_dept/a", m.get("b"));
+
+    /* Descendants */
+    assertNull(getCollection("/public/my_dept/a"));
+    assertNull(getCollection("/public/my_dept/a/b"));
+
+    BwCalendar a = getCollection("/public/sales/a");
+    assertNotNull(a);
+    assertEquals("/public/sales", a.getColPath());
+    assertEquals("/public/sales/a", a.getLastmod().getPath());
+    assertEquals("20300101T000000Z", a.getLastmod().getTimestamp());
+    assertEquals(7, a.getLastmod().getSequence());
+
+    BwCalendar b = getCollection("/public/sales/a/b");
+    assertNotNull(b);
+    assertEquals("/public/sales/a", b.getColPath());
+    assertEquals("/public/sales/a/b", b.getLastmod().getPath());
+
+    /* Contents - including the renamed collection's own */
+    assertEquals(0, countEvents("/public/my_dept"));
+    assertEquals(1, countEvents("/public/sales"));
+    assertEquals(2, countEvents("/public/sales/a"));
+    assertEquals(1, countEvents("/public/sales/a/b"));
+
+    /* The collection itself is left to the caller */
+    assertNotNull(getCollection("/public/my_dept"));
+
+    /* Nothing else */
+    assertNotNull(getCollection("/public/myxdept/a"));
+    assertNotNull(getCollection("/public/my_dept2"));
+    assertEquals(1, countEvents("/public/myxdept/a"));
+    assertEquals(1, countEvents("/public/my_dept2"));
+  }
+
+  /**
+   */
+  @Test
+  public void testEscapeLike() {
+    assertEquals("/public/my!_dept", PathRewriter.escapeLike("/public/my_dept"));
+    assertEquals("/a!%b!!c", PathRewriter.escapeLike("/a%b!c"));
+    assertEquals("/public/cal", PathRewriter.escapeLike("/public/cal"));
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  private void addCollection(final Session sess,
+                             final String path) {
+    int pos = path.lastIndexOf("/");
+
+    BwCalendar col = new BwCalendar();
+    col.setName(path.substring(pos + 1));
+    col.setPath(path);
+
+    if (pos > 0) {
+      col.setColPath(path.substring(0, pos));
+    }
+
+    col.setCreatorHref(owner);
+    col.setOwnerHref(owner);
+    col.setPublick(true);
+    col.setCalType(BwCalendar.calTypeFolder);
+    col.getLastmod().setPath(path);
+    col.updateLastmod();
+
+    sess.save(col);
+  }
+
+  private void addEvent(final Session sess,
+                        final String colPath,
+                        final String name) throws CalFacadeException {
+    BwEventObj ev = new BwEventObj();
+
+    ev.setEntityType(IcalDefs.entityTypeEvent);
+    ev.setColPath(colPath);
+    ev.setName(name + ".ics");
+    ev.setUid(name + colPath);
+    ev.setCreatorHref(owner);
+    ev.setOwnerHref(owner);
+    ev.setPublick(true);
+    ev.setDtstart(BwDateTime.makeBwDateTime(true, "20120101", null));
+    ev.setDtend(BwDateTime.makeBwDateTime(true, "20120102", null));
+    ev.setEndType(StartEndComponent.endTypeDate);
+    ev.setNoStart(false);
+    ev.setDeleted(false);
+    ev.setTombstoned(false);
+    ev.setDtstamps();
+
+    sess.save(ev);
+  }
+
+  private BwCalendar getCollection(final String path) {
+    Session sess = sf.openSession();
+
+    try {
+      return (BwCalendar)sess.createQuery("from " +
+                                          BwCalendar.class.getName() +
+                                          " col where col.path=:path")
+          .setString("path", path)
+          .uniqueResult();
+    } finally {
+      sess.close();
+    }
+  }
+
+  private int countEvents(final String colPath) {
+    Session sess = sf.openSession();
+
+    try {
+      return sess.createQuery("from " + BwEventObj.class.getName() +
+                              " ev where ev.colPath=:colPath")
+          .setString("colPath", colPath)
+          .list().size();
+    } finally {
+      sess.close();
+    }
+  }
+}
@@ -0,0 +1,275 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+        
+    http://www.apache.org/licenses/LICENSE-2.0
+        
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.calcore.hibernate;
+
+import org.bedework.calfacade.BwCalendar;
+import org.bedework.calfacade.BwCollectionLastmod;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.hibernate.cfg.Configuration;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/** Tests for routing read only sessions to the replica. The primary and
+ * the replica are in-memory H2 databases. Replication is faked by setting
+ * the lastmod timestamps in each.
+ *
+ * @author douglm
+ */
+public class ReplicaRouterTest {
+  private static final String auser = "/principals/users/auser";
+  private static final String buser = "/principals/users/buser";
+
+  private static SessionFactory primary;
+
+  private ReplicaRouter router;
+
+  /**
+   */
+  @BeforeClass
+  public static void buildFactory() {
+    primary = new Configuration().configure("/hibernate.test.cfg.xml")
+                                 .buildSessionFactory();
+  }
+
+  /**
+   */
+  @AfterClass
+  public static void closeFactory() {
+    primary.close();
+  }
+
+  /**
+   */
+  @Before
+  public void init() {
+    router = new ReplicaRouter();
+    router.setConfigResource("/hibernate.replica.cfg.xml");
+    router.setCheckInterval(0);
+    router.setStalenessBudget(5 * 1000);
+    router.setEnabled(true);
+
+    setup(primary);
+    setup(replica());
+  }
+
+  /**
+   */
+  @After
+  public void close() {
+    router.closeReplica();
+  }
+
+  /**
+   */
+  @Test
+  public void testDisabled() {
+    long now = System.currentTimeMillis();
+
+    setToken(primary, now);
+    setToken(replica(), now);
+
+    router.setEnabled(false);
+
+    assertSame(primary, router.route(primary, auser));
+  }
+
+  /**
+   */
+  @Test
+  public void testUpToDate() {
+    long now = System.currentTimeMillis();
+
+    setToken(primary, now);
+    setToken(replica(), now);
+
+    assertSame(replica(), router.route(primary, auser));
+    assertFalse(router.getStale());
+    assertEquals(0, router.getReplicaLag());
+    assertEquals(1, router.getReplicaSessions());
+  }
+
+  /**
+   */
+  @Test
+  public void testWithinBudget() {
+    long now = System.currentTimeMillis();
+
+    setToken(primary, now);
+    setToken(replica(), now - 2000);
+
+    assertSame(replica(), router.route(primary, auser));
+    assertTrue(router.getReplicaLag() >= 2000);
+  }
+
+  /**
+   */
+  @Test
+  public void testStale() {
+    long now = System.currentTimeMillis();
+
+    setToken(primary, now);
+    setToken(replica(), now - 60 * 1000);
+
+    assertSame(primary, router.route(primary, auser));
+    assertTrue(router.getStale());
+    assertEquals(1, router.getStaleRoutes());
+
+    /* Caught up */
+    setToken(replica(), now);
+
+    assertSame(replica(), router.route(primary, auser));
+    assertFalse(router.getStale());
+  }
+
+  /** Checks are only made every checkInterval millis.
+   */
+  @Test
+  public void testCheckInterval() {
+    long now = System.currentTimeMillis();
+
+    setToken(primary, now);
+    setToken(replica(), now);
+
+    router.setCheckInterval(60 * 60 * 1000);
+
+    assertSame(replica(), router.route(primary, auser));
+
+    setToken(replica(), now - 60 * 1000);
+
+    /* Not checked yet */
+    assertSame(replica(), router.route(primary, auser));
+
+    router.setCheckInterval(0);
+
+    assertSame(primary, router.route(primary, auser));
+  }
+
+  /** A principal reads their own writes.
+   */
+  @Test
+  public void testPinned() {
+    long now = System.currentTimeMillis();
+
+    router.setStalenessBudget(60 * 1000);
+
+    setToken(primary, now);
+    setToken(replica(), now);
+
+    assertSame(replica(), router.route(primary, auser));
+
+    /* auser writes - replica not there yet */
+    String written = token(now + 1000);
+    setToken(primary, now + 1000);
+    router.written(auser, written);
+
+    assertSame(primary, router.route(primary, auser));
+    assertEquals(1, router.getPinnedRoutes());
+
+    /* Everybody else is fine */
+    assertSame(replica(), router.route(primary, buser));
+
+    /* Replica catches up */
+    setToken(replica(), now + 1000);
+
+    assertSame(replica(), router.route(primary, auser));
+    assertEquals(1, router.getPinnedRoutes());
+  }
+
+  /**
+   */
+  @Test
+  public void testBadConfig() {
+    router.closeReplica();
+    router.setConfigResource("/hibernate.nosuch.cfg.xml");
+
+    assertSame(primary, router.route(primary, auser));
+    assertFalse(router.getEnabled());
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  private SessionFactory replica() {
+    return router.getReplicaFactory();
+  }
+
+  /* One collection with a lastmod */
+  private void setup(final SessionFactory sf) {
+    Session sess = sf.openSession();
+    Transaction tx = sess.beginTransaction();
+
+    for (Object o: sess.createQuery("from " +
+                                    BwCalendar.class.getName()).list()) {
+      sess.delete(o);
+    }
+
+    BwCalendar col = new BwCalendar();
+    col.setName("cal");
+    col.setPath("/public/cal");
+    col.setColPath("/public");
+    col.setCreatorHref(auser);
+    col.setOwnerHref(auser);
+    col.setPublick(true);
+    col.setCalType(BwCalendar.calTypeCalendarCollection);
+    col.getLastmod().setPath(col.getPath());
+    col.updateLastmod();
+
+    sess.save(col);
+
+    tx.commit();
+    sess.close();
+  }
+
+  private void setToken(final SessionFactory sf,
+                        final long millis) {
+    Session sess = sf.openSession();
+    Transaction tx = sess.beginTransaction();
+
+    sess.createQuery("update " + BwCollectionLastmod.class.getName() +
+                     " set timestamp=:ts")
+        .setString("ts", token(millis))
+        .executeUpdate();
+
+    tx.commit();
+    sess.close();
+  }
+
+  private String token(final long millis) {
+    SimpleDateFormat fmt = new SimpleDateFormat("yyyyMMdd'T'HHmmss'Z'");
+    fmt.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+    return fmt.format(new Date(millis));
+  }
+}
@@ -0,0 +1,349 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+        
+    http://www.apache.org/licenses/LICENSE-2.0
+        
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.calcore.hibernate;
+
+import org.bedework.calfacade.BwCalendar;
+import org.bedework.calfacade.BwDateTime;
+import org.bedework.calfacade.BwEventObj;
+import org.bedework.calfacade.base.StartEndComponent;
+import org.bedework.calfacade.exc.CalFacadeException;
+
+import edu.rpi.cmt.calendar.IcalDefs;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.hibernate.cfg.Configuration;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/** Tests for moving a subtree between shards. The default shard and the
+ * target are in-memory H2 databases.
+ *
+ * @author douglm
+ */
+public class ShardMigratorTest {
+  private static final String owner = "/principals/users/auser";
+
+  private static final String shard = "shard1";
+
+  private static SessionFactory primary;
+
+  private static ShardRouter router;
+
+  /**
+   */
+  @BeforeClass
+  public static void init() {
+    primary = new Configuration().configure("/hibernate.test.cfg.xml")
+                                 .buildSessionFactory();
+    CalintfImpl.setSessionFactory(primary);
+
+    router = ShardRouter.getRouter();
+    router.setConfigPrefix("/hibernate.shard.");
+    router.setRefreshInterval(0);
+    router.setNodeTimeout(60 * 1000);
+    router.setEnabled(true);
+  }
+
+  /**
+   */
+  @AfterClass
+  public static void done() {
+    router.setEnabled(false);
+    router.setRules(new HashMap<String, String>());
+    router.closeShard(shard);
+
+    CalintfImpl.setSessionFactory(null);
+    primary.close();
+  }
+
+  /**
+   * @throws CalFacadeException
+   */
+  @Before
+  public void populate() throws CalFacadeException {
+    SessionFactory target = router.getFactory(shard, primary);
+
+    clear(primary);
+    clear(target);
+
+    Session sess = primary.openSession();
+    Transaction tx = sess.beginTransaction();
+
+    sess.createQuery("delete from " + ShardRule.class.getName())
+        .executeUpdate();
+    sess.createQuery("delete from " + ShardNode.class.getName())
+        .executeUpdate();
+
+    addCollection(sess, "/user", BwCalendar.calTypeFolder);
+    addCollection(sess, "/user/auser", BwCalendar.calTypeFolder);
+    addCollection(sess, "/user/auser/calendar",
+                  BwCalendar.calTypeCalendarCollection);
+    addCollection(sess, "/user/auser/work",
+                  BwCalendar.calTypeCalendarCollection);
+    addCollection(sess, "/user/other", BwCalendar.calTypeFolder);
+    addCollection(sess, "/user/other/calendar",
+                  BwCalendar.calTypeCalendarCollection);
+
+    for (int i = 0; i < 3; i++) {
+      addEvent(sess, "/user/auser/calendar", "ev" + i);
+    }
+
+    addEvent(sess, "/user/auser/work", "meeting");
+    addEvent(sess, "/user/other/calendar", "party");
+
+    tx.commit();
+    sess.close();
+
+    /* Start from the (now empty) persisted rules */
+    router.refresh(primary);
+  }
+
+  /**
+   * @throws CalFacadeException
+   */
+  @Test
+  public void testMigrate() throws CalFacadeException {
+    ShardMigrator.Result res = new ShardMigrator().migrate("/user/auser",
+                                                           shard);
+
+    assertEquals(3, res.collections);
+    assertEquals(4, res.events);
+    assertEquals(0, res.annotations);
+
+    /* Routed to the target everywhere */
+    assertEquals(shard, router.getShard("/user/auser/calendar"));
+    assertEquals(ShardRouter.defaultShard,
+                 router.getShard("/user/other/calendar"));
+
+    ShardRouter other = new ShardRouter();
+    other.setEnabled(true);
+    other.refresh(primary);
+
+    assertEquals(shard, other.getShard("/user/auser/calendar"));
+
+    /* Moved */
+    Session to = router.getFactory(shard, primary).openSession();
+
+    try {
+      assertNotNull(getCollection(to, "/user/auser"));
+      assertNotNull(getCollection(to, "/user/auser/calendar"));
+      assertNotNull(getCollection(to, "/user/auser/work"));
+      assertEquals(3, countEvents(to, "/user/auser/calendar"));
+      assertEquals(1, countEvents(to, "/user/auser/work"));
+
+      /* The parent is there for access checks, its other children aren't */
+      assertNotNull(getCollection(to, "/user"));
+      assertNull(getCollection(to, "/user/other"));
+      assertEquals(0, countEvents(to, "/user/other/calendar"));
+    } finally {
+      to.close();
+    }
+
+    Session from = primary.openSession();
+
+    try {
+      assertNull(getCollection(from, "/user/auser"));
+      assertNull(getCollection(from, "/user/auser/calendar"));
+      assertEquals(0, countEvents(from, "/user/auser/calendar"));
+      assertEquals(0, countEvents(from, "/user/auser/work"));
+
+      assertNotNull(getCollection(from, "/user"));
+      assertNotNull(getCollection(from, "/user/other/calendar"));
+      assertEquals(1, countEvents(from, "/user/other/calendar"));
+    } finally {
+      from.close();
+    }
+  }
+
+  /** Moving back leaves the target's copy of the parent alone.
+   *
+   * @throws CalFacadeException
+   */
+  @Test
+  public void testMigrateBack() throws CalFacadeException {
+    new ShardMigrator().migrate("/user/auser", shard);
+
+    ShardMigrator.Result res = new ShardMigrator().migrate("/user/auser",
+                                                           ShardRouter.defaultShard);
+
+    assertEquals(3, res.collections);
+    assertEquals(4, res.events);
+
+    assertEquals(ShardRouter.defaultShard,
+                 router.getShard("/user/auser/calendar"));
+
+    Session from = primary.openSession();
+
+    try {
+      assertNotNull(getCollection(from, "/user/auser/work"));
+      assertEquals(3, countEvents(from, "/user/auser/calendar"));
+    } finally {
+      from.close();
+    }
+
+    Session to = router.getFactory(shard, primary).openSession();
+
+    try {
+      assertNull(getCollection(to, "/user/auser"));
+      assertEquals(0, countEvents(to, "/user/auser/calendar"));
+    } finally {
+      to.close();
+    }
+  }
+
+  /**
+   * @throws CalFacadeException
+   */
+  @Test
+  public void testSameShard() throws CalFacadeException {
+    ShardMigrator.Result res = new ShardMigrator().migrate("/user/other",
+                                                           ShardRouter.defaultShard);
+
+    assertEquals(0, res.collections);
+    assertEquals(0, res.events);
+  }
+
+  /** A failed move leaves the rules and the target as they were.
+   *
+   * @throws CalFacadeException
+   */
+  @Test
+  public void testMissing() throws CalFacadeException {
+    long version = router.getRulesVersion();
+
+    try {
+      new ShardMigrator().migrate("/user/nosuch", shard);
+      fail("Expected an exception");
+    } catch (CalFacadeException cfe) {
+      // Expected
+    }
+
+    assertEquals(version, router.getRulesVersion());
+    assertEquals(ShardRouter.defaultShard,
+                 router.getShard("/user/nosuch"));
+
+    Session to = router.getFactory(shard, primary).openSession();
+
+    try {
+      assertNull(getCollection(to, "/user"));
+    } finally {
+      to.close();
+    }
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  private void addCollection(final Session sess,
+                             final String path,
+                             final int calType) {
+    int pos = path.lastIndexOf("/");
+
+    BwCalendar col = new BwCalendar();
+    col.setName(path.substring(pos + 1));
+    col.setPath(path);
+
+    if (pos > 0) {
+      col.setColPath(path.substring(0, pos));
+    }
+
+    col.setCreatorHref(owner);
+    col.setOwnerHref(owner);
+    col.setPublick(false);
+    col.setCalType(calType);
+    col.getLastmod().setPath(path);
+    col.updateLastmod();
+
+    sess.save(col);
+  }
+
+  private void addEvent(final Session sess,
+                        final String colPath,
+                        final String name) throws CalFacadeException {
+    BwEventObj ev = new BwEventObj();
+
+    ev.setEntityType(IcalDefs.entityTypeEvent);
+    ev.setColPath(colPath);
+    ev.setName(name + ".ics");
+    ev.setUid(name + colPath);
+    ev.setCreatorHref(owner);
+    ev.setOwnerHref(owner);
+    ev.setPublick(false);
+    ev.setDtstart(BwDateTime.makeBwDateTime(true, "20120101", null));
+    ev.setDtend(BwDateTime.makeBwDateTime(true, "20120102", null));
+    ev.setEndType(StartEndComponent.endTypeDate);
+    ev.setNoStart(false);
+    ev.setDeleted(false);
+    ev.setTombstoned(false);
+    ev.setDtstamps();
+
+    sess.save(ev);
+  }
+
+  private void clear(final SessionFactory sf) {
+    Session sess = sf.openSession();
+    Transaction tx = sess.beginTransaction();
+
+    for (Object o: sess.createQuery("from " +
+                                    BwEventObj.class.getName()).list()) {
+      sess.delete(o);
+    }
+
+    /* Children before parents */
+    for (Object o: sess.createQuery("from " + BwCalendar.class.getName() +
+                                    " col order by length(col.path) desc")
+                       .list()) {
+      sess.delete(o);
+    }
+
+    tx.commit();
+    sess.close();
+  }
+
+  private BwCalendar getCollection(final Session sess,
+                                   final String path) {
+    return (BwCalendar)sess.createQuery("from " + BwCalendar.class.getName() +
+                                        " col where col.path=:path")
+        .setString("path", path)
+        .uniqueResult();
+  }
+
+  private int countEvents(final Session sess,
+                          final String colPath) {
+    List<?> l = sess.createQuery("from " + BwEventObj.class.getName() +
+                                 " ev where ev.colPath=:colPath")
+        .setString("colPath", colPath)
+        .list();
+
+    return l.size();
+  }
+}
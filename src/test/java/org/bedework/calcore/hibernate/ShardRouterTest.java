@@ -0,0 +1,390 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+        
+    http://www.apache.org/licenses/LICENSE-2.0
+        
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.calcore.hibernate;
+
+import org.bedework.calfacade.exc.CalFacadeException;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.hibernate.cfg.Configuration;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/** Tests for routing paths to shards and for the persisted rules. The rules
+ * live in an in-memory H2 database.
+ *
+ * @author douglm
+ */
+public class ShardRouterTest {
+  private static final String def = ShardRouter.defaultShard;
+
+  private static SessionFactory primary;
+
+  /**
+   */
+  @BeforeClass
+  public static void buildFactory() {
+    primary = new Configuration().configure("/hibernate.test.cfg.xml")
+                                 .buildSessionFactory();
+  }
+
+  /**
+   */
+  @AfterClass
+  public static void closeFactory() {
+    primary.close();
+  }
+
+  /**
+   */
+  @Before
+  public void clear() {
+    Session sess = primary.openSession();
+    Transaction tx = sess.beginTransaction();
+
+    sess.createQuery("delete from " + ShardRule.class.getName())
+        .executeUpdate();
+    sess.createQuery("delete from " + ShardNode.class.getName())
+        .executeUpdate();
+
+    tx.commit();
+    sess.close();
+  }
+
+  /* ====================================================================
+   *                   Routing
+   * ==================================================================== */
+
+  /**
+   */
+  @Test
+  public void testLongestPrefix() {
+    ShardRouter router = new ShardRouter();
+
+    router.setRule("/user/auser", "s1");
+    router.setRule("/user/auser/big", "s2");
+
+    /* Not routing yet */
+    assertEquals(def, router.getShard("/user/auser/calendar"));
+
+    router.setEnabled(true);
+
+    assertEquals("s1", router.getShard("/user/auser"));
+    assertEquals("s1", router.getShard("/user/auser/"));
+    assertEquals("s1", router.getShard("/user/auser/calendar"));
+    assertEquals("s1", router.getShard("/user/auser/calendar/ev.ics"));
+    assertEquals("s2", router.getShard("/user/auser/big"));
+    assertEquals("s2", router.getShard("/user/auser/big/calendar"));
+
+    /* Prefixes match whole path elements */
+    assertEquals(def, router.getShard("/user/auserx"));
+    assertEquals(def, router.getShard("/user"));
+    assertEquals(def, router.getShard("/"));
+    assertEquals(def, router.getShard(null));
+  }
+
+  /**
+   */
+  @Test
+  public void testDefaultRemovesRule() {
+    ShardRouter router = new ShardRouter();
+    router.setEnabled(true);
+
+    router.setRule("/user/auser", "s1");
+    router.setRule("/user/auser", def);
+
+    assertEquals(def, router.getShard("/user/auser"));
+    assertTrue(router.getRules().isEmpty());
+
+    router.setRule("/user/auser", "s1");
+    router.setRule("/user/auser", null);
+
+    assertTrue(router.getRules().isEmpty());
+
+    Map<String, String> rules = new HashMap<String, String>();
+    rules.put("/user/auser", "s1");
+    rules.put("/user/buser", def);
+    rules.put("/user/cuser", null);
+
+    router.setRules(rules);
+
+    assertEquals(1, router.getRules().size());
+    assertEquals("s1", router.getRules().get("/user/auser"));
+  }
+
+  /**
+   */
+  @Test
+  public void testMounts() {
+    ShardRouter router = new ShardRouter();
+    router.setEnabled(true);
+
+    router.setRule("/user/auser", "s1");
+    router.setRule("/user/buser", "s1");
+    router.setRule("/user/auser/calendar", "s2");
+    router.setRule("/public/big", "s2");
+
+    Collection<String> mounts = router.getMounts("/user");
+    assertEquals(2, mounts.size());
+    assertTrue(mounts.contains("/user/auser"));
+    assertTrue(mounts.contains("/user/buser"));
+
+    mounts = router.getMounts("/user/auser");
+    assertEquals(1, mounts.size());
+    assertTrue(mounts.contains("/user/auser/calendar"));
+
+    assertEquals(1, router.getMounts("/public").size());
+    assertTrue(router.getMounts("/public/big").isEmpty());
+
+    /* A subtree in the same shard as its parent is not a mount */
+    router.setRule("/user", "s1");
+    assertTrue(router.getMounts("/user").isEmpty());
+  }
+
+  /**
+   */
+  @Test
+  public void testShardsBelow() {
+    ShardRouter router = new ShardRouter();
+    router.setEnabled(true);
+
+    router.setRule("/user/auser", "s1");
+    router.setRule("/user/buser", "s2");
+    router.setRule("/public/big", "s2");
+
+    Set<String> below = router.getShardsBelow("/user");
+    assertEquals(2, below.size());
+    assertTrue(below.contains("s1"));
+    assertTrue(below.contains("s2"));
+
+    assertEquals(2, router.getShardsBelow("/").size());
+    assertEquals(1, router.getShardsBelow("/public").size());
+
+    /* Not our own shard */
+    assertTrue(router.getShardsBelow("/user/auser").isEmpty());
+    assertTrue(router.getShardsBelow("/user/aus").isEmpty());
+
+    Set<String> shards = router.getShards();
+    assertEquals(3, shards.size());
+    assertTrue(shards.contains(def));
+  }
+
+  /* ====================================================================
+   *                   Persisted rules
+   * ==================================================================== */
+
+  /**
+   * @throws CalFacadeException
+   */
+  @Test
+  public void testSaveRule() throws CalFacadeException {
+    ShardRouter router = new ShardRouter();
+    router.setEnabled(true);
+
+    long v1 = router.saveRule("/user/auser", "s1", primary);
+    long v2 = router.saveRule("/user/buser", "s2", primary);
+
+    assertTrue(v2 > v1);
+    assertEquals(v2, router.getRulesVersion());
+    assertEquals("s1", router.getShard("/user/auser/calendar"));
+    assertEquals("s2", router.getShard("/user/buser/calendar"));
+
+    /* Another node picks them up */
+    ShardRouter other = new ShardRouter();
+    other.setEnabled(true);
+    other.refresh(primary);
+
+    assertEquals(v2, other.getRulesVersion());
+    assertEquals(router.getRules(), other.getRules());
+
+    /* and sees them removed */
+    long v3 = router.saveRule("/user/auser", null, primary);
+
+    assertTrue(v3 > v2);
+    assertEquals(def, router.getShard("/user/auser/calendar"));
+
+    other.setRefreshInterval(0);
+    other.refresh(primary);
+
+    assertEquals(def, other.getShard("/user/auser/calendar"));
+    assertEquals("s2", other.getShard("/user/buser/calendar"));
+
+    /* We told the others which version we loaded */
+    assertEquals(v3, getNode(router.getNodeName()).getVersion());
+  }
+
+  /**
+   * @throws CalFacadeException
+   */
+  @Test
+  public void testRefreshInterval() throws CalFacadeException {
+    ShardRouter router = new ShardRouter();
+    router.setEnabled(true);
+    router.setRefreshInterval(60 * 60 * 1000);
+
+    router.refresh(primary);
+    assertEquals(0, router.getRulesVersion());
+
+    /* Changed by another node */
+    Session sess = primary.openSession();
+    Transaction tx = sess.beginTransaction();
+
+    ShardRule rule = new ShardRule();
+    rule.setPrefix("/user/auser");
+    rule.setShard("s1");
+    rule.setVersion(1);
+    sess.save(rule);
+
+    tx.commit();
+    sess.close();
+
+    router.refresh(primary);
+    assertEquals(def, router.getShard("/user/auser"));
+
+    router.setRefreshInterval(0);
+    router.refresh(primary);
+
+    assertEquals(1, router.getRulesVersion());
+    assertEquals("s1", router.getShard("/user/auser"));
+  }
+
+  /** Wait for a node which catches up while we wait.
+   *
+   * @throws Throwable
+   */
+  @Test
+  public void testAwaitNodes() throws Throwable {
+    final ShardRouter router = new ShardRouter();
+    router.setEnabled(true);
+    router.setRefreshInterval(0);
+
+    addNode("othernode", 0, System.currentTimeMillis());
+
+    final long version = router.saveRule("/user/auser", "s1", primary);
+
+    Thread other = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(500);
+        } catch (InterruptedException ie) {
+          return;
+        }
+
+        Session sess = primary.openSession();
+        Transaction tx = sess.beginTransaction();
+
+        ShardNode node = (ShardNode)sess.createQuery(
+                "from " + ShardNode.class.getName() +
+                " n where n.node='othernode'").uniqueResult();
+        node.setVersion(version);
+        node.setLastSeen(System.currentTimeMillis());
+
+        tx.commit();
+        sess.close();
+      }
+    });
+
+    long start = System.currentTimeMillis();
+
+    other.start();
+    router.awaitNodes(version, primary);
+
+    assertTrue(System.currentTimeMillis() - start >= 500);
+    assertEquals(version, getNode("othernode").getVersion());
+
+    other.join();
+  }
+
+  /** A node which stops checking is given up on.
+   *
+   * @throws CalFacadeException
+   */
+  @Test
+  public void testAwaitNodesTimeout() throws CalFacadeException {
+    ShardRouter router = new ShardRouter();
+    router.setEnabled(true);
+    router.setRefreshInterval(0);
+    router.setNodeTimeout(1000);
+
+    long start = System.currentTimeMillis();
+
+    addNode("deadnode", 0, start);
+
+    long version = router.saveRule("/user/auser", "s1", primary);
+
+    router.awaitNodes(version, primary);
+
+    assertTrue(System.currentTimeMillis() - start >= 1000);
+    assertEquals(0, getNode("deadnode").getVersion());
+
+    /* Nodes long gone don't hold us up at all */
+    version = router.saveRule("/user/buser", "s1", primary);
+
+    start = System.currentTimeMillis();
+    router.awaitNodes(version, primary);
+
+    assertTrue(System.currentTimeMillis() - start < 1000);
+  }
+
+  private void addNode(final String name,
+                       final long version,
+                       final long lastSeen) {
+    Session sess = primary.openSession();
+    Transaction tx = sess.beginTransaction();
+
+    ShardNode node = new ShardNode();
+    node.setNode(name);
+    node.setVersion(version);
+    node.setLastSeen(lastSeen);
+    sess.save(node);
+
+    tx.commit();
+    sess.close();
+  }
+
+  private ShardNode getNode(final String name) {
+    Session sess = primary.openSession();
+
+    try {
+      ShardNode node = (ShardNode)sess.createQuery(
+              "from " + ShardNode.class.getName() + " n where n.node=:node")
+          .setString("node", name)
+          .uniqueResult();
+
+      assertNotNull(node);
+
+      return node;
+    } finally {
+      sess.close();
+    }
+  }
+}
@@ -0,0 +1,165 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+        
+    http://www.apache.org/licenses/LICENSE-2.0
+        
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.calsvc;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/** Tests for the account striped locks used when opening a session.
+ *
+ * @author douglm
+ */
+public class StripedLocksTest {
+  private final StripedLocks locks = new StripedLocks(64);
+
+  /** Find an account on a different stripe to the given one.
+   *
+   * @param account
+   * @return account
+   */
+  private String otherStripe(final String account) {
+    for (int i = 0; ; i++) {
+      String a = "user" + i;
+
+      if (locks.stripe(a) != locks.stripe(account)) {
+        return a;
+      }
+    }
+  }
+
+  /**
+   */
+  @Test
+  public void testSameAccount() {
+    assertSame(locks.lockFor("auser"), locks.lockFor(new String("auser")));
+
+    Object[] pair = locks.locksFor("auser", "auser");
+    assertSame(pair[0], pair[1]);
+    assertSame(locks.lockFor("auser"), pair[0]);
+  }
+
+  /**
+   */
+  @Test
+  public void testStripeRange() {
+    for (int i = 0; i < 1000; i++) {
+      int s = locks.stripe("user" + i);
+      assertTrue(s >= 0 && s < locks.size());
+    }
+
+    /* Negative hash codes */
+    assertTrue(locks.stripe("polygenelubricants") >= 0);
+
+    assertEquals(0, locks.stripe(null));
+    assertSame(locks.lockFor(null), locks.locksFor(null, null)[0]);
+  }
+
+  /**
+   */
+  @Test
+  public void testOrderIndependent() {
+    String a = "auser";
+    String b = otherStripe(a);
+
+    Object[] ab = locks.locksFor(a, b);
+    Object[] ba = locks.locksFor(b, a);
+
+    assertNotSame(ab[0], ab[1]);
+    assertSame(ab[0], ba[0]);
+    assertSame(ab[1], ba[1]);
+
+    Object[] an = locks.locksFor(a, null);
+    Object[] na = locks.locksFor(null, a);
+    assertSame(an[0], na[0]);
+    assertSame(an[1], na[1]);
+  }
+
+  /** Two threads repeatedly take both locks with the accounts in opposite
+   * order. Taking them in the given order rather than stripe order would
+   * deadlock.
+   *
+   * @throws Throwable
+   */
+  @Test
+  public void testNoDeadlock() throws Throwable {
+    final String a = "auser";
+    final String b = otherStripe(a);
+    final int[] counter = new int[1];
+    final Throwable[] failed = new Throwable[1];
+
+    Thread t1 = new Thread(new Locker(a, b, counter, failed));
+    Thread t2 = new Thread(new Locker(b, a, counter, failed));
+    t1.setDaemon(true);
+    t2.setDaemon(true);
+
+    t1.start();
+    t2.start();
+
+    t1.join(30000);
+    t2.join(30000);
+
+    assertFalse("Deadlocked", t1.isAlive() || t2.isAlive());
+
+    if (failed[0] != null) {
+      throw failed[0];
+    }
+
+    assertEquals(2 * Locker.iterations, counter[0]);
+  }
+
+  private class Locker implements Runnable {
+    static final int iterations = 100000;
+
+    private final String account1;
+    private final String account2;
+    private final int[] counter;
+    private final Throwable[] failed;
+
+    Locker(final String account1, final String account2,
+           final int[] counter, final Throwable[] failed) {
+      this.account1 = account1;
+      this.account2 = account2;
+      this.counter = counter;
+      this.failed = failed;
+    }
+
+    @Override
+    public void run() {
+      try {
+        for (int i = 0; i < iterations; i++) {
+          Object[] l = locks.locksFor(account1, account2);
+
+          synchronized (l[0]) {
+            synchronized (l[1]) {
+              /* The first lock is shared by both threads so this is safe */
+              counter[0]++;
+            }
+          }
+        }
+      } catch (Throwable t) {
+        failed[0] = t;
+      }
+    }
+  }
+}